@@ -0,0 +1,45 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package hudson.plugins.sonar;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of the benchmarks jar. Accepts the usual JMH options, and always enables the GC profiler so that the
+ * allocation rate of each benchmark is reported next to its throughput.
+ */
+public class BenchmarkMain {
+  private BenchmarkMain() {
+  }
+
+  public static void main(String[] args) throws CommandLineOptionException, RunnerException {
+    CommandLineOptions options = new CommandLineOptions(args);
+    new Runner(new OptionsBuilder()
+      .parent(options)
+      .addProfiler(GCProfiler.class)
+      .build())
+      .run();
+  }
+}
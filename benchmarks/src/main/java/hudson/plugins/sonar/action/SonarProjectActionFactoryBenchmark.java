@@ -0,0 +1,125 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package hudson.plugins.sonar.action;
+
+import hudson.model.Action;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.plugins.sonar.client.BulkProjectResolver;
+import hudson.plugins.sonar.client.ProjectInformation;
+import hudson.plugins.sonar.client.SQProjectResolver;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Contribution of the SonarQube actions to a job page, done on every rendering of the page, when the quality gates of
+ * the last build are already cached. With {@code fresh}, the result of the previous lookup is reused; with
+ * {@code expired}, it is rebuilt from the cached quality gates while a background refresh is pending. Job and build
+ * are stub-only mocks.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SonarProjectActionFactoryBenchmark {
+  @Param({"1", "10"})
+  public int analyses;
+
+  @Param({"fresh", "expired"})
+  public String cacheState;
+
+  private SonarProjectActionFactory factory;
+  private Job<?, ?> job;
+
+  @Setup
+  public void setUp() throws Exception {
+    List<SonarAnalysisAction> actions = new ArrayList<>();
+    for (int i = 0; i < analyses; i++) {
+      SonarAnalysisAction action = new SonarAnalysisAction("SonarQube", null, "http://localhost:9000");
+      action.setUrl("http://localhost:9000/dashboard?id=project" + i);
+      action.setCeTaskId("AVh21JS2JepAEhwQ-" + i);
+      action.setServerUrl("http://localhost:9000");
+      actions.add(action);
+    }
+
+    Run<?, ?> run = mock(Run.class, Mockito.withSettings().stubOnly());
+    when(run.getActions(SonarAnalysisAction.class)).thenReturn(actions);
+    when(run.getStartTimeInMillis()).thenReturn(System.currentTimeMillis() - 60_000);
+    when(run.getDuration()).thenReturn(30_000L);
+
+    SQProjectResolver resolver = mock(SQProjectResolver.class);
+    when(resolver.resolveAsync(anyString(), anyString(), anyString(), anyString(), any())).thenAnswer(i -> {
+      ProjectInformation info = new ProjectInformation();
+      info.setName(i.getArgument(2));
+      info.setUrl(i.getArgument(1));
+      info.setStatus("OK");
+      info.setCeStatus("success");
+      return CompletableFuture.completedFuture(info);
+    });
+    BulkProjectResolver bulkResolver = new BulkProjectResolver(resolver);
+    ProjectInformationCache cache = new ProjectInformationCache(100_000, 100);
+    List<ProjectInformation> projects = cache.refresh(bulkResolver, run.getStartTimeInMillis(), actions, run).join();
+    if ("expired".equals(cacheState)) {
+      // same quality gates, but no recent lookup
+      cache = new ProjectInformationCache(100_000, 100);
+      Map<String, ProjectInformation> byTaskId = new HashMap<>();
+      for (int i = 0; i < analyses; i++) {
+        byTaskId.put(actions.get(i).getCeTaskId(), projects.get(i));
+      }
+      cache.seed(byTaskId);
+    }
+
+    job = mock(Job.class, Mockito.withSettings().stubOnly());
+    doReturn(run).when(job).getLastCompletedBuild();
+    when(job.getFullName()).thenReturn("job");
+    factory = new SonarProjectActionFactory(bulkResolver, r -> {
+    }, cache);
+  }
+
+  @Benchmark
+  public Collection<? extends Action> createFor() {
+    return factory.createFor(job);
+  }
+}
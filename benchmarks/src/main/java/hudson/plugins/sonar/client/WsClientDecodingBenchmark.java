@@ -0,0 +1,101 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package hudson.plugins.sonar.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import net.sf.json.JSONObject;
+import net.sf.json.JSONSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the previous decoding of web service responses (whole body as a String, then a json-lib tree)
+ * with the streaming decoding of {@link WsClient}. The GC profiler reports the allocation rates.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WsClientDecodingBenchmark {
+  private static final String URL = "http://localhost:9000/api";
+
+  @Param({"3", "100", "1000"})
+  public int conditions;
+
+  private byte[] ceTask;
+  private byte[] projectStatus;
+
+  @Setup
+  public void setUp() {
+    ceTask = ("{\"task\":{\"id\":\"AVL5i1TZIrFAZSZNbMcg\",\"type\":\"REPORT\",\"componentId\":\"AVLuxjNAlPSiTePYdXlf\","
+      + "\"componentKey\":\"org.sonarsource.sonarlint:sonarlint-cli\",\"componentName\":\"SonarLint CLI\",\"componentQualifier\":\"TRK\","
+      + "\"analysisId\":\"337\",\"status\":\"SUCCESS\",\"submittedAt\":\"2016-02-19T13:40:04+0100\",\"startedAt\":\"2016-02-19T13:40:05+0100\","
+      + "\"executedAt\":\"2016-02-19T13:40:06+0100\",\"executionTimeMs\":1306,\"logs\":false}}").getBytes(StandardCharsets.UTF_8);
+
+    StringBuilder sb = new StringBuilder("{\"projectStatus\":{\"status\":\"ERROR\",\"conditions\":[");
+    for (int i = 0; i < conditions; i++) {
+      if (i > 0) {
+        sb.append(',');
+      }
+      sb.append("{\"status\":\"OK\",\"metricKey\":\"metric_").append(i)
+        .append("\",\"comparator\":\"GT\",\"periodIndex\":1,\"errorThreshold\":\"0\",\"actualValue\":\"").append(i).append("\"}");
+    }
+    sb.append("],\"periods\":[{\"index\":1,\"mode\":\"previous_version\",\"date\":\"2016-02-17T11:28:28+0100\"}]}}");
+    projectStatus = sb.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Benchmark
+  public String qualityGateStatusJsonLib() {
+    JSONObject json = (JSONObject) JSONSerializer.toJSON(new String(projectStatus, StandardCharsets.UTF_8));
+    return json.getJSONObject("projectStatus").getString("status");
+  }
+
+  @Benchmark
+  public String qualityGateStatusStreaming() throws IOException {
+    return WsClient.decodeQualityGateStatus(URL, new InputStreamReader(new ByteArrayInputStream(projectStatus), StandardCharsets.UTF_8));
+  }
+
+  @Benchmark
+  public WsClient.CETask ceTaskJsonLib() {
+    JSONObject task = ((JSONObject) JSONSerializer.toJSON(new String(ceTask, StandardCharsets.UTF_8))).getJSONObject("task");
+    return new WsClient.CETask(task.getString("status"), task.getString("componentName"), task.getString("componentKey"), URL,
+      task.optString("analysisId", null));
+  }
+
+  @Benchmark
+  public WsClient.CETask ceTaskStreaming() throws IOException {
+    return WsClient.decodeCETask(URL, new InputStreamReader(new ByteArrayInputStream(ceTask), StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package hudson.plugins.sonar.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Masking of the scanner output, applied to every line logged by an analysis. Each invocation masks a batch of
+ * typical scanner log lines, one of them containing a secret. The GC profiler reports the allocation rate.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MaskPasswordsBenchmark {
+  private static final String[] LINES = {
+    "INFO: Scanner configuration file: /var/jenkins_home/tools/hudson.plugins.sonar.SonarRunnerInstallation/SQ/conf/sonar-scanner.properties\n",
+    "INFO: Project root configuration file: /var/jenkins_home/workspace/my-project/sonar-project.properties\n",
+    "INFO: SonarScanner 4.7.0.2747\n",
+    "INFO: Java 11.0.16 Eclipse Adoptium (64-bit)\n",
+    "INFO: Linux 5.15.0-52-generic amd64\n",
+    "INFO: User cache: /var/jenkins_home/.sonar/cache\n",
+    "INFO: Analyzing on SonarQube server 9.9.0.65466\n",
+    "INFO: Default locale: \"en\", source code encoding: \"UTF-8\"\n",
+    "INFO: Load global settings (done) | time=92ms\n",
+    "INFO: Server id: 147B411E-AYNxdoYDyeObXMMzxhr0\n",
+    "INFO: Loading required plugins\n",
+    "INFO: Load plugins index (done) | time=37ms\n",
+    "INFO: Indexing files...\n",
+    "INFO: 1432 files indexed\n",
+    "INFO: Sensor JavaSensor [java]\n",
+    "INFO: Configured Java source version (sonar.java.source): 11, preview features enabled (sonar.java.enablePreview): false\n",
+    "INFO: 1286/1432 source files have been analyzed\n",
+    "DEBUG: Using token squ_0123456789abcdef0123456789abcdef01234567 to authenticate\n",
+    "INFO: Analysis report uploaded in 214ms\n",
+    "INFO: ANALYSIS SUCCESSFUL, you can browse http://localhost:9000/dashboard?id=my-project\n",
+  };
+
+  @Param({"0", "1", "50"})
+  public int secrets;
+
+  private byte[][] lines;
+  private MaskPasswordsOutputStream stream;
+  private Blackhole blackhole;
+
+  @Setup
+  public void setUp(Blackhole blackhole) {
+    this.blackhole = blackhole;
+    List<String> passwords = new ArrayList<>();
+    if (secrets > 0) {
+      passwords.add("squ_0123456789abcdef0123456789abcdef01234567");
+    }
+    for (int i = 1; i < secrets; i++) {
+      passwords.add("secret-" + i + "-Zm9vYmFyYmF6cXV4");
+    }
+    stream = new MaskPasswordsOutputStream(new OutputStream() {
+      @Override
+      public void write(int b) {
+        MaskPasswordsBenchmark.this.blackhole.consume(b);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) {
+        MaskPasswordsBenchmark.this.blackhole.consume(b);
+      }
+    }, StandardCharsets.UTF_8, passwords);
+
+    lines = new byte[LINES.length][];
+    for (int i = 0; i < LINES.length; i++) {
+      lines[i] = LINES[i].getBytes(StandardCharsets.UTF_8);
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(20)
+  public void eol() throws IOException {
+    for (byte[] line : lines) {
+      stream.eol(line, line.length);
+    }
+  }
+}
@@ -0,0 +1,140 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.jenkins.pipeline;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import org.apache.commons.codec.digest.HmacAlgorithms;
+import org.apache.commons.codec.digest.HmacUtils;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Reception of a SonarQube webhook: parsing and queuing of the payload by {@link SonarQubeWebHook#doIndex}, and
+ * validation of its signature. Stapler objects are stub-only mocks, which add a small constant cost to {@link #doIndex()}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+// a single source would otherwise be throttled by the webhook queue
+@Fork(value = 1, jvmArgsAppend = {
+  "-Dorg.sonarsource.scanner.jenkins.pipeline.WebhookQueue.ratePerSource=1000000000",
+  "-Dorg.sonarsource.scanner.jenkins.pipeline.WebhookQueue.burstPerSource=1000000000"})
+@State(Scope.Benchmark)
+public class SonarQubeWebHookBenchmark {
+  private static final String SECRET = "d2ViaG9vay1zZWNyZXQ";
+  private static final String PAYLOAD = "{\"serverUrl\":\"http://localhost:9000\",\"taskId\":\"AVh21JS2JepAEhwQ-b3u\",\"status\":\"SUCCESS\","
+    + "\"analysedAt\":\"2016-11-18T10:46:28+0100\",\"revision\":\"c739069ec7105e01303e8b3065a81141aad9f129\",\"changedAt\":\"2016-11-18T10:46:28+0100\","
+    + "\"project\":{\"key\":\"myproject\",\"name\":\"My Project\",\"url\":\"https://mycompany.com/sonarqube/dashboard?id=myproject\"},"
+    + "\"branch\":{\"name\":\"master\",\"type\":\"BRANCH\",\"isMain\":true,\"url\":\"https://mycompany.com/sonarqube/dashboard?id=myproject\"},"
+    + "\"qualityGate\":{\"conditions\":["
+    + "{\"errorThreshold\":\"1\",\"metric\":\"new_security_rating\",\"onLeakPeriod\":true,\"operator\":\"GREATER_THAN\",\"status\":\"OK\",\"value\":\"1\"},"
+    + "{\"errorThreshold\":\"1\",\"metric\":\"new_reliability_rating\",\"onLeakPeriod\":true,\"operator\":\"GREATER_THAN\",\"status\":\"OK\",\"value\":\"1\"},"
+    + "{\"errorThreshold\":\"1\",\"metric\":\"new_maintainability_rating\",\"onLeakPeriod\":true,\"operator\":\"GREATER_THAN\",\"status\":\"OK\",\"value\":\"1\"},"
+    + "{\"errorThreshold\":\"80\",\"metric\":\"new_coverage\",\"onLeakPeriod\":true,\"operator\":\"LESS_THAN\",\"status\":\"NO_VALUE\"}],"
+    + "\"name\":\"SonarQube way\",\"status\":\"OK\"},\"properties\":{}}";
+
+  private SonarQubeWebHook webHook;
+  private StaplerRequest request;
+  private StaplerResponse response;
+  private String signature;
+
+  private byte[] content;
+
+  @Setup
+  public void setUp() throws IOException {
+    // the reception of each webhook is logged at INFO level
+    Logger.getLogger(SonarQubeWebHook.class.getName()).setLevel(Level.WARNING);
+    signature = new HmacUtils(HmacAlgorithms.HMAC_SHA_256, SECRET).hmacHex(PAYLOAD);
+    content = PAYLOAD.getBytes(StandardCharsets.UTF_8);
+
+    webHook = new SonarQubeWebHook();
+    request = mock(StaplerRequest.class, Mockito.withSettings().stubOnly());
+    response = mock(StaplerResponse.class, Mockito.withSettings().stubOnly());
+    when(request.getInputStream()).thenAnswer(i -> new ContentStream(content));
+    when(request.getContentLength()).thenReturn(content.length);
+    when(request.getRemoteAddr()).thenReturn("127.0.0.1");
+    when(request.getHeader("X-Sonar-Webhook-HMAC-SHA256")).thenReturn(signature);
+  }
+
+  @Benchmark
+  public void doIndex() throws IOException {
+    webHook.doIndex(request, response);
+  }
+
+  @Benchmark
+  public boolean validateSignature() {
+    return SonarQubeWebHook.isValidSignature(signature, content, SECRET);
+  }
+
+  private static final class ContentStream extends ServletInputStream {
+    private final ByteArrayInputStream in;
+
+    private ContentStream(byte[] content) {
+      this.in = new ByteArrayInputStream(content);
+    }
+
+    @Override
+    public int read() {
+      return in.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      return in.read(b, off, len);
+    }
+
+    @Override
+    public boolean isFinished() {
+      return in.available() == 0;
+    }
+
+    @Override
+    public boolean isReady() {
+      return true;
+    }
+
+    @Override
+    public void setReadListener(ReadListener readListener) {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.jenkins.simulator;
+
+import java.util.Random;
+
+/**
+ * Delay added by the simulator before answering a request.
+ */
+@FunctionalInterface
+public interface LatencyDistribution {
+
+  long nextMillis(Random random);
+
+  static LatencyDistribution none() {
+    return random -> 0;
+  }
+
+  static LatencyDistribution fixed(long millis) {
+    return random -> millis;
+  }
+
+  static LatencyDistribution uniform(long minMillis, long maxMillis) {
+    return random -> minMillis + (long) (random.nextDouble() * (maxMillis - minMillis));
+  }
+
+  /**
+   * Long-tailed distribution typical of web services: most calls are close to the median, a few are much slower.
+   *
+   * @param sigma standard deviation of the logarithm of the latency, 0.5 gives a p99 about 3 times the median
+   */
+  static LatencyDistribution logNormal(long medianMillis, double sigma) {
+    double mu = Math.log(medianMillis);
+    return random -> Math.round(Math.exp(mu + sigma * random.nextGaussian()));
+  }
+}
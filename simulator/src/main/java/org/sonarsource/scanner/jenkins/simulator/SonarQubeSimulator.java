@@ -0,0 +1,507 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.jenkins.simulator;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import org.junit.rules.ExternalResource;
+
+/**
+ * Serves the parts of the SonarQube web API used by the plugin: {@code /api/server/version}, {@code /api/ce/task} and
+ * {@code /api/qualitygates/project_status}. Analyses submitted with {@link #submitAnalysis(String)} stay in the CE queue
+ * for {@link #ceDelay(Duration)}, then a webhook is delivered to every URL registered with {@link #webhook(String, String)},
+ * signed like SonarQube does when a secret is given.
+ * <p>
+ * Latency and errors can be injected to observe the plugin under load. It can be used as a JUnit rule, which starts and
+ * stops the server, or started explicitly. Settings can be changed while it is running.
+ *
+ * <pre>
+ * &#64;Rule
+ * public SonarQubeSimulator sonarqube = new SonarQubeSimulator()
+ *   .latency(LatencyDistribution.logNormal(40, 0.5))
+ *   .errorRate(0.01)
+ *   .webhook(jenkins.getURL() + "sonarqube-webhook/", "secret");
+ * </pre>
+ */
+public class SonarQubeSimulator extends ExternalResource {
+  public static final String API_VERSION = "/api/server/version";
+  public static final String API_CE_TASK = "/api/ce/task";
+  public static final String API_PROJECT_STATUS = "/api/qualitygates/project_status";
+  public static final String SIGNATURE_HEADER = "X-Sonar-Webhook-HMAC-SHA256";
+
+  private final Map<String, Task> tasksById = new ConcurrentHashMap<>();
+  private final Map<String, Task> tasksByAnalysisId = new ConcurrentHashMap<>();
+  private final Map<String, String> qualityGateByProject = new ConcurrentHashMap<>();
+  private final Map<String, LongAdder> requestsByPath = new ConcurrentHashMap<>();
+  private final List<Webhook> webhooks = new CopyOnWriteArrayList<>();
+  private final List<Delivery> deliveries = new CopyOnWriteArrayList<>();
+  private final AtomicInteger ids = new AtomicInteger();
+
+  private volatile String version = "9.9.0.65466";
+  private volatile LatencyDistribution latency = LatencyDistribution.none();
+  private volatile double errorRate;
+  private volatile int errorStatus = 503;
+  private volatile Duration ceDelay = Duration.ZERO;
+  private volatile String defaultQualityGate = "OK";
+  private volatile String requiredToken;
+  private volatile Random random;
+
+  private HttpServer server;
+  private ExecutorService workers;
+  private ScheduledExecutorService scheduler;
+
+  public SonarQubeSimulator version(String version) {
+    this.version = version;
+    return this;
+  }
+
+  public SonarQubeSimulator latency(LatencyDistribution latency) {
+    this.latency = latency;
+    return this;
+  }
+
+  /**
+   * @param rate probability for any request to be answered with the error status, between 0 and 1
+   */
+  public SonarQubeSimulator errorRate(double rate) {
+    return errorRate(rate, 503);
+  }
+
+  public SonarQubeSimulator errorRate(double rate, int status) {
+    this.errorRate = rate;
+    this.errorStatus = status;
+    return this;
+  }
+
+  /**
+   * @param delay time spent by submitted analyses in the CE queue before being processed
+   */
+  public SonarQubeSimulator ceDelay(Duration delay) {
+    this.ceDelay = delay;
+    return this;
+  }
+
+  public SonarQubeSimulator qualityGate(String status) {
+    this.defaultQualityGate = status;
+    return this;
+  }
+
+  public SonarQubeSimulator qualityGate(String projectKey, String status) {
+    qualityGateByProject.put(projectKey, status);
+    return this;
+  }
+
+  /**
+   * @param token if not null, API calls other than the version must be authenticated with this token
+   */
+  public SonarQubeSimulator requireToken(String token) {
+    this.requiredToken = token;
+    return this;
+  }
+
+  /**
+   * @param secret signs the payloads if not null
+   */
+  public SonarQubeSimulator webhook(String url, String secret) {
+    webhooks.add(new Webhook(url, secret));
+    return this;
+  }
+
+  /**
+   * Makes the injected latency and errors reproducible.
+   */
+  public SonarQubeSimulator seed(long seed) {
+    this.random = new Random(seed);
+    return this;
+  }
+
+  public synchronized SonarQubeSimulator start() throws IOException {
+    if (server != null) {
+      return this;
+    }
+    workers = Executors.newCachedThreadPool(daemon("sonarqube-simulator-http"));
+    scheduler = Executors.newSingleThreadScheduledExecutor(daemon("sonarqube-simulator-ce"));
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.setExecutor(workers);
+    server.createContext("/", this::handle);
+    server.start();
+    return this;
+  }
+
+  public synchronized void stop() {
+    if (server == null) {
+      return;
+    }
+    server.stop(0);
+    scheduler.shutdownNow();
+    workers.shutdownNow();
+    server = null;
+  }
+
+  @Override
+  protected void before() throws IOException {
+    start();
+  }
+
+  @Override
+  protected void after() {
+    stop();
+  }
+
+  /**
+   * @return base URL of the server, without trailing slash
+   */
+  public synchronized String getUrl() {
+    if (server == null) {
+      throw new IllegalStateException("Simulator is not started");
+    }
+    return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+  }
+
+  /**
+   * Queues an analysis report, which will be processed successfully after the CE delay.
+   *
+   * @return id of the CE task
+   */
+  public String submitAnalysis(String projectKey) {
+    return submit(projectKey, Task.SUCCESS);
+  }
+
+  /**
+   * Queues an analysis report whose processing will fail after the CE delay.
+   */
+  public String submitFailedAnalysis(String projectKey) {
+    return submit(projectKey, Task.FAILED);
+  }
+
+  private String submit(String projectKey, String finalStatus) {
+    int id = ids.incrementAndGet();
+    Task task = new Task("AX-task-" + id, "AX-analysis-" + id, projectKey, finalStatus, System.nanoTime() + ceDelay.toNanos());
+    tasksById.put(task.id, task);
+    if (Task.SUCCESS.equals(finalStatus)) {
+      tasksByAnalysisId.put(task.analysisId, task);
+    }
+    scheduler.schedule(() -> deliverWebhooks(task), ceDelay.toNanos(), TimeUnit.NANOSECONDS);
+    return task.id;
+  }
+
+  /**
+   * @return number of requests received on the given API path, including the ones answered with an injected error
+   */
+  public long getRequestCount(String path) {
+    LongAdder count = requestsByPath.get(path);
+    return count == null ? 0 : count.sum();
+  }
+
+  public List<Delivery> getDeliveries() {
+    return Collections.unmodifiableList(new ArrayList<>(deliveries));
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try (HttpExchange e = exchange) {
+      String path = e.getRequestURI().getPath();
+      requestsByPath.computeIfAbsent(path, p -> new LongAdder()).increment();
+      Random r = random != null ? random : ThreadLocalRandom.current();
+      long delay;
+      boolean fail;
+      synchronized (r) {
+        delay = latency.nextMillis(r);
+        fail = errorRate > 0 && r.nextDouble() < errorRate;
+      }
+      if (delay > 0) {
+        Thread.sleep(delay);
+      }
+      if (fail) {
+        reply(e, errorStatus, "application/json", errors("Simulated failure"));
+      } else if (API_VERSION.equals(path)) {
+        reply(e, 200, "text/plain", version);
+      } else if (!isAuthorized(e)) {
+        reply(e, 401, "application/json", errors("Authentication required"));
+      } else if (API_CE_TASK.equals(path)) {
+        ceTask(e, parameter(e, "id"));
+      } else if (API_PROJECT_STATUS.equals(path)) {
+        projectStatus(e, parameter(e, "analysisId"));
+      } else {
+        reply(e, 404, "application/json", errors("Unknown url : " + path));
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private boolean isAuthorized(HttpExchange exchange) {
+    String token = requiredToken;
+    if (token == null) {
+      return true;
+    }
+    String expected = "Basic " + Base64.getEncoder().encodeToString((token + ":").getBytes(StandardCharsets.UTF_8));
+    return expected.equals(exchange.getRequestHeaders().getFirst("Authorization"));
+  }
+
+  private void ceTask(HttpExchange exchange, String taskId) throws IOException {
+    Task task = taskId == null ? null : tasksById.get(taskId);
+    if (task == null) {
+      reply(exchange, 404, "application/json", errors("No activity found for task '" + taskId + "'"));
+      return;
+    }
+    String status = task.status();
+    StringBuilder json = new StringBuilder()
+      .append("{\"task\":{\"id\":").append(quote(task.id))
+      .append(",\"type\":\"REPORT\",\"componentKey\":").append(quote(task.projectKey))
+      .append(",\"componentName\":").append(quote(task.projectKey))
+      .append(",\"status\":").append(quote(status));
+    if (Task.SUCCESS.equals(status)) {
+      json.append(",\"analysisId\":").append(quote(task.analysisId));
+    }
+    reply(exchange, 200, "application/json", json.append("}}").toString());
+  }
+
+  private void projectStatus(HttpExchange exchange, String analysisId) throws IOException {
+    Task task = analysisId == null ? null : tasksByAnalysisId.get(analysisId);
+    if (task == null || !Task.SUCCESS.equals(task.status())) {
+      reply(exchange, 404, "application/json", errors("Analysis with id '" + analysisId + "' is not found"));
+      return;
+    }
+    reply(exchange, 200, "application/json", "{\"projectStatus\":{\"status\":" + quote(qualityGate(task)) + ",\"conditions\":[],\"periods\":[]}}");
+  }
+
+  private String qualityGate(Task task) {
+    return qualityGateByProject.getOrDefault(task.projectKey, defaultQualityGate);
+  }
+
+  private void deliverWebhooks(Task task) {
+    String payload = webhookPayload(task);
+    for (Webhook webhook : webhooks) {
+      int status;
+      try {
+        HttpURLConnection connection = (HttpURLConnection) new URL(webhook.url).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/json");
+        if (webhook.secret != null) {
+          connection.setRequestProperty(SIGNATURE_HEADER, sign(payload, webhook.secret));
+        }
+        try (OutputStream out = connection.getOutputStream()) {
+          out.write(payload.getBytes(StandardCharsets.UTF_8));
+        }
+        status = connection.getResponseCode();
+        drain(status < 400 ? connection.getInputStream() : connection.getErrorStream());
+      } catch (IOException e) {
+        status = -1;
+      }
+      deliveries.add(new Delivery(webhook.url, task.id, payload, status));
+    }
+  }
+
+  private String webhookPayload(Task task) {
+    String status = task.finalStatus;
+    StringBuilder json = new StringBuilder()
+      .append("{\"serverUrl\":").append(quote(getUrl()))
+      .append(",\"taskId\":").append(quote(task.id))
+      .append(",\"status\":").append(quote(status))
+      .append(",\"analysedAt\":\"2022-01-01T00:00:00+0000\"")
+      .append(",\"project\":{\"key\":").append(quote(task.projectKey))
+      .append(",\"name\":").append(quote(task.projectKey))
+      .append(",\"url\":").append(quote(getUrl() + "/dashboard?id=" + task.projectKey)).append("}");
+    if (Task.SUCCESS.equals(status)) {
+      json.append(",\"qualityGate\":{\"name\":\"Sonar way\",\"status\":").append(quote(qualityGate(task))).append(",\"conditions\":[]}");
+    }
+    return json.append(",\"properties\":{}}").toString();
+  }
+
+  /**
+   * @return the signature SonarQube would send along with the given payload
+   */
+  public static String sign(String payload, String secret) {
+    try {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+      byte[] hash = mac.doFinal(payload.getBytes(StandardCharsets.UTF_8));
+      StringBuilder hex = new StringBuilder(hash.length * 2);
+      for (byte b : hash) {
+        hex.append(String.format("%02x", b));
+      }
+      return hex.toString();
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("Unable to sign webhook payload", e);
+    }
+  }
+
+  private static void reply(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", contentType + ";charset=utf-8");
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+
+  private static String parameter(HttpExchange exchange, String name) throws IOException {
+    String query = exchange.getRequestURI().getRawQuery();
+    if (query == null) {
+      return null;
+    }
+    for (String pair : query.split("&")) {
+      int eq = pair.indexOf('=');
+      if (eq > 0 && name.equals(pair.substring(0, eq))) {
+        return URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+      }
+    }
+    return null;
+  }
+
+  private static String errors(String message) {
+    return "{\"errors\":[{\"msg\":" + quote(message) + "}]}";
+  }
+
+  private static String quote(String value) {
+    StringBuilder sb = new StringBuilder(value.length() + 2).append('"');
+    for (char c : value.toCharArray()) {
+      if (c == '"' || c == '\\') {
+        sb.append('\\').append(c);
+      } else if (c < 0x20) {
+        sb.append(String.format("\\u%04x", (int) c));
+      } else {
+        sb.append(c);
+      }
+    }
+    return sb.append('"').toString();
+  }
+
+  private static void drain(InputStream in) throws IOException {
+    if (in == null) {
+      return;
+    }
+    try (InputStream is = in) {
+      byte[] buffer = new byte[4096];
+      while (is.read(buffer) != -1) {
+        // discard
+      }
+    }
+  }
+
+  private static ThreadFactory daemon(String name) {
+    AtomicInteger count = new AtomicInteger();
+    return runnable -> {
+      Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  private static final class Task {
+    private static final String PENDING = "PENDING";
+    private static final String SUCCESS = "SUCCESS";
+    private static final String FAILED = "FAILED";
+
+    private final String id;
+    private final String analysisId;
+    private final String projectKey;
+    private final String finalStatus;
+    private final long doneAtNanos;
+
+    private Task(String id, String analysisId, String projectKey, String finalStatus, long doneAtNanos) {
+      this.id = id;
+      this.analysisId = analysisId;
+      this.projectKey = projectKey;
+      this.finalStatus = finalStatus;
+      this.doneAtNanos = doneAtNanos;
+    }
+
+    private String status() {
+      return System.nanoTime() - doneAtNanos >= 0 ? finalStatus : PENDING;
+    }
+  }
+
+  private static final class Webhook {
+    private final String url;
+    private final String secret;
+
+    private Webhook(String url, String secret) {
+      this.url = url;
+      this.secret = secret;
+    }
+  }
+
+  /**
+   * A webhook sent by the simulator.
+   */
+  public static final class Delivery {
+    private final String url;
+    private final String taskId;
+    private final String payload;
+    private final int status;
+
+    private Delivery(String url, String taskId, String payload, int status) {
+      this.url = url;
+      this.taskId = taskId;
+      this.payload = payload;
+      this.status = status;
+    }
+
+    public String getUrl() {
+      return url;
+    }
+
+    public String getTaskId() {
+      return taskId;
+    }
+
+    public String getPayload() {
+      return payload;
+    }
+
+    /**
+     * @return HTTP status of the response, -1 if the webhook could not be sent
+     */
+    public int getStatus() {
+      return status;
+    }
+  }
+}
@@ -0,0 +1,210 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.jenkins.simulator;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SonarQubeSimulatorTest {
+  @Rule
+  public SonarQubeSimulator sonarqube = new SonarQubeSimulator();
+
+  private HttpServer receiver;
+  private final BlockingQueue<String[]> received = new LinkedBlockingQueue<>();
+
+  @Before
+  public void setUp() throws IOException {
+    receiver = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    receiver.createContext("/sonarqube-webhook/", exchange -> {
+      String body = new String(readAll(exchange.getRequestBody()), StandardCharsets.UTF_8);
+      received.add(new String[] {body, exchange.getRequestHeaders().getFirst(SonarQubeSimulator.SIGNATURE_HEADER)});
+      exchange.sendResponseHeaders(200, -1);
+      exchange.close();
+    });
+    receiver.start();
+  }
+
+  @After
+  public void tearDown() {
+    receiver.stop(0);
+  }
+
+  @Test
+  public void serves_version() throws IOException {
+    sonarqube.version("8.9.1");
+
+    assertThat(get("/api/server/version", null)).isEqualTo("8.9.1");
+    assertThat(sonarqube.getRequestCount(SonarQubeSimulator.API_VERSION)).isEqualTo(1);
+  }
+
+  @Test
+  public void task_is_pending_until_ce_delay_elapsed() throws Exception {
+    sonarqube.ceDelay(Duration.ofMillis(300)).qualityGate("proj", "ERROR");
+    String taskId = sonarqube.submitAnalysis("proj");
+
+    assertThat(get("/api/ce/task?id=" + taskId, null)).contains("\"status\":\"PENDING\"").doesNotContain("analysisId");
+
+    Thread.sleep(400);
+    String task = get("/api/ce/task?id=" + taskId, null);
+    assertThat(task).contains("\"status\":\"SUCCESS\"", "\"componentKey\":\"proj\"");
+    Matcher analysisId = Pattern.compile("\"analysisId\":\"([^\"]+)\"").matcher(task);
+    assertThat(analysisId.find()).isTrue();
+
+    assertThat(get("/api/qualitygates/project_status?analysisId=" + analysisId.group(1), null)).contains("\"status\":\"ERROR\"");
+  }
+
+  @Test
+  public void failed_analysis_has_no_quality_gate() throws IOException {
+    String taskId = sonarqube.submitFailedAnalysis("proj");
+
+    assertThat(get("/api/ce/task?id=" + taskId, null)).contains("\"status\":\"FAILED\"").doesNotContain("analysisId");
+  }
+
+  @Test
+  public void unknown_task_is_not_found() throws IOException {
+    assertThat(status("/api/ce/task?id=unknown", null)).isEqualTo(404);
+  }
+
+  @Test
+  public void requires_token() throws IOException {
+    sonarqube.requireToken("secret-token");
+    String taskId = sonarqube.submitAnalysis("proj");
+
+    assertThat(status("/api/ce/task?id=" + taskId, null)).isEqualTo(401);
+    assertThat(status("/api/ce/task?id=" + taskId, "secret-token")).isEqualTo(200);
+    assertThat(status("/api/server/version", null)).isEqualTo(200);
+  }
+
+  @Test
+  public void injects_errors() throws IOException {
+    sonarqube.errorRate(1, 502);
+
+    assertThat(status("/api/server/version", null)).isEqualTo(502);
+
+    sonarqube.errorRate(0);
+    assertThat(status("/api/server/version", null)).isEqualTo(200);
+  }
+
+  @Test
+  public void injects_latency() throws IOException {
+    sonarqube.latency(LatencyDistribution.fixed(200));
+
+    long start = System.nanoTime();
+    get("/api/server/version", null);
+    assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isGreaterThanOrEqualTo(200);
+  }
+
+  @Test
+  public void delivers_signed_webhook() throws Exception {
+    String url = "http://" + receiver.getAddress().getHostString() + ":" + receiver.getAddress().getPort() + "/sonarqube-webhook/";
+    sonarqube.webhook(url, "s3cr3t").qualityGate("OK");
+
+    String taskId = sonarqube.submitAnalysis("proj");
+
+    String[] webhook = received.poll(5, TimeUnit.SECONDS);
+    assertThat(webhook).isNotNull();
+    assertThat(webhook[0]).contains("\"taskId\":\"" + taskId + "\"", "\"status\":\"SUCCESS\"", "\"qualityGate\":{\"name\":\"Sonar way\",\"status\":\"OK\"");
+    assertThat(webhook[1]).isEqualTo(SonarQubeSimulator.sign(webhook[0], "s3cr3t"));
+    waitForDeliveries(1);
+    assertThat(sonarqube.getDeliveries()).extracting(SonarQubeSimulator.Delivery::getStatus).containsExactly(200);
+  }
+
+  @Test
+  public void records_failed_delivery() throws Exception {
+    sonarqube.webhook("http://127.0.0.1:1/sonarqube-webhook/", null);
+
+    sonarqube.submitAnalysis("proj");
+
+    waitForDeliveries(1);
+    assertThat(sonarqube.getDeliveries()).extracting(SonarQubeSimulator.Delivery::getStatus).containsExactly(-1);
+  }
+
+  @Test
+  public void latency_distributions() {
+    Random random = new Random(42);
+    assertThat(LatencyDistribution.none().nextMillis(random)).isZero();
+    assertThat(LatencyDistribution.fixed(12).nextMillis(random)).isEqualTo(12);
+    for (int i = 0; i < 100; i++) {
+      assertThat(LatencyDistribution.uniform(10, 20).nextMillis(random)).isBetween(10L, 20L);
+      assertThat(LatencyDistribution.logNormal(50, 0.5).nextMillis(random)).isPositive();
+    }
+  }
+
+  private void waitForDeliveries(int count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (sonarqube.getDeliveries().size() < count && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+  }
+
+  private String get(String path, String token) throws IOException {
+    HttpURLConnection connection = open(path, token);
+    assertThat(connection.getResponseCode()).isEqualTo(200);
+    try (InputStream in = connection.getInputStream()) {
+      return new String(readAll(in), StandardCharsets.UTF_8);
+    }
+  }
+
+  private int status(String path, String token) throws IOException {
+    HttpURLConnection connection = open(path, token);
+    int status = connection.getResponseCode();
+    connection.disconnect();
+    return status;
+  }
+
+  private HttpURLConnection open(String path, String token) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(sonarqube.getUrl() + path).openConnection();
+    if (token != null) {
+      connection.setRequestProperty("Authorization", "Basic " + Base64.getEncoder().encodeToString((token + ":").getBytes(StandardCharsets.UTF_8)));
+    }
+    return connection;
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package hudson.plugins.sonar;
+
+import hudson.Extension;
+import hudson.model.ManagementLink;
+import hudson.plugins.sonar.client.CircuitBreaker;
+import hudson.plugins.sonar.client.ClientMetrics;
+import hudson.plugins.sonar.client.ResiliencePolicy;
+import hudson.security.Permission;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.sonarsource.scanner.jenkins.pipeline.CeTaskPoller;
+import org.sonarsource.scanner.jenkins.pipeline.QualityGateResults;
+import org.sonarsource.scanner.jenkins.pipeline.SonarQubeWebHook;
+import org.sonarsource.scanner.jenkins.pipeline.WebhookQueue;
+
+/**
+ * Shows administrators how the SonarQube servers have been responding to the plugin.
+ *
+ * @since 2.16
+ */
+@Extension
+public class SonarClientManagementLink extends ManagementLink {
+
+  @Override
+  public String getIconFileName() {
+    return "/plugin/sonar/images/waves_48x48.png";
+  }
+
+  @Override
+  public String getDisplayName() {
+    return "SonarQube Server Connections";
+  }
+
+  @Override
+  public String getDescription() {
+    return "Health of the connections to the SonarQube servers, as seen by the circuit breakers and retries of the plugin, and of the reception of their webhooks";
+  }
+
+  @Override
+  public String getUrlName() {
+    return "sonarqube-client";
+  }
+
+  @Override
+  public Category getCategory() {
+    return Category.STATUS;
+  }
+
+  @Override
+  public Permission getRequiredPermission() {
+    return Jenkins.ADMINISTER;
+  }
+
+  public List<CircuitBreaker> getBreakers() {
+    return ResiliencePolicy.get().getBreakers();
+  }
+
+  public ResiliencePolicy getPolicy() {
+    return ResiliencePolicy.get();
+  }
+
+  public List<ClientMetrics.Endpoint> getEndpoints() {
+    return ClientMetrics.get().getEndpoints();
+  }
+
+  public WebhookQueue getWebhookQueue() {
+    return SonarQubeWebHook.get().getQueue();
+  }
+
+  public CeTaskPoller getTaskPoller() {
+    return CeTaskPoller.get();
+  }
+
+  public QualityGateResults getQualityGateResults() {
+    return QualityGateResults.get();
+  }
+
+  /**
+   * Serves the metrics of the calls made to SonarQube in the Prometheus text format, at {@code /manage/sonarqube-client/metrics}.
+   */
+  public void doMetrics(StaplerRequest req, StaplerResponse rsp) throws IOException {
+    Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+    rsp.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+    PrintWriter writer = rsp.getWriter();
+    ClientMetrics.get().writeText(writer);
+    writer.flush();
+  }
+}
@@ -28,6 +28,8 @@ import hudson.ExtensionList;
 import hudson.init.InitMilestone;
 import hudson.init.Initializer;
 import hudson.plugins.sonar.SonarPublisher.DescriptorImpl;
+import hudson.plugins.sonar.client.HttpClientRegistry;
+import hudson.plugins.sonar.client.ServerCapabilitiesCache;
 import hudson.plugins.sonar.utils.Logger;
 import hudson.security.ACL;
 import hudson.util.FormValidation;
@@ -88,8 +90,11 @@ public class SonarGlobalConfiguration extends GlobalConfiguration implements Ser
   }
 
   public void setInstallations(SonarInstallation... installations) {
+    SonarInstallation[] previous = this.installations;
     this.installations = installations;
     save();
+    HttpClientRegistry.get().rebuild(installations);
+    ServerCapabilitiesCache.get().installationsChanged(previous, installations);
   }
 
   public void setBuildWrapperEnabled(boolean enabled) {
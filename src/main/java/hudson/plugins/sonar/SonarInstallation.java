@@ -19,18 +19,19 @@
  */
 package hudson.plugins.sonar;
 
-import com.cloudbees.plugins.credentials.CredentialsProvider;
 import hudson.AbortException;
 import hudson.Util;
 import hudson.model.Run;
 import hudson.model.TaskListener;
 import hudson.plugins.sonar.model.TriggersConfig;
+import hudson.plugins.sonar.utils.CredentialsCache;
 import hudson.util.Secret;
 import java.io.Serializable;
 import javax.annotation.CheckForNull;
 import org.apache.commons.lang.StringUtils;
 import org.jenkinsci.plugins.plaincredentials.StringCredentials;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 public class SonarInstallation implements Serializable {
 
@@ -67,6 +68,17 @@ public class SonarInstallation implements Serializable {
 
   private TriggersConfig triggers;
 
+  /**
+   * HTTP client tuning used when talking to this server, null meaning the client defaults.
+   * @since 2.16
+   */
+  private Integer maxIdleConnections;
+  private Integer keepAliveSeconds;
+  private Integer maxRequestsPerHost;
+  private Integer connectTimeoutSeconds;
+  private Integer readTimeoutSeconds;
+  private boolean http2Disabled;
+
   private String[] split;
 
   /**
@@ -187,7 +199,7 @@ public class SonarInstallation implements Serializable {
   }
 
   public StringCredentials getCredentials(Run<?, ?> build) {
-    return CredentialsProvider.findCredentialById(credentialsId, StringCredentials.class, build);
+    return CredentialsCache.find(credentialsId, build);
   }
 
   /**
@@ -249,6 +261,73 @@ public class SonarInstallation implements Serializable {
     return split;
   }
 
+  /**
+   * @since 2.16
+   */
+  @CheckForNull
+  public Integer getMaxIdleConnections() {
+    return maxIdleConnections;
+  }
+
+  @DataBoundSetter
+  public void setMaxIdleConnections(@CheckForNull Integer maxIdleConnections) {
+    this.maxIdleConnections = positiveOrNull(maxIdleConnections);
+  }
+
+  @CheckForNull
+  public Integer getKeepAliveSeconds() {
+    return keepAliveSeconds;
+  }
+
+  @DataBoundSetter
+  public void setKeepAliveSeconds(@CheckForNull Integer keepAliveSeconds) {
+    this.keepAliveSeconds = positiveOrNull(keepAliveSeconds);
+  }
+
+  @CheckForNull
+  public Integer getMaxRequestsPerHost() {
+    return maxRequestsPerHost;
+  }
+
+  @DataBoundSetter
+  public void setMaxRequestsPerHost(@CheckForNull Integer maxRequestsPerHost) {
+    this.maxRequestsPerHost = positiveOrNull(maxRequestsPerHost);
+  }
+
+  @CheckForNull
+  public Integer getConnectTimeoutSeconds() {
+    return connectTimeoutSeconds;
+  }
+
+  @DataBoundSetter
+  public void setConnectTimeoutSeconds(@CheckForNull Integer connectTimeoutSeconds) {
+    this.connectTimeoutSeconds = positiveOrNull(connectTimeoutSeconds);
+  }
+
+  @CheckForNull
+  public Integer getReadTimeoutSeconds() {
+    return readTimeoutSeconds;
+  }
+
+  @DataBoundSetter
+  public void setReadTimeoutSeconds(@CheckForNull Integer readTimeoutSeconds) {
+    this.readTimeoutSeconds = positiveOrNull(readTimeoutSeconds);
+  }
+
+  public boolean isHttp2Disabled() {
+    return http2Disabled;
+  }
+
+  @DataBoundSetter
+  public void setHttp2Disabled(boolean http2Disabled) {
+    this.http2Disabled = http2Disabled;
+  }
+
+  @CheckForNull
+  private static Integer positiveOrNull(@CheckForNull Integer value) {
+    return value != null && value > 0 ? value : null;
+  }
+
   public TriggersConfig getTriggers() {
     if (triggers == null) {
       triggers = new TriggersConfig();
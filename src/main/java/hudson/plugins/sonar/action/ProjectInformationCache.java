@@ -0,0 +1,286 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package hudson.plugins.sonar.action;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.common.annotations.VisibleForTesting;
+import hudson.model.Run;
+import hudson.plugins.sonar.client.BulkProjectResolver;
+import hudson.plugins.sonar.client.ProjectInformation;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+
+/**
+ * Controller-wide cache of the quality gates displayed in the project pages, keyed by CE task id.
+ * It is only kept in memory and bounded by the approximate size of the cached entries, so that it neither grows
+ * with the number of builds nor gets persisted with them.
+ * The list displayed for a set of analyses is kept as an immutable snapshot, replaced at once when a lookup completes.
+ *
+ * @since 2.16
+ */
+public class ProjectInformationCache {
+  private static final String PREFIX = ProjectInformationCache.class.getName();
+  private static final long DEFAULT_MAX_WEIGHT = Long.getLong(PREFIX + ".maxWeight", 4_000_000L);
+  private static final long DEFAULT_MAX_SNAPSHOTS = Long.getLong(PREFIX + ".maxSnapshots", 1000L);
+  private static final long SNAPSHOT_TTL_MS = TimeUnit.SECONDS.toMillis(30);
+
+  private static final ProjectInformationCache INSTANCE = new ProjectInformationCache(DEFAULT_MAX_WEIGHT, DEFAULT_MAX_SNAPSHOTS);
+
+  private final Cache<String, ProjectInformation> infoByTaskId;
+  private final Cache<String, Snapshot> snapshots;
+  private final Map<String, CompletableFuture<ProjectInformation>> inFlight = new ConcurrentHashMap<>();
+
+  @VisibleForTesting
+  ProjectInformationCache(long maxWeight, long maxSnapshots) {
+    this.infoByTaskId = Caffeine.newBuilder()
+      .maximumWeight(maxWeight)
+      .weigher((String taskId, ProjectInformation proj) -> taskId.length() + weigh(proj))
+      .build();
+    this.snapshots = Caffeine.newBuilder()
+      .maximumSize(maxSnapshots)
+      .expireAfterAccess(1, TimeUnit.HOURS)
+      .build();
+  }
+
+  public static ProjectInformationCache get() {
+    return INSTANCE;
+  }
+
+  /**
+   * Looks up the analyses whose cached information is missing or outdated, without waiting.
+   * The returned future completes once every lookup has landed.
+   */
+  public CompletableFuture<List<ProjectInformation>> refresh(BulkProjectResolver resolver, long lastBuildTime, List<SonarAnalysisAction> analysis, Run<?, ?> run) {
+    Map<String, CompletableFuture<ProjectInformation>> lookups = lookup(resolver, lastBuildTime, analysis, run);
+    return CompletableFuture.allOf(lookups.values().toArray(new CompletableFuture<?>[0]))
+      .handle((v, e) -> collect(lookups));
+  }
+
+  /**
+   * Whatever is known about the analyses, without any remote call. Entries may be outdated or missing, see {@link #isStale(List)}.
+   */
+  public List<ProjectInformation> peek(List<SonarAnalysisAction> analysis) {
+    Set<String> taskIds = taskIds(analysis);
+    Snapshot snapshot = snapshots.getIfPresent(key(taskIds));
+    if (snapshot != null && !snapshot.isStale()) {
+      return snapshot.projects;
+    }
+    List<ProjectInformation> list = new ArrayList<>(taskIds.size());
+    for (String taskId : taskIds) {
+      ProjectInformation proj = infoByTaskId.getIfPresent(taskId);
+      if (proj != null) {
+        list.add(proj);
+      }
+    }
+    return list;
+  }
+
+  /**
+   * @return true if the last complete lookup of the analyses is missing or older than 30 seconds
+   */
+  public boolean isStale(List<SonarAnalysisAction> analysis) {
+    Snapshot snapshot = snapshots.getIfPresent(key(taskIds(analysis)));
+    return snapshot == null || snapshot.isStale();
+  }
+
+  /**
+   * @return time of the last complete lookup of the analyses, or null if none completed yet
+   */
+  @CheckForNull
+  public Long getLastRequest(List<SonarAnalysisAction> analysis) {
+    Snapshot snapshot = snapshots.getIfPresent(key(taskIds(analysis)));
+    return snapshot != null ? snapshot.time : null;
+  }
+
+  /**
+   * Adds information fetched before this cache existed, without replacing what is already known.
+   */
+  void seed(Map<String, ProjectInformation> legacy) {
+    legacy.forEach((taskId, proj) -> {
+      if (taskId != null && proj != null) {
+        infoByTaskId.asMap().putIfAbsent(taskId, proj);
+      }
+    });
+  }
+
+  @CheckForNull
+  @VisibleForTesting
+  ProjectInformation getIfPresent(String taskId) {
+    return infoByTaskId.getIfPresent(taskId);
+  }
+
+  /**
+   * @return lookup of each distinct task, in the order of the analyses
+   */
+  private Map<String, CompletableFuture<ProjectInformation>> lookup(BulkProjectResolver resolver, long lastBuildTime, List<SonarAnalysisAction> analysis,
+    Run<?, ?> run) {
+    Map<String, CompletableFuture<ProjectInformation>> lookups = new LinkedHashMap<>();
+    Map<BulkProjectResolver.Request, CompletableFuture<ProjectInformation>> owned = new LinkedHashMap<>();
+
+    for (SonarAnalysisAction a : analysis) {
+      String taskId = a.getCeTaskId();
+      if (taskId == null || lookups.containsKey(taskId)) {
+        continue;
+      }
+
+      ProjectInformation cached = infoByTaskId.getIfPresent(taskId);
+      if (isEntryValid(cached, lastBuildTime)) {
+        lookups.put(taskId, CompletableFuture.completedFuture(cached));
+        continue;
+      }
+
+      CompletableFuture<ProjectInformation> created = new CompletableFuture<>();
+      CompletableFuture<ProjectInformation> running = inFlight.putIfAbsent(taskId, created);
+      if (running != null) {
+        lookups.put(taskId, running);
+      } else {
+        lookups.put(taskId, created);
+        owned.put(new BulkProjectResolver.Request(a.getInstallationUrl(), a.getUrl(), taskId, a.getInstallationName()), created);
+      }
+    }
+
+    resolver.submit(owned.keySet(), run).forEach((request, future) -> {
+      String taskId = request.getCeTaskId();
+      CompletableFuture<ProjectInformation> created = owned.get(request);
+      future.whenComplete((proj, e) -> {
+        if (proj != null) {
+          infoByTaskId.put(taskId, proj);
+        }
+        inFlight.remove(taskId, created);
+        created.complete(proj);
+      });
+    });
+    return lookups;
+  }
+
+  private List<ProjectInformation> collect(Map<String, CompletableFuture<ProjectInformation>> lookups) {
+    List<ProjectInformation> list = new ArrayList<>(lookups.size());
+    for (Map.Entry<String, CompletableFuture<ProjectInformation>> lookup : lookups.entrySet()) {
+      ProjectInformation proj = lookup.getValue().getNow(null);
+      if (proj == null) {
+        proj = infoByTaskId.getIfPresent(lookup.getKey());
+      }
+      if (proj != null) {
+        list.add(proj);
+      }
+    }
+
+    // only keep the result for a while once every lookup has landed, otherwise pending entries would stay hidden
+    if (lookups.keySet().stream().noneMatch(inFlight::containsKey)) {
+      snapshot(lookups.keySet(), list, System.currentTimeMillis());
+    }
+    return list;
+  }
+
+  @VisibleForTesting
+  long size() {
+    infoByTaskId.cleanUp();
+    return infoByTaskId.estimatedSize();
+  }
+
+  @VisibleForTesting
+  void snapshot(Set<String> taskIds, List<ProjectInformation> list, long time) {
+    Snapshot created = new Snapshot(Collections.unmodifiableList(new ArrayList<>(list)), time);
+    // a slower lookup completing last must not replace a more recent result
+    snapshots.asMap().merge(key(taskIds), created, (previous, current) -> current.time >= previous.time ? current : previous);
+  }
+
+  @VisibleForTesting
+  static Set<String> taskIds(List<SonarAnalysisAction> analysis) {
+    Set<String> taskIds = new LinkedHashSet<>();
+    for (SonarAnalysisAction a : analysis) {
+      if (a.getCeTaskId() != null) {
+        taskIds.add(a.getCeTaskId());
+      }
+    }
+    return taskIds;
+  }
+
+  private static String key(Set<String> taskIds) {
+    return String.join(",", taskIds);
+  }
+
+  @VisibleForTesting
+  static boolean isEntryValid(@Nullable ProjectInformation cached, long lastBuild) {
+    if (cached == null) {
+      return false;
+    }
+
+    String status = cached.getCeStatus();
+    if (status != null) {
+      // check if CE task is done -> info won't change
+      if ("failed".equalsIgnoreCase(status) || "success".equalsIgnoreCase(status) || "canceled".equalsIgnoreCase(status)) {
+        return true;
+      }
+    } else {
+      // check if last build was before last update (giving 60sec margin)
+      long age = cached.created() - lastBuild;
+      if (age > TimeUnit.SECONDS.toMillis(60)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Approximate number of characters held by the entry, its fixed overhead being counted as 64 characters.
+   */
+  @VisibleForTesting
+  static int weigh(ProjectInformation proj) {
+    int weight = 64 + length(proj.getProjectName()) + length(proj.getUrl()) + length(proj.getStatus()) + length(proj.getCeStatus()) + length(proj.getCeUrl());
+    String[] errors = proj.getErrors();
+    if (errors != null) {
+      for (String error : errors) {
+        weight += length(error);
+      }
+    }
+    return weight;
+  }
+
+  private static int length(@Nullable String s) {
+    return s != null ? s.length() : 0;
+  }
+
+  private static final class Snapshot {
+    private final List<ProjectInformation> projects;
+    private final long time;
+
+    private Snapshot(List<ProjectInformation> projects, long time) {
+      this.projects = projects;
+      this.time = time;
+    }
+
+    private boolean isStale() {
+      return System.currentTimeMillis() - time >= SNAPSHOT_TTL_MS;
+    }
+  }
+}
@@ -23,98 +23,77 @@ import com.google.common.annotations.VisibleForTesting;
 import hudson.model.InvisibleAction;
 import hudson.model.Run;
 import hudson.plugins.sonar.client.ProjectInformation;
-import hudson.plugins.sonar.client.SQProjectResolver;
-import java.util.ArrayList;
+import hudson.plugins.sonar.utils.Logger;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.IOException;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import javax.annotation.CheckForNull;
-import javax.annotation.Nullable;
+import java.util.logging.Level;
+import jenkins.model.RunAction2;
+
+/**
+ * Used to cache the quality gates of a build in its build.xml.
+ *
+ * @deprecated since 2.16, quality gates are cached in memory by {@link ProjectInformationCache}. This action is only
+ * kept to read old builds: when such a build is loaded, its entries are moved to the new cache and the action is
+ * removed from the build in the background.
+ */
+@Deprecated
+public class SonarCacheAction extends InvisibleAction implements RunAction2 {
+  private static final ThreadPoolExecutor MIGRATION = newExecutor();
 
-public class SonarCacheAction extends InvisibleAction {
   private Map<String, ProjectInformation> infoByTaskId;
+  // no longer used, kept so that old build.xml files can still be read
   private Long lastRequest;
   private List<ProjectInformation> lastProjInfo;
 
-  public SonarCacheAction() {
-    this.infoByTaskId = new ConcurrentHashMap<>();
+  private static ThreadPoolExecutor newExecutor() {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(1000),
+      new NamingThreadFactory(new DaemonThreadFactory(), "SonarQube cache migration"));
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
   }
 
-  public List<ProjectInformation> get(SQProjectResolver resolver, long lastBuildTime, List<SonarAnalysisAction> analysis, Run<?, ?> run) {
-    if (lastRequest != null && age(lastRequest) < TimeUnit.SECONDS.toMillis(30)) {
-      return lastProjInfo;
-    }
-
-    List<ProjectInformation> list = new ArrayList<>(analysis.size());
-
-    for (SonarAnalysisAction a : analysis) {
-      ProjectInformation proj = get(resolver, lastBuildTime, a, run);
-      if (proj != null) {
-        list.add(proj);
-      }
-    }
-
-    cacheProjectInfo(list, System.currentTimeMillis());
-    return list;
-  }
-
-  @CheckForNull
   @VisibleForTesting
-  ProjectInformation get(SQProjectResolver resolver, long lastBuildTime, SonarAnalysisAction analysis, Run<?, ?> run) {
-    String taskId = analysis.getCeTaskId();
-
-    if (taskId == null) {
-      return null;
-    }
-
-    ProjectInformation cached = infoByTaskId.get(taskId);
-    if (isEntryValid(cached, lastBuildTime)) {
-      return cached;
-    }
+  SonarCacheAction(Map<String, ProjectInformation> infoByTaskId) {
+    this.infoByTaskId = infoByTaskId;
+  }
 
-    ProjectInformation proj = resolver.resolve(analysis.getInstallationUrl(), analysis.getUrl(), taskId, analysis.getInstallationName(), run);
-    if (proj != null) {
-      infoByTaskId.put(taskId, proj);
-    }
+  @Override
+  public void onAttached(Run<?, ?> r) {
+    // never attached anymore
+  }
 
-    return proj;
+  @Override
+  public void onLoad(Run<?, ?> r) {
+    migrate(r, ProjectInformationCache.get(), MIGRATION);
   }
 
   @VisibleForTesting
-  static boolean isEntryValid(@Nullable ProjectInformation cached, long lastBuild) {
-    if (cached == null) {
-      return false;
+  void migrate(Run<?, ?> r, ProjectInformationCache cache, Executor executor) {
+    if (infoByTaskId != null) {
+      cache.seed(infoByTaskId);
     }
-
-    String status = cached.getCeStatus();
-    if (status != null) {
-      // check if CE task is done -> info won't change
-      if ("failed".equalsIgnoreCase(status) || "success".equalsIgnoreCase(status) || "canceled".equalsIgnoreCase(status)) {
-        return true;
-      }
-    } else {
-      // check if last build was before last update (giving 60sec margin)
-      long age = diff(cached, lastBuild);
-      if (age > TimeUnit.SECONDS.toMillis(60)) {
-        return true;
-      }
+    try {
+      executor.execute(() -> {
+        if (!r.removeAction(this)) {
+          return;
+        }
+        try {
+          r.save();
+        } catch (IOException e) {
+          Logger.LOG.log(Level.WARNING, e, () -> "Unable to remove the SonarQube cache from " + r);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // the action stays in memory only until the build is loaded again
+      Logger.LOG.fine(() -> "Too many SonarQube caches to migrate, skipping " + r);
     }
-
-    return false;
-  }
-
-  @VisibleForTesting
-  protected void cacheProjectInfo(List<ProjectInformation> list, Long time) {
-    lastProjInfo = list;
-    lastRequest = time;
-  }
-
-  private static long age(long time) {
-    return System.currentTimeMillis() - time;
-  }
-
-  private static long diff(ProjectInformation proj, long lastBuild) {
-    return proj.created() - lastBuild;
   }
 }
@@ -19,24 +19,32 @@
  */
 package hudson.plugins.sonar.action;
 
+import com.google.common.annotations.VisibleForTesting;
 import hudson.Extension;
 import hudson.model.Action;
-import hudson.model.Actionable;
 import hudson.model.BuildableItemWithBuildWrappers;
 import hudson.model.Job;
 import hudson.model.ProminentProjectAction;
 import hudson.model.Run;
 import hudson.plugins.sonar.SonarBuildWrapper;
-import hudson.plugins.sonar.client.HttpClient;
-import hudson.plugins.sonar.client.OkHttpClientSingleton;
+import hudson.plugins.sonar.client.BulkProjectResolver;
 import hudson.plugins.sonar.client.ProjectInformation;
 import hudson.plugins.sonar.client.SQProjectResolver;
+import hudson.plugins.sonar.utils.Logger;
 import hudson.plugins.sonar.utils.SonarUtils;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import javax.annotation.CheckForNull;
 import jenkins.model.TransientActionFactory;
 
@@ -45,10 +53,34 @@ import jenkins.model.TransientActionFactory;
  * We don't use {@link TransientProjectActionFactory} because it appears to be cached and requires Jenkins to restart.
  */
 public class SonarProjectActionFactory extends TransientActionFactory<Job> {
-  private SQProjectResolver resolver;
+  private static final String PREFIX = SonarProjectActionFactory.class.getName();
+  private static final int DEFAULT_REFRESH_WORKERS = Integer.getInteger(PREFIX + ".refreshWorkers", 2);
+  private static final int DEFAULT_REFRESH_CAPACITY = Integer.getInteger(PREFIX + ".refreshCapacity", 100);
+
+  private final BulkProjectResolver resolver;
+  private final Executor refreshExecutor;
+  private final ProjectInformationCache cache;
+  /**
+   * Jobs whose quality gates are being refreshed, so that a busy job page triggers a single refresh at a time.
+   */
+  private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
 
   public SonarProjectActionFactory() {
-    resolver = new SQProjectResolver(new HttpClient(OkHttpClientSingleton.getInstance()));
+    this(new BulkProjectResolver(new SQProjectResolver()), newExecutor(DEFAULT_REFRESH_WORKERS, DEFAULT_REFRESH_CAPACITY), ProjectInformationCache.get());
+  }
+
+  @VisibleForTesting
+  SonarProjectActionFactory(BulkProjectResolver resolver, Executor refreshExecutor, ProjectInformationCache cache) {
+    this.resolver = resolver;
+    this.refreshExecutor = refreshExecutor;
+    this.cache = cache;
+  }
+
+  private static ThreadPoolExecutor newExecutor(int workers, int capacity) {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(capacity),
+      new NamingThreadFactory(new DaemonThreadFactory(), "SonarQube project page refresh"));
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
   }
 
   @Override
@@ -81,7 +113,7 @@ public class SonarProjectActionFactory extends TransientActionFactory<Job> {
         sonarProjectActions.add(new SonarProjectIconAction());
       }
     } else {
-      SonarProjectPageAction projectPage = createProjectPage(lastBuild, filteredActions);
+      SonarProjectPageAction projectPage = createProjectPage(project, lastBuild, filteredActions);
       if (projectPage != null) {
         sonarProjectActions.add(projectPage);
       }
@@ -107,28 +139,45 @@ public class SonarProjectActionFactory extends TransientActionFactory<Job> {
   }
 
   /**
-   * Action that will create the jelly section in the Project page
+   * Action that will create the jelly section in the Project page. It is built from the cached information only,
+   * stale entries being refreshed in the background for the next rendering.
    */
   @CheckForNull
-  private SonarProjectPageAction createProjectPage(Run<?, ?> run, List<SonarAnalysisAction> actions) {
-    long endTime = run.getStartTimeInMillis() + run.getDuration();
-    List<ProjectInformation> projects;
-
-    SonarCacheAction cache = getOrCreateCache(run);
-    projects = cache.get(resolver, endTime, actions, run);
+  private SonarProjectPageAction createProjectPage(Job<?, ?> project, Run<?, ?> run, List<SonarAnalysisAction> actions) {
+    List<ProjectInformation> projects = cache.peek(actions);
+    if (cache.isStale(actions)) {
+      scheduleRefresh(project, run, actions);
+    }
 
-    if (projects == null || projects.isEmpty()) {
+    if (projects.isEmpty()) {
       return null;
     }
-    return new SonarProjectPageAction(projects);
+    return new SonarProjectPageAction(projects, cache.getLastRequest(actions));
   }
 
-  private static SonarCacheAction getOrCreateCache(Actionable actionable) {
-    SonarCacheAction cache = SonarUtils.getPersistentAction(actionable, SonarCacheAction.class);
-    if (cache == null) {
-      cache = new SonarCacheAction();
-      actionable.addAction(cache);
+  private void scheduleRefresh(Job<?, ?> project, Run<?, ?> run, List<SonarAnalysisAction> actions) {
+    String key = project.getFullName();
+    if (!refreshing.add(key)) {
+      return;
     }
-    return cache;
+    long endTime = run.getStartTimeInMillis() + run.getDuration();
+    try {
+      refreshExecutor.execute(() -> {
+        try {
+          cache.refresh(resolver, endTime, actions, run).whenComplete((projects, e) -> refreshing.remove(key));
+        } catch (RuntimeException e) {
+          refreshing.remove(key);
+          throw e;
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      refreshing.remove(key);
+      Logger.LOG.fine(() -> "Too many quality gate refreshes queued, skipping " + key);
+    }
+  }
+
+  @VisibleForTesting
+  boolean isRefreshing(Job<?, ?> project) {
+    return refreshing.contains(project.getFullName());
   }
 }
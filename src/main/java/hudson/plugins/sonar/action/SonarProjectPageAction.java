@@ -19,20 +19,32 @@
  */
 package hudson.plugins.sonar.action;
 
+import hudson.Util;
 import hudson.model.InvisibleAction;
 import hudson.model.ProminentProjectAction;
 import hudson.plugins.sonar.client.ProjectInformation;
 import java.util.List;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
 
 /**
  * Displays a jelly section in the Project page with information regarding Quality Gate
  * This is recreated every time something is loaded, so should be lightweight
  */
+@ExportedBean
 public class SonarProjectPageAction extends InvisibleAction implements ProminentProjectAction {
   private final List<ProjectInformation> projects;
+  private final Long lastRefresh;
 
   public SonarProjectPageAction(List<ProjectInformation> projects) {
+    this(projects, null);
+  }
+
+  public SonarProjectPageAction(List<ProjectInformation> projects, @Nullable Long lastRefresh) {
     this.projects = projects;
+    this.lastRefresh = lastRefresh;
   }
 
   /**
@@ -41,4 +53,22 @@ public class SonarProjectPageAction extends InvisibleAction implements Prominent
   public List<ProjectInformation> getProjects() {
     return projects;
   }
+
+  /**
+   * @return time at which the displayed information was fetched from SonarQube, or null if a refresh is still pending
+   * @since 2.16
+   */
+  @CheckForNull
+  @Exported(visibility = 2)
+  public Long getLastRefresh() {
+    return lastRefresh;
+  }
+
+  /**
+   * Called while building the jelly section
+   */
+  @CheckForNull
+  public String getLastRefreshAge() {
+    return lastRefresh == null ? null : Util.getTimeSpanString(Math.max(0, System.currentTimeMillis() - lastRefresh));
+  }
 }
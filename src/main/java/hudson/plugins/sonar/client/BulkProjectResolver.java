@@ -0,0 +1,212 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package hudson.plugins.sonar.client;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.common.annotations.VisibleForTesting;
+import hudson.model.Run;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Resolves the quality gate of many analyses at once: lookups run concurrently, but never more than a few at a time
+ * on the same server. Callers are never blocked, they get a future for each lookup.
+ * SonarQube has no web service returning several CE tasks by id, so each analysis still costs one call for its task
+ * and one for its quality gate; duplicated analyses are resolved once and the server version is probed once per server.
+ */
+public class BulkProjectResolver {
+  private static final int DEFAULT_MAX_CONCURRENCY_PER_SERVER = Integer.getInteger(BulkProjectResolver.class.getName() + ".maxConcurrencyPerServer", 4);
+
+  private final SQProjectResolver resolver;
+  private final int maxConcurrencyPerServer;
+  private final Cache<String, ConcurrencyLimiter> limiters = Caffeine.newBuilder()
+    .expireAfterAccess(1, TimeUnit.HOURS)
+    .build();
+
+  public BulkProjectResolver(SQProjectResolver resolver) {
+    this(resolver, DEFAULT_MAX_CONCURRENCY_PER_SERVER);
+  }
+
+  @VisibleForTesting
+  public BulkProjectResolver(SQProjectResolver resolver, int maxConcurrencyPerServer) {
+    this.resolver = resolver;
+    this.maxConcurrencyPerServer = Math.max(1, maxConcurrencyPerServer);
+  }
+
+  /**
+   * Starts the lookups without waiting for them. Identical requests share the same lookup.
+   * The futures complete with null when nothing can be displayed, see {@link SQProjectResolver#resolveAsync}.
+   */
+  public Map<Request, CompletableFuture<ProjectInformation>> submit(Collection<Request> requests, Run<?, ?> run) {
+    Map<Request, CompletableFuture<ProjectInformation>> futures = new LinkedHashMap<>();
+    for (Request request : requests) {
+      futures.computeIfAbsent(request, r -> limiter(r.serverUrl)
+        .submit(() -> resolver.resolveAsync(r.serverUrl, r.projectUrl, r.ceTaskId, r.installationName, run)));
+    }
+    return futures;
+  }
+
+  private ConcurrencyLimiter limiter(@Nullable String serverUrl) {
+    return limiters.get(StringUtils.defaultString(serverUrl), k -> new ConcurrencyLimiter(maxConcurrencyPerServer));
+  }
+
+  public static final class Request {
+    private final String serverUrl;
+    private final String projectUrl;
+    private final String ceTaskId;
+    private final String installationName;
+
+    public Request(@Nullable String serverUrl, @Nullable String projectUrl, String ceTaskId, @Nullable String installationName) {
+      this.serverUrl = serverUrl;
+      this.projectUrl = projectUrl;
+      this.ceTaskId = ceTaskId;
+      this.installationName = installationName;
+    }
+
+    @CheckForNull
+    public String getServerUrl() {
+      return serverUrl;
+    }
+
+    public String getCeTaskId() {
+      return ceTaskId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Request)) {
+        return false;
+      }
+      Request that = (Request) o;
+      return Objects.equals(serverUrl, that.serverUrl)
+        && Objects.equals(projectUrl, that.projectUrl)
+        && Objects.equals(ceTaskId, that.ceTaskId)
+        && Objects.equals(installationName, that.installationName);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(serverUrl, projectUrl, ceTaskId, installationName);
+    }
+  }
+
+  /**
+   * Starts asynchronous tasks as long as less than the maximum are running, queues the other ones.
+   * Queued tasks are started by a loop rather than from the completion of the previous task, so that tasks completing
+   * synchronously do not pile up on the stack.
+   */
+  @VisibleForTesting
+  static final class ConcurrencyLimiter {
+    private final int maxConcurrency;
+    private final Queue<Runnable> waiting = new ArrayDeque<>();
+    private int running;
+    private boolean draining;
+
+    ConcurrencyLimiter(int maxConcurrency) {
+      this.maxConcurrency = maxConcurrency;
+    }
+
+    <T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> task) {
+      CompletableFuture<T> result = new CompletableFuture<>();
+      synchronized (this) {
+        waiting.add(() -> start(task, result));
+      }
+      drain();
+      return result;
+    }
+
+    private <T> void start(Supplier<CompletableFuture<T>> task, CompletableFuture<T> result) {
+      CompletableFuture<T> started;
+      try {
+        started = task.get();
+      } catch (RuntimeException e) {
+        started = new CompletableFuture<>();
+        started.completeExceptionally(e);
+      }
+      started.whenComplete((value, e) -> {
+        release();
+        if (e != null) {
+          result.completeExceptionally(e);
+        } else {
+          result.complete(value);
+        }
+      });
+    }
+
+    private void release() {
+      synchronized (this) {
+        running--;
+      }
+      drain();
+    }
+
+    /**
+     * Starts queued tasks while there is room. A single thread drains at a time: a release happening meanwhile,
+     * including one from a task started by the loop itself, leaves the next start to that thread.
+     */
+    private void drain() {
+      while (true) {
+        Runnable next;
+        synchronized (this) {
+          if (draining) {
+            return;
+          }
+          if (running >= maxConcurrency || waiting.isEmpty()) {
+            return;
+          }
+          next = waiting.poll();
+          running++;
+          draining = true;
+        }
+        try {
+          next.run();
+        } finally {
+          synchronized (this) {
+            draining = false;
+          }
+        }
+      }
+    }
+
+    @VisibleForTesting
+    synchronized int running() {
+      return running;
+    }
+
+    @VisibleForTesting
+    synchronized int waiting() {
+      return waiting.size();
+    }
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package hudson.plugins.sonar.client;
+
+import hudson.plugins.sonar.utils.Logger;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Tracks the health of one SonarQube server. After {@code failureThreshold} consecutive failures the circuit opens and
+ * calls fail fast. Once {@code openDuration} has elapsed a single probe call is let through (half-open): its success
+ * closes the circuit, its failure opens it again.
+ */
+public final class CircuitBreaker {
+  public enum State {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  private final String server;
+  private final int failureThreshold;
+  private final long openDurationNanos;
+  private final LongSupplier nanoClock;
+
+  private State state = State.CLOSED;
+  private int consecutiveFailures;
+  private long openedAt;
+  private boolean probeInFlight;
+  private long successes;
+  private long failures;
+  private long rejected;
+  private long timesOpened;
+
+  CircuitBreaker(String server, int failureThreshold, long openDuration, TimeUnit unit, LongSupplier nanoClock) {
+    this.server = server;
+    this.failureThreshold = failureThreshold;
+    this.openDurationNanos = unit.toNanos(openDuration);
+    this.nanoClock = nanoClock;
+  }
+
+  /**
+   * @return true if a call can be sent to the server, in which case its outcome must be reported
+   */
+  synchronized boolean tryAcquire() {
+    switch (state) {
+      case OPEN:
+        if (nanoClock.getAsLong() - openedAt < openDurationNanos) {
+          rejected++;
+          return false;
+        }
+        state = State.HALF_OPEN;
+        probeInFlight = true;
+        return true;
+      case HALF_OPEN:
+        if (probeInFlight) {
+          rejected++;
+          return false;
+        }
+        probeInFlight = true;
+        return true;
+      default:
+        return true;
+    }
+  }
+
+  synchronized void onSuccess() {
+    successes++;
+    consecutiveFailures = 0;
+    probeInFlight = false;
+    if (state != State.CLOSED) {
+      Logger.LOG.info(() -> server + " is reachable again, resuming requests");
+      state = State.CLOSED;
+    }
+  }
+
+  synchronized void onFailure() {
+    failures++;
+    consecutiveFailures++;
+    probeInFlight = false;
+    if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+      state = State.OPEN;
+      openedAt = nanoClock.getAsLong();
+      timesOpened++;
+      Logger.LOG.warning(() -> "Suspending requests to " + server + " after " + consecutiveFailures + " consecutive failures");
+    }
+  }
+
+  /**
+   * Reports a call abandoned by the caller, whose outcome is unknown.
+   */
+  synchronized void release() {
+    probeInFlight = false;
+  }
+
+  public String getServer() {
+    return server;
+  }
+
+  public synchronized State getState() {
+    return state;
+  }
+
+  public synchronized int getConsecutiveFailures() {
+    return consecutiveFailures;
+  }
+
+  public synchronized long getSuccesses() {
+    return successes;
+  }
+
+  public synchronized long getFailures() {
+    return failures;
+  }
+
+  public synchronized long getRejected() {
+    return rejected;
+  }
+
+  public synchronized long getTimesOpened() {
+    return timesOpened;
+  }
+}
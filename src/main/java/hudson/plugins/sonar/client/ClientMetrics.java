@@ -0,0 +1,279 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package hudson.plugins.sonar.client;
+
+import com.google.common.annotations.VisibleForTesting;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.ForwardingSource;
+import okio.Okio;
+
+/**
+ * Counts the calls made to each endpoint of each SonarQube server, with their status, latency and size. Every attempt
+ * sent on the wire is recorded, so retries show up as separate calls while coalesced requests are only counted once.
+ * Recording a call only updates {@link LongAdder}s, which keeps contention and allocations low.
+ *
+ * @since 2.16
+ */
+public class ClientMetrics {
+  /**
+   * Upper bounds of the latency histogram buckets, in milliseconds. Latency is measured until the response headers are
+   * received.
+   */
+  public static final long[] LATENCY_BUCKETS_MS = {5, 10, 25, 50, 100, 250, 500, 1_000, 2_500, 5_000, 10_000, 30_000};
+  private static final ClientMetrics INSTANCE = new ClientMetrics();
+
+  private final Map<String, Map<String, Endpoint>> servers = new ConcurrentHashMap<>();
+
+  @VisibleForTesting
+  ClientMetrics() {
+  }
+
+  public static ClientMetrics get() {
+    return INSTANCE;
+  }
+
+  /**
+   * @return an interceptor recording the calls of the client it is added to
+   */
+  Interceptor interceptor() {
+    return this::intercept;
+  }
+
+  private Response intercept(Interceptor.Chain chain) throws IOException {
+    Request request = chain.request();
+    Endpoint endpoint = endpoint(HttpClient.serverOf(request.url()), request.url().encodedPath());
+    long start = System.nanoTime();
+    Response response;
+    try {
+      response = chain.proceed(request);
+    } catch (IOException | RuntimeException e) {
+      endpoint.record(0, System.nanoTime() - start);
+      throw e;
+    }
+    endpoint.record(response.code(), System.nanoTime() - start);
+    ResponseBody body = response.body();
+    if (body == null) {
+      return response;
+    }
+    ForwardingSource counting = new ForwardingSource(body.source()) {
+      @Override
+      public long read(Buffer sink, long byteCount) throws IOException {
+        long read = super.read(sink, byteCount);
+        if (read > 0) {
+          endpoint.bytesRead.add(read);
+        }
+        return read;
+      }
+    };
+    return response.newBuilder()
+      .body(ResponseBody.create(body.contentType(), body.contentLength(), Okio.buffer(counting)))
+      .build();
+  }
+
+  @VisibleForTesting
+  Endpoint endpoint(String server, String path) {
+    Map<String, Endpoint> endpoints = servers.get(server);
+    if (endpoints == null) {
+      endpoints = servers.computeIfAbsent(server, s -> new ConcurrentHashMap<>());
+    }
+    Endpoint endpoint = endpoints.get(path);
+    if (endpoint == null) {
+      endpoint = endpoints.computeIfAbsent(path, p -> new Endpoint(server, p));
+    }
+    return endpoint;
+  }
+
+  /**
+   * @return endpoints called so far, sorted by server and path
+   */
+  public List<Endpoint> getEndpoints() {
+    List<Endpoint> list = new ArrayList<>();
+    servers.values().forEach(endpoints -> list.addAll(endpoints.values()));
+    list.sort(Comparator.comparing(Endpoint::getServer).thenComparing(Endpoint::getPath));
+    return list;
+  }
+
+  /**
+   * Writes all metrics in the Prometheus text exposition format.
+   */
+  public void writeText(PrintWriter out) {
+    List<Endpoint> endpoints = getEndpoints();
+    out.println("# HELP sonarqube_client_requests_total Calls sent to SonarQube, by status class ('error' if no response was received)");
+    out.println("# TYPE sonarqube_client_requests_total counter");
+    for (Endpoint e : endpoints) {
+      for (int statusClass = 0; statusClass < Endpoint.STATUS_CLASSES; statusClass++) {
+        long count = e.getCount(statusClass);
+        if (count > 0) {
+          out.println("sonarqube_client_requests_total{" + labels(e) + ",status=\"" + Endpoint.statusLabel(statusClass) + "\"} " + count);
+        }
+      }
+    }
+    out.println("# HELP sonarqube_client_response_bytes_total Bytes of response bodies read from SonarQube");
+    out.println("# TYPE sonarqube_client_response_bytes_total counter");
+    for (Endpoint e : endpoints) {
+      out.println("sonarqube_client_response_bytes_total{" + labels(e) + "} " + e.getBytesRead());
+    }
+    out.println("# HELP sonarqube_client_latency_seconds Time until SonarQube response headers are received");
+    out.println("# TYPE sonarqube_client_latency_seconds histogram");
+    for (Endpoint e : endpoints) {
+      long[] buckets = e.getLatencyBuckets();
+      long cumulated = 0;
+      for (int i = 0; i < buckets.length; i++) {
+        cumulated += buckets[i];
+        String le = i < LATENCY_BUCKETS_MS.length ? String.format(Locale.ROOT, "%.3f", LATENCY_BUCKETS_MS[i] / 1000.0) : "+Inf";
+        out.println("sonarqube_client_latency_seconds_bucket{" + labels(e) + ",le=\"" + le + "\"} " + cumulated);
+      }
+      out.println("sonarqube_client_latency_seconds_sum{" + labels(e) + "} " + String.format(Locale.ROOT, "%.6f", e.latencySumNanos.sum() / 1e9));
+      out.println("sonarqube_client_latency_seconds_count{" + labels(e) + "} " + cumulated);
+    }
+  }
+
+  private static String labels(Endpoint e) {
+    return "server=\"" + escape(e.getServer()) + "\",endpoint=\"" + escape(e.getPath()) + "\"";
+  }
+
+  private static String escape(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+
+  public static final class Endpoint {
+    private static final int STATUS_CLASSES = 6;
+
+    private final String server;
+    private final String path;
+    private final LongAdder[] countByStatusClass = newAdders(STATUS_CLASSES);
+    private final LongAdder[] latencyBuckets = newAdders(LATENCY_BUCKETS_MS.length + 1);
+    private final LongAdder latencySumNanos = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+
+    private Endpoint(String server, String path) {
+      this.server = server;
+      this.path = path;
+    }
+
+    private static LongAdder[] newAdders(int size) {
+      LongAdder[] adders = new LongAdder[size];
+      for (int i = 0; i < size; i++) {
+        adders[i] = new LongAdder();
+      }
+      return adders;
+    }
+
+    /**
+     * @param code HTTP status code, or 0 if no response was received
+     */
+    @VisibleForTesting
+    void record(int code, long latencyNanos) {
+      countByStatusClass[code >= 100 && code < 600 ? code / 100 : 0].increment();
+      latencySumNanos.add(latencyNanos);
+      long millis = TimeUnit.NANOSECONDS.toMillis(latencyNanos);
+      int bucket = 0;
+      while (bucket < LATENCY_BUCKETS_MS.length && millis > LATENCY_BUCKETS_MS[bucket]) {
+        bucket++;
+      }
+      latencyBuckets[bucket].increment();
+    }
+
+    private static String statusLabel(int statusClass) {
+      return statusClass == 0 ? "error" : (statusClass + "xx");
+    }
+
+    public String getServer() {
+      return server;
+    }
+
+    public String getPath() {
+      return path;
+    }
+
+    public long getCount() {
+      long count = 0;
+      for (LongAdder adder : countByStatusClass) {
+        count += adder.sum();
+      }
+      return count;
+    }
+
+    /**
+     * @param statusClass first digit of the HTTP status codes, or 0 for calls that received no response
+     */
+    public long getCount(int statusClass) {
+      return countByStatusClass[statusClass].sum();
+    }
+
+    public long getErrorCount() {
+      return getCount(0) + getCount(5);
+    }
+
+    public long getBytesRead() {
+      return bytesRead.sum();
+    }
+
+    /**
+     * @return number of calls in each bucket of {@link #LATENCY_BUCKETS_MS}, plus a last one for slower calls
+     */
+    public long[] getLatencyBuckets() {
+      long[] counts = new long[latencyBuckets.length];
+      for (int i = 0; i < counts.length; i++) {
+        counts[i] = latencyBuckets[i].sum();
+      }
+      return counts;
+    }
+
+    public long getMeanLatencyMillis() {
+      long count = getCount();
+      return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(latencySumNanos.sum() / count);
+    }
+
+    /**
+     * @return upper bound of the bucket holding the given percentile, -1 if it is beyond the last bucket
+     */
+    public long getLatencyPercentileMillis(double percentile) {
+      long[] counts = getLatencyBuckets();
+      long total = 0;
+      for (long c : counts) {
+        total += c;
+      }
+      long rank = (long) Math.ceil(total * percentile / 100);
+      long cumulated = 0;
+      for (int i = 0; i < LATENCY_BUCKETS_MS.length; i++) {
+        cumulated += counts[i];
+        if (cumulated >= rank) {
+          return LATENCY_BUCKETS_MS[i];
+        }
+      }
+      return -1;
+    }
+  }
+}
@@ -20,10 +20,28 @@
 package hudson.plugins.sonar.client;
 
 import com.google.common.base.Strings;
+import com.google.common.util.concurrent.MoreExecutors;
 import java.io.IOException;
+import java.io.Reader;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
 import javax.annotation.Nullable;
+import jenkins.util.Timer;
+import okhttp3.Call;
+import okhttp3.Callback;
 import okhttp3.Credentials;
+import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
@@ -32,21 +50,314 @@ import org.sonarqube.ws.client.HttpException;
 
 public class HttpClient {
   private final OkHttpClient okHttpClient;
+  private final ResiliencePolicy policy;
+  private final Map<FlightKey, CompletableFuture<?>> blockingFlights = new ConcurrentHashMap<>();
+  private final Map<FlightKey, AsyncCall<?>> asyncFlights = new ConcurrentHashMap<>();
 
   public HttpClient(OkHttpClient okHttpClient) {
+    this(okHttpClient, ResiliencePolicy.DISABLED);
+  }
+
+  /**
+   * @param policy decides when failed calls are retried, and when a server is considered down so that calls to it fail
+   *   fast with a {@link CircuitOpenException}
+   */
+  public HttpClient(OkHttpClient okHttpClient, ResiliencePolicy policy) {
     this.okHttpClient = okHttpClient;
+    this.policy = policy;
+  }
+
+  /**
+   * Decodes a response body as it is read from the connection, without loading it in memory first.
+   * <p>
+   * Identical calls running at the same time are sent only once, and share the decoded result. Calls are identical if
+   * they have the same URL, token and decoder class, so a decoder must only depend on the URL it is created for.
+   */
+  @FunctionalInterface
+  public interface ResponseDecoder<T> {
+    T decode(Reader body) throws IOException;
   }
 
   public String getHttp(String url, @Nullable String token) {
-    Request request = newRequest(url, token);
-    Response response = httpCall(request);
-    String content = getContent(response);
+    return call(new FlightKey(url, token, String.class), HttpClient::getContent);
+  }
 
-    if (isSuccessful(response)) {
+  public <T> T getHttp(String url, @Nullable String token, ResponseDecoder<T> decoder) {
+    return call(new FlightKey(url, token, decoder.getClass()), response -> decode(response, decoder));
+  }
+
+  @SuppressWarnings("unchecked")
+  private <T> T call(FlightKey key, Function<Response, T> bodyReader) {
+    CompletableFuture<T> flight = new CompletableFuture<>();
+    CompletableFuture<?> running = blockingFlights.putIfAbsent(key, flight);
+    if (running != null) {
+      return (T) awaitFlight(running);
+    }
+    try {
+      T content = send(key.url, key.token, bodyReader);
+      flight.complete(content);
       return content;
-    } else {
-      throw new HttpException(url, response.code(), content);
+    } catch (RuntimeException e) {
+      flight.completeExceptionally(e);
+      throw e;
+    } finally {
+      blockingFlights.remove(key, flight);
+    }
+  }
+
+  private static Object awaitFlight(CompletableFuture<?> flight) {
+    try {
+      return flight.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  private <T> T send(String url, @Nullable String token, Function<Response, T> bodyReader) {
+    Request request = newRequest(url, token);
+    CircuitBreaker breaker = policy.breaker(request.url());
+    policy.onRequest();
+    for (int attempt = 1;; attempt++) {
+      if (!breaker.tryAcquire()) {
+        throw new CircuitOpenException(breaker.getServer());
+      }
+      Response response;
+      try {
+        response = okHttpClient.newCall(request).execute();
+      } catch (IOException e) {
+        breaker.onFailure();
+        if (policy.tryRetry(attempt)) {
+          backOff(request, attempt);
+          continue;
+        }
+        throw new IllegalStateException("Fail to request " + request.url(), e);
+      }
+      if (ResiliencePolicy.isRetryable(response.code())) {
+        breaker.onFailure();
+        if (policy.tryRetry(attempt)) {
+          response.close();
+          backOff(request, attempt);
+          continue;
+        }
+      } else {
+        breaker.onSuccess();
+      }
+      return read(url, response, bodyReader);
+    }
+  }
+
+  private void backOff(Request request, int attempt) {
+    try {
+      Thread.sleep(policy.backoffMillis(attempt));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while retrying " + request.url(), e);
+    }
+  }
+
+  public CompletableFuture<String> getHttpAsync(String url, @Nullable String token) {
+    return getHttpAsync(url, token, null, MoreExecutors.directExecutor());
+  }
+
+  /**
+   * Non-blocking variant of {@link #getHttp(String, String)}: the call is enqueued on the OkHttp dispatcher.
+   * Cancelling the returned future, or reaching the deadline, cancels the underlying call unless other callers are
+   * waiting for the same response.
+   *
+   * @param deadline maximum time allowed for the whole call, or null to only rely on the client timeouts
+   * @param callbackExecutor executor on which the returned future is completed
+   */
+  public CompletableFuture<String> getHttpAsync(String url, @Nullable String token, @Nullable Duration deadline, Executor callbackExecutor) {
+    return callAsync(new FlightKey(url, token, String.class), deadline, callbackExecutor, HttpClient::getContent);
+  }
+
+  /**
+   * Same as {@link #getHttpAsync(String, String, Duration, Executor)}, the body of successful responses being decoded
+   * on the OkHttp dispatcher thread while it is read.
+   */
+  public <T> CompletableFuture<T> getHttpAsync(String url, @Nullable String token, @Nullable Duration deadline, Executor callbackExecutor,
+    ResponseDecoder<T> decoder) {
+    return callAsync(new FlightKey(url, token, decoder.getClass()), deadline, callbackExecutor, response -> decode(response, decoder));
+  }
+
+  @SuppressWarnings("unchecked")
+  private <T> CompletableFuture<T> callAsync(FlightKey key, @Nullable Duration deadline, Executor callbackExecutor, Function<Response, T> bodyReader) {
+    AsyncCall<T>[] created = new AsyncCall[1];
+    AsyncCall<T> flight = (AsyncCall<T>) asyncFlights.compute(key, (k, running) -> {
+      if (running != null && running.attach()) {
+        return running;
+      }
+      created[0] = new AsyncCall<>(key.url, newRequest(key.url, key.token), bodyReader);
+      return created[0];
+    });
+    if (created[0] != null) {
+      flight.future.whenComplete((content, e) -> asyncFlights.remove(key, flight));
+      policy.onRequest();
+      flight.start(1);
+    }
+    return flight.subscribe(deadline, callbackExecutor);
+  }
+
+  /**
+   * One logical asynchronous request, possibly sent several times, and shared by all the callers asking for the same
+   * thing meanwhile. The call is only cancelled when all of them gave up. Retries are scheduled on {@link Timer} so
+   * that no thread is held during the backoff.
+   */
+  private final class AsyncCall<T> implements Callback {
+    private final String url;
+    private final Request request;
+    private final Function<Response, T> bodyReader;
+    private final CircuitBreaker breaker;
+    private final CompletableFuture<T> future = new CompletableFuture<>();
+    private volatile Call call;
+    private volatile int attempt;
+    private volatile boolean timedOut;
+    private int subscribers = 1;
+
+    private AsyncCall(String url, Request request, Function<Response, T> bodyReader) {
+      this.url = url;
+      this.request = request;
+      this.bodyReader = bodyReader;
+      this.breaker = policy.breaker(request.url());
+      future.whenComplete((content, e) -> {
+        if (e != null) {
+          cancel();
+        }
+      });
+    }
+
+    /**
+     * @return false if the call is being cancelled, in which case a new one must be sent
+     */
+    private synchronized boolean attach() {
+      if (subscribers == 0) {
+        return false;
+      }
+      subscribers++;
+      return true;
     }
+
+    private void detach(boolean timeout) {
+      synchronized (this) {
+        if (--subscribers > 0 || future.isDone()) {
+          return;
+        }
+        timedOut = timeout;
+      }
+      // outside of the lock, as completing the future removes it from the flights being attached to
+      future.cancel(false);
+    }
+
+    private CompletableFuture<T> subscribe(@Nullable Duration deadline, Executor callbackExecutor) {
+      CompletableFuture<T> result = new CompletableFuture<>();
+      future.whenComplete((content, e) -> completeOn(callbackExecutor, () -> {
+        if (e != null) {
+          result.completeExceptionally(e);
+        } else {
+          result.complete(content);
+        }
+      }, result));
+      result.whenComplete((content, e) -> {
+        if (e != null) {
+          detach(e instanceof TimeoutException);
+        }
+      });
+      if (deadline != null) {
+        ScheduledFuture<?> timeout = Timer.get().schedule(
+          () -> result.completeExceptionally(new TimeoutException("Deadline of " + deadline.toMillis() + "ms exceeded for " + request.url())),
+          deadline.toMillis(), TimeUnit.MILLISECONDS);
+        result.whenComplete((content, e) -> timeout.cancel(false));
+      }
+      return result;
+    }
+
+    private void start(int attempt) {
+      if (future.isDone()) {
+        return;
+      }
+      if (!breaker.tryAcquire()) {
+        future.completeExceptionally(new CircuitOpenException(breaker.getServer()));
+        return;
+      }
+      this.attempt = attempt;
+      Call c = okHttpClient.newCall(request);
+      call = c;
+      c.enqueue(this);
+      if (future.isDone()) {
+        c.cancel();
+      }
+    }
+
+    private void cancel() {
+      Call c = call;
+      if (c != null) {
+        c.cancel();
+      }
+    }
+
+    @Override
+    public void onFailure(Call c, IOException e) {
+      if (timedOut) {
+        breaker.onFailure();
+      } else if (future.isDone()) {
+        // cancelled by the caller, which says nothing about the server
+        breaker.release();
+      } else {
+        breaker.onFailure();
+        if (!retry()) {
+          future.completeExceptionally(new IllegalStateException("Fail to request " + request.url(), e));
+        }
+      }
+    }
+
+    @Override
+    public void onResponse(Call c, Response response) {
+      if (ResiliencePolicy.isRetryable(response.code())) {
+        breaker.onFailure();
+        if (!future.isDone() && retry()) {
+          response.close();
+          return;
+        }
+      } else {
+        breaker.onSuccess();
+      }
+      try {
+        future.complete(read(url, response, bodyReader));
+      } catch (RuntimeException e) {
+        future.completeExceptionally(e);
+      }
+    }
+
+    private boolean retry() {
+      int done = attempt;
+      if (!policy.tryRetry(done)) {
+        return false;
+      }
+      try {
+        Timer.get().schedule(() -> start(done + 1), policy.backoffMillis(done), TimeUnit.MILLISECONDS);
+        return true;
+      } catch (RejectedExecutionException e) {
+        return false;
+      }
+    }
+  }
+
+  private static void completeOn(Executor executor, Runnable completion, CompletableFuture<?> future) {
+    try {
+      executor.execute(completion);
+    } catch (RejectedExecutionException e) {
+      future.completeExceptionally(e);
+    }
+  }
+
+  /**
+   * @return the server of the given URL, identified by its scheme, host and port
+   */
+  static String serverOf(HttpUrl url) {
+    return url.scheme() + "://" + url.host() + ":" + url.port();
   }
 
   private static Request newRequest(String url, @Nullable String token) {
@@ -57,19 +368,27 @@ public class HttpClient {
     return builder.build();
   }
 
-  private static String getContent(Response response) {
+  private static <T> T read(String url, Response response, Function<Response, T> bodyReader) {
+    if (isSuccessful(response)) {
+      return bodyReader.apply(response);
+    } else {
+      throw new HttpException(url, response.code(), getContent(response));
+    }
+  }
+
+  private static <T> T decode(Response response, ResponseDecoder<T> decoder) {
     try (ResponseBody body = response.body()) {
-      return body.string();
+      return decoder.decode(body.charStream());
     } catch (IOException e) {
       throw new IllegalStateException("Fail to read response of " + response.request().url(), e);
     }
   }
 
-  private Response httpCall(Request request) {
-    try {
-      return okHttpClient.newCall(request).execute();
+  private static String getContent(Response response) {
+    try (ResponseBody body = response.body()) {
+      return body.string();
     } catch (IOException e) {
-      throw new IllegalStateException("Fail to request " + request.url(), e);
+      throw new IllegalStateException("Fail to read response of " + response.request().url(), e);
     }
   }
 
@@ -77,4 +396,32 @@ public class HttpClient {
     return response.code() >= 200 && response.code() < 300;
   }
 
+  private static final class FlightKey {
+    private final String url;
+    private final String token;
+    private final Class<?> kind;
+
+    private FlightKey(String url, @Nullable String token, Class<?> kind) {
+      this.url = url;
+      this.token = token;
+      this.kind = kind;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof FlightKey)) {
+        return false;
+      }
+      FlightKey that = (FlightKey) o;
+      return url.equals(that.url) && Objects.equals(token, that.token) && kind.equals(that.kind);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(url, token, kind);
+    }
+  }
 }
@@ -0,0 +1,241 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package hudson.plugins.sonar.client;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.common.annotations.VisibleForTesting;
+import hudson.plugins.sonar.SonarInstallation;
+import hudson.plugins.sonar.utils.Logger;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import javax.annotation.Nullable;
+import jenkins.util.Timer;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Holds one OkHttp client per {@link SonarInstallation}, so that a slow server can only exhaust its own dispatcher
+ * and connection pool. All clients are derived from {@link OkHttpClientSingleton} and therefore share its
+ * proxy, TLS and user agent configuration.
+ */
+public class HttpClientRegistry {
+  private static final HttpClientRegistry INSTANCE = new HttpClientRegistry(OkHttpClientSingleton.getInstance());
+
+  private final OkHttpClient baseClient;
+  private final Map<String, Pool> pools = new ConcurrentHashMap<>();
+  private final Cache<WsClientKey, WsClient> wsClients = Caffeine.newBuilder()
+    .maximumSize(500)
+    .expireAfterAccess(30, TimeUnit.MINUTES)
+    .build();
+
+  @VisibleForTesting
+  HttpClientRegistry(OkHttpClient baseClient) {
+    this.baseClient = baseClient;
+  }
+
+  public static HttpClientRegistry get() {
+    return INSTANCE;
+  }
+
+  public HttpClient getHttpClient(SonarInstallation installation) {
+    return getPool(installation).httpClient;
+  }
+
+  /**
+   * @return a client completing its asynchronous calls on {@link Timer}, reused as long as the installation is not reconfigured
+   */
+  public WsClient getWsClient(SonarInstallation installation, String serverUrl, @Nullable String token) {
+    Pool pool = getPool(installation);
+    return wsClients.get(new WsClientKey(key(installation), pool.settings, serverUrl, tokenHash(token)),
+      k -> new WsClient(pool.httpClient, serverUrl, token, null, Timer.get()));
+  }
+
+  private Pool getPool(SonarInstallation installation) {
+    PoolSettings settings = new PoolSettings(installation);
+    return pools.compute(key(installation), (name, pool) -> {
+      if (pool != null && pool.settings.equals(settings)) {
+        return pool;
+      }
+      if (pool != null) {
+        pool.close();
+      }
+      return new Pool(settings, newClient(settings));
+    });
+  }
+
+  /**
+   * Drops the pools of installations that were removed or whose HTTP settings changed. In-flight calls are not
+   * interrupted, but idle connections of the dropped pools are closed.
+   */
+  public void rebuild(SonarInstallation... installations) {
+    Map<String, PoolSettings> current = Arrays.stream(installations)
+      .collect(Collectors.toMap(HttpClientRegistry::key, PoolSettings::new, (a, b) -> a));
+    pools.entrySet().removeIf(e -> {
+      if (e.getValue().settings.equals(current.get(e.getKey()))) {
+        return false;
+      }
+      Logger.LOG.fine(() -> "Dropping HTTP client pool of SonarQube installation " + e.getKey());
+      e.getValue().close();
+      return true;
+    });
+    wsClients.asMap().keySet().removeIf(k -> !k.settings.equals(current.get(k.installationName)));
+  }
+
+  /**
+   * Only a digest of the token is kept in the keys, the token itself being held by the client for as long as it is cached.
+   */
+  @Nullable
+  private static String tokenHash(@Nullable String token) {
+    return token != null ? DigestUtils.sha256Hex(token) : null;
+  }
+
+  private static String key(SonarInstallation installation) {
+    return StringUtils.defaultString(installation.getName());
+  }
+
+  @VisibleForTesting
+  int poolCount() {
+    return pools.size();
+  }
+
+  private OkHttpClient newClient(PoolSettings settings) {
+    Dispatcher dispatcher = new Dispatcher();
+    if (settings.maxRequestsPerHost != null) {
+      dispatcher.setMaxRequestsPerHost(settings.maxRequestsPerHost);
+    }
+    OkHttpClient.Builder builder = baseClient.newBuilder()
+      .addInterceptor(ClientMetrics.get().interceptor())
+      .dispatcher(dispatcher)
+      .connectionPool(new ConnectionPool(
+        settings.maxIdleConnections != null ? settings.maxIdleConnections : 5,
+        settings.keepAliveSeconds != null ? settings.keepAliveSeconds : 300,
+        TimeUnit.SECONDS));
+    if (settings.connectTimeoutSeconds != null) {
+      builder.connectTimeout(settings.connectTimeoutSeconds, TimeUnit.SECONDS);
+    }
+    if (settings.readTimeoutSeconds != null) {
+      builder.readTimeout(settings.readTimeoutSeconds, TimeUnit.SECONDS);
+    }
+    if (settings.http2Disabled) {
+      builder.protocols(Collections.singletonList(Protocol.HTTP_1_1));
+    }
+    return builder.build();
+  }
+
+  private static class Pool {
+    private final PoolSettings settings;
+    private final OkHttpClient okHttpClient;
+    private final HttpClient httpClient;
+
+    private Pool(PoolSettings settings, OkHttpClient okHttpClient) {
+      this.settings = settings;
+      this.okHttpClient = okHttpClient;
+      this.httpClient = new HttpClient(okHttpClient, ResiliencePolicy.get());
+    }
+
+    private void close() {
+      okHttpClient.connectionPool().evictAll();
+    }
+  }
+
+  private static final class PoolSettings {
+    private final Integer maxIdleConnections;
+    private final Integer keepAliveSeconds;
+    private final Integer maxRequestsPerHost;
+    private final Integer connectTimeoutSeconds;
+    private final Integer readTimeoutSeconds;
+    private final boolean http2Disabled;
+
+    private PoolSettings(SonarInstallation installation) {
+      this.maxIdleConnections = installation.getMaxIdleConnections();
+      this.keepAliveSeconds = installation.getKeepAliveSeconds();
+      this.maxRequestsPerHost = installation.getMaxRequestsPerHost();
+      this.connectTimeoutSeconds = installation.getConnectTimeoutSeconds();
+      this.readTimeoutSeconds = installation.getReadTimeoutSeconds();
+      this.http2Disabled = installation.isHttp2Disabled();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof PoolSettings)) {
+        return false;
+      }
+      PoolSettings that = (PoolSettings) o;
+      return http2Disabled == that.http2Disabled
+        && Objects.equals(maxIdleConnections, that.maxIdleConnections)
+        && Objects.equals(keepAliveSeconds, that.keepAliveSeconds)
+        && Objects.equals(maxRequestsPerHost, that.maxRequestsPerHost)
+        && Objects.equals(connectTimeoutSeconds, that.connectTimeoutSeconds)
+        && Objects.equals(readTimeoutSeconds, that.readTimeoutSeconds);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(maxIdleConnections, keepAliveSeconds, maxRequestsPerHost, connectTimeoutSeconds, readTimeoutSeconds, http2Disabled);
+    }
+  }
+
+  private static final class WsClientKey {
+    private final String installationName;
+    private final PoolSettings settings;
+    private final String serverUrl;
+    private final String tokenHash;
+
+    private WsClientKey(String installationName, PoolSettings settings, String serverUrl, @Nullable String tokenHash) {
+      this.installationName = installationName;
+      this.settings = settings;
+      this.serverUrl = serverUrl;
+      this.tokenHash = tokenHash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof WsClientKey)) {
+        return false;
+      }
+      WsClientKey that = (WsClientKey) o;
+      return installationName.equals(that.installationName)
+        && settings.equals(that.settings)
+        && serverUrl.equals(that.serverUrl)
+        && Objects.equals(tokenHash, that.tokenHash);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(installationName, settings, serverUrl, tokenHash);
+    }
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package hudson.plugins.sonar.client;
+
+import java.io.Serializable;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import org.jenkinsci.plugins.scriptsecurity.sandbox.whitelists.Whitelisted;
+
+/**
+ * A condition of a quality gate, as evaluated on an analysis.
+ *
+ * @since 2.16
+ */
+public class QualityGateCondition implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private final String status;
+  private final String metricKey;
+  private final String comparator;
+  private final String errorThreshold;
+  private final String actualValue;
+
+  public QualityGateCondition(String status, String metricKey, @Nullable String comparator, @Nullable String errorThreshold, @Nullable String actualValue) {
+    this.status = status;
+    this.metricKey = metricKey;
+    this.comparator = comparator;
+    this.errorThreshold = errorThreshold;
+    this.actualValue = actualValue;
+  }
+
+  /**
+   * @return OK, ERROR or NO_VALUE
+   */
+  @Whitelisted
+  public String getStatus() {
+    return status;
+  }
+
+  @Whitelisted
+  public String getMetricKey() {
+    return metricKey;
+  }
+
+  /**
+   * @return the operator comparing the value to the threshold, as named by the source of the condition: GT or LT by the
+   * web API, GREATER_THAN or LESS_THAN by webhooks
+   */
+  @CheckForNull
+  @Whitelisted
+  public String getComparator() {
+    return comparator;
+  }
+
+  @CheckForNull
+  @Whitelisted
+  public String getErrorThreshold() {
+    return errorThreshold;
+  }
+
+  /**
+   * @return null if the metric has no value for the analysis
+   */
+  @CheckForNull
+  @Whitelisted
+  public String getActualValue() {
+    return actualValue;
+  }
+
+  @Override
+  public String toString() {
+    return metricKey + " " + comparator + " " + errorThreshold + ": " + actualValue + " (" + status + ")";
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package hudson.plugins.sonar.client;
+
+import com.google.common.annotations.VisibleForTesting;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import okhttp3.HttpUrl;
+
+/**
+ * Failure handling shared by the {@link HttpClient}s talking to SonarQube: one {@link CircuitBreaker} per server and
+ * bounded retries of transient failures, with jittered exponential backoff. Retries are also limited controller-wide by a
+ * budget earned by regular requests, so that an outage does not multiply the load sent to the servers.
+ */
+public class ResiliencePolicy {
+  private static final String PREFIX = ResiliencePolicy.class.getName();
+  private static final ResiliencePolicy INSTANCE = new ResiliencePolicy(
+    Integer.getInteger(PREFIX + ".failureThreshold", 5),
+    Long.getLong(PREFIX + ".openDurationMs", 30_000L),
+    Integer.getInteger(PREFIX + ".maxRetries", 2),
+    Long.getLong(PREFIX + ".baseBackoffMs", 200L),
+    Long.getLong(PREFIX + ".maxBackoffMs", 5_000L),
+    System::nanoTime);
+
+  /**
+   * Neither breaks circuits nor retries.
+   */
+  static final ResiliencePolicy DISABLED = new ResiliencePolicy(Integer.MAX_VALUE, 0, 0, 0, 0, System::nanoTime);
+
+  private static final double RETRIES_PER_REQUEST = 0.1;
+  private static final double MIN_RETRIES_PER_SECOND = 1;
+  private static final double MAX_RETRY_TOKENS = 50;
+
+  private final int failureThreshold;
+  private final long openDurationMs;
+  private final int maxRetries;
+  private final long baseBackoffMs;
+  private final long maxBackoffMs;
+  private final LongSupplier nanoClock;
+  private final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+  private double retryTokens = MAX_RETRY_TOKENS;
+  private long lastRefill;
+  private long retries;
+  private long retriesDenied;
+
+  @VisibleForTesting
+  ResiliencePolicy(int failureThreshold, long openDurationMs, int maxRetries, long baseBackoffMs, long maxBackoffMs, LongSupplier nanoClock) {
+    this.failureThreshold = failureThreshold;
+    this.openDurationMs = openDurationMs;
+    this.maxRetries = maxRetries;
+    this.baseBackoffMs = baseBackoffMs;
+    this.maxBackoffMs = maxBackoffMs;
+    this.nanoClock = nanoClock;
+    this.lastRefill = nanoClock.getAsLong();
+  }
+
+  public static ResiliencePolicy get() {
+    return INSTANCE;
+  }
+
+  CircuitBreaker breaker(HttpUrl url) {
+    return breakers.computeIfAbsent(HttpClient.serverOf(url), s -> new CircuitBreaker(s, failureThreshold, openDurationMs, TimeUnit.MILLISECONDS, nanoClock));
+  }
+
+  /**
+   * @return breakers of all servers contacted so far, sorted by server
+   */
+  public List<CircuitBreaker> getBreakers() {
+    List<CircuitBreaker> list = new ArrayList<>(breakers.values());
+    list.sort(Comparator.comparing(CircuitBreaker::getServer));
+    return list;
+  }
+
+  static boolean isRetryable(int code) {
+    return code == 429 || code >= 500;
+  }
+
+  /**
+   * Records a first attempt, which earns a fraction of a retry.
+   */
+  synchronized void onRequest() {
+    retryTokens = Math.min(MAX_RETRY_TOKENS, retryTokens + RETRIES_PER_REQUEST);
+  }
+
+  /**
+   * @param attempt number of attempts already made, starting at 1
+   * @return true if the caller can retry, consuming one retry from the budget
+   */
+  synchronized boolean tryRetry(int attempt) {
+    if (attempt > maxRetries) {
+      return false;
+    }
+    long now = nanoClock.getAsLong();
+    retryTokens = Math.min(MAX_RETRY_TOKENS, retryTokens + (now - lastRefill) / 1e9 * MIN_RETRIES_PER_SECOND);
+    lastRefill = now;
+    if (retryTokens < 1) {
+      retriesDenied++;
+      return false;
+    }
+    retryTokens--;
+    retries++;
+    return true;
+  }
+
+  /**
+   * @return delay before the given retry, exponential in the attempt number with half of it randomized
+   */
+  long backoffMillis(int attempt) {
+    long delay = Math.min(maxBackoffMs, baseBackoffMs << Math.min(attempt - 1, 20));
+    return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+  }
+
+  public synchronized long getRetries() {
+    return retries;
+  }
+
+  public synchronized long getRetriesDenied() {
+    return retriesDenied;
+  }
+
+  public synchronized int getRetryBudgetLeft() {
+    return (int) retryTokens;
+  }
+}
@@ -19,86 +19,98 @@
  */
 package hudson.plugins.sonar.client;
 
-import com.google.common.annotations.VisibleForTesting;
-import com.github.benmanes.caffeine.cache.Cache;
-import com.github.benmanes.caffeine.cache.Caffeine;
 import hudson.model.Run;
 import hudson.plugins.sonar.SonarInstallation;
-import hudson.plugins.sonar.client.WsClient.CETask;
 import hudson.plugins.sonar.utils.Logger;
-import hudson.plugins.sonar.utils.Version;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.logging.Level;
 import javax.annotation.CheckForNull;
 import javax.annotation.Nullable;
 import org.sonarqube.ws.client.HttpException;
 
 public class SQProjectResolver {
-  @VisibleForTesting
-  static final Cache<String, Version> INSTANCE_VERSION_CACHE = Caffeine.newBuilder().expireAfterWrite(1, TimeUnit.HOURS).build();
+  @Nullable
   private final HttpClient client;
 
+  /**
+   * Talks to each server through the client pool of its installation, see {@link HttpClientRegistry}.
+   */
+  public SQProjectResolver() {
+    this.client = null;
+  }
+
   public SQProjectResolver(HttpClient client) {
     this.client = client;
   }
 
   /**
-   * Resolve information concerning the quality gate.
-   * Might return null if it's not possible to fetch it, which should be interpreted as 'nothing to display'.
+   * Resolve information concerning the quality gate, without blocking the calling thread.
+   * The future might complete with null if it's not possible to fetch it, which should be interpreted as 'nothing to display'.
    * Errors that should be displayed are included in {@link ProjectInformation#getErrors()}.
    */
-  @CheckForNull
-  public ProjectInformation resolve(@Nullable String serverUrl, @Nullable String projectDashboardUrl, String ceTaskId, String installationName, Run<?, ?> build) {
+  public CompletableFuture<ProjectInformation> resolveAsync(@Nullable String serverUrl, @Nullable String projectDashboardUrl, String ceTaskId, String installationName,
+    Run<?, ?> build) {
     SonarInstallation inst = SonarInstallation.get(installationName);
     if (inst == null) {
       Logger.LOG.info(() -> "Invalid installation name: " + installationName);
-      return null;
+      return CompletableFuture.completedFuture(null);
     }
     if (serverUrl == null) {
       Logger.LOG.info("No server url.");
-      return null;
+      return CompletableFuture.completedFuture(null);
     }
 
     try {
       String serverAuthenticationToken = inst.getServerAuthenticationToken(build);
-      WsClient wsClient = new WsClient(client, serverUrl, serverAuthenticationToken);
-
-      Version version = INSTANCE_VERSION_CACHE.get(installationName, unused -> new Version(wsClient.getServerVersion()));
-
-      if (version.compareTo(new Version("5.6")) < 0) {
-        Logger.LOG.info(() -> "SQ < 5.6 is not supported");
-        return null;
-      }
+      WsClient wsClient = client != null
+        ? new WsClient(client, serverUrl, serverAuthenticationToken)
+        : HttpClientRegistry.get().getWsClient(inst, serverUrl, serverAuthenticationToken);
 
-      ProjectInformation projectInfo = new ProjectInformation();
-      projectInfo.setUrl(projectDashboardUrl);
-      String analysisId = requestCETaskDetails(wsClient, projectInfo, ceTaskId);
+      return ServerCapabilitiesCache.get().getCapabilities(serverUrl, wsClient)
+        .thenCompose(capabilities -> {
+          if (!capabilities.isSupported()) {
+            Logger.LOG.info(() -> "SQ < 5.6 is not supported");
+            return CompletableFuture.completedFuture(null);
+          }
 
-      if (analysisId != null) {
-        projectInfo.setStatus(wsClient.requestQualityGateStatus(analysisId));
-      }
-
-      return projectInfo;
-
-    } catch (HttpException e) {
-      if (e.code() == 404) {
-        Logger.LOG.log(Level.FINE, "Error fetching project information: {0}", e.getMessage());
-      } else {
-        Logger.LOG.log(Level.WARNING, "Error fetching project information", e);
-      }
-      return null;
+          ProjectInformation projectInfo = new ProjectInformation();
+          projectInfo.setUrl(projectDashboardUrl);
+          return requestCETaskDetails(wsClient, projectInfo, ceTaskId)
+            .thenCompose(analysisId -> {
+              if (analysisId == null) {
+                return CompletableFuture.completedFuture(projectInfo);
+              }
+              return wsClient.requestQualityGateStatusAsync(analysisId).thenApply(status -> {
+                projectInfo.setStatus(status);
+                return projectInfo;
+              });
+            });
+        })
+        .exceptionally(SQProjectResolver::logError);
     } catch (Exception e) {
-      Logger.LOG.log(Level.WARNING, "Error fetching project information", e);
-      return null;
+      return CompletableFuture.completedFuture(logError(e));
     }
   }
 
   @CheckForNull
-  private static String requestCETaskDetails(WsClient wsClient, ProjectInformation projectInfo, String ceTaskId) {
-    CETask ceTask = wsClient.getCETask(ceTaskId);
-    projectInfo.setCeStatus(ceTask.getStatus());
-    projectInfo.setCeUrl(ceTask.getUrl());
-    projectInfo.setName(ceTask.getComponentName());
-    return ceTask.getAnalysisId();
+  private static ProjectInformation logError(Throwable t) {
+    Throwable e = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+    if ((e instanceof HttpException && ((HttpException) e).code() == 404) || e instanceof CircuitOpenException) {
+      // open circuits are already reported when they open, callers keep serving what they had cached
+      Logger.LOG.log(Level.FINE, "Error fetching project information: {0}", e.getMessage());
+    } else {
+      Logger.LOG.log(Level.WARNING, "Error fetching project information", e);
+    }
+    return null;
+  }
+
+  private static CompletableFuture<String> requestCETaskDetails(WsClient wsClient, ProjectInformation projectInfo, String ceTaskId) {
+    return wsClient.getCETaskAsync(ceTaskId).thenApply(ceTask -> {
+      projectInfo.setCeStatus(ceTask.getStatus());
+      projectInfo.setCeUrl(ceTask.getUrl());
+      projectInfo.setName(ceTask.getComponentName());
+      return ceTask.getAnalysisId();
+    });
   }
 }
@@ -0,0 +1,102 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package hudson.plugins.sonar.client;
+
+import hudson.plugins.sonar.utils.Version;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What a SonarQube server is known to support, as of the last time it was asked.
+ *
+ * @since 2.16
+ */
+public final class ServerCapabilities {
+  /**
+   * Oldest version the plugin can fetch quality gate information from.
+   */
+  public static final Version MINIMUM_VERSION = new Version("5.6");
+
+  private static final Map<String, Version> API_SINCE = new LinkedHashMap<>();
+
+  static {
+    API_SINCE.put(WsClient.API_VERSION, new Version("2.10"));
+    API_SINCE.put(WsClient.API_CE_TASK, new Version("5.2"));
+    API_SINCE.put(WsClient.API_PROJECT_STATUS_WITH_ANALYSISID, new Version("5.3"));
+    API_SINCE.put("/api/webhooks", new Version("6.2"));
+  }
+
+  private final String serverUrl;
+  private final String version;
+  private final long fetchedAt;
+
+  /**
+   * @throws IllegalArgumentException if the version can't be parsed
+   */
+  public ServerCapabilities(String serverUrl, String version, long fetchedAt) {
+    this.serverUrl = serverUrl;
+    this.version = new Version(version).get();
+    this.fetchedAt = fetchedAt;
+  }
+
+  public String getServerUrl() {
+    return serverUrl;
+  }
+
+  public Version getVersion() {
+    return new Version(version);
+  }
+
+  /**
+   * @return time at which the capabilities were fetched from the server, in milliseconds since the epoch
+   */
+  public long getFetchedAt() {
+    return fetchedAt;
+  }
+
+  /**
+   * @return true if the server is recent enough for the plugin to display its quality gates
+   */
+  public boolean isSupported() {
+    return getVersion().compareTo(MINIMUM_VERSION) >= 0;
+  }
+
+  /**
+   * @param api one of the API paths used by {@link WsClient}
+   */
+  public boolean supports(String api) {
+    Version since = API_SINCE.get(api);
+    return since != null && getVersion().compareTo(since) >= 0;
+  }
+
+  public List<String> getSupportedApis() {
+    List<String> apis = new ArrayList<>();
+    Version v = getVersion();
+    API_SINCE.forEach((api, since) -> {
+      if (v.compareTo(since) >= 0) {
+        apis.add(api);
+      }
+    });
+    return Collections.unmodifiableList(apis);
+  }
+}
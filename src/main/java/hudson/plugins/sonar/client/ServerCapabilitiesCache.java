@@ -0,0 +1,228 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package hudson.plugins.sonar.client;
+
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Ticker;
+import com.google.common.annotations.VisibleForTesting;
+import hudson.XmlFile;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.plugins.sonar.SonarInstallation;
+import hudson.plugins.sonar.utils.Logger;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.stream.Collectors;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import jenkins.model.Jenkins;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Capabilities of each SonarQube server, keyed by server URL. Entries are persisted in {@code JENKINS_HOME} so that
+ * they are available right after a restart, and refreshed in the background once they get old, the previous value
+ * being served meanwhile.
+ *
+ * @since 2.16
+ */
+public class ServerCapabilitiesCache {
+  private static final String PREFIX = ServerCapabilitiesCache.class.getName();
+  private static final long REFRESH_MINUTES = Long.getLong(PREFIX + ".refreshMinutes", 60L);
+  private static final ServerCapabilitiesCache INSTANCE = new ServerCapabilitiesCache(ServerCapabilitiesCache::defaultFile, Ticker.systemTicker(),
+    ForkJoinPool.commonPool());
+
+  private final Supplier<XmlFile> file;
+  private final AsyncLoadingCache<String, ServerCapabilities> cache;
+  /**
+   * Last client used for each server, to refresh entries in the background.
+   */
+  private final Map<String, WsClient> clients = new ConcurrentHashMap<>();
+
+  @VisibleForTesting
+  ServerCapabilitiesCache(Supplier<XmlFile> file, Ticker ticker, Executor executor) {
+    this.file = file;
+    this.cache = Caffeine.newBuilder()
+      .ticker(ticker)
+      .executor(executor)
+      .refreshAfterWrite(REFRESH_MINUTES, TimeUnit.MINUTES)
+      .buildAsync((serverUrl, e) -> fetch(serverUrl));
+  }
+
+  public static ServerCapabilitiesCache get() {
+    return INSTANCE;
+  }
+
+  @CheckForNull
+  private static XmlFile defaultFile() {
+    Jenkins jenkins = Jenkins.getInstanceOrNull();
+    return jenkins == null ? null : new XmlFile(new File(jenkins.getRootDir(), PREFIX + ".xml"));
+  }
+
+  /**
+   * @param wsClient client of the given server, used if the capabilities are not known yet
+   */
+  public CompletableFuture<ServerCapabilities> getCapabilities(String serverUrl, WsClient wsClient) {
+    String key = key(serverUrl);
+    if (clients.get(key) != wsClient) {
+      clients.put(key, wsClient);
+    }
+    return cache.get(key);
+  }
+
+  private CompletableFuture<ServerCapabilities> fetch(String serverUrl) {
+    WsClient wsClient = clients.get(serverUrl);
+    if (wsClient == null) {
+      CompletableFuture<ServerCapabilities> failed = new CompletableFuture<>();
+      failed.completeExceptionally(new IllegalStateException("No SonarQube installation uses " + serverUrl));
+      return failed;
+    }
+    CompletableFuture<String> version;
+    try {
+      version = wsClient.getServerVersionAsync();
+    } catch (RuntimeException e) {
+      version = new CompletableFuture<>();
+      version.completeExceptionally(e);
+    }
+    return version
+      .thenApply(v -> new ServerCapabilities(serverUrl, v.trim(), System.currentTimeMillis()))
+      .whenComplete((capabilities, e) -> {
+        if (capabilities != null) {
+          Logger.LOG.fine(() -> "SonarQube server " + serverUrl + " is on version " + capabilities.getVersion());
+          save();
+        }
+      });
+  }
+
+  /**
+   * Loads the persisted capabilities, then refreshes them in the background for all installations.
+   */
+  @Initializer(after = InitMilestone.JOB_LOADED)
+  public static void warmUp() {
+    INSTANCE.load();
+    INSTANCE.warm(SonarInstallation.all());
+  }
+
+  private void warm(SonarInstallation... installations) {
+    for (SonarInstallation installation : installations) {
+      if (StringUtils.isBlank(installation.getServerUrl())) {
+        continue;
+      }
+      String key = key(installation.getServerUrl());
+      clients.computeIfAbsent(key, k -> HttpClientRegistry.get().getWsClient(installation, installation.getServerUrl(), null));
+      cache.synchronous().refresh(key);
+    }
+  }
+
+  /**
+   * Forgets the servers no installation points to anymore. New servers are looked up on first use.
+   */
+  public void installationsChanged(@Nullable SonarInstallation[] previous, SonarInstallation[] current) {
+    Set<String> currentUrls = urls(current);
+    Set<String> removed = urls(previous);
+    removed.removeAll(currentUrls);
+    if (removed.isEmpty()) {
+      return;
+    }
+    for (String url : removed) {
+      Logger.LOG.fine(() -> "Forgetting capabilities of SonarQube server " + url);
+      clients.remove(url);
+      cache.synchronous().invalidate(url);
+    }
+    save();
+  }
+
+  private static Set<String> urls(@Nullable SonarInstallation[] installations) {
+    if (installations == null) {
+      return new HashSet<>();
+    }
+    return Arrays.stream(installations)
+      .map(SonarInstallation::getServerUrl)
+      .filter(StringUtils::isNotBlank)
+      .map(ServerCapabilitiesCache::key)
+      .collect(Collectors.toCollection(HashSet::new));
+  }
+
+  private static String key(String serverUrl) {
+    return StringUtils.removeEnd(serverUrl.trim(), "/");
+  }
+
+  /**
+   * @return capabilities fetched so far, whatever their age
+   */
+  public List<ServerCapabilities> getKnown() {
+    return cache.asMap().values().stream()
+      .filter(f -> f.isDone() && !f.isCompletedExceptionally())
+      .map(CompletableFuture::join)
+      .filter(Objects::nonNull)
+      .collect(Collectors.toList());
+  }
+
+  @VisibleForTesting
+  synchronized void load() {
+    XmlFile xml = file.get();
+    if (xml == null || !xml.exists()) {
+      return;
+    }
+    try {
+      Object persisted = xml.read();
+      if (persisted instanceof List) {
+        for (Object o : (List<?>) persisted) {
+          ServerCapabilities capabilities = (ServerCapabilities) o;
+          cache.put(capabilities.getServerUrl(), CompletableFuture.completedFuture(capabilities));
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      Logger.LOG.log(Level.WARNING, e, () -> "Unable to load SonarQube server capabilities from " + xml.getFile());
+    }
+  }
+
+  private synchronized void save() {
+    XmlFile xml = file.get();
+    if (xml == null) {
+      return;
+    }
+    try {
+      xml.write(new ArrayList<>(getKnown()));
+    } catch (IOException e) {
+      Logger.LOG.log(Level.WARNING, e, () -> "Unable to save SonarQube server capabilities to " + xml.getFile());
+    }
+  }
+
+  @VisibleForTesting
+  void invalidateAll() {
+    cache.synchronous().invalidateAll();
+    clients.clear();
+  }
+}
@@ -0,0 +1,227 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package hudson.plugins.sonar.client;
+
+import java.io.IOException;
+import java.io.Reader;
+import javax.annotation.CheckForNull;
+
+/**
+ * Minimal pull parser used to extract a few fields from web service responses without building a JSON tree.
+ * Like json-lib, it accepts unquoted and single-quoted names and strings.
+ * Malformed input is reported with {@link IllegalStateException}. Only meant to be used by this plugin.
+ *
+ * @since 2.16
+ */
+public final class StreamingJsonReader {
+  private final Reader in;
+  private final char[] buffer = new char[1024];
+  private final StringBuilder text = new StringBuilder();
+  private int pos;
+  private int limit;
+
+  public StreamingJsonReader(Reader in) {
+    this.in = in;
+  }
+
+  public void beginObject() throws IOException {
+    expect('{');
+  }
+
+  public void endObject() throws IOException {
+    expect('}');
+  }
+
+  public void beginArray() throws IOException {
+    expect('[');
+  }
+
+  public void endArray() throws IOException {
+    expect(']');
+  }
+
+  /**
+   * @return true if the current object or array has another member, consuming the separating comma
+   */
+  public boolean hasNext() throws IOException {
+    int c = peek();
+    if (c == ',') {
+      pos++;
+      c = peek();
+    }
+    return c != '}' && c != ']' && c != -1;
+  }
+
+  public String nextName() throws IOException {
+    int c = peek();
+    String name;
+    if (c == '"' || c == '\'') {
+      pos++;
+      name = readString((char) c);
+    } else {
+      name = readLiteral();
+    }
+    expect(':');
+    return name;
+  }
+
+  /**
+   * @return the next primitive value as text, null for a JSON null
+   */
+  @CheckForNull
+  public String nextString() throws IOException {
+    int c = peek();
+    if (c == '"' || c == '\'') {
+      pos++;
+      return readString((char) c);
+    }
+    if (c == '{' || c == '[') {
+      throw syntaxError("Expected a primitive value but found '" + (char) c + "'");
+    }
+    String literal = readLiteral();
+    return "null".equals(literal) ? null : literal;
+  }
+
+  public void skipValue() throws IOException {
+    int c = peek();
+    if (c == '{') {
+      pos++;
+      while (hasNext()) {
+        nextName();
+        skipValue();
+      }
+      endObject();
+    } else if (c == '[') {
+      pos++;
+      while (hasNext()) {
+        skipValue();
+      }
+      endArray();
+    } else {
+      nextString();
+    }
+  }
+
+  private String readString(char quote) throws IOException {
+    text.setLength(0);
+    while (true) {
+      char c = read();
+      if (c == quote) {
+        return text.toString();
+      }
+      if (c == '\\') {
+        text.append(readEscape());
+      } else {
+        text.append(c);
+      }
+    }
+  }
+
+  private char readEscape() throws IOException {
+    char c = read();
+    switch (c) {
+      case 'b':
+        return '\b';
+      case 'f':
+        return '\f';
+      case 'n':
+        return '\n';
+      case 'r':
+        return '\r';
+      case 't':
+        return '\t';
+      case 'u':
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+          int digit = Character.digit(read(), 16);
+          if (digit < 0) {
+            throw syntaxError("Invalid unicode escape");
+          }
+          value = (value << 4) + digit;
+        }
+        return (char) value;
+      default:
+        // \" \\ \/ and lenient escapes of any other character
+        return c;
+    }
+  }
+
+  private String readLiteral() throws IOException {
+    text.setLength(0);
+    while (fill()) {
+      char c = buffer[pos];
+      if (c == ',' || c == ':' || c == '}' || c == ']' || Character.isWhitespace(c)) {
+        break;
+      }
+      text.append(c);
+      pos++;
+    }
+    if (text.length() == 0) {
+      throw syntaxError("Expected a value");
+    }
+    return text.toString();
+  }
+
+  private void expect(char expected) throws IOException {
+    int c = peek();
+    if (c != expected) {
+      throw syntaxError("Expected '" + expected + "' but found " + (c == -1 ? "end of input" : ("'" + (char) c + "'")));
+    }
+    pos++;
+  }
+
+  /**
+   * @return next non-whitespace character without consuming it, -1 at the end of the input
+   */
+  private int peek() throws IOException {
+    while (fill()) {
+      char c = buffer[pos];
+      if (!Character.isWhitespace(c)) {
+        return c;
+      }
+      pos++;
+    }
+    return -1;
+  }
+
+  private char read() throws IOException {
+    if (!fill()) {
+      throw syntaxError("Unexpected end of input");
+    }
+    return buffer[pos++];
+  }
+
+  private boolean fill() throws IOException {
+    if (pos < limit) {
+      return true;
+    }
+    int read = in.read(buffer, 0, buffer.length);
+    if (read <= 0) {
+      return false;
+    }
+    pos = 0;
+    limit = read;
+    return true;
+  }
+
+  private static IllegalStateException syntaxError(String message) {
+    return new IllegalStateException("Malformed JSON: " + message);
+  }
+}
@@ -19,13 +19,20 @@
  */
 package hudson.plugins.sonar.client;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.IOException;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import javax.annotation.CheckForNull;
 import javax.annotation.Nullable;
-import net.sf.json.JSONException;
-import net.sf.json.JSONObject;
-import net.sf.json.JSONSerializer;
 
 public class WsClient {
   private static final String STATUS_ATTR = "status";
@@ -39,49 +46,224 @@ public class WsClient {
   private final HttpClient client;
   private final String serverUrl;
   private final String token;
+  private final Duration deadline;
+  private final Executor callbackExecutor;
 
   public WsClient(HttpClient client, String serverUrl, @Nullable String token) {
+    this(client, serverUrl, token, null, MoreExecutors.directExecutor());
+  }
+
+  /**
+   * @param deadline applied to each asynchronous call, null to only rely on the HTTP client timeouts
+   * @param callbackExecutor executor completing the futures returned by the asynchronous calls
+   */
+  public WsClient(HttpClient client, String serverUrl, @Nullable String token, @Nullable Duration deadline, Executor callbackExecutor) {
     this.client = client;
     this.serverUrl = serverUrl;
     this.token = token;
+    this.deadline = deadline;
+    this.callbackExecutor = callbackExecutor;
   }
 
   public CETask getCETask(String taskId) {
     String url = serverUrl + API_CE_TASK + taskId;
-    String text = client.getHttp(url, token);
-    try {
-      JSONObject json = (JSONObject) JSONSerializer.toJSON(text);
-      JSONObject task = json.getJSONObject("task");
+    return client.getHttp(url, token, body -> decodeCETask(url, body));
+  }
 
-      String status = task.getString(STATUS_ATTR);
-      String componentName = task.getString("componentName");
-      String componentKey = task.getString("componentKey");
-      // No analysisId if task is pending
-      String analysisId = task.optString("analysisId", null);
-      return new CETask(status, componentName, componentKey, url, analysisId);
-    } catch (JSONException e) {
-      throw new IllegalStateException("Unable to parse response from " + url + ":\n" + text, e);
+  public CompletableFuture<CETask> getCETaskAsync(String taskId) {
+    String url = serverUrl + API_CE_TASK + taskId;
+    return client.getHttpAsync(url, token, deadline, callbackExecutor, body -> decodeCETask(url, body));
+  }
+
+  @VisibleForTesting
+  static CETask decodeCETask(String url, Reader body) throws IOException {
+    try {
+      StreamingJsonReader json = new StreamingJsonReader(body);
+      CETask task = null;
+      json.beginObject();
+      while (json.hasNext()) {
+        if ("task".equals(json.nextName())) {
+          task = decodeTask(url, json);
+        } else {
+          json.skipValue();
+        }
+      }
+      json.endObject();
+      return required("task", task);
+    } catch (IllegalStateException e) {
+      throw new IllegalStateException("Unable to parse response from " + url, e);
     }
+  }
 
+  private static CETask decodeTask(String url, StreamingJsonReader json) throws IOException {
+    String status = null;
+    String componentName = null;
+    String componentKey = null;
+    // No analysisId if task is pending
+    String analysisId = null;
+    json.beginObject();
+    while (json.hasNext()) {
+      switch (json.nextName()) {
+        case STATUS_ATTR:
+          status = json.nextString();
+          break;
+        case "componentName":
+          componentName = json.nextString();
+          break;
+        case "componentKey":
+          componentKey = json.nextString();
+          break;
+        case "analysisId":
+          analysisId = json.nextString();
+          break;
+        default:
+          json.skipValue();
+      }
+    }
+    json.endObject();
+    return new CETask(required(STATUS_ATTR, status), required("componentName", componentName), required("componentKey", componentKey), url, analysisId);
   }
 
   public String requestQualityGateStatus(String analysisId) {
     String url = serverUrl + API_PROJECT_STATUS_WITH_ANALYSISID + encode(analysisId);
-    String text = client.getHttp(url, token);
+    return client.getHttp(url, token, body -> decodeQualityGateStatus(url, body));
+  }
+
+  public CompletableFuture<String> requestQualityGateStatusAsync(String analysisId) {
+    String url = serverUrl + API_PROJECT_STATUS_WITH_ANALYSISID + encode(analysisId);
+    return client.getHttpAsync(url, token, deadline, callbackExecutor, body -> decodeQualityGateStatus(url, body));
+  }
+
+  @VisibleForTesting
+  static String decodeQualityGateStatus(String url, Reader body) throws IOException {
+    try {
+      StreamingJsonReader json = new StreamingJsonReader(body);
+      String status = null;
+      json.beginObject();
+      while (json.hasNext()) {
+        if ("projectStatus".equals(json.nextName())) {
+          // conditions and periods are skipped without being materialized
+          json.beginObject();
+          while (json.hasNext()) {
+            if (STATUS_ATTR.equals(json.nextName())) {
+              status = json.nextString();
+            } else {
+              json.skipValue();
+            }
+          }
+          json.endObject();
+        } else {
+          json.skipValue();
+        }
+      }
+      json.endObject();
+      return required("projectStatus.status", status);
+    } catch (IllegalStateException e) {
+      throw new IllegalStateException("Unable to parse response from " + url, e);
+    }
+  }
+
+  /**
+   * Same as {@link #requestQualityGateStatus(String)}, with the conditions of the quality gate.
+   *
+   * @since 2.16
+   */
+  public ProjectStatus getProjectStatus(String analysisId) {
+    String url = serverUrl + API_PROJECT_STATUS_WITH_ANALYSISID + encode(analysisId);
+    return client.getHttp(url, token, body -> decodeProjectStatus(url, body));
+  }
+
+  /**
+   * @since 2.16
+   */
+  public CompletableFuture<ProjectStatus> getProjectStatusAsync(String analysisId) {
+    String url = serverUrl + API_PROJECT_STATUS_WITH_ANALYSISID + encode(analysisId);
+    return client.getHttpAsync(url, token, deadline, callbackExecutor, body -> decodeProjectStatus(url, body));
+  }
+
+  @VisibleForTesting
+  static ProjectStatus decodeProjectStatus(String url, Reader body) throws IOException {
     try {
-      JSONObject json = (JSONObject) JSONSerializer.toJSON(text);
-      JSONObject projectStatus = json.getJSONObject("projectStatus");
+      StreamingJsonReader json = new StreamingJsonReader(body);
+      String status = null;
+      List<QualityGateCondition> conditions = new ArrayList<>();
+      json.beginObject();
+      while (json.hasNext()) {
+        if ("projectStatus".equals(json.nextName())) {
+          json.beginObject();
+          while (json.hasNext()) {
+            String name = json.nextName();
+            if (STATUS_ATTR.equals(name)) {
+              status = json.nextString();
+            } else if ("conditions".equals(name)) {
+              json.beginArray();
+              while (json.hasNext()) {
+                conditions.add(decodeCondition(json));
+              }
+              json.endArray();
+            } else {
+              json.skipValue();
+            }
+          }
+          json.endObject();
+        } else {
+          json.skipValue();
+        }
+      }
+      json.endObject();
+      return new ProjectStatus(required("projectStatus.status", status), conditions);
+    } catch (IllegalStateException e) {
+      throw new IllegalStateException("Unable to parse response from " + url, e);
+    }
+  }
 
-      return projectStatus.getString(STATUS_ATTR);
-    } catch (JSONException e) {
-      throw new IllegalStateException("Unable to parse response from " + url + ":\n" + text, e);
+  private static QualityGateCondition decodeCondition(StreamingJsonReader json) throws IOException {
+    String status = null;
+    String metricKey = null;
+    String comparator = null;
+    String errorThreshold = null;
+    String actualValue = null;
+    json.beginObject();
+    while (json.hasNext()) {
+      switch (json.nextName()) {
+        case STATUS_ATTR:
+          status = json.nextString();
+          break;
+        case "metricKey":
+          metricKey = json.nextString();
+          break;
+        case "comparator":
+          comparator = json.nextString();
+          break;
+        case "errorThreshold":
+          errorThreshold = json.nextString();
+          break;
+        case "actualValue":
+          actualValue = json.nextString();
+          break;
+        default:
+          json.skipValue();
+      }
     }
+    json.endObject();
+    return new QualityGateCondition(required("conditions.status", status), required("conditions.metricKey", metricKey), comparator, errorThreshold, actualValue);
+  }
+
+  private static <T> T required(String field, @Nullable T value) {
+    if (value == null) {
+      throw new IllegalStateException("Missing field '" + field + "'");
+    }
+    return value;
   }
 
   public String getServerVersion() {
     return client.getHttp(serverUrl + API_VERSION, null);
   }
 
+  public CompletableFuture<String> getServerVersionAsync() {
+    return client.getHttpAsync(serverUrl + API_VERSION, null, deadline, callbackExecutor);
+  }
+
   private static String encode(String param) {
     try {
       return URLEncoder.encode(param, "UTF-8");
@@ -91,6 +273,27 @@ public class WsClient {
     }
   }
 
+  /**
+   * @since 2.16
+   */
+  public static class ProjectStatus {
+    private final String status;
+    private final List<QualityGateCondition> conditions;
+
+    public ProjectStatus(String status, List<QualityGateCondition> conditions) {
+      this.status = status;
+      this.conditions = Collections.unmodifiableList(conditions);
+    }
+
+    public String getStatus() {
+      return status;
+    }
+
+    public List<QualityGateCondition> getConditions() {
+      return conditions;
+    }
+  }
+
   public static class CETask {
 
     public static final String STATUS_SUCCESS = "SUCCESS";
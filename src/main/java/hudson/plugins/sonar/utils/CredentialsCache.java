@@ -0,0 +1,119 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package hudson.plugins.sonar.utils;
+
+import com.cloudbees.plugins.credentials.CredentialsMatchers;
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.common.annotations.VisibleForTesting;
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Run;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
+import hudson.security.ACL;
+import java.util.Collections;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.plaincredentials.StringCredentials;
+
+/**
+ * Remembers for a short while the token credentials resolved for each run, so that the several components needing the
+ * token during a build, or a job page rendered repeatedly, only walk the credentials providers once.
+ * <p>
+ * Entries are keyed by run, so the first lookup of each run still goes through
+ * {@link CredentialsProvider#findCredentialById}, which records the usage of the credentials by that run. Without a run,
+ * only the global credentials are looked up, as {@link ACL#SYSTEM}, and they are neither cached nor tracked.
+ *
+ * @since 2.16
+ */
+public final class CredentialsCache {
+  private static final long TTL_SECONDS = Long.getLong(CredentialsCache.class.getName() + ".ttlSeconds", 60L);
+  private static final Cache<Key, StringCredentials> CACHE = Caffeine.newBuilder()
+    .maximumSize(1000)
+    .expireAfterWrite(TTL_SECONDS, TimeUnit.SECONDS)
+    .build();
+
+  private CredentialsCache() {
+    // Utility class
+  }
+
+  @CheckForNull
+  public static StringCredentials find(String credentialsId, @Nullable Run<?, ?> run) {
+    if (run == null) {
+      return CredentialsMatchers.firstOrNull(
+        CredentialsProvider.lookupCredentials(StringCredentials.class, Jenkins.get(), ACL.SYSTEM, Collections.emptyList()),
+        CredentialsMatchers.withId(credentialsId));
+    }
+    // missing credentials are not cached, so that they are picked up as soon as they are added
+    return CACHE.get(new Key(run.getExternalizableId(), credentialsId),
+      k -> CredentialsProvider.findCredentialById(credentialsId, StringCredentials.class, run));
+  }
+
+  @VisibleForTesting
+  static void invalidateAll() {
+    CACHE.invalidateAll();
+  }
+
+  /**
+   * Credentials stores are persisted when their content changes, whether they belong to Jenkins, a folder or a user.
+   * Builds are saved far more often and never hold credentials, so they don't flush the cache.
+   */
+  @Extension
+  public static final class Invalidator extends SaveableListener {
+    @Override
+    public void onChange(Saveable o, XmlFile file) {
+      if (!(o instanceof Run)) {
+        invalidateAll();
+      }
+    }
+  }
+
+  private static final class Key {
+    private final String runId;
+    private final String credentialsId;
+
+    private Key(String runId, String credentialsId) {
+      this.runId = runId;
+      this.credentialsId = credentialsId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key that = (Key) o;
+      return Objects.equals(runId, that.runId) && credentialsId.equals(that.credentialsId);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(runId, credentialsId);
+    }
+  }
+}
@@ -19,7 +19,6 @@
  */
 package hudson.plugins.sonar.utils;
 
-import com.cloudbees.plugins.credentials.CredentialsProvider;
 import hudson.EnvVars;
 import hudson.FilePath;
 import hudson.model.Action;
@@ -225,6 +224,6 @@ public final class SonarUtils {
   }
 
   public static StringCredentials getCredentials(Run<?, ?> build, String credentialsId) {
-    return CredentialsProvider.findCredentialById(credentialsId, StringCredentials.class, build);
+    return CredentialsCache.find(credentialsId, build);
   }
 }
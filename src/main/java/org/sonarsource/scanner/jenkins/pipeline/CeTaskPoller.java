@@ -0,0 +1,448 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.jenkins.pipeline;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.common.annotations.VisibleForTesting;
+import hudson.plugins.sonar.client.WsClient;
+import hudson.plugins.sonar.client.WsClient.CETask;
+import java.net.HttpURLConnection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import javax.annotation.CheckForNull;
+import jenkins.util.Timer;
+import org.sonarqube.ws.client.HttpException;
+import org.sonarsource.scanner.jenkins.pipeline.SonarQubeWebHook.Payload;
+import org.sonarsource.scanner.jenkins.pipeline.SonarQubeWebHook.WebhookEvent;
+
+/**
+ * Polls the CE tasks awaited by the steps, in case their webhook is lost. A single scheduler serves all the steps of
+ * the controller: each task is polled once whatever the number of steps waiting for it, and each server gets at most a
+ * given number of requests per second, the tasks not polled waiting for the next round. Polls finding a task done take
+ * two requests, the second one is charged too.
+ * <p>
+ * Tasks are first polled after a grace period leaving time for the webhook. Then they are polled when their project
+ * is expected to be done, from the average duration of its previous tasks, and less and less often once overdue. The
+ * durations are learnt from the webhooks of the tasks, or from the polls when the webhook is late or lost.
+ * Results are handed to the steps as {@link WebhookEvent#polled polled webhook events}.
+ * <p>
+ * Steps resumed after a restart are polled right away, oldest first, so that thousands of paused pipelines neither
+ * delay the startup of Jenkins nor flood SonarQube.
+ * <p>
+ * Tasks which can't be polled, because the client can't be created or SonarQube rejects the request, or whose polls
+ * fail too many times in a row, are no longer polled and their listeners are told so.
+ *
+ * @since 2.16
+ */
+public class CeTaskPoller {
+  private static final Logger LOGGER = Logger.getLogger(CeTaskPoller.class.getName());
+  private static final String PREFIX = CeTaskPoller.class.getName();
+  private static final long DEFAULT_INITIAL_DELAY_SECONDS = Long.getLong(PREFIX + ".initialDelaySeconds", 30L);
+  private static final long DEFAULT_MIN_INTERVAL_SECONDS = Long.getLong(PREFIX + ".minIntervalSeconds", 5L);
+  private static final long DEFAULT_MAX_INTERVAL_SECONDS = Long.getLong(PREFIX + ".maxIntervalSeconds", 300L);
+  private static final int DEFAULT_REQUESTS_PER_SECOND = Integer.getInteger(PREFIX + ".requestsPerSecond", 2);
+  private static final int DEFAULT_MAX_FAILURES = Integer.getInteger(PREFIX + ".maxFailures", 10);
+  private static final long TICK_MILLIS = 1000;
+  private static final double EWMA_WEIGHT = 0.3;
+
+  private static final CeTaskPoller INSTANCE = new CeTaskPoller(Timer::get, System::currentTimeMillis, TimeUnit.SECONDS.toMillis(DEFAULT_INITIAL_DELAY_SECONDS),
+    TimeUnit.SECONDS.toMillis(DEFAULT_MIN_INTERVAL_SECONDS), TimeUnit.SECONDS.toMillis(DEFAULT_MAX_INTERVAL_SECONDS), DEFAULT_REQUESTS_PER_SECOND,
+    DEFAULT_MAX_FAILURES);
+
+  private final Supplier<ScheduledExecutorService> scheduler;
+  private final LongSupplier clock;
+  private final long initialDelayMillis;
+  private final long minIntervalMillis;
+  private final long maxIntervalMillis;
+  private final int requestsPerSecond;
+  private final int maxFailures;
+  private final Map<String, Server> servers = new ConcurrentHashMap<>();
+  private final Cache<String, Ewma> durations = Caffeine.newBuilder()
+    .maximumSize(10_000)
+    .expireAfterAccess(7, TimeUnit.DAYS)
+    .build();
+  private final LongAdder polls = new LongAdder();
+  private final LongAdder completions = new LongAdder();
+  private final LongAdder failures = new LongAdder();
+  private ScheduledFuture<?> ticker;
+
+  @VisibleForTesting
+  CeTaskPoller(Supplier<ScheduledExecutorService> scheduler, LongSupplier clock, long initialDelayMillis, long minIntervalMillis, long maxIntervalMillis,
+    int requestsPerSecond, int maxFailures) {
+    this.scheduler = scheduler;
+    this.clock = clock;
+    this.initialDelayMillis = initialDelayMillis;
+    this.minIntervalMillis = minIntervalMillis;
+    this.maxIntervalMillis = maxIntervalMillis;
+    this.requestsPerSecond = requestsPerSecond;
+    this.maxFailures = maxFailures;
+  }
+
+  public static CeTaskPoller get() {
+    return INSTANCE;
+  }
+
+  /**
+   * Waits for tasks polled by the poller.
+   */
+  public interface Listener extends Consumer<WebhookEvent> {
+    /**
+     * Called when the task is no longer polled because polling it failed for good. The listener is unregistered
+     * beforehand, it is still notified of the webhook of the task if it listens to it.
+     */
+    void onPollingFailed(String taskId, Throwable cause);
+  }
+
+  /**
+   * Polls the task until it is done or the listener is unregistered, starting after the grace period.
+   *
+   * @param client called on the first poll of the task, for the first listener registered for it
+   */
+  public void register(String serverUrl, String taskId, Supplier<WsClient> client, Listener listener) {
+    long now = clock.getAsLong();
+    register(serverUrl, taskId, new Task(taskId, client, now, now + initialDelayMillis, false), listener);
+  }
+
+  /**
+   * Polls the task of a step resumed after a restart as soon as the request rate of its server allows, the steps started
+   * first being polled first. Nothing is done on the calling thread but registering the task.
+   *
+   * @param startedAt when the step started, 0 if unknown
+   */
+  public void resume(String serverUrl, String taskId, Supplier<WsClient> client, Listener listener, long startedAt) {
+    register(serverUrl, taskId, new Task(taskId, client, startedAt > 0 ? startedAt : clock.getAsLong(), startedAt, true), listener);
+  }
+
+  private void register(String serverUrl, String taskId, Task created, Listener listener) {
+    Server server = servers.computeIfAbsent(serverUrl, url -> new Server(new TokenBucket(requestsPerSecond, Math.max(1, requestsPerSecond), nanos())));
+    server.tasks.compute(taskId, (id, task) -> {
+      Task t = task != null ? task : created;
+      t.nextPollAt = Math.min(t.nextPollAt, created.nextPollAt);
+      t.listeners.add(listener);
+      return t;
+    });
+    startTicking();
+  }
+
+  public void unregister(String serverUrl, String taskId, Listener listener) {
+    Server server = servers.get(serverUrl);
+    if (server != null) {
+      server.tasks.computeIfPresent(taskId, (id, task) -> {
+        task.listeners.remove(listener);
+        return task.listeners.isEmpty() ? null : task;
+      });
+    }
+  }
+
+  private synchronized void startTicking() {
+    // the ticker is cancelled when the timer of Jenkins shuts down
+    if (ticker == null || ticker.isDone()) {
+      ScheduledExecutorService executor = scheduler.get();
+      if (executor != null) {
+        ticker = executor.scheduleWithFixedDelay(this::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+      }
+    }
+  }
+
+  private void tick() {
+    try {
+      poll();
+    } catch (RuntimeException e) {
+      LOGGER.log(Level.WARNING, "Unable to poll SonarQube tasks", e);
+    }
+  }
+
+  /**
+   * Polls the tasks which are due, most overdue first, within the request rate of each server.
+   */
+  @VisibleForTesting
+  void poll() {
+    long now = clock.getAsLong();
+    for (Map.Entry<String, Server> entry : servers.entrySet()) {
+      Server server = entry.getValue();
+      List<Task> due = server.tasks.values().stream()
+        .filter(t -> !t.inFlight && t.nextPollAt <= now)
+        .sorted(Comparator.comparingLong(t -> t.nextPollAt))
+        .collect(Collectors.toList());
+      for (Task task : due) {
+        if (!server.bucket.tryAcquire(nanos())) {
+          LOGGER.fine(() -> "Request rate to " + entry.getKey() + " reached, " + due.size() + " tasks are overdue");
+          break;
+        }
+        poll(entry.getKey(), server, task);
+      }
+    }
+  }
+
+  private void poll(String serverUrl, Server server, Task task) {
+    task.inFlight = true;
+    polls.increment();
+    CompletableFuture<WsClient> client = CompletableFuture.supplyAsync(task::getClient, Runnable::run);
+    client.thenCompose(c -> c.getCETaskAsync(task.taskId))
+      .thenCompose(ceTask -> {
+        task.projectKey = ceTask.getComponentKey();
+        if (CETask.STATUS_SUCCESS.equals(ceTask.getStatus())) {
+          // the quality gate is a second request to the server
+          server.bucket.acquire(nanos());
+          return client.join().getProjectStatusAsync(ceTask.getAnalysisId())
+            .thenApply(status -> WebhookEvent.polled(task.taskId, ceTask.getStatus(), status.getStatus(), ceTask.getAnalysisId(),
+              ceTask.getComponentKey(), status.getConditions()));
+        }
+        if (CETask.STATUS_FAILURE.equals(ceTask.getStatus()) || CETask.STATUS_CANCELED.equals(ceTask.getStatus())) {
+          return CompletableFuture.completedFuture(WebhookEvent.polled(task.taskId, ceTask.getStatus(), null, null, ceTask.getComponentKey(), null));
+        }
+        return CompletableFuture.completedFuture(null);
+      })
+      .whenComplete((event, e) -> {
+        long now = clock.getAsLong();
+        task.inFlight = false;
+        if (e != null) {
+          Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+          task.failures++;
+          // the client can't be created, e.g. the installation or the credentials are gone
+          if (client.isCompletedExceptionally() || isRejected(cause) || task.failures >= maxFailures) {
+            fail(server, task, cause);
+          } else {
+            LOGGER.log(Level.FINE, cause, () -> "Unable to poll the SonarQube task " + task.taskId);
+            task.nextPollAt = now + backoff(now - task.registeredAt);
+          }
+          return;
+        }
+        task.failures = 0;
+        if (event == null) {
+          task.nextPollAt = nextPollAt(serverUrl, task, now);
+        } else {
+          complete(serverUrl, server, task, event, now);
+        }
+      });
+  }
+
+  /**
+   * @return whether SonarQube will answer the same whatever the number of attempts
+   */
+  private static boolean isRejected(Throwable cause) {
+    if (!(cause instanceof HttpException)) {
+      return false;
+    }
+    int code = ((HttpException) cause).code();
+    return code == HttpURLConnection.HTTP_UNAUTHORIZED || code == HttpURLConnection.HTTP_FORBIDDEN || code == HttpURLConnection.HTTP_NOT_FOUND;
+  }
+
+  private void fail(Server server, Task task, Throwable cause) {
+    if (!server.tasks.remove(task.taskId, task)) {
+      // all the steps stopped waiting meanwhile
+      return;
+    }
+    failures.increment();
+    LOGGER.log(Level.WARNING, cause, () -> "Stopped polling the SonarQube task " + task.taskId + " after " + task.failures + " failure(s)");
+    for (Listener listener : task.listeners) {
+      try {
+        listener.onPollingFailed(task.taskId, cause);
+      } catch (RuntimeException e) {
+        LOGGER.log(Level.WARNING, e, () -> "Unable to fail a step waiting for the SonarQube task " + task.taskId);
+      }
+    }
+  }
+
+  private void complete(String serverUrl, Server server, Task task, WebhookEvent event, long now) {
+    if (!server.tasks.remove(task.taskId, task)) {
+      // all the steps stopped waiting meanwhile
+      return;
+    }
+    completions.increment();
+    long duration = learn(serverUrl, task, task.projectKey, now);
+    LOGGER.fine(() -> "SonarQube task " + task.taskId + " found done after " + duration + " ms without webhook");
+    QualityGateResults.get().record(event);
+    for (Listener listener : task.listeners) {
+      try {
+        listener.accept(event);
+      } catch (RuntimeException e) {
+        LOGGER.log(Level.WARNING, e, () -> "Unable to complete a step waiting for the SonarQube task " + task.taskId);
+      }
+    }
+  }
+
+  /**
+   * Learns the duration of a task from its webhook, received before the steps waiting for it stop polling it.
+   */
+  void onWebhook(WebhookEvent event) {
+    Payload payload = event.getPayload();
+    if (event.isPolled() || !QualityGateResults.isFinished(payload.getTaskStatus())) {
+      return;
+    }
+    long now = clock.getAsLong();
+    for (Map.Entry<String, Server> entry : servers.entrySet()) {
+      Task task = entry.getValue().tasks.get(payload.getTaskId());
+      if (task != null) {
+        learn(entry.getKey(), task, payload.getProjectKey() != null ? payload.getProjectKey() : task.projectKey, now);
+      }
+    }
+  }
+
+  /**
+   * @return how long the task took, from the start of the step waiting for it
+   */
+  private long learn(String serverUrl, Task task, @CheckForNull String projectKey, long now) {
+    long duration = now - task.registeredAt;
+    // the duration of resumed tasks includes the restart, a task completed from its webhook and its poll counts once
+    if (!task.resumed && projectKey != null && !task.learnt) {
+      task.learnt = true;
+      durations.get(serverUrl + "|" + projectKey, k -> new Ewma()).add(duration);
+    }
+    return duration;
+  }
+
+  private long nextPollAt(String serverUrl, Task task, long now) {
+    long elapsed = now - task.registeredAt;
+    Long expected = getExpectedDuration(serverUrl, task.projectKey);
+    if (expected != null && elapsed < expected) {
+      return now + clamp(expected - elapsed);
+    }
+    return now + backoff(elapsed);
+  }
+
+  /**
+   * The longer a task is overdue, the less often it is polled.
+   */
+  private long backoff(long elapsed) {
+    return clamp(elapsed / 2);
+  }
+
+  private long clamp(long interval) {
+    return Math.max(minIntervalMillis, Math.min(maxIntervalMillis, interval));
+  }
+
+  /**
+   * @return average duration of the tasks of the project, in milliseconds
+   */
+  @CheckForNull
+  @VisibleForTesting
+  Long getExpectedDuration(String serverUrl, @CheckForNull String projectKey) {
+    Ewma ewma = projectKey != null ? durations.getIfPresent(serverUrl + "|" + projectKey) : null;
+    return ewma != null ? ewma.get() : null;
+  }
+
+  /**
+   * @return next poll of the task, in milliseconds of the clock, or null if not polled anymore
+   */
+  @CheckForNull
+  @VisibleForTesting
+  Long getNextPollAt(String serverUrl, String taskId) {
+    Server server = servers.get(serverUrl);
+    Task task = server != null ? server.tasks.get(taskId) : null;
+    return task != null ? task.nextPollAt : null;
+  }
+
+  /**
+   * @return number of tasks polled for the waiting steps
+   */
+  public int getTaskCount() {
+    return servers.values().stream().mapToInt(s -> s.tasks.size()).sum();
+  }
+
+  public long getPolls() {
+    return polls.sum();
+  }
+
+  /**
+   * @return number of tasks found done by polling, whose webhook was late or lost
+   */
+  public long getCompletions() {
+    return completions.sum();
+  }
+
+  /**
+   * @return number of tasks no longer polled because their polls failed
+   */
+  public long getFailures() {
+    return failures.sum();
+  }
+
+  private long nanos() {
+    return TimeUnit.MILLISECONDS.toNanos(clock.getAsLong());
+  }
+
+  private static final class Server {
+    private final TokenBucket bucket;
+    private final Map<String, Task> tasks = new ConcurrentHashMap<>();
+
+    private Server(TokenBucket bucket) {
+      this.bucket = bucket;
+    }
+  }
+
+  private static final class Task {
+    private final String taskId;
+    private final Supplier<WsClient> clientSupplier;
+    private final long registeredAt;
+    private final boolean resumed;
+    private final Set<Listener> listeners = new CopyOnWriteArraySet<>();
+    private volatile int failures;
+    private volatile long nextPollAt;
+    private volatile boolean inFlight;
+    private volatile boolean learnt;
+    private volatile String projectKey;
+    private WsClient client;
+
+    private Task(String taskId, Supplier<WsClient> clientSupplier, long registeredAt, long nextPollAt, boolean resumed) {
+      this.taskId = taskId;
+      this.clientSupplier = clientSupplier;
+      this.registeredAt = registeredAt;
+      this.nextPollAt = nextPollAt;
+      this.resumed = resumed;
+    }
+
+    private synchronized WsClient getClient() {
+      if (client == null) {
+        client = clientSupplier.get();
+      }
+      return client;
+    }
+  }
+
+  private static final class Ewma {
+    private double value = -1;
+
+    private synchronized void add(long sample) {
+      value = value < 0 ? sample : EWMA_WEIGHT * sample + (1 - EWMA_WEIGHT) * value;
+    }
+
+    private synchronized long get() {
+      return (long) value;
+    }
+  }
+}
@@ -0,0 +1,225 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.jenkins.pipeline;
+
+import com.google.common.annotations.VisibleForTesting;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.Timer;
+
+/**
+ * Schedules many coarse-grained timeouts, such as the ones of the steps waiting for a quality gate, with a single
+ * periodic task. Timeouts are hashed by deadline into the buckets of a wheel turning by one bucket per tick, so that
+ * scheduling and cancelling are done in constant time whatever the number of pending timeouts.
+ * <p>
+ * Timeouts run on the timer of Jenkins, up to one tick after their deadline, and should therefore be quick.
+ *
+ * @since 2.16
+ */
+public class HashedTimerWheel {
+  private static final Logger LOGGER = Logger.getLogger(HashedTimerWheel.class.getName());
+  private static final String PREFIX = HashedTimerWheel.class.getName();
+  private static final long DEFAULT_TICK_MILLIS = Long.getLong(PREFIX + ".tickMillis", 1000L);
+  private static final int DEFAULT_WHEEL_SIZE = 512;
+
+  private static final HashedTimerWheel INSTANCE = new HashedTimerWheel(Timer::get, System::currentTimeMillis, DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE);
+
+  private final Supplier<ScheduledExecutorService> scheduler;
+  private final LongSupplier clock;
+  private final long tickMillis;
+  private final Bucket[] wheel;
+  private final int mask;
+  private final long startTime;
+  private long nextTick = 1;
+  private int pending;
+  private ScheduledFuture<?> ticker;
+
+  /**
+   * @param wheelSize number of buckets, rounded up to a power of two
+   */
+  @VisibleForTesting
+  HashedTimerWheel(Supplier<ScheduledExecutorService> scheduler, LongSupplier clock, long tickMillis, int wheelSize) {
+    this.scheduler = scheduler;
+    this.clock = clock;
+    this.tickMillis = tickMillis;
+    int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+    this.wheel = new Bucket[size];
+    for (int i = 0; i < size; i++) {
+      wheel[i] = new Bucket();
+    }
+    this.mask = size - 1;
+    this.startTime = clock.getAsLong();
+  }
+
+  public static HashedTimerWheel get() {
+    return INSTANCE;
+  }
+
+  /**
+   * @return a handle to cancel the task, which is run once the delay elapsed otherwise
+   */
+  public Timeout schedule(long delay, TimeUnit unit, Runnable task) {
+    long deadline = clock.getAsLong() + unit.toMillis(Math.max(0, delay));
+    Timeout timeout = new Timeout(this, task);
+    synchronized (this) {
+      // ticks are numbered from 1, tick n expiring the deadlines up to startTime + n * tickMillis
+      long tick = Math.max(nextTick, ceilDiv(deadline - startTime, tickMillis));
+      timeout.remainingRounds = (tick - nextTick) / wheel.length;
+      wheel[(int) (tick & mask)].add(timeout);
+      pending++;
+    }
+    startTicking();
+    return timeout;
+  }
+
+  private synchronized void startTicking() {
+    // the ticker is cancelled when the timer of Jenkins shuts down
+    if (ticker == null || ticker.isDone()) {
+      ScheduledExecutorService executor = scheduler.get();
+      if (executor != null) {
+        ticker = executor.scheduleWithFixedDelay(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+      }
+    }
+  }
+
+  private void tick() {
+    try {
+      advance();
+    } catch (RuntimeException e) {
+      LOGGER.log(Level.WARNING, "Unable to run the expired timeouts", e);
+    }
+  }
+
+  /**
+   * Turns the wheel up to now and runs the expired timeouts.
+   */
+  @VisibleForTesting
+  void advance() {
+    long now = clock.getAsLong();
+    List<Timeout> expired = new ArrayList<>();
+    synchronized (this) {
+      while (startTime + nextTick * tickMillis <= now) {
+        wheel[(int) (nextTick & mask)].expire(expired);
+        nextTick++;
+      }
+      pending -= expired.size();
+    }
+    for (Timeout timeout : expired) {
+      try {
+        timeout.task.run();
+      } catch (RuntimeException e) {
+        LOGGER.log(Level.WARNING, "Timeout failed", e);
+      }
+    }
+  }
+
+  private synchronized boolean cancel(Timeout timeout) {
+    if (timeout.bucket == null) {
+      return false;
+    }
+    timeout.bucket.remove(timeout);
+    pending--;
+    return true;
+  }
+
+  /**
+   * @return number of timeouts neither expired nor cancelled
+   */
+  public synchronized int getPendingCount() {
+    return pending;
+  }
+
+  private static long ceilDiv(long x, long y) {
+    return -Math.floorDiv(-x, y);
+  }
+
+  public static final class Timeout {
+    private final HashedTimerWheel wheel;
+    private final Runnable task;
+    // guarded by the wheel
+    private long remainingRounds;
+    private Bucket bucket;
+    private Timeout previous;
+    private Timeout next;
+
+    private Timeout(HashedTimerWheel wheel, Runnable task) {
+      this.wheel = wheel;
+      this.task = task;
+    }
+
+    /**
+     * @return false if the timeout already expired or was cancelled
+     */
+    public boolean cancel() {
+      return wheel.cancel(this);
+    }
+  }
+
+  /**
+   * Doubly-linked list of timeouts, so that a cancelled timeout is unlinked in constant time.
+   */
+  private static final class Bucket {
+    private Timeout head;
+
+    private void add(Timeout timeout) {
+      timeout.bucket = this;
+      timeout.next = head;
+      if (head != null) {
+        head.previous = timeout;
+      }
+      head = timeout;
+    }
+
+    private void remove(Timeout timeout) {
+      if (timeout.previous != null) {
+        timeout.previous.next = timeout.next;
+      } else {
+        head = timeout.next;
+      }
+      if (timeout.next != null) {
+        timeout.next.previous = timeout.previous;
+      }
+      timeout.bucket = null;
+      timeout.previous = null;
+      timeout.next = null;
+    }
+
+    private void expire(List<Timeout> expired) {
+      Timeout timeout = head;
+      while (timeout != null) {
+        Timeout next = timeout.next;
+        if (timeout.remainingRounds <= 0) {
+          remove(timeout);
+          expired.add(timeout);
+        } else {
+          timeout.remainingRounds--;
+        }
+        timeout = next;
+      }
+    }
+  }
+}
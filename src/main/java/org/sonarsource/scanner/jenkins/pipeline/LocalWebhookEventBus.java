@@ -0,0 +1,36 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.jenkins.pipeline;
+
+import hudson.Extension;
+import org.sonarsource.scanner.jenkins.pipeline.SonarQubeWebHook.WebhookEvent;
+
+/**
+ * Delivers the webhooks to the steps of the controller which received them.
+ *
+ * @since 2.16
+ */
+@Extension(ordinal = -100)
+public class LocalWebhookEventBus extends WebhookEventBus {
+  @Override
+  public void publish(WebhookEvent event) {
+    deliver(event);
+  }
+}
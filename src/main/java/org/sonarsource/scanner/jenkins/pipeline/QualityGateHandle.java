@@ -0,0 +1,162 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.jenkins.pipeline;
+
+import com.google.common.annotations.VisibleForTesting;
+import hudson.Extension;
+import hudson.model.Run;
+import hudson.model.listeners.RunListener;
+import hudson.plugins.sonar.SonarInstallation;
+import hudson.plugins.sonar.client.HttpClientRegistry;
+import hudson.plugins.sonar.client.WsClient;
+import hudson.plugins.sonar.utils.SonarUtils;
+import java.io.Serializable;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import org.jenkinsci.plugins.scriptsecurity.sandbox.whitelists.Whitelisted;
+import org.sonarsource.scanner.jenkins.pipeline.SonarQubeWebHook.WebhookEvent;
+
+/**
+ * A SonarQube task awaited in the background while the pipeline goes on, to be passed later to
+ * {@code waitForQualityGate}. The outcome of the task is kept on the controller as soon as it is known, from its webhook
+ * or from the {@link CeTaskPoller}, so that awaiting a completed handle doesn't call SonarQube.
+ *
+ * @since 2.16
+ */
+public final class QualityGateHandle implements Serializable {
+  private static final long serialVersionUID = 1L;
+  // by build, so that the tracking of tasks still running ends with the build
+  private static final Map<String, Set<Tracking>> TRACKINGS = new ConcurrentHashMap<>();
+
+  private final String taskId;
+  private final String serverUrl;
+  private final String installationName;
+  private final String credentialsId;
+
+  QualityGateHandle(String taskId, String serverUrl, String installationName, @Nullable String credentialsId) {
+    this.taskId = taskId;
+    this.serverUrl = serverUrl;
+    this.installationName = installationName;
+    this.credentialsId = credentialsId;
+  }
+
+  @Whitelisted
+  public String getTaskId() {
+    return taskId;
+  }
+
+  String getServerUrl() {
+    return serverUrl;
+  }
+
+  String getInstallationName() {
+    return installationName;
+  }
+
+  @CheckForNull
+  String getCredentialsId() {
+    return credentialsId;
+  }
+
+  /**
+   * @return whether the task is known to be finished, without calling SonarQube
+   */
+  @Whitelisted
+  public boolean isCompleted() {
+    return QualityGateResults.get().getFinished(taskId) != null;
+  }
+
+  /**
+   * Has the outcome of the task kept in {@link QualityGateResults} once it is known, by polling SonarQube until its
+   * webhook arrives. The tracking ends when the build is finalized, and doesn't survive a restart of the controller: the
+   * handle is then awaited like any other task.
+   */
+  void track(Run<?, ?> run) {
+    Tracking tracking = new Tracking(run.getExternalizableId());
+    TRACKINGS.computeIfAbsent(tracking.runId, id -> ConcurrentHashMap.newKeySet()).add(tracking);
+    SonarQubeWebHook.get().addListener(taskId, tracking);
+    CeTaskPoller.get().register(serverUrl, taskId, () -> getWsClient(run), tracking);
+  }
+
+  @VisibleForTesting
+  static int getTracked() {
+    return TRACKINGS.values().stream().mapToInt(Set::size).sum();
+  }
+
+  private final class Tracking implements CeTaskPoller.Listener {
+    private final String runId;
+
+    private Tracking(String runId) {
+      this.runId = runId;
+    }
+
+    @Override
+    public void accept(WebhookEvent event) {
+      if (QualityGateResults.isFinished(event.getPayload().getTaskStatus())) {
+        release();
+      }
+    }
+
+    @Override
+    public void onPollingFailed(String taskId, Throwable cause) {
+      // awaiting the handle reports the failure
+      release();
+    }
+
+    private void release() {
+      SonarQubeWebHook.get().removeListener(taskId, this);
+      CeTaskPoller.get().unregister(serverUrl, taskId, this);
+      TRACKINGS.computeIfPresent(runId, (id, trackings) -> {
+        trackings.remove(this);
+        return trackings.isEmpty() ? null : trackings;
+      });
+    }
+  }
+
+  /**
+   * Stops tracking the tasks of a build once it is over, as nothing can await their handles anymore.
+   */
+  @Extension
+  public static final class ReleaseOnFinalized extends RunListener<Run<?, ?>> {
+    @Override
+    public void onFinalized(Run<?, ?> run) {
+      Set<Tracking> trackings = TRACKINGS.get(run.getExternalizableId());
+      if (trackings != null) {
+        trackings.forEach(Tracking::release);
+      }
+    }
+  }
+
+  private WsClient getWsClient(Run<?, ?> run) {
+    SonarInstallation installation = SonarInstallation.get(installationName);
+    if (installation == null) {
+      throw new IllegalStateException("Invalid installation name: " + installationName);
+    }
+    return HttpClientRegistry.get().getWsClient(installation, serverUrl, SonarUtils.getAuthenticationToken(run, installation, credentialsId));
+  }
+
+  @Override
+  public String toString() {
+    return "SonarQube task " + taskId;
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.jenkins.pipeline;
+
+import com.google.common.collect.ImmutableSet;
+import hudson.Extension;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.plugins.sonar.action.SonarAnalysisAction;
+import java.io.Serializable;
+import java.util.List;
+import java.util.Set;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Returns a {@link QualityGateHandle} on the last analysis of the build, for the pipeline to carry on while SonarQube
+ * processes it.
+ *
+ * @since 2.16
+ */
+public class QualityGateHandleStep extends Step implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  @DataBoundConstructor
+  public QualityGateHandleStep() {
+    super();
+  }
+
+  @Override
+  public StepExecution start(StepContext context) throws Exception {
+    return new Execution(context);
+  }
+
+  private static class Execution extends StepExecution {
+    private static final long serialVersionUID = 1L;
+
+    Execution(StepContext context) {
+      super(context);
+    }
+
+    @Override
+    public boolean start() throws Exception {
+      Run<?, ?> run = getContext().get(Run.class);
+      List<SonarAnalysisAction> actions = run.getActions(SonarAnalysisAction.class);
+      // consider the last analysis first
+      for (int i = actions.size() - 1; i >= 0; i--) {
+        SonarAnalysisAction a = actions.get(i);
+        if (a.getCeTaskId() != null && a.getInstallationUrl() != null && a.getInstallationName() != null) {
+          QualityGateHandle handle = new QualityGateHandle(a.getCeTaskId(), a.getInstallationUrl(), a.getInstallationName(), a.getCredentialsId());
+          handle.track(run);
+          getContext().get(TaskListener.class).getLogger().println("Awaiting SonarQube task '" + handle.getTaskId() + "' in the background");
+          getContext().onSuccess(handle);
+          return true;
+        }
+      }
+      throw new IllegalStateException(
+        "No previous SonarQube analysis found on this pipeline execution. Please use the 'withSonarQubeEnv' wrapper to run your analysis.");
+    }
+  }
+
+  /**
+   * Optional: don't log error when pipeline dependencies are not installed
+   */
+  @Extension(optional = true)
+  public static final class DescriptorImpl extends StepDescriptor {
+
+    @Override
+    public String getDisplayName() {
+      return "Return a handle on the quality gate of the last SonarQube analysis, to be awaited later";
+    }
+
+    @Override
+    public String getFunctionName() {
+      return "qualityGateHandle";
+    }
+
+    @Override
+    public Set<Class<?>> getRequiredContext() {
+      return ImmutableSet.of(Run.class, TaskListener.class);
+    }
+  }
+}
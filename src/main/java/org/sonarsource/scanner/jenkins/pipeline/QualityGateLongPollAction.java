@@ -0,0 +1,273 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.jenkins.pipeline;
+
+import com.google.common.annotations.VisibleForTesting;
+import hudson.Extension;
+import hudson.model.Job;
+import hudson.model.RootAction;
+import hudson.model.Run;
+import hudson.plugins.sonar.SonarInstallation;
+import hudson.plugins.sonar.action.SonarAnalysisAction;
+import hudson.plugins.sonar.client.HttpClientRegistry;
+import hudson.plugins.sonar.utils.CredentialsCache;
+import hudson.plugins.sonar.utils.SonarUtils;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletResponse;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
+import org.apache.commons.lang.StringUtils;
+import org.jenkinsci.plugins.plaincredentials.StringCredentials;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.sonarsource.scanner.jenkins.pipeline.SonarQubeWebHook.Payload;
+import org.sonarsource.scanner.jenkins.pipeline.SonarQubeWebHook.WebhookEvent;
+
+/**
+ * Lets external tools wait for the quality gate of a build, or of a SonarQube task, with one long-polling request
+ * rather than polling the build. Waiting requests are parked with asynchronous servlet processing, they don't hold a
+ * thread.
+ * <ul>
+ *   <li>{@code GET /sonarqube-quality-gate/build?job=<full name>&number=<build number>&timeout=<seconds>}</li>
+ *   <li>{@code GET /sonarqube-quality-gate/task?id=<task id>&timeout=<seconds>}</li>
+ * </ul>
+ * Both answer 200 with the outcome of the task as soon as it is known, or 204 once the timeout is elapsed. Webhooks failing
+ * the verification of a configured secret are answered with 403, as they fail the pipeline steps. Builds require the
+ * permission to read their job, while tasks, which can be of any job, require the permission to administer Jenkins.
+ *
+ * @since 2.16
+ */
+@Extension
+public class QualityGateLongPollAction implements RootAction {
+  private static final Logger LOGGER = Logger.getLogger(QualityGateLongPollAction.class.getName());
+  public static final String URLNAME = "sonarqube-quality-gate";
+
+  private static final long DEFAULT_TIMEOUT_SECONDS = Long.getLong(QualityGateLongPollAction.class.getName() + ".defaultTimeoutSeconds", 60L);
+  private static final long MAX_TIMEOUT_SECONDS = Long.getLong(QualityGateLongPollAction.class.getName() + ".maxTimeoutSeconds", 300L);
+  private static final int MAX_WAITING = Integer.getInteger(QualityGateLongPollAction.class.getName() + ".maxWaiting", 1000);
+
+  @Override
+  public String getIconFileName() {
+    return null;
+  }
+
+  @Override
+  public String getDisplayName() {
+    return null;
+  }
+
+  @Override
+  public String getUrlName() {
+    return URLNAME;
+  }
+
+  public void doBuild(StaplerRequest req, StaplerResponse rsp, @QueryParameter String job, @QueryParameter String number,
+    @QueryParameter String timeout) throws IOException {
+    Job<?, ?> item = Jenkins.get().getItemByFullName(StringUtils.defaultString(job), Job.class);
+    Run<?, ?> run = item != null && StringUtils.isNumeric(number) && !number.isEmpty() ? item.getBuildByNumber(Integer.parseInt(number)) : null;
+    if (run == null) {
+      rsp.sendError(HttpServletResponse.SC_NOT_FOUND, "No such build");
+      return;
+    }
+    SonarAnalysisAction analysis = lastAnalysis(run);
+    if (analysis == null) {
+      rsp.sendError(HttpServletResponse.SC_NOT_FOUND, "No SonarQube analysis in this build");
+      return;
+    }
+    SonarInstallation installation = SonarInstallation.get(analysis.getInstallationName());
+    String taskId = analysis.getCeTaskId();
+    String serverUrl = analysis.getInstallationUrl();
+    // builds may be long gone when asked, don't rely on their webhook only
+    CeTaskPoller.Listener listener = new CeTaskPoller.Listener() {
+      @Override
+      public void accept(WebhookEvent event) {
+        // the outcome is handed over by QualityGateResults
+      }
+
+      @Override
+      public void onPollingFailed(String taskId, Throwable cause) {
+        // the request still gets the webhook, or times out
+      }
+    };
+    if (installation != null && QualityGateResults.get().getFinished(taskId) == null) {
+      CeTaskPoller.get().resume(serverUrl, taskId, () -> HttpClientRegistry.get().getWsClient(installation, serverUrl,
+        SonarUtils.getAuthenticationToken(run, installation, analysis.getCredentialsId())), listener, run.getStartTimeInMillis());
+    }
+    List<SonarInstallation> installations = installation != null ? Collections.singletonList(installation) : Collections.emptyList();
+    await(req, rsp, taskId, timeout, run, installations, () -> CeTaskPoller.get().unregister(serverUrl, taskId, listener));
+  }
+
+  public void doTask(StaplerRequest req, StaplerResponse rsp, @QueryParameter String id, @QueryParameter String timeout) throws IOException {
+    // the task may belong to any job, of which nothing tells the permissions
+    Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+    if (StringUtils.isEmpty(id)) {
+      rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Missing task id");
+      return;
+    }
+    await(req, rsp, id, timeout, null, Arrays.asList(SonarInstallation.all()), () -> {
+    });
+  }
+
+  @CheckForNull
+  private static SonarAnalysisAction lastAnalysis(Run<?, ?> run) {
+    List<SonarAnalysisAction> actions = run.getActions(SonarAnalysisAction.class);
+    for (int i = actions.size() - 1; i >= 0; i--) {
+      SonarAnalysisAction a = actions.get(i);
+      if (a.getCeTaskId() != null && a.getInstallationUrl() != null) {
+        return a;
+      }
+    }
+    return null;
+  }
+
+  private static void await(StaplerRequest req, StaplerResponse rsp, String taskId, @Nullable String timeoutParam, @Nullable Run<?, ?> run,
+    Collection<SonarInstallation> installations, Runnable onDone) throws IOException {
+    CompletableFuture<WebhookEvent> result = QualityGateResults.get().await(taskId);
+    result.whenComplete((event, e) -> onDone.run());
+    if (result.isDone()) {
+      respond(rsp, result.getNow(null), run, installations);
+      return;
+    }
+    if (QualityGateResults.get().getWaiting() > MAX_WAITING) {
+      result.cancel(false);
+      rsp.setHeader("Retry-After", "5");
+      rsp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many waiting requests");
+      return;
+    }
+    long timeoutMillis = TimeUnit.SECONDS.toMillis(timeoutSeconds(timeoutParam));
+    if (!req.isAsyncSupported()) {
+      try {
+        respond(rsp, result.get(timeoutMillis, TimeUnit.MILLISECONDS), run, installations);
+      } catch (TimeoutException | ExecutionException e) {
+        result.cancel(false);
+        respond(rsp, null, run, installations);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        result.cancel(false);
+      }
+      return;
+    }
+    AsyncContext async = req.startAsync();
+    // timed out by the wheel rather than by the container, to tell the outcome apart from the timeout
+    async.setTimeout(0);
+    HashedTimerWheel.Timeout timeout = HashedTimerWheel.get().schedule(timeoutMillis, TimeUnit.MILLISECONDS, () -> result.cancel(false));
+    result.whenComplete((event, e) -> {
+      timeout.cancel();
+      // completed by the thread recording the outcome or by the timer wheel, which must not look up credentials nor write
+      async.start(() -> {
+        HttpServletResponse response = (HttpServletResponse) async.getResponse();
+        try {
+          respond(response, event, run, installations);
+        } catch (IOException | RuntimeException ex) {
+          LOGGER.log(Level.WARNING, "Unable to answer a request waiting for the SonarQube task " + taskId, ex);
+          sendServerError(response);
+        } finally {
+          async.complete();
+        }
+      });
+    });
+  }
+
+  private static void sendServerError(HttpServletResponse rsp) {
+    if (rsp.isCommitted()) {
+      return;
+    }
+    try {
+      rsp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+    } catch (IOException | IllegalStateException e) {
+      LOGGER.log(Level.FINE, "Unable to report the error", e);
+    }
+  }
+
+  private static boolean isTrusted(WebhookEvent event, @Nullable Run<?, ?> run, Collection<SonarInstallation> installations) {
+    if (event.isPolled()) {
+      return true;
+    }
+    boolean secretConfigured = false;
+    for (SonarInstallation installation : installations) {
+      String secretId = installation.getWebhookSecretId();
+      if (StringUtils.isEmpty(secretId)) {
+        continue;
+      }
+      secretConfigured = true;
+      // tasks have no run, only the global secrets are then found
+      StringCredentials secret = CredentialsCache.find(secretId, run);
+      if (secret != null && event.isSignedWith(secret.getSecret().getPlainText())) {
+        return true;
+      }
+    }
+    return !secretConfigured;
+  }
+
+  @VisibleForTesting
+  static long timeoutSeconds(@Nullable String param) {
+    if (StringUtils.isEmpty(param) || !StringUtils.isNumeric(param)) {
+      return DEFAULT_TIMEOUT_SECONDS;
+    }
+    try {
+      return Math.min(Long.parseLong(param), MAX_TIMEOUT_SECONDS);
+    } catch (NumberFormatException e) {
+      return MAX_TIMEOUT_SECONDS;
+    }
+  }
+
+  private static void respond(HttpServletResponse rsp, @Nullable WebhookEvent event, @Nullable Run<?, ?> run, Collection<SonarInstallation> installations)
+    throws IOException {
+    if (event == null) {
+      rsp.setStatus(HttpServletResponse.SC_NO_CONTENT);
+      return;
+    }
+    if (!isTrusted(event, run, installations)) {
+      // as the pipeline steps do
+      rsp.sendError(HttpServletResponse.SC_FORBIDDEN, "The webhook of SonarQube task " + event.getPayload().getTaskId() + " failed verification");
+      return;
+    }
+    rsp.setContentType("application/json;charset=UTF-8");
+    rsp.getWriter().print(toJson(event.getPayload()).toString());
+  }
+
+  @VisibleForTesting
+  static JSONObject toJson(Payload payload) {
+    JSONObject json = new JSONObject();
+    json.put("taskId", payload.getTaskId());
+    json.put("taskStatus", payload.getTaskStatus());
+    if (payload.getProjectKey() != null) {
+      json.put("projectKey", payload.getProjectKey());
+    }
+    if (payload.getQualityGateStatus() != null) {
+      json.put("qualityGateStatus", payload.getQualityGateStatus());
+    }
+    return json;
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.jenkins.pipeline;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.common.annotations.VisibleForTesting;
+import hudson.plugins.sonar.client.WsClient.CETask;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import javax.annotation.CheckForNull;
+import org.sonarsource.scanner.jenkins.pipeline.SonarQubeWebHook.WebhookEvent;
+
+/**
+ * The outcome of the finished SonarQube tasks, as reported by their webhook or found by the {@link CeTaskPoller}, and
+ * whoever waits for it. Outcomes older than the cache are looked up in the webhook journal.
+ *
+ * @since 2.16
+ */
+public class QualityGateResults {
+  private static final QualityGateResults INSTANCE = new QualityGateResults(
+    Integer.getInteger(QualityGateResults.class.getName() + ".cacheSize", 1000),
+    Long.getLong(QualityGateResults.class.getName() + ".retentionHours", 24L),
+    taskId -> SonarQubeWebHook.get().getWebhookEventForTaskId(taskId));
+
+  private final Cache<String, WebhookEvent> finished;
+  private final Map<String, Set<CompletableFuture<WebhookEvent>>> waiters = new ConcurrentHashMap<>();
+  private final AtomicInteger waiting = new AtomicInteger();
+  private final Function<String, WebhookEvent> journal;
+
+  @VisibleForTesting
+  QualityGateResults(int cacheSize, long retentionHours, Function<String, WebhookEvent> journal) {
+    this.finished = Caffeine.newBuilder()
+      .maximumSize(cacheSize)
+      .expireAfterWrite(retentionHours, TimeUnit.HOURS)
+      .build();
+    this.journal = journal;
+  }
+
+  public static QualityGateResults get() {
+    return INSTANCE;
+  }
+
+  /**
+   * Keeps the outcome of a task and completes whoever waits for it. Events of tasks still running are ignored.
+   */
+  void record(WebhookEvent event) {
+    if (!isFinished(event.getPayload().getTaskStatus())) {
+      return;
+    }
+    String taskId = event.getPayload().getTaskId();
+    finished.put(taskId, event);
+    Set<CompletableFuture<WebhookEvent>> futures = waiters.remove(taskId);
+    if (futures != null) {
+      futures.forEach(f -> f.complete(event));
+    }
+  }
+
+  /**
+   * @return the outcome of the task if it is finished, without calling SonarQube
+   */
+  @CheckForNull
+  WebhookEvent getFinished(String taskId) {
+    WebhookEvent event = finished.getIfPresent(taskId);
+    if (event == null) {
+      event = journal.apply(taskId);
+    }
+    return event != null && isFinished(event.getPayload().getTaskStatus()) ? event : null;
+  }
+
+  /**
+   * @return completes with the outcome of the task, right away if it is already known. Cancelling it stops waiting.
+   */
+  CompletableFuture<WebhookEvent> await(String taskId) {
+    WebhookEvent known = getFinished(taskId);
+    if (known != null) {
+      return CompletableFuture.completedFuture(known);
+    }
+    CompletableFuture<WebhookEvent> future = new CompletableFuture<>();
+    waiting.incrementAndGet();
+    waiters.compute(taskId, (id, futures) -> {
+      Set<CompletableFuture<WebhookEvent>> set = futures != null ? futures : ConcurrentHashMap.newKeySet();
+      set.add(future);
+      return set;
+    });
+    future.whenComplete((event, e) -> {
+      waiting.decrementAndGet();
+      waiters.computeIfPresent(taskId, (id, futures) -> {
+        futures.remove(future);
+        return futures.isEmpty() ? null : futures;
+      });
+    });
+    // recorded while registering
+    known = finished.getIfPresent(taskId);
+    if (known != null) {
+      future.complete(known);
+    }
+    return future;
+  }
+
+  public int getWaiting() {
+    return waiting.get();
+  }
+
+  @VisibleForTesting
+  void clear() {
+    finished.invalidateAll();
+  }
+
+  static boolean isFinished(String taskStatus) {
+    return CETask.STATUS_SUCCESS.equals(taskStatus) || CETask.STATUS_FAILURE.equals(taskStatus) || CETask.STATUS_CANCELED.equals(taskStatus);
+  }
+}
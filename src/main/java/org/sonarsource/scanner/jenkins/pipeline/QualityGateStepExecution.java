@@ -0,0 +1,247 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.jenkins.pipeline;
+
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.google.common.annotations.VisibleForTesting;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.plugins.sonar.SonarInstallation;
+import hudson.plugins.sonar.client.HttpClientRegistry;
+import hudson.plugins.sonar.client.QualityGateCondition;
+import hudson.plugins.sonar.client.WsClient;
+import hudson.plugins.sonar.utils.CredentialsCache;
+import hudson.plugins.sonar.utils.SonarUtils;
+import java.io.IOException;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import org.apache.commons.lang.StringUtils;
+import org.jenkinsci.plugins.plaincredentials.StringCredentials;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.jenkinsci.plugins.workflow.support.actions.PauseAction;
+import org.sonarsource.scanner.jenkins.pipeline.SonarQubeWebHook.WebhookEvent;
+
+/**
+ * What the steps waiting for quality gates share: their context, the clients of their installations, the verification
+ * of webhooks, the timeout and the completion, which happens once whichever of the HTTP callbacks, the webhooks, the
+ * poller or the timeout comes first.
+ *
+ * @since 2.16
+ */
+abstract class QualityGateStepExecution extends StepExecution implements CeTaskPoller.Listener {
+  private static final long serialVersionUID = 1L;
+
+  private static final Logger LOGGER = Logger.getLogger(QualityGateStepExecution.class.getName());
+
+  private long startedAt;
+  private long deadline;
+  private transient volatile boolean completed;
+  private transient HashedTimerWheel.Timeout timeout;
+
+  QualityGateStepExecution(StepContext context) {
+    super(context);
+  }
+
+  /**
+   * Records the start of the step, and fails it with {@link #onTimeout()} after the given time, if positive.
+   */
+  void startTimeout(long time, TimeUnit unit) {
+    startedAt = System.currentTimeMillis();
+    if (time > 0) {
+      deadline = startedAt + unit.toMillis(time);
+      scheduleTimeout();
+    }
+  }
+
+  /**
+   * Schedules again the timeout of a step resumed after a restart.
+   */
+  void resumeTimeout() {
+    if (deadline > 0) {
+      scheduleTimeout();
+    }
+  }
+
+  private void scheduleTimeout() {
+    timeout = HashedTimerWheel.get().schedule(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS, this::onTimeout);
+  }
+
+  abstract void onTimeout();
+
+  long getStartedAt() {
+    return startedAt;
+  }
+
+  boolean isCompleted() {
+    return completed;
+  }
+
+  /**
+   * @return whether the step was not completed yet, in which case the caller completes it
+   */
+  synchronized boolean markCompleted() {
+    if (completed) {
+      return false;
+    }
+    completed = true;
+    return true;
+  }
+
+  /**
+   * Cancels the timeout and ends the pause of the step, once completed.
+   */
+  void cleanUp() {
+    if (timeout != null) {
+      timeout.cancel();
+    }
+    try {
+      FlowNode node = getContext().get(FlowNode.class);
+      if (node != null) {
+        PauseAction.endCurrentPause(node);
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Unable to end the pause of the step", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  WsClient getWsClient(String installationName, String serverUrl, @Nullable String credentialsId) {
+    SonarInstallation installation = Optional.ofNullable(SonarInstallation.get(installationName))
+      .orElseThrow(() -> new IllegalStateException("Invalid installation name: " + installationName));
+    return HttpClientRegistry.get().getWsClient(installation, serverUrl,
+      SonarUtils.getAuthenticationToken(getContextClass(Run.class), installation, credentialsId));
+  }
+
+  /**
+   * @return the webhook secret, tracked as used by the build
+   */
+  @CheckForNull
+  StringCredentials findWebhookSecret(String webhookSecretId) {
+    Run<?, ?> run = getContextClass(Run.class);
+    StringCredentials webhookSecret = CredentialsCache.find(webhookSecretId, run);
+    CredentialsProvider.track(run, webhookSecret);
+    return webhookSecret;
+  }
+
+  /**
+   * @return whether the event was polled with the credentials of the step, or is signed with the webhook secret, if any
+   */
+  boolean isTrusted(WebhookEvent event, @Nullable String webhookSecretId) {
+    if (event.isPolled() || StringUtils.isEmpty(webhookSecretId)) {
+      return true;
+    }
+    StringCredentials webhookSecret = findWebhookSecret(webhookSecretId);
+    return webhookSecret != null && event.isSignedWith(webhookSecret.getSecret().getPlainText());
+  }
+
+  /**
+   * Hands the conditions of the quality gate to the action, fetching them from SonarQube when the webhook didn't have
+   * them, so that the step completes with them. The action gets null if they can't be fetched.
+   */
+  void withConditions(String taskId, @Nullable List<QualityGateCondition> conditions, @Nullable String analysisId, Supplier<WsClient> client,
+    Consumer<List<QualityGateCondition>> action) {
+    if (conditions != null) {
+      action.accept(conditions);
+      return;
+    }
+    fetchConditions(client, taskId, analysisId).whenComplete((fetched, e) -> {
+      if (e != null) {
+        log("Unable to fetch the conditions of the quality gate of SonarQube task '%s': %s", taskId, unwrap(e).getMessage());
+      }
+      action.accept(fetched);
+    });
+  }
+
+  @VisibleForTesting
+  static CompletableFuture<List<QualityGateCondition>> fetchConditions(Supplier<WsClient> clientSupplier, String taskId, @Nullable String analysisId) {
+    WsClient client;
+    try {
+      client = clientSupplier.get();
+    } catch (RuntimeException e) {
+      CompletableFuture<List<QualityGateCondition>> failed = new CompletableFuture<>();
+      failed.completeExceptionally(e);
+      return failed;
+    }
+    CompletableFuture<String> analysis = analysisId != null
+      ? CompletableFuture.completedFuture(analysisId)
+      : client.getCETaskAsync(taskId).thenApply(WsClient.CETask::getAnalysisId);
+    return analysis.thenCompose(id -> {
+      if (id == null) {
+        throw new IllegalStateException("No analysis found for SonarQube task '" + taskId + "'");
+      }
+      return client.getProjectStatusAsync(id);
+    }).thenApply(WsClient.ProjectStatus::getConditions);
+  }
+
+  /**
+   * @return the task as its webhook would report it, with the quality gate once the task succeeded
+   */
+  static CompletableFuture<WebhookEvent> fetchEvent(WsClient client, String taskId) {
+    return client.getCETaskAsync(taskId)
+      .thenCompose(ceTask -> {
+        if (WsClient.CETask.STATUS_SUCCESS.equals(ceTask.getStatus())) {
+          return client.getProjectStatusAsync(ceTask.getAnalysisId())
+            .thenApply(status -> WebhookEvent.polled(taskId, ceTask.getStatus(), status.getStatus(), ceTask.getAnalysisId(),
+              ceTask.getComponentKey(), status.getConditions()));
+        }
+        return CompletableFuture.completedFuture(WebhookEvent.polled(taskId, ceTask.getStatus(), null, null, ceTask.getComponentKey(), null));
+      });
+  }
+
+  static boolean isPending(String taskStatus) {
+    return !WsClient.CETask.STATUS_SUCCESS.equals(taskStatus) && !WsClient.CETask.STATUS_FAILURE.equals(taskStatus)
+      && !WsClient.CETask.STATUS_CANCELED.equals(taskStatus);
+  }
+
+  static Throwable unwrap(Throwable e) {
+    return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+  }
+
+  void log(String msg, Object... args) {
+    getContextClass(TaskListener.class).getLogger().printf(msg, args);
+    getContextClass(TaskListener.class).getLogger().println();
+  }
+
+  <T> T getContextClass(Class<T> contextClass) {
+    try {
+      return Optional.ofNullable(getContext().get(contextClass))
+        .orElseThrow(() -> new IllegalStateException(String.format("Could not get %s from the Jenkins context", contextClass.getName())));
+    } catch (IOException | IllegalStateException e) {
+      getContext().onFailure(e);
+      throw new IllegalStateException(e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      getContext().onFailure(e);
+      throw new IllegalStateException(e);
+    }
+  }
+}
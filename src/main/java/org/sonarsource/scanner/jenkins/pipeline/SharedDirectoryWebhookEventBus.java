@@ -0,0 +1,240 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.jenkins.pipeline;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.common.annotations.VisibleForTesting;
+import hudson.Extension;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import org.sonarsource.scanner.jenkins.pipeline.SonarQubeWebHook.WebhookEvent;
+
+/**
+ * Shares the webhooks between the controllers mounting a same directory, configured with the
+ * {@code org.sonarsource.scanner.jenkins.pipeline.SharedDirectoryWebhookEventBus.directory} system property.
+ * <p>
+ * Each event is written to a temporary file then atomically renamed, so that other controllers never read a partial
+ * event. Controllers are woken up by file watching when the file system supports it, and otherwise scan the directory
+ * periodically. Events are deleted by any controller once older than the retention period.
+ *
+ * @since 2.16
+ */
+@Extension
+public class SharedDirectoryWebhookEventBus extends WebhookEventBus {
+  private static final Logger LOGGER = Logger.getLogger(SharedDirectoryWebhookEventBus.class.getName());
+  private static final String PREFIX = SharedDirectoryWebhookEventBus.class.getName();
+  private static final String DEFAULT_DIRECTORY = System.getProperty(PREFIX + ".directory");
+  private static final long DEFAULT_POLL_SECONDS = Long.getLong(PREFIX + ".pollSeconds", 5L);
+  private static final long DEFAULT_RETENTION_MINUTES = Long.getLong(PREFIX + ".retentionMinutes", 10L);
+
+  private static final String EVENT_SUFFIX = ".event";
+  private static final String TEMP_SUFFIX = ".tmp";
+  private static final long UNKNOWN = -1L;
+
+  private final Path directory;
+  private final String controllerId;
+  private final long pollMillis;
+  private final long retentionMillis;
+  private final LongSupplier clock;
+  private final Cache<String, Boolean> seen;
+
+  private Thread watcherThread;
+  private WatchService watchService;
+
+  public SharedDirectoryWebhookEventBus() {
+    this(DEFAULT_DIRECTORY != null ? Paths.get(DEFAULT_DIRECTORY) : null, UUID.randomUUID().toString(), TimeUnit.SECONDS.toMillis(DEFAULT_POLL_SECONDS),
+      TimeUnit.MINUTES.toMillis(DEFAULT_RETENTION_MINUTES), System::currentTimeMillis);
+  }
+
+  @VisibleForTesting
+  SharedDirectoryWebhookEventBus(@Nullable Path directory, String controllerId, long pollMillis, long retentionMillis, LongSupplier clock) {
+    this.directory = directory;
+    this.controllerId = controllerId;
+    this.pollMillis = pollMillis;
+    this.retentionMillis = retentionMillis;
+    this.clock = clock;
+    // events are deleted once expired, the names of deleted events are forgotten a while later
+    this.seen = Caffeine.newBuilder()
+      .expireAfterWrite(2 * retentionMillis, TimeUnit.MILLISECONDS)
+      .build();
+  }
+
+  @Override
+  public boolean isActive() {
+    return directory != null;
+  }
+
+  @Override
+  public void publish(WebhookEvent event) {
+    // the steps of this controller don't wait for the file system
+    deliver(event);
+    String id = UUID.randomUUID().toString();
+    Path temp = directory.resolve("." + id + TEMP_SUFFIX);
+    try {
+      Files.createDirectories(directory);
+      Files.write(temp, serialize(event));
+      Files.move(temp, directory.resolve(clock.getAsLong() + "-" + controllerId + "-" + id + EVENT_SUFFIX), StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, e, () -> "Unable to share the webhook of task " + event.getPayload().getTaskId() + " in " + directory);
+      try {
+        Files.deleteIfExists(temp);
+      } catch (IOException ignored) {
+        // deleted once expired
+      }
+    }
+  }
+
+  @Override
+  protected synchronized void start() {
+    try {
+      Files.createDirectories(directory);
+      watchService = directory.getFileSystem().newWatchService();
+      directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE);
+    } catch (IOException | UnsupportedOperationException e) {
+      LOGGER.log(Level.FINE, e, () -> "Unable to watch " + directory + ", it will be scanned every " + pollMillis + " ms");
+      closeWatchService();
+    }
+    watcherThread = new NamingThreadFactory(new DaemonThreadFactory(), "SonarQube webhook event bus").newThread(this::watch);
+    watcherThread.start();
+  }
+
+  @Override
+  protected synchronized void stop() {
+    if (watcherThread != null) {
+      watcherThread.interrupt();
+      watcherThread = null;
+    }
+    closeWatchService();
+  }
+
+  private void closeWatchService() {
+    if (watchService != null) {
+      try {
+        watchService.close();
+      } catch (IOException e) {
+        LOGGER.log(Level.FINE, "Unable to stop watching " + directory, e);
+      }
+      watchService = null;
+    }
+  }
+
+  private void watch() {
+    WatchService watcher = watchService;
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        scan();
+        // notifications only wake up the scan, which also catches the events missed by the file system
+        WatchKey key = watcher != null ? watcher.poll(pollMillis, TimeUnit.MILLISECONDS) : sleep(pollMillis);
+        if (key != null) {
+          key.pollEvents();
+          key.reset();
+        }
+      }
+    } catch (InterruptedException | ClosedWatchServiceException e) {
+      // stopped
+    }
+  }
+
+  @CheckForNull
+  private static WatchKey sleep(long millis) throws InterruptedException {
+    Thread.sleep(millis);
+    return null;
+  }
+
+  /**
+   * Delivers the events published by the other controllers since the last scan, and deletes the expired ones.
+   */
+  @VisibleForTesting
+  void scan() {
+    long now = clock.getAsLong();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+      for (Path file : files) {
+        scanFile(file, now);
+      }
+    } catch (IOException | DirectoryIteratorException e) {
+      LOGGER.log(Level.WARNING, e, () -> "Unable to scan the webhooks shared in " + directory);
+    }
+  }
+
+  private void scanFile(Path file, long now) {
+    String name = file.getFileName().toString();
+    try {
+      if (name.endsWith(EVENT_SUFFIX)) {
+        scanEvent(file, name, now);
+      } else if (name.endsWith(TEMP_SUFFIX) && Files.getLastModifiedTime(file).toMillis() + retentionMillis < now) {
+        // left by a controller which stopped while publishing
+        Files.deleteIfExists(file);
+      }
+    } catch (NoSuchFileException e) {
+      // renamed by its publisher or deleted by another controller since it was listed
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, e, () -> "Unable to scan the webhook shared in " + file);
+    }
+  }
+
+  private void scanEvent(Path file, String name, long now) throws IOException {
+    long publishedAt = publishedAt(name);
+    if (publishedAt == UNKNOWN) {
+      // not written by this bus
+      return;
+    }
+    if (publishedAt + retentionMillis < now) {
+      Files.deleteIfExists(file);
+      return;
+    }
+    if (name.contains("-" + controllerId + "-") || seen.asMap().putIfAbsent(name, Boolean.TRUE) != null) {
+      return;
+    }
+    try {
+      deliver(deserialize(Files.readAllBytes(file)));
+    } catch (IOException | IllegalStateException e) {
+      LOGGER.log(Level.WARNING, e, () -> "Unable to read the webhook shared in " + file);
+    }
+  }
+
+  private static long publishedAt(String name) {
+    int end = name.indexOf('-');
+    try {
+      return end > 0 ? Long.parseLong(name.substring(0, end)) : UNKNOWN;
+    } catch (NumberFormatException e) {
+      return UNKNOWN;
+    }
+  }
+}
@@ -20,25 +20,39 @@
 package org.sonarsource.scanner.jenkins.pipeline;
 
 import com.google.common.annotations.VisibleForTesting;
-import com.github.benmanes.caffeine.cache.Cache;
-import com.github.benmanes.caffeine.cache.Caffeine;
 import hudson.Extension;
+import hudson.Util;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
 import hudson.model.RootAction;
 import hudson.model.UnprotectedRootAction;
+import hudson.plugins.sonar.client.QualityGateCondition;
+import hudson.plugins.sonar.client.StreamingJsonReader;
 import hudson.plugins.sonar.client.WsClient.CETask;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.annotation.CheckForNull;
 import javax.annotation.Nullable;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import jenkins.model.Jenkins;
-import net.sf.json.JSONException;
-import net.sf.json.JSONObject;
-import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 import org.kohsuke.stapler.interceptor.RequirePOST;
@@ -46,11 +60,44 @@ import org.kohsuke.stapler.interceptor.RequirePOST;
 @Extension
 public class SonarQubeWebHook implements UnprotectedRootAction {
   private static final Logger LOGGER = Logger.getLogger(SonarQubeWebHook.class.getName());
-  private final Cache<String, WebhookEvent> eventCache = Caffeine.newBuilder().expireAfterWrite(2, TimeUnit.HOURS).build();
+  private final WebhookJournal journal;
   public static final String URLNAME = "sonarqube-webhook";
 
+  private static final int SC_TOO_MANY_REQUESTS = 429;
+  private static final int MAX_PAYLOAD_BYTES = Integer.getInteger(SonarQubeWebHook.class.getName() + ".maxPayloadBytes", 1024 * 1024);
+  /**
+   * Header set by a trusted reverse proxy with the address of the client, such as X-Forwarded-For. Without it, all the
+   * webhooks received through a proxy would share the rate limit of the proxy address.
+   */
+  private static final String SOURCE_HEADER = Util.fixEmptyAndTrim(System.getProperty(SonarQubeWebHook.class.getName() + ".sourceHeader"));
+  private static final String HMAC_ALGORITHM = "HmacSHA256";
+  private static final ThreadLocal<Mac> HMAC = ThreadLocal.withInitial(() -> {
+    try {
+      return Mac.getInstance(HMAC_ALGORITHM);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("Unable to compute webhook signatures", e);
+    }
+  });
+
+  @VisibleForTesting
+  final WebhookListenerRegistry listeners = new WebhookListenerRegistry();
+  private final WebhookQueue queue = new WebhookQueue(this::process);
+  private final Consumer<WebhookEvent> subscriber = this::deliver;
+  private WebhookEventBus bus;
+  private boolean subscribed;
+
+  public SonarQubeWebHook() {
+    this(new WebhookJournal(), null);
+  }
+
+  /**
+   * @param bus null to use the active {@link WebhookEventBus} once Jenkins is started
+   */
   @VisibleForTesting
-  List<Consumer<WebhookEvent>> listeners = new CopyOnWriteArrayList<>();
+  SonarQubeWebHook(WebhookJournal journal, @Nullable WebhookEventBus bus) {
+    this.journal = journal;
+    this.bus = bus;
+  }
 
   @Override
   public String getIconFileName() {
@@ -69,55 +116,249 @@ public class SonarQubeWebHook implements UnprotectedRootAction {
 
   @RequirePOST
   public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
-    String payload = IOUtils.toString(req.getReader());
+    String source = source(req, SOURCE_HEADER);
+    if (!queue.tryAcquire(source)) {
+      rsp.setHeader("Retry-After", "1");
+      rsp.sendError(SC_TOO_MANY_REQUESTS, "Too many webhooks");
+      return;
+    }
+    byte[] content = read(req.getInputStream(), req.getContentLength(), MAX_PAYLOAD_BYTES);
+    if (content == null) {
+      LOGGER.warning(() -> "Ignoring POST from " + source + " larger than " + MAX_PAYLOAD_BYTES + " bytes");
+      rsp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "Payload too large");
+      return;
+    }
 
-    LOGGER.info("Received POST from " + req.getRemoteHost());
+    LOGGER.info("Received POST from " + source);
     try {
-      JSONObject jsonObject = validate(payload);
-      LOGGER.fine(() -> "Full details of the POST was " + jsonObject.toString());
-
-      WebhookEvent event = new WebhookEvent(new Payload(payload, jsonObject), req.getHeader("X-Sonar-Webhook-HMAC-SHA256"));
+      Payload payload = Payload.parse(content);
+      LOGGER.fine(() -> "Full details of the POST was " + new String(content, StandardCharsets.UTF_8));
 
-      eventCache.put(event.payload.taskId, event);
+      WebhookEvent event = new WebhookEvent(payload, req.getHeader("X-Sonar-Webhook-HMAC-SHA256"), content);
 
-      for (Consumer<WebhookEvent> listener : listeners) {
-        listener.accept(event);
+      if (queue.offer(event) == WebhookQueue.Outcome.FULL) {
+        rsp.setHeader("Retry-After", "5");
+        rsp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many webhooks waiting to be processed");
+        return;
       }
-    } catch (JSONException e) {
-      LOGGER.log(Level.WARNING, e, () -> "Invalid payload " + payload);
+    } catch (IllegalStateException e) {
+      LOGGER.log(Level.WARNING, e, () -> "Invalid payload " + new String(content, StandardCharsets.UTF_8));
       rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid JSON Payload");
+      return;
     }
     rsp.setStatus(HttpServletResponse.SC_OK);
   }
 
-  private static JSONObject validate(String payload) {
-    return JSONObject.fromObject(payload);
+  /**
+   * @return address the rate limit applies to: the last address of the header if configured and present, as the one
+   * added by the proxy in front of Jenkins, otherwise the remote address
+   */
+  @VisibleForTesting
+  static String source(HttpServletRequest req, @Nullable String header) {
+    if (header != null) {
+      String forwarded = req.getHeader(header);
+      if (StringUtils.isNotBlank(forwarded)) {
+        return StringUtils.substringAfterLast("," + forwarded, ",").trim();
+      }
+    }
+    return StringUtils.defaultString(req.getRemoteAddr());
+  }
+
+  /**
+   * Runs on the workers of the queue, once per task even if SonarQube delivered its webhook several times meanwhile.
+   */
+  private void process(WebhookEvent event) {
+    getBus().publish(event);
+  }
+
+  /**
+   * Receives the webhooks published on the bus, by this controller or another one.
+   */
+  private void deliver(WebhookEvent event) {
+    journal.append(event);
+    QualityGateResults.get().record(event);
+    // before the steps complete and stop polling the task
+    CeTaskPoller.get().onWebhook(event);
+    listeners.dispatch(event);
+  }
+
+  /**
+   * @since 2.16
+   */
+  public synchronized WebhookEventBus getBus() {
+    if (bus == null) {
+      bus = WebhookEventBus.get();
+      LOGGER.fine(() -> "Webhooks are shared with " + bus.getClass().getName());
+    }
+    if (!subscribed) {
+      bus.subscribe(subscriber);
+      subscribed = true;
+    }
+    return bus;
+  }
+
+  /**
+   * @return the whole content of the stream, or null if it is larger than the limit
+   */
+  @CheckForNull
+  @VisibleForTesting
+  static byte[] read(InputStream in, int contentLength, int limit) throws IOException {
+    if (contentLength > limit) {
+      return null;
+    }
+    byte[] buffer = new byte[contentLength > 0 ? contentLength : Math.min(limit, 8192)];
+    int length = 0;
+    while (true) {
+      if (length == buffer.length) {
+        int next = in.read();
+        if (next == -1) {
+          return buffer;
+        }
+        if (length >= limit) {
+          return null;
+        }
+        buffer = Arrays.copyOf(buffer, (int) Math.min(limit, buffer.length * 2L));
+        buffer[length++] = (byte) next;
+      }
+      int read = in.read(buffer, length, buffer.length - length);
+      if (read == -1) {
+        return Arrays.copyOf(buffer, length);
+      }
+      length += read;
+    }
+  }
+
+  /**
+   * @param signature hexadecimal HMAC-SHA256 sent by SonarQube
+   * @return whether the signature sent by SonarQube matches the payload signed with the webhook secret
+   */
+  static boolean isValidSignature(@Nullable String signature, byte[] payload, String secret) {
+    byte[] received = signature != null ? decodeHex(signature) : null;
+    if (received == null) {
+      return false;
+    }
+    Mac mac = HMAC.get();
+    try {
+      mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), HMAC_ALGORITHM));
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("Invalid webhook secret", e);
+    }
+    // constant time, so that the expected signature can't be guessed by timing the responses
+    return MessageDigest.isEqual(mac.doFinal(payload), received);
+  }
+
+  @CheckForNull
+  private static byte[] decodeHex(String hex) {
+    if (hex.length() % 2 != 0) {
+      return null;
+    }
+    byte[] bytes = new byte[hex.length() / 2];
+    for (int i = 0; i < bytes.length; i++) {
+      int high = Character.digit(hex.charAt(2 * i), 16);
+      int low = Character.digit(hex.charAt(2 * i + 1), 16);
+      if (high < 0 || low < 0) {
+        return null;
+      }
+      bytes[i] = (byte) ((high << 4) | low);
+    }
+    return bytes;
+  }
+
+  /**
+   * @since 2.16
+   */
+  public WebhookQueue getQueue() {
+    return queue;
+  }
+
+  /**
+   * Loads the journal before the pipelines resume, so that their steps only read its index.
+   */
+  @Initializer(after = InitMilestone.EXTENSIONS_AUGMENTED, before = InitMilestone.JOB_LOADED)
+  public static void loadJournal() {
+    get().journal.load();
+  }
+
+  /**
+   * Journals the webhooks shared by other controllers even before a step of this controller waits for them.
+   */
+  @Initializer(after = InitMilestone.JOB_LOADED)
+  public static void subscribeToBus() {
+    get().getBus();
   }
 
   public static SonarQubeWebHook get() {
     return Jenkins.get().getExtensionList(RootAction.class).get(SonarQubeWebHook.class);
   }
 
+  /**
+   * Listens to the webhooks of all tasks.
+   */
   public void addListener(Consumer<WebhookEvent> l) {
-    listeners.add(l);
+    getBus();
+    listeners.registerForAllTasks(l);
   }
 
   public void removeListener(Consumer<WebhookEvent> l) {
-    listeners.remove(l);
+    listeners.unregisterForAllTasks(l);
+  }
+
+  /**
+   * Listens to the webhooks of a task, see {@link WebhookListenerRegistry#register(String, Consumer)}.
+   *
+   * @since 2.16
+   */
+  public void addListener(String taskId, Consumer<WebhookEvent> l) {
+    // the events of other controllers are only received once subscribed to the bus
+    getBus();
+    listeners.register(taskId, l);
   }
 
+  /**
+   * @since 2.16
+   */
+  public void removeListener(String taskId, Consumer<WebhookEvent> l) {
+    listeners.unregister(taskId, l);
+  }
+
+  /**
+   * @return the last webhook received for the task, possibly before a restart
+   */
   @Nullable
   public WebhookEvent getWebhookEventForTaskId(String taskId) {
-    return eventCache.getIfPresent(taskId);
+    return journal.get(taskId);
   }
 
-  static final class WebhookEvent {
+  /**
+   * What is kept of a webhook: its few fields used by the steps, and its content only when it is signed, to check the
+   * signature once the secret is known.
+   */
+  public static final class WebhookEvent {
+    private static final int FORMAT_VERSION = 1;
+
     private final Payload payload;
     private final String receivedSignature;
+    private final byte[] signedContent;
+    private final boolean polled;
 
-    WebhookEvent(Payload payload, String receivedSignature) {
+    WebhookEvent(Payload payload, @Nullable String receivedSignature, @Nullable byte[] content) {
+      this(payload, receivedSignature, receivedSignature != null ? content : null, false);
+    }
+
+    private WebhookEvent(Payload payload, @Nullable String receivedSignature, @Nullable byte[] signedContent, boolean polled) {
       this.payload = payload;
       this.receivedSignature = receivedSignature;
+      this.signedContent = signedContent;
+      this.polled = polled;
+    }
+
+    /**
+     * An event built from the status of the task fetched from SonarQube, when no webhook was received. It is neither
+     * journaled nor published.
+     */
+    static WebhookEvent polled(String taskId, String taskStatus, @Nullable String qualityGateStatus, @Nullable String analysisId,
+      @Nullable String projectKey, @Nullable List<QualityGateCondition> conditions) {
+      return new WebhookEvent(new Payload(taskId, taskStatus, qualityGateStatus, analysisId, projectKey, conditions), null, null, true);
     }
 
     public Payload getPayload() {
@@ -127,42 +368,268 @@ public class SonarQubeWebHook implements UnprotectedRootAction {
     public String getReceivedSignature() {
       return receivedSignature;
     }
+
+    @CheckForNull
+    byte[] getSignedContent() {
+      return signedContent;
+    }
+
+    /**
+     * @return whether the event was fetched from SonarQube with the credentials of the step, rather than received
+     */
+    boolean isPolled() {
+      return polled;
+    }
+
+    boolean isSignedWith(String secret) {
+      return signedContent != null && isValidSignature(receivedSignature, signedContent, secret);
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+      out.writeByte(FORMAT_VERSION);
+      out.writeUTF(payload.getTaskId());
+      out.writeUTF(payload.getTaskStatus());
+      writeNullable(out, payload.getQualityGateStatus());
+      writeNullable(out, receivedSignature);
+      out.writeInt(signedContent == null ? -1 : signedContent.length);
+      if (signedContent != null) {
+        out.write(signedContent);
+      }
+      writeNullable(out, payload.getAnalysisId());
+      writeNullable(out, payload.getProjectKey());
+      List<QualityGateCondition> conditions = payload.getConditions();
+      out.writeInt(conditions == null ? -1 : conditions.size());
+      if (conditions != null) {
+        for (QualityGateCondition c : conditions) {
+          out.writeUTF(c.getStatus());
+          out.writeUTF(c.getMetricKey());
+          writeNullable(out, c.getComparator());
+          writeNullable(out, c.getErrorThreshold());
+          writeNullable(out, c.getActualValue());
+        }
+      }
+    }
+
+    static WebhookEvent readFrom(DataInputStream in) throws IOException {
+      int version = in.readUnsignedByte();
+      if (version != FORMAT_VERSION) {
+        throw new IOException("Unsupported webhook event format " + version);
+      }
+      String taskId = in.readUTF();
+      String taskStatus = in.readUTF();
+      String qualityGateStatus = readNullable(in);
+      String signature = readNullable(in);
+      int length = in.readInt();
+      byte[] content = null;
+      if (length >= 0) {
+        content = new byte[length];
+        in.readFully(content);
+      }
+      String analysisId = readNullable(in);
+      String projectKey = readNullable(in);
+      List<QualityGateCondition> conditions = null;
+      int count = in.readInt();
+      if (count >= 0) {
+        conditions = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+          conditions.add(new QualityGateCondition(in.readUTF(), in.readUTF(), readNullable(in), readNullable(in), readNullable(in)));
+        }
+      }
+      return new WebhookEvent(new Payload(taskId, taskStatus, qualityGateStatus, analysisId, projectKey, conditions), signature, content);
+    }
+
+    private static void writeNullable(DataOutputStream out, @Nullable String value) throws IOException {
+      out.writeBoolean(value != null);
+      if (value != null) {
+        out.writeUTF(value);
+      }
+    }
+
+    @CheckForNull
+    private static String readNullable(DataInputStream in) throws IOException {
+      return in.readBoolean() ? in.readUTF() : null;
+    }
   }
 
-  static final class Payload {
+  public static final class Payload {
+    private static final String STATUS = "status";
 
-    private final String payloadAsString;
     private final String taskId;
     private final String taskStatus;
     private final String qualityGateStatus;
+    private final String analysisId;
+    private final String projectKey;
+    private final List<QualityGateCondition> conditions;
+
+    Payload(String taskId, String taskStatus, @Nullable String qualityGateStatus) {
+      this(taskId, taskStatus, qualityGateStatus, null, null, null);
+    }
+
+    Payload(String taskId, String taskStatus, @Nullable String qualityGateStatus, @Nullable String analysisId, @Nullable String projectKey,
+      @Nullable List<QualityGateCondition> conditions) {
+      this.taskId = taskId;
+      this.taskStatus = taskStatus;
+      this.qualityGateStatus = qualityGateStatus;
+      this.analysisId = analysisId;
+      this.projectKey = projectKey;
+      this.conditions = conditions != null ? Collections.unmodifiableList(conditions) : null;
+    }
+
+    /**
+     * Only extracts the fields used by the steps, without building a JSON tree.
+     *
+     * @throws IllegalStateException if the payload is not a JSON object with a task id and status
+     */
+    static Payload parse(byte[] content) throws IOException {
+      StreamingJsonReader json = new StreamingJsonReader(new InputStreamReader(new ByteArrayInputStream(content), StandardCharsets.UTF_8));
+      String taskId = null;
+      String taskStatus = null;
+      String qualityGateStatus = "NONE";
+      String projectKey = null;
+      List<QualityGateCondition> conditions = null;
+      json.beginObject();
+      while (json.hasNext()) {
+        switch (json.nextName()) {
+          case "taskId":
+            taskId = json.nextString();
+            break;
+          case STATUS:
+            taskStatus = json.nextString();
+            break;
+          case "project":
+            projectKey = parseProjectKey(json);
+            break;
+          case "qualityGate":
+            conditions = new ArrayList<>();
+            qualityGateStatus = parseQualityGate(json, conditions);
+            break;
+          default:
+            json.skipValue();
+        }
+      }
+      json.endObject();
+      if (taskId == null || taskStatus == null) {
+        throw new IllegalStateException("Missing field '" + (taskId == null ? "taskId" : STATUS) + "'");
+      }
+      boolean success = CETask.STATUS_SUCCESS.equals(taskStatus);
+      return new Payload(taskId, taskStatus, success ? qualityGateStatus : null, null, projectKey, success ? conditions : null);
+    }
 
-    Payload(String payloadAsString, JSONObject json) {
-      this.payloadAsString = payloadAsString;
-      this.taskId = json.getString("taskId");
-      this.taskStatus = json.getString("status");
-      if (CETask.STATUS_SUCCESS.equals(getTaskStatus())) {
-        this.qualityGateStatus = json.has("qualityGate") ? json.getJSONObject("qualityGate").getString("status") : "NONE";
-      } else {
-        this.qualityGateStatus = null;
+    @CheckForNull
+    private static String parseProjectKey(StreamingJsonReader json) throws IOException {
+      String key = null;
+      json.beginObject();
+      while (json.hasNext()) {
+        if ("key".equals(json.nextName())) {
+          key = json.nextString();
+        } else {
+          json.skipValue();
+        }
       }
+      json.endObject();
+      return key;
     }
 
-    String getTaskId() {
+    private static String parseQualityGate(StreamingJsonReader json, List<QualityGateCondition> conditions) throws IOException {
+      String status = null;
+      json.beginObject();
+      while (json.hasNext()) {
+        String name = json.nextName();
+        if (STATUS.equals(name)) {
+          status = json.nextString();
+        } else if ("conditions".equals(name)) {
+          json.beginArray();
+          while (json.hasNext()) {
+            conditions.add(parseCondition(json));
+          }
+          json.endArray();
+        } else {
+          json.skipValue();
+        }
+      }
+      json.endObject();
+      if (status == null) {
+        throw new IllegalStateException("Missing field 'qualityGate.status'");
+      }
+      return status;
+    }
+
+    /**
+     * Webhooks name the fields of a condition differently than the web API.
+     */
+    private static QualityGateCondition parseCondition(StreamingJsonReader json) throws IOException {
+      String status = null;
+      String metric = null;
+      String operator = null;
+      String errorThreshold = null;
+      String value = null;
+      json.beginObject();
+      while (json.hasNext()) {
+        switch (json.nextName()) {
+          case STATUS:
+            status = json.nextString();
+            break;
+          case "metric":
+            metric = json.nextString();
+            break;
+          case "operator":
+            operator = json.nextString();
+            break;
+          case "errorThreshold":
+            errorThreshold = json.nextString();
+            break;
+          case "value":
+            value = json.nextString();
+            break;
+          default:
+            json.skipValue();
+        }
+      }
+      json.endObject();
+      if (status == null || metric == null) {
+        throw new IllegalStateException("Missing field 'qualityGate.conditions." + (status == null ? STATUS : "metric") + "'");
+      }
+      return new QualityGateCondition(status, metric, operator, errorThreshold, value);
+    }
+
+    public String getTaskId() {
       return taskId;
     }
 
-    String getTaskStatus() {
+    public String getTaskStatus() {
       return taskStatus;
     }
 
-    String getQualityGateStatus() {
+    @CheckForNull
+    public String getQualityGateStatus() {
       return qualityGateStatus;
     }
 
-    String getPayloadAsString() {
-      return payloadAsString;
+    /**
+     * @return the analysis of the task, only known when the event was polled
+     * @since 2.16
+     */
+    @CheckForNull
+    public String getAnalysisId() {
+      return analysisId;
     }
 
+    /**
+     * @since 2.16
+     */
+    @CheckForNull
+    public String getProjectKey() {
+      return projectKey;
+    }
+
+    /**
+     * @return the conditions of the quality gate, or null if they were not part of the event
+     * @since 2.16
+     */
+    @CheckForNull
+    public List<QualityGateCondition> getConditions() {
+      return conditions;
+    }
   }
 
 }
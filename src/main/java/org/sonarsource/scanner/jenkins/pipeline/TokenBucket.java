@@ -0,0 +1,62 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.jenkins.pipeline;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Allows a number of operations per second, with bursts up to a given size.
+ */
+final class TokenBucket {
+  private final double ratePerSecond;
+  private final int burst;
+  private double tokens;
+  private long lastRefillNanos;
+
+  TokenBucket(double ratePerSecond, int burst, long nowNanos) {
+    this.ratePerSecond = ratePerSecond;
+    this.burst = burst;
+    this.tokens = burst;
+    this.lastRefillNanos = nowNanos;
+  }
+
+  synchronized boolean tryAcquire(long nowNanos) {
+    refill(nowNanos);
+    if (tokens < 1) {
+      return false;
+    }
+    tokens--;
+    return true;
+  }
+
+  /**
+   * Takes a token for an operation which can't be put off. Without tokens left, the bucket goes into debt and the next
+   * operations wait for it to be paid back.
+   */
+  synchronized void acquire(long nowNanos) {
+    refill(nowNanos);
+    tokens--;
+  }
+
+  private void refill(long nowNanos) {
+    tokens = Math.min(burst, tokens + (nowNanos - lastRefillNanos) * ratePerSecond / TimeUnit.SECONDS.toNanos(1));
+    lastRefillNanos = nowNanos;
+  }
+}
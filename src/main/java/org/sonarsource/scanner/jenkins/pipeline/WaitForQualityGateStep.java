@@ -23,6 +23,7 @@ import com.cloudbees.plugins.credentials.CredentialsMatchers;
 import com.cloudbees.plugins.credentials.CredentialsProvider;
 import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
 import com.cloudbees.plugins.credentials.common.StandardUsernameCredentials;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableSet;
 import hudson.AbortException;
 import hudson.Extension;
@@ -35,29 +36,25 @@ import hudson.model.TaskListener;
 import hudson.model.queue.Tasks;
 import hudson.plugins.sonar.SonarInstallation;
 import hudson.plugins.sonar.action.SonarAnalysisAction;
-import hudson.plugins.sonar.client.HttpClient;
-import hudson.plugins.sonar.client.OkHttpClientSingleton;
+import hudson.plugins.sonar.client.QualityGateCondition;
 import hudson.plugins.sonar.client.WsClient;
-import hudson.plugins.sonar.utils.SonarUtils;
 import hudson.security.ACL;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
-import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.Objects;
+import java.util.Locale;
 import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
-import java.util.function.Consumer;
-import java.util.function.Supplier;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
 import java.util.logging.Logger;
 import javax.annotation.Nullable;
 import jenkins.model.Jenkins;
-import org.apache.commons.codec.digest.HmacAlgorithms;
-import org.apache.commons.codec.digest.HmacUtils;
 import org.apache.commons.lang.StringUtils;
 import org.jenkinsci.plugins.plaincredentials.StringCredentials;
 import org.jenkinsci.plugins.scriptsecurity.sandbox.whitelists.Whitelisted;
@@ -78,11 +75,20 @@ public class WaitForQualityGateStep extends Step implements Serializable {
 
   public static class QGStatus implements Serializable {
     private static final long serialVersionUID = 1L;
+    private static final int FIELDS_PER_CONDITION = 5;
 
     private final String status;
+    // flattened to keep the program state small
+    private final String[] conditions;
+    private transient List<QualityGateCondition> decodedConditions;
 
     public QGStatus(String status) {
+      this(status, null);
+    }
+
+    QGStatus(String status, @Nullable List<QualityGateCondition> conditions) {
       this.status = status;
+      this.conditions = conditions != null ? encode(conditions) : null;
     }
 
     @Whitelisted
@@ -90,6 +96,40 @@ public class WaitForQualityGateStep extends Step implements Serializable {
       return status;
     }
 
+    /**
+     * @return the conditions recorded when the step completed, empty if they couldn't be fetched
+     * @since 2.16
+     */
+    @Whitelisted
+    public List<QualityGateCondition> getConditions() {
+      if (decodedConditions == null) {
+        decodedConditions = conditions != null ? decode(conditions) : Collections.emptyList();
+      }
+      return decodedConditions;
+    }
+
+    @VisibleForTesting
+    static String[] encode(List<QualityGateCondition> conditions) {
+      String[] flat = new String[conditions.size() * FIELDS_PER_CONDITION];
+      int i = 0;
+      for (QualityGateCondition c : conditions) {
+        flat[i++] = c.getStatus();
+        flat[i++] = c.getMetricKey();
+        flat[i++] = c.getComparator();
+        flat[i++] = c.getErrorThreshold();
+        flat[i++] = c.getActualValue();
+      }
+      return flat;
+    }
+
+    @VisibleForTesting
+    static List<QualityGateCondition> decode(String[] flat) {
+      List<QualityGateCondition> list = new ArrayList<>(flat.length / FIELDS_PER_CONDITION);
+      for (int i = 0; i + FIELDS_PER_CONDITION <= flat.length; i += FIELDS_PER_CONDITION) {
+        list.add(new QualityGateCondition(flat[i], flat[i + 1], flat[i + 2], flat[i + 3], flat[i + 4]));
+      }
+      return Collections.unmodifiableList(list);
+    }
   }
 
   private String taskId;
@@ -98,6 +138,10 @@ public class WaitForQualityGateStep extends Step implements Serializable {
   private boolean abortPipeline;
   private String credentialsId;
   private String webhookSecretId;
+  private long timeout;
+  private TimeUnit unit = TimeUnit.MINUTES;
+  private boolean checkStatusOnTimeout = true;
+  private QualityGateHandle handle;
 
   @DataBoundConstructor
   public WaitForQualityGateStep(boolean abortPipeline) {
@@ -151,12 +195,59 @@ public class WaitForQualityGateStep extends Step implements Serializable {
     this.credentialsId = Util.fixEmpty(credentialsId);
   }
 
+  /**
+   * @return how long to wait for the quality gate, 0 to wait forever
+   * @since 2.16
+   */
+  public long getTimeout() {
+    return timeout;
+  }
+
+  @DataBoundSetter
+  public void setTimeout(long timeout) {
+    this.timeout = timeout;
+  }
+
+  public TimeUnit getUnit() {
+    return unit != null ? unit : TimeUnit.MINUTES;
+  }
+
+  @DataBoundSetter
+  public void setUnit(TimeUnit unit) {
+    this.unit = unit;
+  }
+
+  /**
+   * @return whether SonarQube is asked for the status of the task a last time before failing on timeout
+   */
+  public boolean isCheckStatusOnTimeout() {
+    return checkStatusOnTimeout;
+  }
+
+  @DataBoundSetter
+  public void setCheckStatusOnTimeout(boolean checkStatusOnTimeout) {
+    this.checkStatusOnTimeout = checkStatusOnTimeout;
+  }
+
+  /**
+   * @return the task to wait for, instead of the last analysis of the build
+   * @since 2.16
+   */
+  public QualityGateHandle getHandle() {
+    return handle;
+  }
+
+  @DataBoundSetter
+  public void setHandle(@Nullable QualityGateHandle handle) {
+    this.handle = handle;
+  }
+
   @Override
   public StepExecution start(StepContext context) throws Exception {
     return new Execution(this, context);
   }
 
-  private static class Execution extends StepExecution implements Consumer<SonarQubeWebHook.WebhookEvent> {
+  private static class Execution extends QualityGateStepExecution {
 
     private static final String PLEASE_USE_THE_WITH_SONAR_QUBE_ENV_WRAPPER_TO_RUN_YOUR_ANALYSIS = "Please use the 'withSonarQubeEnv' wrapper to run your analysis.";
 
@@ -172,23 +263,36 @@ public class WaitForQualityGateStep extends Step implements Serializable {
     @Override
     public boolean start() {
       processStepParameters();
-
-      if (!checkTaskCompleted()) {
-        // Check if we received a webhook event after initially checking with the installation.
-        SonarQubeWebHook.WebhookEvent webhookEvent = SonarQubeWebHook.get().getWebhookEventForTaskId(step.taskId);
-        if (webhookEvent != null) {
-          validateWebhookAndCheckQualityGateIfValid(webhookEvent, true);
-          return true;
-        } else {
-          getContextClass(FlowNode.class).addAction(new PauseAction("SonarQube analysis"));
-          return false;
+      startTimeout(step.timeout, step.getUnit());
+      SonarQubeWebHook.WebhookEvent known = QualityGateResults.get().getFinished(step.taskId);
+      if (known != null) {
+        // finished while the pipeline was busy, SonarQube doesn't need to be asked
+        try {
+          validateWebhookAndCheckQualityGateIfValid(known, false);
+        } catch (RuntimeException e) {
+          fail(e);
         }
-      } else {
-        return true;
+        return false;
       }
+      SonarQubeWebHook.get().addListener(step.taskId, this);
+      CeTaskPoller.get().register(step.getServerUrl(), step.taskId, this::getWsClient, this);
+      getContextClass(FlowNode.class).addAction(new PauseAction("SonarQube analysis"));
+      // the step completes from the HTTP callback, the webhook or the poller, whichever comes first
+      checkTaskCompleted(e -> e);
+      return false;
     }
 
     private void processStepParameters() {
+      if (step.handle != null) {
+        step.setTaskId(step.handle.getTaskId());
+        step.setServerUrl(step.handle.getServerUrl());
+        step.setInstallationName(step.handle.getInstallationName());
+        step.setCredentialsId(step.handle.getCredentialsId());
+        if (step.webhookSecretId == null) {
+          step.webhookSecretId = getInstallation().getWebhookSecretId();
+        }
+        return;
+      }
       // Try to read from the Action that may have been previously defined by the SonarBuildWrapper
       List<SonarAnalysisAction> actions = getContextClass(Run.class).getActions(SonarAnalysisAction.class);
       if (actions.isEmpty()) {
@@ -225,35 +329,118 @@ public class WaitForQualityGateStep extends Step implements Serializable {
       }
     }
 
-    private void log(String msg, Object... args) {
-      getContextClass(TaskListener.class).getLogger().printf(msg, args);
-      getContextClass(TaskListener.class).getLogger().println();
+    private void checkTaskCompleted(UnaryOperator<Throwable> errorMapper) {
+      log("Checking status of SonarQube task '%s' on server '%s'", step.taskId, step.getInstallationName());
+      WsClient wsClient = getWsClient();
+      wsClient.getCETaskAsync(step.getTaskId())
+        .thenCompose(ceTask -> {
+          if (WsClient.CETask.STATUS_SUCCESS.equals(ceTask.getStatus())) {
+            return wsClient.getProjectStatusAsync(ceTask.getAnalysisId())
+              .thenApply(status -> checkQualityGate(ceTask.getStatus(), status.getStatus(), status.getConditions(), ceTask.getAnalysisId(), true));
+          }
+          return CompletableFuture.completedFuture(checkQualityGate(ceTask.getStatus(), null, null, null, true));
+        })
+        .whenComplete((taskCompleted, e) -> {
+          if (e != null) {
+            fail(errorMapper.apply(unwrap(e)));
+          } else if (!taskCompleted) {
+            // Check if we received a webhook event after initially checking with the installation.
+            SonarQubeWebHook.WebhookEvent webhookEvent = SonarQubeWebHook.get().getWebhookEventForTaskId(step.taskId);
+            if (webhookEvent != null) {
+              try {
+                validateWebhookAndCheckQualityGateIfValid(webhookEvent, true);
+              } catch (RuntimeException ex) {
+                fail(errorMapper.apply(ex));
+              }
+            }
+          }
+        });
     }
 
-    private boolean checkTaskCompleted() {
-      SonarQubeWebHook.get().addListener(this);
+    private WsClient getWsClient() {
+      return getWsClient(step.getInstallationName(), step.getServerUrl(), step.credentialsId);
+    }
 
-      log("Checking status of SonarQube task '%s' on server '%s'", step.taskId, step.getInstallationName());
-      SonarInstallation inst = getInstallation();
-      WsClient wsClient = new WsClient(new HttpClient(OkHttpClientSingleton.getInstance()),
-        step.getServerUrl(), SonarUtils.getAuthenticationToken(getContextClass(Run.class), inst, step.credentialsId));
-      WsClient.CETask ceTask = wsClient.getCETask(step.getTaskId());
-      return checkQualityGate(ceTask.getStatus(), () -> wsClient.requestQualityGateStatus(ceTask.getAnalysisId()), true);
+    private void handleQGStatus(String status, @Nullable List<QualityGateCondition> conditions, @Nullable String analysisId) {
+      withConditions(step.taskId, conditions, analysisId, this::getWsClient, c -> handleQGStatus(new QGStatus(status, c)));
     }
 
-    private void handleQGStatus(String status) {
-      if (step.isAbortPipeline() && !"OK".equals(status)) {
-        getContext().onFailure(new AbortException("Pipeline aborted due to quality gate failure: " + status));
+    private void handleQGStatus(QGStatus status) {
+      if (step.isAbortPipeline() && !"OK".equals(status.getStatus())) {
+        fail(new AbortException("Pipeline aborted due to quality gate failure: " + status.getStatus()));
       } else {
-        getContext().onSuccess(new QGStatus(status));
+        complete(status);
+      }
+    }
+
+    private void complete(Object result) {
+      if (markCompleted()) {
+        cleanUp();
+        getContext().onSuccess(result);
       }
     }
 
+    private void fail(Throwable cause) {
+      if (markCompleted()) {
+        cleanUp();
+        getContext().onFailure(cause);
+      }
+    }
+
+    @Override
+    void cleanUp() {
+      super.cleanUp();
+      SonarQubeWebHook.get().removeListener(step.taskId, this);
+      CeTaskPoller.get().unregister(step.getServerUrl(), step.taskId, this);
+    }
+
+    @Override
+    void onTimeout() {
+      if (isCompleted()) {
+        return;
+      }
+      AbortException timedOut = new AbortException("Timeout waiting for SonarQube task '" + step.taskId + "' after "
+        + step.timeout + " " + step.getUnit().name().toLowerCase(Locale.ENGLISH));
+      if (!step.checkStatusOnTimeout) {
+        log("%s", timedOut.getMessage());
+        fail(timedOut);
+        return;
+      }
+      log("Timeout reached, checking status of SonarQube task '%s' a last time", step.taskId);
+      WsClient wsClient;
+      try {
+        wsClient = getWsClient();
+      } catch (RuntimeException e) {
+        fail(timedOut);
+        return;
+      }
+      fetchEvent(wsClient, step.taskId)
+        .whenComplete((event, e) -> {
+          if (e == null && !isPending(event.getPayload().getTaskStatus())) {
+            // completes the step as a webhook would
+            accept(event);
+          } else {
+            log("%s", timedOut.getMessage());
+            fail(timedOut);
+          }
+        });
+    }
+
     @Override
     public void onResume() {
-      SonarQubeWebHook.get().addListener(this);
+      SonarQubeWebHook.get().addListener(step.taskId, this);
+      resumeTimeout();
       try {
-        checkTaskCompleted();
+        // webhooks received before the restart are journaled, SonarQube doesn't need to be asked again
+        SonarQubeWebHook.WebhookEvent event = SonarQubeWebHook.get().getWebhookEventForTaskId(step.taskId);
+        if (event != null) {
+          validateWebhookAndCheckQualityGateIfValid(event, false);
+        } else {
+          // fails right away if the installation was removed
+          getInstallation();
+          // no network calls while the pipelines are loaded, the poller asks SonarQube in the background
+          CeTaskPoller.get().resume(step.getServerUrl(), step.taskId, this::getWsClient, this, getStartedAt());
+        }
       } catch (Exception e) {
         throw new IllegalStateException("Unable to restore step", e);
       }
@@ -261,39 +448,38 @@ public class WaitForQualityGateStep extends Step implements Serializable {
 
     @Override
     public void stop(Throwable cause) throws Exception {
-      PauseAction.endCurrentPause(getContextClass(FlowNode.class));
-      SonarQubeWebHook.get().removeListener(this);
-      getContext().onFailure(cause);
+      fail(cause);
     }
 
     @Override
     public void accept(SonarQubeWebHook.WebhookEvent event) {
-      if (event.getPayload().getTaskId().equals(step.taskId)) {
-        try {
-          PauseAction.endCurrentPause(getContextClass(FlowNode.class));
-          validateWebhookAndCheckQualityGateIfValid(event, false);
-        } catch (IOException e) {
-          getContext().onFailure(e);
-          throw new IllegalStateException(e);
-        }
+      if (event.getPayload().getTaskId().equals(step.taskId) && !isCompleted()) {
+        validateWebhookAndCheckQualityGateIfValid(event, false);
       }
     }
 
+    @Override
+    public void onPollingFailed(String taskId, Throwable cause) {
+      log("Unable to check status of SonarQube task '%s': %s", taskId, cause.getMessage());
+      fail(cause);
+    }
+
     private void validateWebhookAndCheckQualityGateIfValid(SonarQubeWebHook.WebhookEvent event, boolean onStart) {
-      SonarQubeWebHook.get().removeListener(this);
+      SonarQubeWebHook.get().removeListener(step.taskId, this);
       if (validateWebhook(event)) {
         // only execute the checkQualityGate if the webhook is found to be valid (getContext().onFailure() does not interrupt execution)
-        checkQualityGate(event.getPayload().getTaskStatus(), event.getPayload()::getQualityGateStatus, onStart);
+        SonarQubeWebHook.Payload payload = event.getPayload();
+        checkQualityGate(payload.getTaskStatus(), payload.getQualityGateStatus(), payload.getConditions(), payload.getAnalysisId(), onStart);
       }
     }
 
-    private boolean checkQualityGate(String taskStatus, Supplier<String> qgStatusSupplier, boolean onStart) {
+    private boolean checkQualityGate(String taskStatus, @Nullable String qualityGateStatus, @Nullable List<QualityGateCondition> conditions,
+      @Nullable String analysisId, boolean onStart) {
       log("SonarQube task '%s' status is '%s'", step.taskId, taskStatus);
       switch (taskStatus) {
         case WsClient.CETask.STATUS_SUCCESS:
-          String qgstatus = qgStatusSupplier.get();
-          log("SonarQube task '%s' completed. Quality gate is '%s'", step.taskId, qgstatus);
-          handleQGStatus(qgstatus);
+          log("SonarQube task '%s' completed. Quality gate is '%s'", step.taskId, qualityGateStatus);
+          handleQGStatus(qualityGateStatus, conditions, analysisId);
           return true;
         case WsClient.CETask.STATUS_FAILURE:
         case WsClient.CETask.STATUS_CANCELED:
@@ -301,7 +487,7 @@ public class WaitForQualityGateStep extends Step implements Serializable {
           if (onStart) {
             throw exception;
           } else {
-            getContext().onFailure(exception);
+            fail(exception);
             return true;
           }
         default:
@@ -314,51 +500,34 @@ public class WaitForQualityGateStep extends Step implements Serializable {
     }
 
     private boolean validateWebhook(SonarQubeWebHook.WebhookEvent event) {
+      if (event.isPolled()) {
+        // fetched from SonarQube with the credentials of the step, there is nothing to verify
+        return true;
+      }
       if (step.webhookSecretId != null && !step.webhookSecretId.isEmpty()) {
-        StringCredentials webhookSecret = CredentialsProvider.findCredentialById(step.webhookSecretId, StringCredentials.class, getContextClass(Run.class));
-        CredentialsProvider.track(getContextClass(Run.class), webhookSecret);
+        StringCredentials webhookSecret = findWebhookSecret(step.webhookSecretId);
         if (webhookSecret != null) {
-          boolean isValidPayload = isValidSignature(event.getReceivedSignature(), event.getPayload().getPayloadAsString(), webhookSecret.getSecret().getPlainText());
+          boolean isValidPayload = event.isSignedWith(webhookSecret.getSecret().getPlainText());
           if (!isValidPayload) {
             log("The incoming webhook didn't match the configured webhook secret");
-            getContext().onFailure(new AbortException("Pipeline aborted due to failed webhook verification "));
+            fail(new AbortException("Pipeline aborted due to failed webhook verification "));
           } else {
             log("The incoming webhook matched the configured webhook secret");
           }
           return isValidPayload;
         } else {
           log("A webhook secret id was configured, but the corresponding credential could not be found");
-          getContext().onFailure(new AbortException("Pipeline aborted due to failed webhook verification"));
+          fail(new AbortException("Pipeline aborted due to failed webhook verification"));
           return false;
         }
       }
       return true;
     }
 
-    private static boolean isValidSignature(String signature, String payload, String secret) {
-      // See Apache commons-codec
-      String expectedSignature = new HmacUtils(HmacAlgorithms.HMAC_SHA_256, secret).hmacHex(payload);
-      return Objects.equals(expectedSignature, signature);
-    }
-
     private SonarInstallation getInstallation() {
       return Optional.ofNullable(SonarInstallation.get(step.getInstallationName()))
         .orElseThrow(() -> new IllegalStateException("Invalid installation name: " + step.getInstallationName()));
     }
-
-    private <T> T getContextClass(Class<T> contextClass) {
-      try {
-        return Optional.ofNullable(getContext().get(contextClass))
-          .orElseThrow(() -> new IllegalStateException(String.format("Could not get %s from the Jenkins context", contextClass.getName())));
-      } catch (IOException | IllegalStateException e) {
-        getContext().onFailure(e);
-        throw new IllegalStateException(e);
-      } catch (InterruptedException e) {
-        Thread.currentThread().interrupt();
-        getContext().onFailure(e);
-        throw new IllegalStateException(e);
-      }
-    }
   }
 
   /**
@@ -0,0 +1,438 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.jenkins.pipeline;
+
+import com.google.common.collect.ImmutableSet;
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.plugins.sonar.SonarInstallation;
+import hudson.plugins.sonar.action.SonarAnalysisAction;
+import hudson.plugins.sonar.client.WsClient;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.jenkinsci.plugins.workflow.support.actions.PauseAction;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.sonarsource.scanner.jenkins.pipeline.SonarQubeWebHook.Payload;
+import org.sonarsource.scanner.jenkins.pipeline.SonarQubeWebHook.WebhookEvent;
+import org.sonarsource.scanner.jenkins.pipeline.WaitForQualityGateStep.QGStatus;
+
+/**
+ * Waits for the quality gates of all the analyses of the build at once, so that the wait lasts as long as the slowest
+ * analysis rather than the sum of them.
+ *
+ * @since 2.16
+ */
+public class WaitForQualityGatesStep extends Step implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private boolean abortPipeline;
+  private boolean failFast;
+  private long timeout;
+  private TimeUnit unit = TimeUnit.MINUTES;
+
+  @DataBoundConstructor
+  public WaitForQualityGatesStep() {
+    super();
+  }
+
+  public boolean isAbortPipeline() {
+    return abortPipeline;
+  }
+
+  /**
+   * @param abortPipeline whether a quality gate other than OK fails the step
+   */
+  @DataBoundSetter
+  public void setAbortPipeline(boolean abortPipeline) {
+    this.abortPipeline = abortPipeline;
+  }
+
+  public boolean isFailFast() {
+    return failFast;
+  }
+
+  /**
+   * @param failFast whether the step fails on the first failure, rather than once all the analyses are known
+   */
+  @DataBoundSetter
+  public void setFailFast(boolean failFast) {
+    this.failFast = failFast;
+  }
+
+  /**
+   * @return how long to wait for all the quality gates, 0 to wait forever
+   */
+  public long getTimeout() {
+    return timeout;
+  }
+
+  @DataBoundSetter
+  public void setTimeout(long timeout) {
+    this.timeout = timeout;
+  }
+
+  public TimeUnit getUnit() {
+    return unit != null ? unit : TimeUnit.MINUTES;
+  }
+
+  @DataBoundSetter
+  public void setUnit(TimeUnit unit) {
+    this.unit = unit;
+  }
+
+  @Override
+  public StepExecution start(StepContext context) throws Exception {
+    return new Execution(this, context);
+  }
+
+  /**
+   * A task of the build, with the installation it was submitted to.
+   */
+  private static final class Target implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String taskId;
+    private final String serverUrl;
+    private final String installationName;
+    private final String credentialsId;
+    private final String webhookSecretId;
+
+    private Target(String taskId, String serverUrl, String installationName, @Nullable String credentialsId, @Nullable String webhookSecretId) {
+      this.taskId = taskId;
+      this.serverUrl = serverUrl;
+      this.installationName = installationName;
+      this.credentialsId = credentialsId;
+      this.webhookSecretId = webhookSecretId;
+    }
+  }
+
+  private static class Execution extends QualityGateStepExecution {
+    private static final long serialVersionUID = 1L;
+
+    private final WaitForQualityGatesStep step;
+    // by task id, in the order of the analyses
+    private final Map<String, Target> targets = new LinkedHashMap<>();
+    private final Set<String> pending = new LinkedHashSet<>();
+    private final Map<String, QGStatus> results = new HashMap<>();
+    private final Map<String, String> projectKeys = new HashMap<>();
+    private final Map<String, String> failures = new LinkedHashMap<>();
+
+    Execution(WaitForQualityGatesStep step, StepContext context) {
+      super(context);
+      this.step = step;
+    }
+
+    /**
+     * The program is saved on its own thread while the callbacks of the tasks update the maps, under the same lock.
+     */
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+      out.defaultWriteObject();
+    }
+
+    @Override
+    public boolean start() {
+      collectTargets();
+      startTimeout(step.timeout, step.getUnit());
+      getContextClass(FlowNode.class).addAction(new PauseAction("SonarQube analyses"));
+      for (Target target : targets.values()) {
+        SonarQubeWebHook.get().addListener(target.taskId, this);
+        CeTaskPoller.get().register(target.serverUrl, target.taskId, () -> getWsClient(target), this);
+      }
+      log("Waiting for the quality gates of %d SonarQube task(s)", targets.size());
+      // all the tasks are checked concurrently, each one completes from its HTTP callback, webhook or poller
+      for (Target target : targets.values()) {
+        checkTaskCompleted(target);
+      }
+      return false;
+    }
+
+    private void collectTargets() {
+      List<SonarAnalysisAction> actions = getContextClass(Run.class).getActions(SonarAnalysisAction.class);
+      for (SonarAnalysisAction a : actions) {
+        String taskId = a.getCeTaskId();
+        if (taskId == null || a.getInstallationUrl() == null || a.getInstallationName() == null || targets.containsKey(taskId)) {
+          continue;
+        }
+        SonarInstallation installation = SonarInstallation.get(a.getInstallationName());
+        String webhookSecretId = installation != null ? installation.getWebhookSecretId() : null;
+        targets.put(taskId, new Target(taskId, a.getInstallationUrl(), a.getInstallationName(), a.getCredentialsId(), webhookSecretId));
+        pending.add(taskId);
+      }
+      if (targets.isEmpty()) {
+        throw new IllegalStateException(
+          "No previous SonarQube analysis found on this pipeline execution. Please use the 'withSonarQubeEnv' wrapper to run your analysis.");
+      }
+    }
+
+    private void checkTaskCompleted(Target target) {
+      WsClient wsClient;
+      try {
+        wsClient = getWsClient(target);
+      } catch (RuntimeException e) {
+        onFailure(target, e.getMessage());
+        return;
+      }
+      fetchEvent(wsClient, target.taskId)
+        .whenComplete((event, e) -> {
+          if (e != null) {
+            onFailure(target, "Unable to check SonarQube task '" + target.taskId + "': " + unwrap(e).getMessage());
+          } else if (!isPending(event.getPayload().getTaskStatus())) {
+            onEvent(target, event);
+          } else {
+            rememberProjectKey(target, event.getPayload().getProjectKey());
+            // a webhook may have been received before the listener was added
+            WebhookEvent received = SonarQubeWebHook.get().getWebhookEventForTaskId(target.taskId);
+            if (received != null) {
+              accept(received);
+            }
+          }
+        });
+    }
+
+    @Override
+    public void accept(WebhookEvent event) {
+      Target target = targets.get(event.getPayload().getTaskId());
+      if (target != null && !isCompleted()) {
+        onEvent(target, event);
+      }
+    }
+
+    @Override
+    public void onPollingFailed(String taskId, Throwable cause) {
+      Target target = targets.get(taskId);
+      if (target != null) {
+        onFailure(target, "Unable to check SonarQube task '" + taskId + "': " + cause.getMessage());
+      }
+    }
+
+    private void onEvent(Target target, WebhookEvent event) {
+      if (!isTrusted(event, target.webhookSecretId)) {
+        onFailure(target, "Webhook of SonarQube task '" + target.taskId + "' failed verification");
+        return;
+      }
+      Payload payload = event.getPayload();
+      rememberProjectKey(target, payload.getProjectKey());
+      switch (payload.getTaskStatus()) {
+        case WsClient.CETask.STATUS_SUCCESS:
+          onSuccess(target, payload);
+          break;
+        case WsClient.CETask.STATUS_FAILURE:
+        case WsClient.CETask.STATUS_CANCELED:
+          onFailure(target, "SonarQube analysis '" + target.taskId + "' failed: " + payload.getTaskStatus());
+          break;
+        default:
+          // webhooks are only sent for finished tasks
+      }
+    }
+
+    /**
+     * The results are keyed by project, so two analyses of the same project can't both be reported.
+     */
+    private void rememberProjectKey(Target target, @Nullable String projectKey) {
+      if (projectKey == null) {
+        return;
+      }
+      String other = null;
+      synchronized (this) {
+        projectKeys.put(target.taskId, projectKey);
+        for (Map.Entry<String, String> e : projectKeys.entrySet()) {
+          if (!e.getKey().equals(target.taskId) && e.getValue().equals(projectKey)) {
+            other = e.getKey();
+          }
+        }
+      }
+      if (other != null) {
+        onFailure(target, "SonarQube tasks '" + other + "' and '" + target.taskId + "' both analyzed project '" + projectKey
+          + "', use a distinct project key for each analysis");
+      }
+    }
+
+    private void onSuccess(Target target, Payload payload) {
+      withConditions(target.taskId, payload.getConditions(), payload.getAnalysisId(), () -> getWsClient(target),
+        conditions -> onResult(target, new QGStatus(payload.getQualityGateStatus(), conditions)));
+    }
+
+    private void onResult(Target target, QGStatus status) {
+      boolean failed = step.abortPipeline && !"OK".equals(status.getStatus());
+      synchronized (this) {
+        if (!pending.remove(target.taskId)) {
+          return;
+        }
+        results.put(target.taskId, status);
+        if (failed) {
+          failures.put(target.taskId, "quality gate of " + projectKey(target.taskId) + " is " + status.getStatus());
+        }
+      }
+      log("SonarQube task '%s' completed. Quality gate is '%s'", target.taskId, status.getStatus());
+      release(target);
+      completeIfDone(failed);
+    }
+
+    private void onFailure(Target target, String message) {
+      synchronized (this) {
+        if (!pending.remove(target.taskId)) {
+          return;
+        }
+        failures.put(target.taskId, message);
+      }
+      log("%s", message);
+      release(target);
+      completeIfDone(true);
+    }
+
+    private void completeIfDone(boolean failed) {
+      boolean done;
+      synchronized (this) {
+        done = pending.isEmpty() || (failed && step.failFast);
+      }
+      if (done && markCompleted()) {
+        cleanUp();
+        finish();
+      }
+    }
+
+    private void finish() {
+      Map<String, QGStatus> byProject;
+      List<String> messages;
+      synchronized (this) {
+        byProject = new LinkedHashMap<>();
+        for (String taskId : targets.keySet()) {
+          QGStatus status = results.get(taskId);
+          if (status != null) {
+            byProject.put(projectKey(taskId), status);
+          }
+        }
+        messages = new ArrayList<>(failures.values());
+      }
+      if (messages.isEmpty()) {
+        getContext().onSuccess(byProject);
+      } else {
+        getContext().onFailure(new AbortException("Pipeline aborted: " + String.join(", ", messages)));
+      }
+    }
+
+    private String projectKey(String taskId) {
+      return projectKeys.getOrDefault(taskId, taskId);
+    }
+
+    private void release(Target target) {
+      SonarQubeWebHook.get().removeListener(target.taskId, this);
+      CeTaskPoller.get().unregister(target.serverUrl, target.taskId, this);
+    }
+
+    @Override
+    void cleanUp() {
+      super.cleanUp();
+      List<Target> remaining;
+      synchronized (this) {
+        remaining = new ArrayList<>();
+        pending.forEach(taskId -> remaining.add(targets.get(taskId)));
+      }
+      remaining.forEach(this::release);
+    }
+
+    @Override
+    void onTimeout() {
+      List<Target> timedOut;
+      synchronized (this) {
+        timedOut = new ArrayList<>();
+        pending.forEach(taskId -> timedOut.add(targets.get(taskId)));
+      }
+      String after = " after " + step.timeout + " " + step.getUnit().name().toLowerCase(Locale.ENGLISH);
+      for (Target target : timedOut) {
+        onFailure(target, "Timeout waiting for SonarQube task '" + target.taskId + "'" + after);
+      }
+    }
+
+    @Override
+    public void onResume() {
+      resumeTimeout();
+      List<Target> remaining;
+      synchronized (this) {
+        remaining = new ArrayList<>();
+        pending.forEach(taskId -> remaining.add(targets.get(taskId)));
+      }
+      for (Target target : remaining) {
+        SonarQubeWebHook.get().addListener(target.taskId, this);
+        // webhooks received before the restart are journaled, otherwise the poller asks SonarQube in the background
+        WebhookEvent event = SonarQubeWebHook.get().getWebhookEventForTaskId(target.taskId);
+        if (event != null) {
+          accept(event);
+        } else {
+          CeTaskPoller.get().resume(target.serverUrl, target.taskId, () -> getWsClient(target), this, getStartedAt());
+        }
+      }
+    }
+
+    @Override
+    public void stop(Throwable cause) throws Exception {
+      if (markCompleted()) {
+        cleanUp();
+        getContext().onFailure(cause);
+      }
+    }
+
+    private WsClient getWsClient(Target target) {
+      return getWsClient(target.installationName, target.serverUrl, target.credentialsId);
+    }
+  }
+
+  /**
+   * Optional: don't log error when pipeline dependencies are not installed
+   */
+  @Extension(optional = true)
+  public static final class DescriptorImpl extends StepDescriptor {
+
+    @Override
+    public String getDisplayName() {
+      return "Wait for all SonarQube analyses of the build to be completed and return their quality gate status";
+    }
+
+    @Override
+    public String getFunctionName() {
+      return "waitForQualityGates";
+    }
+
+    @Override
+    public Set<Class<?>> getRequiredContext() {
+      return ImmutableSet.of(FlowNode.class, Run.class, TaskListener.class);
+    }
+  }
+}
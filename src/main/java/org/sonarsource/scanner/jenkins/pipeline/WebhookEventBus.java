@@ -0,0 +1,135 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.jenkins.pipeline;
+
+import hudson.ExtensionList;
+import hudson.ExtensionPoint;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import org.sonarsource.scanner.jenkins.pipeline.SonarQubeWebHook.WebhookEvent;
+
+/**
+ * Carries the webhooks received by {@link SonarQubeWebHook} to the steps waiting for them, possibly on other
+ * controllers. Several controllers can thus share a single webhook configured in SonarQube: the controller receiving it
+ * publishes the event, and each controller subscribed to the same bus gets it.
+ * <p>
+ * The first active implementation, by ordinal, is used. {@link LocalWebhookEventBus} is always active and comes last.
+ *
+ * @since 2.16
+ */
+public abstract class WebhookEventBus implements ExtensionPoint {
+  private static final Logger LOGGER = Logger.getLogger(WebhookEventBus.class.getName());
+
+  private final List<Consumer<WebhookEvent>> subscribers = new CopyOnWriteArrayList<>();
+
+  /**
+   * Sends the event to the subscribers of every controller sharing the bus, this one included. Events may be delivered
+   * more than once.
+   */
+  public abstract void publish(WebhookEvent event);
+
+  /**
+   * @return whether this bus is configured and should be used
+   */
+  public boolean isActive() {
+    return true;
+  }
+
+  /**
+   * Called when the first subscriber subscribes, to start listening to the events of the other controllers.
+   */
+  protected void start() {
+  }
+
+  /**
+   * Called when the last subscriber unsubscribes.
+   */
+  protected void stop() {
+  }
+
+  public synchronized void subscribe(Consumer<WebhookEvent> subscriber) {
+    subscribers.add(subscriber);
+    if (subscribers.size() == 1) {
+      start();
+    }
+  }
+
+  public synchronized void unsubscribe(Consumer<WebhookEvent> subscriber) {
+    if (subscribers.remove(subscriber) && subscribers.isEmpty()) {
+      stop();
+    }
+  }
+
+  /**
+   * Hands an event published on the bus to the subscribers of this controller.
+   */
+  protected final void deliver(WebhookEvent event) {
+    for (Consumer<WebhookEvent> subscriber : subscribers) {
+      try {
+        subscriber.accept(event);
+      } catch (RuntimeException e) {
+        LOGGER.log(Level.WARNING, e, () -> "Unable to deliver the webhook of task " + event.getPayload().getTaskId());
+      }
+    }
+  }
+
+  /**
+   * Encodes an event for the implementations carrying bytes.
+   */
+  protected static byte[] serialize(WebhookEvent event) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+      event.writeTo(new DataOutputStream(bytes));
+      return bytes.toByteArray();
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to encode webhook", e);
+    }
+  }
+
+  /**
+   * @throws IllegalStateException if the bytes were not produced by {@link #serialize(WebhookEvent)}
+   */
+  protected static WebhookEvent deserialize(byte[] bytes) {
+    try {
+      return WebhookEvent.readFrom(new DataInputStream(new ByteArrayInputStream(bytes)));
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to decode webhook", e);
+    }
+  }
+
+  public static WebhookEventBus get() {
+    if (Jenkins.getInstanceOrNull() == null) {
+      return new LocalWebhookEventBus();
+    }
+    return ExtensionList.lookup(WebhookEventBus.class).stream()
+      .filter(WebhookEventBus::isActive)
+      .findFirst()
+      .orElseGet(LocalWebhookEventBus::new);
+  }
+}
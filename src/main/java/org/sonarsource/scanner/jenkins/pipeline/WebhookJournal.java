@@ -0,0 +1,420 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.jenkins.pipeline;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.common.annotations.VisibleForTesting;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import javax.annotation.CheckForNull;
+import jenkins.model.Jenkins;
+import org.sonarsource.scanner.jenkins.pipeline.SonarQubeWebHook.WebhookEvent;
+
+/**
+ * Append-only journal of the webhooks received from SonarQube, so that steps resumed after a restart of Jenkins find
+ * the webhooks of their task without asking SonarQube.
+ * <p>
+ * Events are appended to memory-mapped segment files in {@code JENKINS_HOME}. A new segment is started when the
+ * current one is full or older than a quarter of the retention, and segments only holding expired events are deleted.
+ * The location of the last event of each task is kept in a bounded in-heap index, rebuilt from the segments by
+ * {@link #load()} when Jenkins starts, so that lookups never scan the segments. Tasks evicted from the index are
+ * looked up in SonarQube as before.
+ *
+ * @since 2.16
+ */
+public class WebhookJournal {
+  private static final Logger LOGGER = Logger.getLogger(WebhookJournal.class.getName());
+  private static final String PREFIX = WebhookJournal.class.getName();
+  private static final long DEFAULT_TTL_MINUTES = Long.getLong(PREFIX + ".ttlMinutes", 120L);
+  private static final int DEFAULT_SEGMENT_BYTES = Integer.getInteger(PREFIX + ".segmentBytes", 8 * 1024 * 1024);
+  private static final int DEFAULT_INDEX_SIZE = Integer.getInteger(PREFIX + ".indexSize", 100_000);
+
+  private static final int MAGIC = 0x53514a31;
+  private static final int HEADER_BYTES = 12;
+  private static final String SEGMENT_SUFFIX = ".journal";
+  private static final long COMPACTION_INTERVAL_MS = TimeUnit.MINUTES.toMillis(1);
+
+  private final Supplier<File> directory;
+  private final long ttlMillis;
+  private final long segmentMillis;
+  private final int segmentBytes;
+  private final LongSupplier clock;
+  private final Cache<String, Location> index;
+  private final List<Segment> segments = new ArrayList<>();
+  private final List<File> undeleted = new ArrayList<>();
+
+  private boolean loaded;
+  private File dir;
+  private Segment active;
+  private long lastCompaction;
+
+  WebhookJournal() {
+    this(WebhookJournal::defaultDirectory, TimeUnit.MINUTES.toMillis(DEFAULT_TTL_MINUTES), DEFAULT_SEGMENT_BYTES, DEFAULT_INDEX_SIZE, System::currentTimeMillis);
+  }
+
+  @VisibleForTesting
+  WebhookJournal(Supplier<File> directory, long ttlMillis, int segmentBytes, int indexSize, LongSupplier clock) {
+    this.directory = directory;
+    this.ttlMillis = ttlMillis;
+    this.segmentMillis = Math.max(1, ttlMillis / 4);
+    this.segmentBytes = segmentBytes;
+    this.clock = clock;
+    this.index = Caffeine.newBuilder().maximumSize(indexSize).build();
+  }
+
+  @CheckForNull
+  private static File defaultDirectory() {
+    Jenkins jenkins = Jenkins.getInstanceOrNull();
+    return jenkins == null ? null : new File(jenkins.getRootDir(), PREFIX);
+  }
+
+  /**
+   * Appends the event, which supersedes the previous events of the same task. If the journal can't be written, the
+   * event is kept in the index instead, and lost on restart.
+   */
+  public synchronized void append(WebhookEvent event) {
+    long now = clock.getAsLong();
+    String taskId = event.getPayload().getTaskId();
+    byte[] record = encode(event, now);
+    try {
+      Segment segment = writableSegment(now, record.length);
+      if (segment != null) {
+        index.put(taskId, new Location(segment, segment.append(record), now));
+        return;
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, e, () -> "Unable to journal the webhook of task " + taskId);
+    }
+    index.put(taskId, new Location(event, now));
+  }
+
+  /**
+   * Only reads the index, which is empty until the journal is {@link #load() loaded}.
+   *
+   * @return the last event received for the task during the retention period, if still indexed
+   */
+  @CheckForNull
+  public WebhookEvent get(String taskId) {
+    Location location = index.getIfPresent(taskId);
+    if (location == null || location.receivedAt + ttlMillis < clock.getAsLong()) {
+      return null;
+    }
+    if (location.segment == null) {
+      return location.event;
+    }
+    try {
+      return decode(location.segment.read(location.offset));
+    } catch (IOException | RuntimeException e) {
+      LOGGER.log(Level.WARNING, e, () -> "Unable to read the journaled webhook of task " + taskId);
+      return null;
+    }
+  }
+
+  @CheckForNull
+  private Segment writableSegment(long now, int recordLength) throws IOException {
+    load();
+    if (dir == null) {
+      return null;
+    }
+    int needed = recordLength + 8;
+    if (HEADER_BYTES + needed > segmentBytes) {
+      LOGGER.warning(() -> "Webhook of " + recordLength + " bytes is too large to be journaled");
+      return null;
+    }
+    if (now - lastCompaction > COMPACTION_INTERVAL_MS) {
+      compact(now);
+    }
+    if (active == null || active.remaining() < needed || now - active.createdAt >= segmentMillis) {
+      active = Segment.create(new File(dir, now + "-" + segments.size() + SEGMENT_SUFFIX), segmentBytes, now);
+      segments.add(active);
+    }
+    return active;
+  }
+
+  /**
+   * Opens the segments and rebuilds the index from them, if not done yet.
+   */
+  public synchronized void load() {
+    if (loaded) {
+      return;
+    }
+    dir = directory.get();
+    if (dir == null) {
+      return;
+    }
+    loaded = true;
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      LOGGER.warning(() -> "Unable to create " + dir + ", webhooks won't be journaled");
+      dir = null;
+      return;
+    }
+    File[] files = dir.listFiles((d, name) -> name.endsWith(SEGMENT_SUFFIX));
+    if (files == null) {
+      return;
+    }
+    long now = clock.getAsLong();
+    List<Segment> loadedSegments = new ArrayList<>();
+    for (File file : files) {
+      try {
+        Segment segment = Segment.open(file);
+        if (segment == null) {
+          LOGGER.warning(() -> "Deleting " + file + ", which is not a webhook journal");
+          deleteOrRetry(file);
+        } else {
+          loadedSegments.add(segment);
+        }
+      } catch (IOException e) {
+        LOGGER.log(Level.WARNING, e, () -> "Unable to read the webhook journal " + file);
+      }
+    }
+    loadedSegments.sort((a, b) -> Long.compare(a.createdAt, b.createdAt));
+    for (Segment segment : loadedSegments) {
+      segments.add(segment);
+      segment.forEach((offset, record) -> {
+        long receivedAt = ByteBuffer.wrap(record).getLong();
+        if (receivedAt + ttlMillis < now) {
+          return;
+        }
+        try {
+          index.put(decode(record).getPayload().getTaskId(), new Location(segment, offset, receivedAt));
+        } catch (IllegalStateException e) {
+          LOGGER.log(Level.WARNING, e, () -> "Skipping unreadable webhook at offset " + offset + " of " + segment.file);
+        }
+      });
+    }
+    // the last segment is only appended to if it is still recent, see writableSegment
+    active = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+    compact(now);
+    LOGGER.fine(() -> "Loaded " + index.estimatedSize() + " webhooks from " + segments.size() + " journal segments");
+  }
+
+  /**
+   * Deletes the segments whose events are all expired, and drops their events from the index.
+   */
+  @VisibleForTesting
+  synchronized void compact(long now) {
+    lastCompaction = now;
+    undeleted.removeIf(File::delete);
+    Iterator<Segment> it = segments.iterator();
+    while (it.hasNext()) {
+      Segment segment = it.next();
+      if (segment.createdAt + segmentMillis + ttlMillis >= now) {
+        // segments are sorted by creation
+        break;
+      }
+      it.remove();
+      if (segment == active) {
+        active = null;
+      }
+      index.asMap().values().removeIf(location -> location.segment == segment);
+      LOGGER.fine(() -> "Deleting expired webhook journal " + segment.file);
+      deleteOrRetry(segment.file);
+    }
+  }
+
+  private void deleteOrRetry(File file) {
+    // a file still mapped can't be deleted on Windows
+    if (!file.delete() && file.exists()) {
+      undeleted.add(file);
+    }
+  }
+
+  @VisibleForTesting
+  long getIndexSize() {
+    index.cleanUp();
+    return index.estimatedSize();
+  }
+
+  @VisibleForTesting
+  synchronized int getSegmentCount() {
+    return segments.size();
+  }
+
+  private static byte[] encode(WebhookEvent event, long receivedAt) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeLong(receivedAt);
+      event.writeTo(out);
+      return bytes.toByteArray();
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to encode webhook", e);
+    }
+  }
+
+  private static WebhookEvent decode(byte[] record) {
+    try {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+      in.readLong();
+      return WebhookEvent.readFrom(in);
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to decode journaled webhook", e);
+    }
+  }
+
+  private static final class Location {
+    private final Segment segment;
+    private final int offset;
+    private final long receivedAt;
+    private final WebhookEvent event;
+
+    private Location(Segment segment, int offset, long receivedAt) {
+      this.segment = segment;
+      this.offset = offset;
+      this.receivedAt = receivedAt;
+      this.event = null;
+    }
+
+    private Location(WebhookEvent event, long receivedAt) {
+      this.segment = null;
+      this.offset = -1;
+      this.receivedAt = receivedAt;
+      this.event = event;
+    }
+  }
+
+  /**
+   * A memory-mapped file: a header with a magic number and the creation time, then records made of their length, their
+   * content and its CRC32. The length is written last, so a record torn by a crash reads as the end of the segment.
+   */
+  private static final class Segment {
+    private final File file;
+    private final long createdAt;
+    private final MappedByteBuffer buffer;
+    private int position;
+
+    private Segment(File file, long createdAt, MappedByteBuffer buffer, int position) {
+      this.file = file;
+      this.createdAt = createdAt;
+      this.buffer = buffer;
+      this.position = position;
+    }
+
+    private static Segment create(File file, int size, long createdAt) throws IOException {
+      MappedByteBuffer buffer = map(file, size, true);
+      buffer.putInt(0, MAGIC);
+      buffer.putLong(4, createdAt);
+      return new Segment(file, createdAt, buffer, HEADER_BYTES);
+    }
+
+    @CheckForNull
+    private static Segment open(File file) throws IOException {
+      if (file.length() < HEADER_BYTES || file.length() > Integer.MAX_VALUE) {
+        return null;
+      }
+      MappedByteBuffer buffer = map(file, (int) file.length(), false);
+      if (buffer.getInt(0) != MAGIC) {
+        return null;
+      }
+      Segment segment = new Segment(file, buffer.getLong(4), buffer, HEADER_BYTES);
+      segment.forEach((offset, record) -> segment.position = offset + 8 + record.length);
+      return segment;
+    }
+
+    private static MappedByteBuffer map(File file, int size, boolean create) throws IOException {
+      try (FileChannel channel = create
+        ? FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)
+        : FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+        // the mapping stays valid once the channel is closed
+        return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      }
+    }
+
+    private int remaining() {
+      return buffer.capacity() - position;
+    }
+
+    private int append(byte[] record) {
+      int offset = position;
+      ByteBuffer view = buffer.duplicate();
+      view.position(offset + 4);
+      view.put(record);
+      view.putInt((int) crc(record));
+      buffer.putInt(offset, record.length);
+      position = offset + 8 + record.length;
+      return offset;
+    }
+
+    private byte[] read(int offset) throws IOException {
+      byte[] record = readAt(offset);
+      if (record == null) {
+        throw new IOException("Corrupted record at offset " + offset + " of " + file);
+      }
+      return record;
+    }
+
+    @CheckForNull
+    private byte[] readAt(int offset) {
+      if (offset + 8 > buffer.capacity()) {
+        return null;
+      }
+      int length = buffer.getInt(offset);
+      if (length <= 0 || offset + 8L + length > buffer.capacity()) {
+        return null;
+      }
+      byte[] record = new byte[length];
+      ByteBuffer view = buffer.duplicate();
+      view.position(offset + 4);
+      view.get(record);
+      if (view.getInt() != (int) crc(record)) {
+        return null;
+      }
+      return record;
+    }
+
+    private void forEach(RecordVisitor visitor) {
+      int offset = HEADER_BYTES;
+      byte[] record;
+      while ((record = readAt(offset)) != null) {
+        visitor.visit(offset, record);
+        offset += 8 + record.length;
+      }
+    }
+
+    private static long crc(byte[] record) {
+      CRC32 crc = new CRC32();
+      crc.update(record, 0, record.length);
+      return crc.getValue();
+    }
+  }
+
+  @FunctionalInterface
+  private interface RecordVisitor {
+    void visit(int offset, byte[] record);
+  }
+}
@@ -0,0 +1,181 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.jenkins.pipeline;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.Ticker;
+import com.google.common.annotations.VisibleForTesting;
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.sonarsource.scanner.jenkins.pipeline.SonarQubeWebHook.WebhookEvent;
+
+/**
+ * Listeners of the webhooks received from SonarQube, indexed by the id of the CE task they wait for, so that an event
+ * is only dispatched to the listeners of its task, whatever the number of paused pipelines.
+ * <p>
+ * Registrations are leases: the listeners of a task are dropped when nobody registered for it during
+ * {@link #DEFAULT_LEASE}, so that a listener nobody unregisters does not leak. Registering again renews the lease.
+ * Tasks awaited by a {@link StepExecution} are not leased, since the execution unregisters itself when it ends, however
+ * long it waits.
+ *
+ * @since 2.16
+ */
+public class WebhookListenerRegistry {
+  private static final Logger LOGGER = Logger.getLogger(WebhookListenerRegistry.class.getName());
+  static final Duration DEFAULT_LEASE = Duration.ofHours(Long.getLong(WebhookListenerRegistry.class.getName() + ".leaseHours", 24L));
+
+  private final Cache<String, Set<Consumer<WebhookEvent>>> listenersByTaskId;
+  private final List<Consumer<WebhookEvent>> globalListeners = new CopyOnWriteArrayList<>();
+
+  WebhookListenerRegistry() {
+    this(DEFAULT_LEASE, Ticker.systemTicker());
+  }
+
+  @VisibleForTesting
+  WebhookListenerRegistry(Duration lease, Ticker ticker) {
+    this.listenersByTaskId = Caffeine.newBuilder()
+      .expireAfter(new Lease(lease.toNanos()))
+      .ticker(ticker)
+      .removalListener((String taskId, Set<Consumer<WebhookEvent>> listeners, RemovalCause cause) -> {
+        if (cause == RemovalCause.EXPIRED && listeners != null && !listeners.isEmpty()) {
+          LOGGER.warning(() -> "Lease of the " + listeners.size() + " webhook listener(s) of task " + taskId + " expired, they will not be notified");
+        }
+      })
+      .build();
+  }
+
+  /**
+   * Registers a listener for the webhooks of a task, or renews its lease if it is already registered.
+   */
+  public void register(String taskId, Consumer<WebhookEvent> listener) {
+    listenersByTaskId.asMap().compute(taskId, (id, listeners) -> {
+      Set<Consumer<WebhookEvent>> set = listeners != null ? listeners : ConcurrentHashMap.newKeySet();
+      set.add(listener);
+      return set;
+    });
+  }
+
+  public void unregister(String taskId, Consumer<WebhookEvent> listener) {
+    listenersByTaskId.asMap().computeIfPresent(taskId, (id, listeners) -> {
+      listeners.remove(listener);
+      return listeners.isEmpty() ? null : listeners;
+    });
+  }
+
+  /**
+   * Registers a listener receiving the webhooks of all tasks. Such listeners are not leased.
+   */
+  public void registerForAllTasks(Consumer<WebhookEvent> listener) {
+    globalListeners.add(listener);
+  }
+
+  public void unregisterForAllTasks(Consumer<WebhookEvent> listener) {
+    globalListeners.remove(listener);
+  }
+
+  public boolean isRegistered(String taskId) {
+    return listenersByTaskId.getIfPresent(taskId) != null;
+  }
+
+  /**
+   * @return number of listeners the event was dispatched to
+   */
+  int dispatch(WebhookEvent event) {
+    int dispatched = 0;
+    for (Consumer<WebhookEvent> listener : globalListeners) {
+      listener.accept(event);
+      dispatched++;
+    }
+    // webhooks of analyses nobody waits for are the common case, they stop here
+    Set<Consumer<WebhookEvent>> listeners = listenersByTaskId.getIfPresent(event.getPayload().getTaskId());
+    if (listeners == null) {
+      return dispatched;
+    }
+    for (Consumer<WebhookEvent> listener : listeners) {
+      listener.accept(event);
+      dispatched++;
+    }
+    return dispatched;
+  }
+
+  /**
+   * @return number of tasks having at least one listener
+   */
+  public long getTaskCount() {
+    listenersByTaskId.cleanUp();
+    return listenersByTaskId.estimatedSize();
+  }
+
+  @VisibleForTesting
+  boolean isEmpty() {
+    listenersByTaskId.cleanUp();
+    return globalListeners.isEmpty() && listenersByTaskId.asMap().isEmpty();
+  }
+
+  /**
+   * Leases the listeners of a task, unless one of them is a step execution.
+   */
+  private static final class Lease implements Expiry<String, Set<Consumer<WebhookEvent>>> {
+    private final long leaseNanos;
+
+    private Lease(long leaseNanos) {
+      this.leaseNanos = leaseNanos;
+    }
+
+    private long lifetime(Set<Consumer<WebhookEvent>> listeners) {
+      for (Consumer<WebhookEvent> listener : listeners) {
+        if (listener instanceof StepExecution) {
+          return Long.MAX_VALUE;
+        }
+      }
+      return leaseNanos;
+    }
+
+    @Override
+    public long expireAfterCreate(String taskId, Set<Consumer<WebhookEvent>> listeners, long currentTime) {
+      return lifetime(listeners);
+    }
+
+    @Override
+    public long expireAfterUpdate(String taskId, Set<Consumer<WebhookEvent>> listeners, long currentTime, long currentDuration) {
+      return lifetime(listeners);
+    }
+
+    @Override
+    public long expireAfterRead(String taskId, Set<Consumer<WebhookEvent>> listeners, long currentTime, long currentDuration) {
+      return currentDuration;
+    }
+  }
+
+  @VisibleForTesting
+  void clear() {
+    globalListeners.clear();
+    listenersByTaskId.invalidateAll();
+  }
+}
@@ -0,0 +1,187 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.jenkins.pipeline;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.common.annotations.VisibleForTesting;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.sonarsource.scanner.jenkins.pipeline.SonarQubeWebHook.WebhookEvent;
+
+/**
+ * Decouples the reception of webhooks from their processing: the HTTP request only enqueues the event, a few worker
+ * threads dispatch it to the waiting steps. A delivery of a task whose previous delivery is still queued replaces it
+ * instead of being queued again.
+ * <p>
+ * Under overload, deliveries are refused so that SonarQube retries them later: when a source sends more than its rate
+ * limit, or when the queue is full.
+ *
+ * @since 2.16
+ */
+public class WebhookQueue {
+  private static final Logger LOGGER = Logger.getLogger(WebhookQueue.class.getName());
+  private static final String PREFIX = WebhookQueue.class.getName();
+  private static final int DEFAULT_CAPACITY = Integer.getInteger(PREFIX + ".capacity", 1000);
+  private static final int DEFAULT_WORKERS = Integer.getInteger(PREFIX + ".workers", 2);
+  private static final int DEFAULT_RATE_PER_SOURCE = Integer.getInteger(PREFIX + ".ratePerSource", 50);
+  private static final int DEFAULT_BURST_PER_SOURCE = Integer.getInteger(PREFIX + ".burstPerSource", 200);
+
+  public enum Outcome {
+    ACCEPTED,
+    /**
+     * Replaced a delivery of the same task which was still queued.
+     */
+    COLLAPSED,
+    THROTTLED,
+    FULL
+  }
+
+  private final ThreadPoolExecutor executor;
+  private final Consumer<WebhookEvent> processor;
+  private final Map<String, WebhookEvent> pending = new ConcurrentHashMap<>();
+  private final double ratePerSource;
+  private final int burstPerSource;
+  private final LongSupplier nanoClock;
+  private final Cache<String, TokenBucket> buckets = Caffeine.newBuilder()
+    .expireAfterAccess(10, TimeUnit.MINUTES)
+    .build();
+
+  private final LongAdder accepted = new LongAdder();
+  private final LongAdder collapsed = new LongAdder();
+  private final LongAdder throttled = new LongAdder();
+  private final LongAdder rejected = new LongAdder();
+  private final LongAdder processed = new LongAdder();
+
+  WebhookQueue(Consumer<WebhookEvent> processor) {
+    this(newExecutor(DEFAULT_WORKERS, DEFAULT_CAPACITY), processor, DEFAULT_RATE_PER_SOURCE, DEFAULT_BURST_PER_SOURCE, System::nanoTime);
+  }
+
+  @VisibleForTesting
+  WebhookQueue(ThreadPoolExecutor executor, Consumer<WebhookEvent> processor, double ratePerSource, int burstPerSource, LongSupplier nanoClock) {
+    this.executor = executor;
+    this.processor = processor;
+    this.ratePerSource = ratePerSource;
+    this.burstPerSource = burstPerSource;
+    this.nanoClock = nanoClock;
+  }
+
+  @VisibleForTesting
+  static ThreadPoolExecutor newExecutor(int workers, int capacity) {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(capacity),
+      new NamingThreadFactory(new DaemonThreadFactory(), "SonarQube webhook"));
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /**
+   * Cheap check done before reading the request.
+   *
+   * @return false if the source exceeded its rate limit
+   */
+  boolean tryAcquire(String source) {
+    TokenBucket bucket = buckets.get(source, s -> new TokenBucket(ratePerSource, burstPerSource, nanoClock.getAsLong()));
+    if (bucket.tryAcquire(nanoClock.getAsLong())) {
+      return true;
+    }
+    throttled.increment();
+    LOGGER.fine(() -> "Throttling webhooks from " + source);
+    return false;
+  }
+
+  Outcome offer(WebhookEvent event) {
+    String taskId = event.getPayload().getTaskId();
+    if (pending.put(taskId, event) != null) {
+      // the queued delivery will pick up this event
+      collapsed.increment();
+      return Outcome.COLLAPSED;
+    }
+    try {
+      executor.execute(() -> process(taskId));
+    } catch (RejectedExecutionException e) {
+      // also drops a delivery collapsed meanwhile, which would otherwise wait forever for a worker
+      pending.remove(taskId);
+      rejected.increment();
+      LOGGER.fine(() -> "Webhook queue is full, rejecting the webhook of task " + taskId);
+      return Outcome.FULL;
+    }
+    accepted.increment();
+    return Outcome.ACCEPTED;
+  }
+
+  private void process(String taskId) {
+    WebhookEvent event = pending.remove(taskId);
+    if (event == null) {
+      return;
+    }
+    try {
+      processor.accept(event);
+    } catch (RuntimeException e) {
+      LOGGER.log(Level.WARNING, e, () -> "Unable to process the webhook of task " + taskId);
+    } finally {
+      processed.increment();
+    }
+  }
+
+  /**
+   * @return number of deliveries waiting for a worker
+   */
+  public int getDepth() {
+    return executor.getQueue().size();
+  }
+
+  public int getCapacity() {
+    return executor.getQueue().size() + executor.getQueue().remainingCapacity();
+  }
+
+  public long getAccepted() {
+    return accepted.sum();
+  }
+
+  public long getCollapsed() {
+    return collapsed.sum();
+  }
+
+  public long getThrottled() {
+    return throttled.sum();
+  }
+
+  /**
+   * @return number of deliveries dropped because the queue was full
+   */
+  public long getRejected() {
+    return rejected.sum();
+  }
+
+  public long getProcessed() {
+    return processed.sum();
+  }
+}
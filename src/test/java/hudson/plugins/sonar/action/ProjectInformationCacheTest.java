@@ -0,0 +1,266 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package hudson.plugins.sonar.action;
+
+import hudson.model.Run;
+import hudson.plugins.sonar.client.BulkProjectResolver;
+import hudson.plugins.sonar.client.ProjectInformation;
+import hudson.plugins.sonar.client.SQProjectResolver;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ProjectInformationCacheTest {
+  private ProjectInformationCache cache;
+  private SQProjectResolver resolver;
+  private BulkProjectResolver bulkResolver;
+
+  @Before
+  public void setUp() {
+    resolver = mock(SQProjectResolver.class);
+    when(resolver.resolveAsync(any(), any(), any(), any(), any())).thenReturn(CompletableFuture.completedFuture(null));
+    bulkResolver = new BulkProjectResolver(resolver, 4);
+    cache = new ProjectInformationCache(100_000, 100);
+  }
+
+  @Test
+  public void testCacheInvalidation() {
+    // task done -> always valid
+    assertThat(ProjectInformationCache.isEntryValid(createProj(0, "success"), 0)).isTrue();
+    assertThat(ProjectInformationCache.isEntryValid(createProj(0, "failed"), 0)).isTrue();
+    assertThat(ProjectInformationCache.isEntryValid(createProj(0, "canceled"), 0)).isTrue();
+
+    // task not done -> not valid
+    assertThat(ProjectInformationCache.isEntryValid(createProj(0, "pending"), 0)).isFalse();
+
+    // no ce task -> depends on time of last update and on time of last build
+    assertThat(ProjectInformationCache.isEntryValid(createProj(now(), null), now())).isFalse();
+    assertThat(ProjectInformationCache.isEntryValid(createProj(now(), null), now() - tenMinutes())).isTrue();
+    assertThat(ProjectInformationCache.isEntryValid(createProj(now() - tenMinutes(), null), now() - 2 * tenMinutes())).isTrue();
+
+    assertThat(ProjectInformationCache.isEntryValid(createProj(now() - tenMinutes(), null), now() - tenMinutes())).isFalse();
+    assertThat(ProjectInformationCache.isEntryValid(createProj(now() - tenMinutes(), null), now())).isFalse();
+  }
+
+  @Test
+  public void testResolve() {
+    SonarAnalysisAction analysis = new SonarAnalysisAction("inst", "credId", null);
+    analysis.setCeTaskId("taskId");
+    analysis.setUrl("projUrl");
+    analysis.setServerUrl("serverUrl");
+    Run<?, ?> run = mock(Run.class);
+
+    cache.refresh(bulkResolver, 0, Collections.singletonList(analysis), run);
+    verify(resolver).resolveAsync("serverUrl", "projUrl", "taskId", "inst", run);
+  }
+
+  @Test
+  public void testResolveUsingInstallationUrl() {
+    SonarAnalysisAction analysis = new SonarAnalysisAction("inst", "credId", "installationUrl");
+    analysis.setCeTaskId("taskId");
+    analysis.setUrl("projUrl");
+    analysis.setServerUrl("serverUrl");
+    Run<?, ?> run = mock(Run.class);
+
+    cache.refresh(bulkResolver, 0, Collections.singletonList(analysis), run);
+    verify(resolver).resolveAsync("installationUrl", "projUrl", "taskId", "inst", run);
+  }
+
+  @Test
+  public void testResponseCached() {
+    ProjectInformation mocked1 = createProj(now(), "success");
+    ProjectInformation mocked2 = createProj(now(), "error");
+    SonarAnalysisAction analysis1 = createAnalysis("serverUrl", "projUrl", "taskId1");
+    SonarAnalysisAction analysis2 = createAnalysis("serverUrl", "projUrl", "taskId2");
+    List<SonarAnalysisAction> first = Collections.singletonList(analysis1);
+    List<SonarAnalysisAction> both = Arrays.asList(analysis1, analysis2);
+    Run<?, ?> run = mock(Run.class);
+
+    when(resolver.resolveAsync(analysis1.getServerUrl(), analysis1.getUrl(), Objects.requireNonNull(analysis1.getCeTaskId()), analysis1.getInstallationName(), run)).thenReturn(CompletableFuture.completedFuture(mocked1));
+    when(resolver.resolveAsync(analysis2.getServerUrl(), analysis2.getUrl(), Objects.requireNonNull(analysis2.getCeTaskId()), analysis2.getInstallationName(), run)).thenReturn(CompletableFuture.completedFuture(mocked2));
+
+    assertThat(cache.refresh(bulkResolver, 0, first, run).join()).containsExactly(mocked1);
+    assertThat(cache.isStale(first)).isFalse();
+    assertThat(cache.peek(first)).containsExactly(mocked1);
+
+    // the second analysis was never looked up
+    assertThat(cache.isStale(both)).isTrue();
+    assertThat(cache.peek(both)).containsExactly(mocked1);
+
+    // only the missing task is resolved, the completed one being served from the cache
+    List<ProjectInformation> projs = cache.refresh(bulkResolver, 0, both, run).join();
+    assertThat(projs).hasSize(2);
+    assertThat(projs.get(1).getCeStatus()).isEqualTo("error");
+    verify(resolver, times(1)).resolveAsync(analysis1.getServerUrl(), analysis1.getUrl(), Objects.requireNonNull(analysis1.getCeTaskId()), analysis1.getInstallationName(), run);
+    verify(resolver, times(1)).resolveAsync(analysis2.getServerUrl(), analysis2.getUrl(), Objects.requireNonNull(analysis2.getCeTaskId()), analysis2.getInstallationName(), run);
+  }
+
+  @Test
+  public void testCacheWithCE() {
+    ProjectInformation proj = createProj(now(), "success");
+    SonarAnalysisAction analysis = createAnalysis("serverUrl", "projUrl1", "taskId");
+    Run<?, ?> run = mock(Run.class);
+    when(resolver.resolveAsync("serverUrl", "projUrl1", "taskId", "inst", run)).thenReturn(CompletableFuture.completedFuture(proj));
+
+    List<ProjectInformation> info1 = cache.refresh(bulkResolver, 0, Collections.singletonList(analysis), run).join();
+    assertThat(info1).hasSize(1);
+    assertThat(info1.get(0).getCeStatus()).isEqualTo("success");
+    assertThat(info1.get(0).getStatus()).isEqualTo("OK");
+
+    List<ProjectInformation> info2 = cache.refresh(bulkResolver, 0, Collections.singletonList(analysis), run).join();
+
+    assertThat(info1).isEqualTo(info2);
+    verify(resolver, times(1)).resolveAsync("serverUrl", "projUrl1", "taskId", "inst", run);
+  }
+
+  @Test
+  public void testRefreshDoesNotWait() {
+    ProjectInformation proj = createProj(now(), "success");
+    SonarAnalysisAction analysis = createAnalysis("serverUrl", "projUrl1", "taskId");
+    List<SonarAnalysisAction> analyses = Collections.singletonList(analysis);
+    Run<?, ?> run = mock(Run.class);
+    CompletableFuture<ProjectInformation> pending = new CompletableFuture<>();
+    when(resolver.resolveAsync("serverUrl", "projUrl1", "taskId", "inst", run)).thenReturn(pending);
+
+    assertThat(cache.isStale(analyses)).isTrue();
+    CompletableFuture<List<ProjectInformation>> refresh = cache.refresh(bulkResolver, 0, analyses, run);
+    assertThat(refresh).isNotDone();
+    // a second refresh while the first lookup is still running must not trigger another request
+    CompletableFuture<List<ProjectInformation>> refresh2 = cache.refresh(bulkResolver, 0, analyses, run);
+    verify(resolver, times(1)).resolveAsync("serverUrl", "projUrl1", "taskId", "inst", run);
+    assertThat(cache.peek(analyses)).isEmpty();
+    assertThat(cache.getLastRequest(analyses)).isNull();
+
+    pending.complete(proj);
+    assertThat(refresh.getNow(null)).containsExactly(proj);
+    assertThat(refresh2.getNow(null)).containsExactly(proj);
+    assertThat(cache.isStale(analyses)).isFalse();
+    assertThat(cache.getLastRequest(analyses)).isNotNull();
+    assertThat(cache.peek(analyses)).containsExactly(proj);
+  }
+
+  @Test
+  public void testPeekServesStaleEntries() {
+    ProjectInformation proj = createProj(now(), "pending");
+    SonarAnalysisAction analysis = createAnalysis("serverUrl", "projUrl1", "taskId");
+    List<SonarAnalysisAction> analyses = Collections.singletonList(analysis);
+    long old = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(40);
+
+    cache.seed(Collections.singletonMap("taskId", proj));
+    cache.snapshot(ProjectInformationCache.taskIds(analyses), Collections.singletonList(proj), old);
+
+    assertThat(cache.isStale(analyses)).isTrue();
+    assertThat(cache.getLastRequest(analyses)).isEqualTo(old);
+    assertThat(cache.peek(analyses)).containsExactly(proj);
+    verify(resolver, times(0)).resolveAsync(any(), any(), any(), any(), any());
+  }
+
+  @Test
+  public void testSnapshotNotReplacedByOlderOne() {
+    ProjectInformation proj = createProj(now(), "success");
+    List<SonarAnalysisAction> analyses = Collections.singletonList(createAnalysis("serverUrl", "projUrl1", "taskId"));
+    long now = System.currentTimeMillis();
+
+    cache.snapshot(ProjectInformationCache.taskIds(analyses), Collections.singletonList(proj), now);
+    cache.snapshot(ProjectInformationCache.taskIds(analyses), Collections.emptyList(), now - TimeUnit.SECONDS.toMillis(40));
+
+    assertThat(cache.getLastRequest(analyses)).isEqualTo(now);
+    assertThat(cache.peek(analyses)).containsExactly(proj);
+  }
+
+  @Test
+  public void testDuplicatedTaskResolvedOnce() {
+    ProjectInformation proj = createProj(now(), "success");
+    SonarAnalysisAction analysis1 = createAnalysis("serverUrl", "projUrl1", "taskId");
+    SonarAnalysisAction analysis2 = createAnalysis("serverUrl", "projUrl1", "taskId");
+    Run<?, ?> run = mock(Run.class);
+    when(resolver.resolveAsync("serverUrl", "projUrl1", "taskId", "inst", run)).thenReturn(CompletableFuture.completedFuture(proj));
+
+    assertThat(cache.refresh(bulkResolver, 0, Arrays.asList(analysis1, analysis2), run).join()).containsExactly(proj);
+    verify(resolver, times(1)).resolveAsync("serverUrl", "projUrl1", "taskId", "inst", run);
+  }
+
+  @Test
+  public void testSeedDoesNotReplaceKnownEntries() {
+    ProjectInformation known = createProj(now(), "success");
+    ProjectInformation legacy = createProj(now(), "pending");
+    SonarAnalysisAction analysis = createAnalysis("serverUrl", "projUrl1", "taskId");
+    Run<?, ?> run = mock(Run.class);
+    when(resolver.resolveAsync("serverUrl", "projUrl1", "taskId", "inst", run)).thenReturn(CompletableFuture.completedFuture(known));
+    cache.refresh(bulkResolver, 0, Collections.singletonList(analysis), run);
+
+    cache.seed(Collections.singletonMap("taskId", legacy));
+    cache.seed(Collections.singletonMap("taskId2", legacy));
+
+    assertThat(cache.getIfPresent("taskId")).isSameAs(known);
+    assertThat(cache.getIfPresent("taskId2")).isSameAs(legacy);
+  }
+
+  @Test
+  public void testBoundedByWeight() {
+    ProjectInformation proj = new ProjectInformation();
+    proj.setName("name");
+    proj.setUrl("http://sonar/dashboard?id=name");
+    proj.setErrors(new String[] {"some error"});
+    assertThat(ProjectInformationCache.weigh(proj)).isEqualTo(64 + 4 + 30 + 10);
+
+    cache = new ProjectInformationCache(10 * (64 + 4 + 30 + 10 + "taskId00".length()), 100);
+    for (int i = 0; i < 100; i++) {
+      cache.seed(Collections.singletonMap(String.format("taskId%02d", i), proj));
+    }
+    assertThat(cache.size()).isLessThanOrEqualTo(10);
+  }
+
+  private SonarAnalysisAction createAnalysis(String serverUrl, String url, String taskId) {
+    SonarAnalysisAction analysis = new SonarAnalysisAction("inst", "credId", null);
+    analysis.setServerUrl(serverUrl);
+    analysis.setCeTaskId(taskId);
+    analysis.setUrl(url);
+    return analysis;
+  }
+
+  private static long now() {
+    return System.currentTimeMillis();
+  }
+
+  private static long tenMinutes() {
+    return 1000 * 10 * 60;
+  }
+
+  private static ProjectInformation createProj(long creationTime, String ceTaskStatus) {
+    ProjectInformation proj = mock(ProjectInformation.class);
+    when(proj.created()).thenReturn(creationTime);
+    when(proj.getCeStatus()).thenReturn(ceTaskStatus);
+    when(proj.getStatus()).thenReturn("OK");
+    return proj;
+  }
+}
@@ -22,26 +22,44 @@ package hudson.plugins.sonar.action;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.Action;
+import hudson.plugins.sonar.client.BulkProjectResolver;
+import hudson.plugins.sonar.client.ProjectInformation;
+import hudson.plugins.sonar.client.SQProjectResolver;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import org.junit.Before;
 import org.junit.Test;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class SonarProjectActionFactoryTest {
   private SonarProjectActionFactory factory;
   private AbstractProject project;
+  private SQProjectResolver resolver;
+  private Queue<Runnable> refreshes;
+  private ProjectInformationCache cache;
 
   @Before
   public void setUp() {
-    factory = new SonarProjectActionFactory();
+    resolver = mock(SQProjectResolver.class);
+    refreshes = new ArrayDeque<>();
+    cache = new ProjectInformationCache(100_000, 100);
+    factory = new SonarProjectActionFactory(new BulkProjectResolver(resolver, 4), refreshes::add, cache);
     project = mock(AbstractProject.class);
+    when(project.getFullName()).thenReturn("job");
   }
 
   @Test
@@ -109,6 +127,62 @@ public class SonarProjectActionFactoryTest {
     assertThat(actions).isEmpty();
   }
 
+  @Test
+  public void testServesCachedInformationAndRefreshesInBackground() {
+    SonarAnalysisAction info = createBuildInfo("url1");
+    info.setCeTaskId("taskId");
+    info.setServerUrl("serverUrl");
+    AbstractBuild build = mockProject(true, info);
+    List<SonarAnalysisAction> analyses = Collections.singletonList(info);
+    ProjectInformation proj = mock(ProjectInformation.class);
+    when(proj.getCeStatus()).thenReturn("success");
+    CompletableFuture<ProjectInformation> pending = new CompletableFuture<>();
+    when(resolver.resolveAsync("serverUrl", "url1", "taskId", "inst", build)).thenReturn(pending);
+
+    // nothing cached yet: the page is rendered without quality gate and a single refresh is scheduled
+    assertThat(factory.createFor(project)).hasSize(1);
+    assertThat(factory.createFor(project)).hasSize(1);
+    assertThat(refreshes).hasSize(1);
+    assertThat(factory.isRefreshing(project)).isTrue();
+    verify(resolver, never()).resolveAsync(any(), any(), any(), any(), any());
+
+    refreshes.poll().run();
+    assertThat(factory.isRefreshing(project)).isTrue();
+    pending.complete(proj);
+    assertThat(factory.isRefreshing(project)).isFalse();
+
+    Collection<? extends Action> actions = factory.createFor(project);
+    assertThat(actions).hasSize(2);
+    SonarProjectPageAction page = actions.stream().filter(SonarProjectPageAction.class::isInstance).map(SonarProjectPageAction.class::cast).findFirst().get();
+    assertThat(page.getProjects()).containsExactly(proj);
+    assertThat(page.getLastRefresh()).isEqualTo(cache.getLastRequest(analyses));
+    // nothing is stored in the build anymore
+    verify(build, never()).addAction(any());
+    // fresh information does not need to be refreshed
+    assertThat(refreshes).isEmpty();
+
+    // stale information is still displayed while being refreshed
+    cache = new ProjectInformationCache(100_000, 100);
+    cache.seed(Collections.singletonMap("taskId", proj));
+    cache.snapshot(ProjectInformationCache.taskIds(analyses), Collections.singletonList(proj), System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(40));
+    factory = new SonarProjectActionFactory(new BulkProjectResolver(resolver, 4), refreshes::add, cache);
+    assertThat(factory.createFor(project)).hasSize(2);
+    assertThat(refreshes).hasSize(1);
+  }
+
+  @Test
+  public void testRejectedRefreshIsRetried() {
+    SonarAnalysisAction info = createBuildInfo("url1");
+    info.setCeTaskId("taskId");
+    mockProject(true, info);
+    factory = new SonarProjectActionFactory(new BulkProjectResolver(resolver, 4), r -> {
+      throw new RejectedExecutionException();
+    }, cache);
+
+    assertThat(factory.createFor(project)).hasSize(1);
+    assertThat(factory.isRefreshing(project)).isFalse();
+  }
+
   private static SonarAnalysisAction createBuildInfo(String url) {
     SonarAnalysisAction buildInfo = new SonarAnalysisAction("inst", "credId", null);
     buildInfo.setUrl(url);
@@ -128,7 +202,7 @@ public class SonarProjectActionFactoryTest {
     return list;
   }
 
-  private void mockProject(boolean markProject, SonarAnalysisAction... buildInfos) {
+  private AbstractBuild mockProject(boolean markProject, SonarAnalysisAction... buildInfos) {
     AbstractBuild build = mock(AbstractBuild.class);
     when(project.getLastCompletedBuild()).thenReturn(build);
 
@@ -136,5 +210,6 @@ public class SonarProjectActionFactoryTest {
       when(build.getActions(SonarAnalysisAction.class)).thenReturn(Arrays.asList(buildInfos));
       when(project.getActions()).thenReturn(Collections.singletonList(new SonarMarkerAction()));
     }
+    return build;
   }
 }
@@ -0,0 +1,116 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package hudson.plugins.sonar.client;
+
+import hudson.model.Run;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class BulkProjectResolverTest {
+  private final SQProjectResolver resolver = mock(SQProjectResolver.class);
+  private final Run<?, ?> run = mock(Run.class);
+  private final List<CompletableFuture<ProjectInformation>> started = new ArrayList<>();
+
+  @Before
+  public void setUp() {
+    when(resolver.resolveAsync(any(), any(), any(), any(), any())).then(invocation -> {
+      CompletableFuture<ProjectInformation> future = new CompletableFuture<>();
+      started.add(future);
+      return future;
+    });
+  }
+
+  @Test
+  public void should_cap_concurrent_lookups_per_server() {
+    BulkProjectResolver bulk = new BulkProjectResolver(resolver, 2);
+
+    Map<BulkProjectResolver.Request, CompletableFuture<ProjectInformation>> futures = bulk.submit(Arrays.asList(
+      request("server1", "task1"), request("server1", "task2"), request("server1", "task3"), request("server2", "task4")), run);
+
+    // 2 on server1, 1 on server2
+    assertThat(started).hasSize(3);
+
+    started.get(0).complete(new ProjectInformation());
+    assertThat(started).hasSize(4);
+    assertThat(futures.get(request("server1", "task1"))).isCompleted();
+    assertThat(futures.get(request("server1", "task3"))).isNotDone();
+  }
+
+  @Test
+  public void should_resolve_duplicates_once() {
+    BulkProjectResolver bulk = new BulkProjectResolver(resolver, 2);
+
+    Map<BulkProjectResolver.Request, CompletableFuture<ProjectInformation>> futures = bulk.submit(Arrays.asList(
+      request("server1", "task1"), request("server1", "task1")), run);
+
+    assertThat(futures).hasSize(1);
+    verify(resolver, times(1)).resolveAsync(eq("server1"), any(), eq("task1"), any(), any());
+  }
+
+  @Test
+  public void limiter_should_start_queued_task_when_one_fails() {
+    BulkProjectResolver.ConcurrencyLimiter limiter = new BulkProjectResolver.ConcurrencyLimiter(1);
+    CompletableFuture<String> first = new CompletableFuture<>();
+
+    CompletableFuture<String> firstResult = limiter.submit(() -> first);
+    CompletableFuture<String> secondResult = limiter.submit(() -> CompletableFuture.completedFuture("second"));
+    assertThat(limiter.waiting()).isEqualTo(1);
+
+    first.completeExceptionally(new IllegalStateException());
+
+    assertThat(firstResult).isCompletedExceptionally();
+    assertThat(secondResult).isCompletedWithValue("second");
+    assertThat(limiter.running()).isZero();
+  }
+
+  @Test
+  public void limiter_should_not_grow_the_stack_with_synchronous_tasks() {
+    BulkProjectResolver.ConcurrencyLimiter limiter = new BulkProjectResolver.ConcurrencyLimiter(1);
+    CompletableFuture<String> first = new CompletableFuture<>();
+    limiter.submit(() -> first);
+    List<CompletableFuture<String>> queued = new ArrayList<>();
+    for (int i = 0; i < 100_000; i++) {
+      queued.add(limiter.submit(() -> CompletableFuture.completedFuture("done")));
+    }
+
+    first.complete("first");
+
+    assertThat(queued).allMatch(f -> "done".equals(f.getNow(null)));
+    assertThat(limiter.running()).isZero();
+    assertThat(limiter.waiting()).isZero();
+  }
+
+  private static BulkProjectResolver.Request request(String serverUrl, String taskId) {
+    return new BulkProjectResolver.Request(serverUrl, "projUrl", taskId, "inst");
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package hudson.plugins.sonar.client;
+
+import hudson.plugins.sonar.client.CircuitBreaker.State;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CircuitBreakerTest {
+  private final AtomicLong now = new AtomicLong();
+  private final CircuitBreaker underTest = new CircuitBreaker("http://sonar:9000", 3, 10, TimeUnit.SECONDS, now::get);
+
+  @Test
+  public void should_open_after_consecutive_failures() {
+    underTest.onFailure();
+    underTest.onFailure();
+    underTest.onSuccess();
+    underTest.onFailure();
+    underTest.onFailure();
+    assertThat(underTest.getState()).isEqualTo(State.CLOSED);
+    assertThat(underTest.tryAcquire()).isTrue();
+
+    underTest.onFailure();
+
+    assertThat(underTest.getState()).isEqualTo(State.OPEN);
+    assertThat(underTest.tryAcquire()).isFalse();
+    assertThat(underTest.getRejected()).isEqualTo(1);
+    assertThat(underTest.getTimesOpened()).isEqualTo(1);
+    assertThat(underTest.getFailures()).isEqualTo(5);
+  }
+
+  @Test
+  public void should_let_a_single_probe_through_once_open_duration_elapsed() {
+    open();
+    now.addAndGet(TimeUnit.SECONDS.toNanos(10));
+
+    assertThat(underTest.tryAcquire()).isTrue();
+    assertThat(underTest.getState()).isEqualTo(State.HALF_OPEN);
+    assertThat(underTest.tryAcquire()).isFalse();
+
+    underTest.onSuccess();
+
+    assertThat(underTest.getState()).isEqualTo(State.CLOSED);
+    assertThat(underTest.tryAcquire()).isTrue();
+  }
+
+  @Test
+  public void failed_probe_should_open_again() {
+    open();
+    now.addAndGet(TimeUnit.SECONDS.toNanos(10));
+    assertThat(underTest.tryAcquire()).isTrue();
+
+    underTest.onFailure();
+
+    assertThat(underTest.getState()).isEqualTo(State.OPEN);
+    assertThat(underTest.getTimesOpened()).isEqualTo(2);
+    now.addAndGet(TimeUnit.SECONDS.toNanos(9));
+    assertThat(underTest.tryAcquire()).isFalse();
+  }
+
+  @Test
+  public void released_probe_should_allow_another_one() {
+    open();
+    now.addAndGet(TimeUnit.SECONDS.toNanos(10));
+    assertThat(underTest.tryAcquire()).isTrue();
+
+    underTest.release();
+
+    assertThat(underTest.getState()).isEqualTo(State.HALF_OPEN);
+    assertThat(underTest.tryAcquire()).isTrue();
+  }
+
+  private void open() {
+    for (int i = 0; i < 3; i++) {
+      underTest.onFailure();
+    }
+    assertThat(underTest.getState()).isEqualTo(State.OPEN);
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package hudson.plugins.sonar.client;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ClientMetricsTest {
+  private static final String SERVER = "https://sonar.example.com:443";
+  private final ClientMetrics underTest = new ClientMetrics();
+  private final Request request = new Request.Builder().url("https://sonar.example.com/api/ce/task?id=AXyz").build();
+
+  @Test
+  public void should_record_status_classes_and_latency_buckets() {
+    ClientMetrics.Endpoint endpoint = underTest.endpoint(SERVER, "/api/ce/task");
+    endpoint.record(200, TimeUnit.MILLISECONDS.toNanos(3));
+    endpoint.record(204, TimeUnit.MILLISECONDS.toNanos(40));
+    endpoint.record(404, TimeUnit.MILLISECONDS.toNanos(50));
+    endpoint.record(503, TimeUnit.MILLISECONDS.toNanos(700));
+    endpoint.record(0, TimeUnit.SECONDS.toNanos(60));
+
+    assertThat(underTest.endpoint(SERVER, "/api/ce/task")).isSameAs(endpoint);
+    assertThat(endpoint.getCount()).isEqualTo(5);
+    assertThat(endpoint.getCount(2)).isEqualTo(2);
+    assertThat(endpoint.getCount(4)).isEqualTo(1);
+    assertThat(endpoint.getErrorCount()).isEqualTo(2);
+    assertThat(endpoint.getLatencyBuckets()).containsExactly(1, 0, 0, 2, 0, 0, 0, 1, 0, 0, 0, 0, 1);
+    assertThat(endpoint.getLatencyPercentileMillis(50)).isEqualTo(50);
+    assertThat(endpoint.getLatencyPercentileMillis(80)).isEqualTo(1000);
+    assertThat(endpoint.getLatencyPercentileMillis(95)).isEqualTo(-1);
+    assertThat(endpoint.getMeanLatencyMillis()).isEqualTo(12158);
+  }
+
+  @Test
+  public void interceptor_should_record_calls_and_count_bytes_read() throws IOException {
+    Interceptor.Chain chain = mock(Interceptor.Chain.class);
+    when(chain.request()).thenReturn(request);
+    when(chain.proceed(any())).thenReturn(new Response.Builder().code(200).request(request).protocol(Protocol.HTTP_1_1)
+      .body(ResponseBody.create(MediaType.parse("application/json"), "{\"task\":{}}")).build());
+
+    Response response = underTest.interceptor().intercept(chain);
+    assertThat(response.body().string()).isEqualTo("{\"task\":{}}");
+
+    assertThat(underTest.getEndpoints()).hasSize(1);
+    ClientMetrics.Endpoint endpoint = underTest.getEndpoints().get(0);
+    assertThat(endpoint.getServer()).isEqualTo(SERVER);
+    assertThat(endpoint.getPath()).isEqualTo("/api/ce/task");
+    assertThat(endpoint.getCount(2)).isEqualTo(1);
+    assertThat(endpoint.getBytesRead()).isEqualTo(11);
+  }
+
+  @Test
+  public void interceptor_should_record_network_errors() throws IOException {
+    Interceptor.Chain chain = mock(Interceptor.Chain.class);
+    when(chain.request()).thenReturn(request);
+    when(chain.proceed(any())).thenThrow(new IOException("Connection refused"));
+
+    assertThatThrownBy(() -> underTest.interceptor().intercept(chain)).isInstanceOf(IOException.class);
+
+    assertThat(underTest.getEndpoints().get(0).getCount(0)).isEqualTo(1);
+  }
+
+  @Test
+  public void should_write_prometheus_text_format() {
+    underTest.endpoint(SERVER, "/api/server/version").record(200, TimeUnit.MILLISECONDS.toNanos(7));
+    underTest.endpoint(SERVER, "/api/ce/task").record(500, TimeUnit.MILLISECONDS.toNanos(20));
+
+    StringWriter text = new StringWriter();
+    underTest.writeText(new PrintWriter(text));
+
+    assertThat(text.toString())
+      .contains("# TYPE sonarqube_client_requests_total counter\n")
+      .contains("sonarqube_client_requests_total{server=\"" + SERVER + "\",endpoint=\"/api/ce/task\",status=\"5xx\"} 1\n")
+      .contains("sonarqube_client_requests_total{server=\"" + SERVER + "\",endpoint=\"/api/server/version\",status=\"2xx\"} 1\n")
+      .contains("sonarqube_client_latency_seconds_bucket{server=\"" + SERVER + "\",endpoint=\"/api/server/version\",le=\"0.005\"} 0\n")
+      .contains("sonarqube_client_latency_seconds_bucket{server=\"" + SERVER + "\",endpoint=\"/api/server/version\",le=\"0.010\"} 1\n")
+      .contains("sonarqube_client_latency_seconds_bucket{server=\"" + SERVER + "\",endpoint=\"/api/server/version\",le=\"+Inf\"} 1\n")
+      .contains("sonarqube_client_latency_seconds_count{server=\"" + SERVER + "\",endpoint=\"/api/ce/task\"} 1\n")
+      .doesNotContain("status=\"4xx\"");
+    assertThat(text.toString().indexOf("/api/ce/task")).isLessThan(text.toString().indexOf("/api/server/version"));
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package hudson.plugins.sonar.client;
+
+import hudson.plugins.sonar.SonarInstallation;
+import okhttp3.OkHttpClient;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HttpClientRegistryTest {
+  private final HttpClientRegistry registry = new HttpClientRegistry(new OkHttpClient());
+
+  @Test
+  public void should_reuse_clients_of_an_installation() {
+    SonarInstallation inst = installation("inst1");
+
+    assertThat(registry.getHttpClient(inst)).isSameAs(registry.getHttpClient(inst));
+    assertThat(registry.getWsClient(inst, "http://server", "token")).isSameAs(registry.getWsClient(inst, "http://server", "token"));
+    assertThat(registry.getWsClient(inst, "http://server", "token")).isNotSameAs(registry.getWsClient(inst, "http://server", "other"));
+  }
+
+  @Test
+  public void should_isolate_installations() {
+    assertThat(registry.getHttpClient(installation("inst1"))).isNotSameAs(registry.getHttpClient(installation("inst2")));
+    assertThat(registry.poolCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void should_recreate_client_when_settings_change() {
+    SonarInstallation inst = installation("inst1");
+    HttpClient client = registry.getHttpClient(inst);
+    WsClient wsClient = registry.getWsClient(inst, "http://server", null);
+
+    inst.setMaxRequestsPerHost(20);
+
+    assertThat(registry.getHttpClient(inst)).isNotSameAs(client);
+    assertThat(registry.getWsClient(inst, "http://server", null)).isNotSameAs(wsClient);
+  }
+
+  @Test
+  public void rebuild_should_drop_removed_and_changed_installations() {
+    SonarInstallation inst1 = installation("inst1");
+    SonarInstallation inst2 = installation("inst2");
+    HttpClient client1 = registry.getHttpClient(inst1);
+    registry.getHttpClient(inst2);
+
+    registry.rebuild(installation("inst1"));
+
+    assertThat(registry.poolCount()).isEqualTo(1);
+    assertThat(registry.getHttpClient(inst1)).isSameAs(client1);
+
+    SonarInstallation reconfigured = installation("inst1");
+    reconfigured.setHttp2Disabled(true);
+    registry.rebuild(reconfigured);
+
+    assertThat(registry.poolCount()).isZero();
+  }
+
+  private static SonarInstallation installation(String name) {
+    return new SonarInstallation(name, "http://server", null, null, null, null, null, null, null);
+  }
+}
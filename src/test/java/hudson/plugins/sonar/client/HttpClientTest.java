@@ -19,10 +19,26 @@
  */
 package hudson.plugins.sonar.client;
 
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.BufferedReader;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 import okhttp3.Call;
+import okhttp3.Callback;
 import okhttp3.Credentials;
+import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
 import okhttp3.Protocol;
 import okhttp3.Request;
@@ -38,6 +54,9 @@ import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -98,4 +117,226 @@ public class HttpClientTest {
       .hasMessage("Fail to read response of http://sonarqube.org/");
   }
 
+  @Test
+  public void request_with_decoder_should_decode_body_stream() throws IOException {
+    Response streamed = new Response.Builder().code(200).body(ResponseBody.create(MediaType.parse("application/json"), "{\"a\":1}"))
+      .protocol(Protocol.HTTP_2).request(request).build();
+    when(call.execute()).thenReturn(streamed);
+
+    String content = underTest.getHttp(URL, null, reader -> new BufferedReader(reader).readLine());
+
+    assertThat(content).isEqualTo("{\"a\":1}");
+  }
+
+  @Test
+  public void decoder_io_error_should_throw_illegal_state_exception() throws IOException {
+    Response streamed = new Response.Builder().code(200).body(ResponseBody.create(MediaType.parse("application/json"), "{}"))
+      .protocol(Protocol.HTTP_2).request(request).build();
+    when(call.execute()).thenReturn(streamed);
+
+    assertThatThrownBy(() -> underTest.getHttp(URL, null, reader -> {
+      throw new IOException();
+    }))
+      .isInstanceOf(IllegalStateException.class)
+      .hasMessage("Fail to read response of http://sonarqube.org/");
+  }
+
+  @Test
+  public void async_request_successful_should_complete_with_content() throws IOException {
+    CompletableFuture<String> future = underTest.getHttpAsync(URL, "token");
+    assertThat(future).isNotDone();
+
+    ArgumentCaptor<Callback> callbackCaptor = ArgumentCaptor.forClass(Callback.class);
+    verify(call).enqueue(callbackCaptor.capture());
+    callbackCaptor.getValue().onResponse(call, response);
+
+    assertThat(future.join()).isEqualTo("body");
+  }
+
+  @Test
+  public void async_request_fail_should_complete_with_http_exception() throws IOException {
+    Response failedResponse = new Response.Builder().code(401).body(body).protocol(Protocol.HTTP_2).request(request).build();
+    CompletableFuture<String> future = underTest.getHttpAsync(URL, null);
+
+    ArgumentCaptor<Callback> callbackCaptor = ArgumentCaptor.forClass(Callback.class);
+    verify(call).enqueue(callbackCaptor.capture());
+    callbackCaptor.getValue().onResponse(call, failedResponse);
+
+    assertThatThrownBy(future::join)
+      .hasCauseInstanceOf(HttpException.class)
+      .hasMessageContaining("Error 401 on http://sonarqube.org : body");
+  }
+
+  @Test
+  public void async_network_error_should_complete_with_illegal_state_exception() {
+    CompletableFuture<String> future = underTest.getHttpAsync(URL, null);
+
+    ArgumentCaptor<Callback> callbackCaptor = ArgumentCaptor.forClass(Callback.class);
+    verify(call).enqueue(callbackCaptor.capture());
+    callbackCaptor.getValue().onFailure(call, new IOException());
+
+    assertThatThrownBy(future::join)
+      .hasCauseInstanceOf(IllegalStateException.class)
+      .hasMessageContaining("Fail to request http://sonarqube.org/");
+  }
+
+  @Test
+  public void async_deadline_should_cancel_the_call() {
+    CompletableFuture<String> future = underTest.getHttpAsync(URL, null, Duration.ofMillis(10), MoreExecutors.directExecutor());
+
+    assertThatThrownBy(future::join).hasCauseInstanceOf(TimeoutException.class);
+    verify(call).cancel();
+  }
+
+  @Test
+  public void should_retry_server_errors() throws IOException {
+    HttpClient resilient = new HttpClient(okHttpClient, new ResiliencePolicy(5, 1000, 2, 0, 0, System::nanoTime));
+    Response unavailable = new Response.Builder().code(503).body(mock(ResponseBody.class)).protocol(Protocol.HTTP_2).request(request).build();
+    when(call.execute()).thenReturn(unavailable, response);
+
+    assertThat(resilient.getHttp(URL, null)).isEqualTo("body");
+    verify(call, times(2)).execute();
+  }
+
+  @Test
+  public void should_not_retry_client_errors() throws IOException {
+    HttpClient resilient = new HttpClient(okHttpClient, new ResiliencePolicy(5, 1000, 2, 0, 0, System::nanoTime));
+    Response notFound = new Response.Builder().code(404).body(body).protocol(Protocol.HTTP_2).request(request).build();
+    when(call.execute()).thenReturn(notFound);
+
+    assertThatThrownBy(() -> resilient.getHttp(URL, null)).isInstanceOf(HttpException.class);
+    verify(call).execute();
+  }
+
+  @Test
+  public void should_fail_fast_once_circuit_is_open() throws IOException {
+    HttpClient resilient = new HttpClient(okHttpClient, new ResiliencePolicy(2, 60_000, 0, 0, 0, System::nanoTime));
+    when(call.execute()).thenThrow(new IOException());
+
+    assertThatThrownBy(() -> resilient.getHttp(URL, null)).hasMessage("Fail to request http://sonarqube.org/");
+    assertThatThrownBy(() -> resilient.getHttp(URL, null)).hasMessage("Fail to request http://sonarqube.org/");
+    assertThatThrownBy(() -> resilient.getHttp(URL, null))
+      .isInstanceOf(CircuitOpenException.class)
+      .hasMessageContaining("http://sonarqube.org:80");
+    assertThatThrownBy(() -> resilient.getHttpAsync(URL, null).join()).hasCauseInstanceOf(CircuitOpenException.class);
+    verify(call, times(2)).execute();
+    verify(call, never()).enqueue(any());
+  }
+
+  @Test
+  public void async_should_retry_network_errors() throws IOException {
+    HttpClient resilient = new HttpClient(okHttpClient, new ResiliencePolicy(5, 1000, 2, 0, 0, System::nanoTime));
+    CompletableFuture<String> future = resilient.getHttpAsync(URL, null);
+
+    ArgumentCaptor<Callback> callbackCaptor = ArgumentCaptor.forClass(Callback.class);
+    verify(call).enqueue(callbackCaptor.capture());
+    callbackCaptor.getValue().onFailure(call, new IOException());
+    assertThat(future).isNotDone();
+
+    verify(call, timeout(TimeUnit.SECONDS.toMillis(5)).times(2)).enqueue(callbackCaptor.capture());
+    callbackCaptor.getValue().onResponse(call, response);
+
+    assertThat(future.join()).isEqualTo("body");
+  }
+
+  @Test
+  public void async_cancelled_call_should_not_count_as_failure() {
+    ResiliencePolicy policy = new ResiliencePolicy(1, 60_000, 0, 0, 0, System::nanoTime);
+    HttpClient resilient = new HttpClient(okHttpClient, policy);
+    CompletableFuture<String> future = resilient.getHttpAsync(URL, null);
+
+    ArgumentCaptor<Callback> callbackCaptor = ArgumentCaptor.forClass(Callback.class);
+    verify(call).enqueue(callbackCaptor.capture());
+    future.cancel(true);
+    verify(call).cancel();
+    callbackCaptor.getValue().onFailure(call, new IOException("Canceled"));
+
+    assertThat(policy.getBreakers()).extracting(CircuitBreaker::getFailures).containsExactly(0L);
+  }
+
+  @Test
+  public void concurrent_identical_async_requests_should_be_sent_once() throws Exception {
+    int callers = 64;
+    ExecutorService pool = Executors.newFixedThreadPool(16);
+    CyclicBarrier barrier = new CyclicBarrier(16);
+    try {
+      List<Future<CompletableFuture<String>>> submitted = new ArrayList<>();
+      for (int i = 0; i < callers; i++) {
+        submitted.add(pool.submit(() -> {
+          barrier.await(5, TimeUnit.SECONDS);
+          return underTest.getHttpAsync(URL, "token");
+        }));
+      }
+      List<CompletableFuture<String>> futures = new ArrayList<>();
+      for (Future<CompletableFuture<String>> f : submitted) {
+        futures.add(f.get(5, TimeUnit.SECONDS));
+      }
+
+      ArgumentCaptor<Callback> callbackCaptor = ArgumentCaptor.forClass(Callback.class);
+      verify(okHttpClient).newCall(any());
+      verify(call).enqueue(callbackCaptor.capture());
+      callbackCaptor.getValue().onResponse(call, response);
+
+      assertThat(futures).extracting(CompletableFuture::join).containsOnly("body").hasSize(callers);
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  @Test
+  public void async_requests_should_not_be_coalesced_once_completed_or_when_different() throws IOException {
+    underTest.getHttpAsync(URL, "token");
+    underTest.getHttpAsync(URL, "other");
+    underTest.getHttpAsync(URL + "/other", "token");
+    underTest.getHttpAsync(URL, "token", null, MoreExecutors.directExecutor(), reader -> "decoded");
+    verify(okHttpClient, times(4)).newCall(any());
+
+    ArgumentCaptor<Callback> callbackCaptor = ArgumentCaptor.forClass(Callback.class);
+    verify(call, times(4)).enqueue(callbackCaptor.capture());
+    callbackCaptor.getAllValues().get(0).onResponse(call, response);
+
+    underTest.getHttpAsync(URL, "token");
+    verify(okHttpClient, times(5)).newCall(any());
+  }
+
+  @Test
+  public void cancelling_one_coalesced_request_should_not_cancel_the_others() throws IOException {
+    CompletableFuture<String> first = underTest.getHttpAsync(URL, null);
+    CompletableFuture<String> second = underTest.getHttpAsync(URL, null);
+
+    first.cancel(true);
+    verify(call, never()).cancel();
+
+    ArgumentCaptor<Callback> callbackCaptor = ArgumentCaptor.forClass(Callback.class);
+    verify(call).enqueue(callbackCaptor.capture());
+    callbackCaptor.getValue().onResponse(call, response);
+    assertThat(second.join()).isEqualTo("body");
+  }
+
+  @Test
+  public void concurrent_identical_blocking_requests_should_be_sent_once() throws Exception {
+    CountDownLatch executing = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    when(call.execute()).then(invocation -> {
+      executing.countDown();
+      release.await(5, TimeUnit.SECONDS);
+      return response;
+    });
+    CompletableFuture<String> leader = CompletableFuture.supplyAsync(() -> underTest.getHttp(URL, null));
+    assertThat(executing.await(5, TimeUnit.SECONDS)).isTrue();
+
+    AtomicReference<String> followerResult = new AtomicReference<>();
+    Thread follower = new Thread(() -> followerResult.set(underTest.getHttp(URL, null)));
+    follower.start();
+    while (follower.getState() != Thread.State.WAITING) {
+      Thread.sleep(1);
+    }
+    release.countDown();
+    follower.join(5000);
+
+    assertThat(leader.get(5, TimeUnit.SECONDS)).isEqualTo("body");
+    assertThat(followerResult.get()).isEqualTo("body");
+    verify(call).execute();
+  }
+
 }
@@ -0,0 +1,79 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package hudson.plugins.sonar.client;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import okhttp3.HttpUrl;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ResiliencePolicyTest {
+  private final AtomicLong now = new AtomicLong();
+  private final ResiliencePolicy underTest = new ResiliencePolicy(5, 1000, 2, 100, 1000, now::get);
+
+  @Test
+  public void should_share_breaker_between_urls_of_same_server() {
+    CircuitBreaker breaker = underTest.breaker(HttpUrl.parse("https://sonar.example.com/api/ce/task?id=1"));
+
+    assertThat(underTest.breaker(HttpUrl.parse("https://sonar.example.com:443/api/server/version"))).isSameAs(breaker);
+    assertThat(underTest.breaker(HttpUrl.parse("http://sonar.example.com/api/server/version"))).isNotSameAs(breaker);
+    assertThat(breaker.getServer()).isEqualTo("https://sonar.example.com:443");
+    assertThat(underTest.getBreakers()).hasSize(2);
+  }
+
+  @Test
+  public void should_limit_retries_per_request() {
+    assertThat(underTest.tryRetry(1)).isTrue();
+    assertThat(underTest.tryRetry(2)).isTrue();
+    assertThat(underTest.tryRetry(3)).isFalse();
+    assertThat(underTest.getRetries()).isEqualTo(2);
+  }
+
+  @Test
+  public void should_deny_retries_once_budget_is_spent() {
+    int granted = 0;
+    while (underTest.tryRetry(1)) {
+      granted++;
+    }
+    assertThat(granted).isEqualTo(50);
+    assertThat(underTest.getRetriesDenied()).isEqualTo(1);
+
+    for (int i = 0; i < 11; i++) {
+      underTest.onRequest();
+    }
+    assertThat(underTest.tryRetry(1)).isTrue();
+    assertThat(underTest.tryRetry(1)).isFalse();
+
+    now.addAndGet(TimeUnit.SECONDS.toNanos(2));
+    assertThat(underTest.getRetryBudgetLeft()).isZero();
+    assertThat(underTest.tryRetry(1)).isTrue();
+  }
+
+  @Test
+  public void backoff_should_grow_exponentially_with_jitter_and_cap() {
+    for (int i = 0; i < 20; i++) {
+      assertThat(underTest.backoffMillis(1)).isBetween(50L, 100L);
+      assertThat(underTest.backoffMillis(3)).isBetween(200L, 400L);
+      assertThat(underTest.backoffMillis(10)).isBetween(500L, 1000L);
+    }
+  }
+}
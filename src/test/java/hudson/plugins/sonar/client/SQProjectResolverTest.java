@@ -26,18 +26,22 @@ import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TestName;
-import org.mockito.Mockito;
+import org.mockito.stubbing.Answer;
 
 import java.io.IOException;
+import java.io.StringReader;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
 import org.sonarqube.ws.client.HttpException;
 
+import static java.util.concurrent.CompletableFuture.completedFuture;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.isNull;
 import static org.mockito.ArgumentMatchers.startsWith;
@@ -66,6 +70,7 @@ public class SQProjectResolverTest extends SonarTestCase {
 
   @Before
   public void setUp() {
+    ServerCapabilitiesCache.get().invalidateAll();
     configureDefaultSonar();
     client = mock(HttpClient.class);
     resolver = new SQProjectResolver(client);
@@ -74,16 +79,16 @@ public class SQProjectResolverTest extends SonarTestCase {
   @Test
   public void testSQ56() throws Exception {
     mockSQServer56();
-    ProjectInformation proj = resolver.resolve(SERVER_URL, PROJECT_URL, CE_TASK_ID, testName.getMethodName(), mock(Run.class));
+    ProjectInformation proj = resolver.resolveAsync(SERVER_URL, PROJECT_URL, CE_TASK_ID, testName.getMethodName(), mock(Run.class)).join();
     assertThat(proj).isNotNull();
     assertThat(proj.getCeStatus()).isEqualTo("success");
     assertThat(proj.getStatus()).isEqualTo("OK");
     assertThat(proj.getProjectName()).isEqualTo("SonarLint CLI");
     assertThat(proj.getErrors()).isNullOrEmpty();
 
-    verify(client).getHttp(Mockito.startsWith(SERVER_URL + WsClient.API_PROJECT_STATUS_WITH_ANALYSISID), eq(TOKEN));
-    verify(client).getHttp(Mockito.startsWith(SERVER_URL + WsClient.API_CE_TASK), eq(TOKEN));
-    verify(client).getHttp(Mockito.startsWith(SERVER_URL + WsClient.API_VERSION), isNull());
+    verify(client).getHttpAsync(startsWith(SERVER_URL + WsClient.API_PROJECT_STATUS_WITH_ANALYSISID), eq(TOKEN), any(), any(), any());
+    verify(client).getHttpAsync(startsWith(SERVER_URL + WsClient.API_CE_TASK), eq(TOKEN), any(), any(), any());
+    verify(client).getHttpAsync(eq(SERVER_URL + WsClient.API_VERSION), isNull(), any(), any());
 
     verifyNoMoreInteractions(client);
   }
@@ -91,21 +96,21 @@ public class SQProjectResolverTest extends SonarTestCase {
   @Test
   public void testInvalidServerVersion() {
     configureDefaultSonar();
-    when(client.getHttp(SERVER_URL + WsClient.API_VERSION, null)).thenReturn("5.5");
-    ProjectInformation proj = resolver.resolve(SERVER_URL, PROJECT_URL, CE_TASK_ID, testName.getMethodName(), mock(Run.class));
+    when(client.getHttpAsync(eq(SERVER_URL + WsClient.API_VERSION), isNull(), any(), any())).thenReturn(completedFuture("5.5"));
+    ProjectInformation proj = resolver.resolveAsync(SERVER_URL, PROJECT_URL, CE_TASK_ID, testName.getMethodName(), mock(Run.class)).join();
     assertThat(proj).isNull();
   }
 
   @Test
   public void testInvalidServerUrl() {
-    ProjectInformation proj = resolver.resolve("invalid", PROJECT_URL, CE_TASK_ID, testName.getMethodName(), mock(Run.class));
+    ProjectInformation proj = resolver.resolveAsync("invalid", PROJECT_URL, CE_TASK_ID, testName.getMethodName(), mock(Run.class)).join();
     assertThat(proj).isNull();
   }
 
   @Test
   public void testWsError() {
     mockSQServer(new NullPointerException());
-    ProjectInformation proj = resolver.resolve(SERVER_URL, PROJECT_URL, null, testName.getMethodName(), mock(Run.class));
+    ProjectInformation proj = resolver.resolveAsync(SERVER_URL, PROJECT_URL, null, testName.getMethodName(), mock(Run.class)).join();
     assertThat(proj).isNull();
   }
 
@@ -116,9 +121,9 @@ public class SQProjectResolverTest extends SonarTestCase {
     addCredential(CREDENTIAL_ID, TOKEN);
     configureSonar(inst);
 
-    when(client.getHttp(SERVER_URL + WsClient.API_VERSION, null)).thenReturn("5.6");
-    when(client.getHttp(startsWith(SERVER_URL + WsClient.API_CE_TASK), eq(TOKEN))).thenThrow(new HttpException(SERVER_URL, 404, "oops"));
-    ProjectInformation proj = resolver.resolve(SERVER_URL, PROJECT_URL, null, testName.getMethodName(), mock(Run.class));
+    when(client.getHttpAsync(eq(SERVER_URL + WsClient.API_VERSION), isNull(), any(), any())).thenReturn(completedFuture("5.6"));
+    when(client.getHttpAsync(startsWith(SERVER_URL + WsClient.API_CE_TASK), eq(TOKEN), any(), any(), any())).thenReturn(failed(new HttpException(SERVER_URL, 404, "oops")));
+    ProjectInformation proj = resolver.resolveAsync(SERVER_URL, PROJECT_URL, null, testName.getMethodName(), mock(Run.class)).join();
     assertThat(proj).isNull();
   }
 
@@ -129,16 +134,16 @@ public class SQProjectResolverTest extends SonarTestCase {
     addCredential(CREDENTIAL_ID, TOKEN);
     configureSonar(inst);
 
-    when(client.getHttp(SERVER_URL + WsClient.API_VERSION, null)).thenReturn("5.6");
-    when(client.getHttp(startsWith(SERVER_URL + WsClient.API_CE_TASK), eq(TOKEN))).thenThrow(new HttpException(SERVER_URL, 500, "oops"));
-    ProjectInformation proj = resolver.resolve(SERVER_URL, PROJECT_URL, null, testName.getMethodName(), mock(Run.class));
+    when(client.getHttpAsync(eq(SERVER_URL + WsClient.API_VERSION), isNull(), any(), any())).thenReturn(completedFuture("5.6"));
+    when(client.getHttpAsync(startsWith(SERVER_URL + WsClient.API_CE_TASK), eq(TOKEN), any(), any(), any())).thenReturn(failed(new HttpException(SERVER_URL, 500, "oops")));
+    ProjectInformation proj = resolver.resolveAsync(SERVER_URL, PROJECT_URL, null, testName.getMethodName(), mock(Run.class)).join();
     assertThat(proj).isNull();
   }
 
   @Test
   public void testInvalidInstallation() {
     configureDefaultSonar();
-    ProjectInformation proj = resolver.resolve(SERVER_URL, PROJECT_URL, null, "INVALID", mock(Run.class));
+    ProjectInformation proj = resolver.resolveAsync(SERVER_URL, PROJECT_URL, null, "INVALID", mock(Run.class)).join();
     assertThat(proj).isNull();
   }
 
@@ -146,30 +151,45 @@ public class SQProjectResolverTest extends SonarTestCase {
   public void testServerVersionCached() throws Exception {
     mockSQServer56();
 
-    ProjectInformation proj = resolver.resolve(SERVER_URL, PROJECT_URL, CE_TASK_ID, testName.getMethodName(), mock(Run.class));
+    ProjectInformation proj = resolver.resolveAsync(SERVER_URL, PROJECT_URL, CE_TASK_ID, testName.getMethodName(), mock(Run.class)).join();
 
     assertThat(proj).isNotNull();
-    verify(client, times(1)).getHttp(SERVER_URL + WsClient.API_VERSION, null);
-    verify(client, times(1)).getHttp(startsWith(SERVER_URL + WsClient.API_PROJECT_STATUS_WITH_ANALYSISID), eq(TOKEN));
-    verify(client, times(1)).getHttp(startsWith(SERVER_URL + WsClient.API_CE_TASK), eq(TOKEN));
+    verify(client, times(1)).getHttpAsync(eq(SERVER_URL + WsClient.API_VERSION), isNull(), any(), any());
+    verify(client, times(1)).getHttpAsync(startsWith(SERVER_URL + WsClient.API_PROJECT_STATUS_WITH_ANALYSISID), eq(TOKEN), any(), any(), any());
+    verify(client, times(1)).getHttpAsync(startsWith(SERVER_URL + WsClient.API_CE_TASK), eq(TOKEN), any(), any(), any());
 
     // Calling again should use cached version
-    proj = resolver.resolve(SERVER_URL, PROJECT_URL, CE_TASK_ID, testName.getMethodName(), mock(Run.class));
+    proj = resolver.resolveAsync(SERVER_URL, PROJECT_URL, CE_TASK_ID, testName.getMethodName(), mock(Run.class)).join();
 
     assertThat(proj).isNotNull();
-    verify(client, times(1)).getHttp(SERVER_URL + WsClient.API_VERSION, null);
-    verify(client, times(2)).getHttp(startsWith(SERVER_URL + WsClient.API_PROJECT_STATUS_WITH_ANALYSISID), eq(TOKEN));
-    verify(client, times(2)).getHttp(startsWith(SERVER_URL + WsClient.API_CE_TASK), eq(TOKEN));
+    verify(client, times(1)).getHttpAsync(eq(SERVER_URL + WsClient.API_VERSION), isNull(), any(), any());
+    verify(client, times(2)).getHttpAsync(startsWith(SERVER_URL + WsClient.API_PROJECT_STATUS_WITH_ANALYSISID), eq(TOKEN), any(), any(), any());
+    verify(client, times(2)).getHttpAsync(startsWith(SERVER_URL + WsClient.API_CE_TASK), eq(TOKEN), any(), any(), any());
 
-    SQProjectResolver.INSTANCE_VERSION_CACHE.invalidateAll();
+    ServerCapabilitiesCache.get().invalidateAll();
 
     // Calling again after invaliding the cache entry should call the sever for the version.
-    proj = resolver.resolve(SERVER_URL, PROJECT_URL, CE_TASK_ID, testName.getMethodName(), mock(Run.class));
+    proj = resolver.resolveAsync(SERVER_URL, PROJECT_URL, CE_TASK_ID, testName.getMethodName(), mock(Run.class)).join();
 
     assertThat(proj).isNotNull();
-    verify(client, times(2)).getHttp(SERVER_URL + WsClient.API_VERSION, null);
-    verify(client, times(3)).getHttp(startsWith(SERVER_URL + WsClient.API_PROJECT_STATUS_WITH_ANALYSISID), eq(TOKEN));
-    verify(client, times(3)).getHttp(startsWith(SERVER_URL + WsClient.API_CE_TASK), eq(TOKEN));
+    verify(client, times(2)).getHttpAsync(eq(SERVER_URL + WsClient.API_VERSION), isNull(), any(), any());
+    verify(client, times(3)).getHttpAsync(startsWith(SERVER_URL + WsClient.API_PROJECT_STATUS_WITH_ANALYSISID), eq(TOKEN), any(), any(), any());
+    verify(client, times(3)).getHttpAsync(startsWith(SERVER_URL + WsClient.API_CE_TASK), eq(TOKEN), any(), any(), any());
+  }
+
+  @Test
+  public void testServerVersionProbedOnceForConcurrentLookups() throws Exception {
+    mockSQServer56();
+    CompletableFuture<String> version = new CompletableFuture<>();
+    when(client.getHttpAsync(eq(SERVER_URL + WsClient.API_VERSION), isNull(), any(), any())).thenReturn(version);
+
+    CompletableFuture<ProjectInformation> proj1 = resolver.resolveAsync(SERVER_URL, PROJECT_URL, CE_TASK_ID, testName.getMethodName(), mock(Run.class));
+    CompletableFuture<ProjectInformation> proj2 = resolver.resolveAsync(SERVER_URL, PROJECT_URL, CE_TASK_ID, testName.getMethodName(), mock(Run.class));
+    version.complete("5.6");
+
+    assertThat(proj1.join()).isNotNull();
+    assertThat(proj2.join()).isNotNull();
+    verify(client, times(1)).getHttpAsync(eq(SERVER_URL + WsClient.API_VERSION), isNull(), any(), any());
   }
 
   @Override
@@ -178,7 +198,7 @@ public class SQProjectResolverTest extends SonarTestCase {
   }
 
   private void mockSQServer(Exception toThrow) {
-    when(client.getHttp(SERVER_URL + WsClient.API_VERSION, null)).thenThrow(toThrow);
+    when(client.getHttpAsync(eq(SERVER_URL + WsClient.API_VERSION), isNull(), any(), any())).thenReturn(failed(toThrow));
   }
 
   private void mockSQServer56() throws Exception {
@@ -187,9 +207,22 @@ public class SQProjectResolverTest extends SonarTestCase {
     addCredential(CREDENTIAL_ID, TOKEN);
     configureSonar(inst);
 
-    when(client.getHttp(SERVER_URL + WsClient.API_VERSION, null)).thenReturn("5.6");
-    when(client.getHttp(startsWith(SERVER_URL + WsClient.API_PROJECT_STATUS_WITH_ANALYSISID), eq(TOKEN))).thenReturn(getFile("projectStatus.json"));
-    when(client.getHttp(startsWith(SERVER_URL + WsClient.API_CE_TASK), eq(TOKEN))).thenReturn(getFile("ce_task.json"));
+    when(client.getHttpAsync(eq(SERVER_URL + WsClient.API_VERSION), isNull(), any(), any())).thenReturn(completedFuture("5.6"));
+    when(client.getHttpAsync(startsWith(SERVER_URL + WsClient.API_PROJECT_STATUS_WITH_ANALYSISID), eq(TOKEN), any(), any(), any())).then(decoding(getFile("projectStatus.json")));
+    when(client.getHttpAsync(startsWith(SERVER_URL + WsClient.API_CE_TASK), eq(TOKEN), any(), any(), any())).then(decoding(getFile("ce_task.json")));
+  }
+
+  private static Answer<CompletableFuture<Object>> decoding(String response) {
+    return invocation -> {
+      HttpClient.ResponseDecoder<?> decoder = invocation.getArgument(4);
+      return completedFuture(decoder.decode(new StringReader(response)));
+    };
+  }
+
+  private static <T> CompletableFuture<T> failed(Exception e) {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    future.completeExceptionally(e);
+    return future;
   }
 
   private String getFile(String name) throws IOException, URISyntaxException {
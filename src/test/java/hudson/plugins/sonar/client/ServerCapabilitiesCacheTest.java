@@ -0,0 +1,132 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package hudson.plugins.sonar.client;
+
+import hudson.XmlFile;
+import hudson.plugins.sonar.SonarInstallation;
+import java.io.File;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+public class ServerCapabilitiesCacheTest {
+  private static final String SERVER_URL = "http://localhost:9000";
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private final AtomicLong ticker = new AtomicLong();
+  private final WsClient wsClient = mock(WsClient.class);
+  private XmlFile file;
+  private final ServerCapabilitiesCache underTest = new ServerCapabilitiesCache(() -> file, ticker::get, Runnable::run);
+
+  @Test
+  public void should_probe_server_once_for_concurrent_lookups() {
+    CompletableFuture<String> version = new CompletableFuture<>();
+    when(wsClient.getServerVersionAsync()).thenReturn(version);
+
+    CompletableFuture<ServerCapabilities> first = underTest.getCapabilities(SERVER_URL, wsClient);
+    CompletableFuture<ServerCapabilities> second = underTest.getCapabilities(SERVER_URL + "/", wsClient);
+    version.complete("8.9.1.44547\n");
+
+    assertThat(first.join()).isSameAs(second.join());
+    assertThat(first.join().getServerUrl()).isEqualTo(SERVER_URL);
+    assertThat(first.join().getVersion().get()).isEqualTo("8.9.1.44547");
+    verify(wsClient, times(1)).getServerVersionAsync();
+  }
+
+  @Test
+  public void should_derive_supported_apis_from_version() {
+    ServerCapabilities old = new ServerCapabilities(SERVER_URL, "5.2", 0);
+    ServerCapabilities recent = new ServerCapabilities(SERVER_URL, "9.9", 0);
+
+    assertThat(old.isSupported()).isFalse();
+    assertThat(old.supports(WsClient.API_CE_TASK)).isTrue();
+    assertThat(old.supports(WsClient.API_PROJECT_STATUS_WITH_ANALYSISID)).isFalse();
+    assertThat(recent.isSupported()).isTrue();
+    assertThat(recent.getSupportedApis()).contains(WsClient.API_CE_TASK, WsClient.API_PROJECT_STATUS_WITH_ANALYSISID, "/api/webhooks");
+  }
+
+  @Test
+  public void should_serve_old_value_while_refreshing_in_background() {
+    when(wsClient.getServerVersionAsync()).thenReturn(completedFuture("7.9"), completedFuture("8.9"));
+    assertThat(underTest.getCapabilities(SERVER_URL, wsClient).join().getVersion().get()).isEqualTo("7.9");
+
+    ticker.addAndGet(TimeUnit.MINUTES.toNanos(61));
+
+    assertThat(underTest.getCapabilities(SERVER_URL, wsClient).join().getVersion().get()).isEqualTo("7.9");
+    assertThat(underTest.getCapabilities(SERVER_URL, wsClient).join().getVersion().get()).isEqualTo("8.9");
+    verify(wsClient, times(2)).getServerVersionAsync();
+  }
+
+  @Test
+  public void should_not_keep_failures() {
+    CompletableFuture<String> failed = new CompletableFuture<>();
+    failed.completeExceptionally(new IllegalStateException("down"));
+    when(wsClient.getServerVersionAsync()).thenReturn(failed, completedFuture("8.9"));
+
+    assertThat(underTest.getCapabilities(SERVER_URL, wsClient)).isCompletedExceptionally();
+    assertThat(underTest.getCapabilities(SERVER_URL, wsClient).join().getVersion().get()).isEqualTo("8.9");
+  }
+
+  @Test
+  public void should_forget_servers_no_longer_configured() {
+    when(wsClient.getServerVersionAsync()).thenReturn(completedFuture("7.9"), completedFuture("8.9"));
+    underTest.getCapabilities(SERVER_URL, wsClient).join();
+
+    underTest.installationsChanged(new SonarInstallation[] {installation(SERVER_URL)}, new SonarInstallation[] {installation(SERVER_URL + "/")});
+    assertThat(underTest.getKnown()).hasSize(1);
+
+    underTest.installationsChanged(new SonarInstallation[] {installation(SERVER_URL)}, new SonarInstallation[] {installation("https://sonar.example.com")});
+    assertThat(underTest.getKnown()).isEmpty();
+    assertThat(underTest.getCapabilities(SERVER_URL, wsClient).join().getVersion().get()).isEqualTo("8.9");
+  }
+
+  @Test
+  public void should_persist_capabilities() throws Exception {
+    file = new XmlFile(new File(temp.getRoot(), "capabilities.xml"));
+    when(wsClient.getServerVersionAsync()).thenReturn(completedFuture("8.9"));
+    underTest.getCapabilities(SERVER_URL, wsClient).join();
+
+    ServerCapabilitiesCache restarted = new ServerCapabilitiesCache(() -> file, ticker::get, Runnable::run);
+    restarted.load();
+    WsClient unused = mock(WsClient.class);
+
+    assertThat(restarted.getCapabilities(SERVER_URL, unused).join().getVersion().get()).isEqualTo("8.9");
+    verifyNoInteractions(unused);
+  }
+
+  private static SonarInstallation installation(String serverUrl) {
+    SonarInstallation installation = mock(SonarInstallation.class);
+    when(installation.getServerUrl()).thenReturn(serverUrl);
+    return installation;
+  }
+}
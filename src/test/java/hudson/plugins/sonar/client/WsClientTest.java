@@ -21,20 +21,29 @@ package hudson.plugins.sonar.client;
 
 import hudson.plugins.sonar.client.WsClient.CETask;
 import java.io.IOException;
+import java.io.StringReader;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.tuple;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -77,9 +86,80 @@ public class WsClientTest {
     verify(client).getHttp(SERVER_URL + "/api/server/version", null);
   }
 
+  @Test
+  public void testCETaskAsync() throws Exception {
+    String ws = "/api/ce/task?id=" + TASK_ID;
+    when(client.getHttpAsync(eq(SERVER_URL + ws), eq(TOKEN), isNull(), any(), any())).then(decodingAsync(getFile("ce_task.json")));
+
+    CETask ceTask = wsClient.getCETaskAsync(TASK_ID).join();
+
+    assertThat(ceTask.getComponentName()).isEqualTo("SonarLint CLI");
+    assertThat(ceTask.getStatus()).isEqualTo("SUCCESS");
+  }
+
+  @Test
+  public void testQualityGateStatusAsync() throws Exception {
+    String ws = "/api/qualitygates/project_status?analysisId=AVN";
+    when(client.getHttpAsync(eq(SERVER_URL + ws), eq(TOKEN), isNull(), any(), any())).then(decodingAsync(getFile("projectStatus.json")));
+
+    assertThat(wsClient.requestQualityGateStatusAsync("AVN").join()).isEqualTo("OK");
+  }
+
+  @Test
+  public void testAsyncParseErrorCompletesExceptionally() {
+    when(client.getHttpAsync(anyString(), anyString(), isNull(), any(), any())).then(decodingAsync("not json"));
+
+    assertThatThrownBy(() -> wsClient.getCETaskAsync(TASK_ID).join())
+      .isInstanceOf(CompletionException.class)
+      .hasCauseInstanceOf(IllegalStateException.class);
+  }
+
+  @Test
+  public void testDecodeCETaskIgnoresUnknownFields() throws Exception {
+    String json = "{ task: { id: 'AVL', status: \"IN_\\u0050ROGRESS\", extra: { nested: [1, 2, {a: null}] }, componentKey: \"key\", "
+      + "componentName: \"name\" }, other: [] }";
+
+    CETask ceTask = WsClient.decodeCETask("url", new StringReader(json));
+
+    assertThat(ceTask.getStatus()).isEqualTo("IN_PROGRESS");
+    assertThat(ceTask.getComponentKey()).isEqualTo("key");
+    assertThat(ceTask.getComponentName()).isEqualTo("name");
+    assertThat(ceTask.getAnalysisId()).isNull();
+  }
+
+  @Test
+  public void testDecodeFailsOnMissingField() {
+    assertThatThrownBy(() -> WsClient.decodeQualityGateStatus("url", new StringReader("{\"projectStatus\":{\"conditions\":[]}}")))
+      .isInstanceOf(IllegalStateException.class)
+      .hasMessage("Unable to parse response from url")
+      .hasStackTraceContaining("Missing field 'projectStatus.status'");
+  }
+
+  @Test
+  public void testDecodeProjectStatus() throws Exception {
+    WsClient.ProjectStatus status = WsClient.decodeProjectStatus("url", new StringReader("{\"projectStatus\":{\"status\":\"ERROR\",\"conditions\":["
+      + "{\"status\":\"ERROR\",\"metricKey\":\"new_coverage\",\"comparator\":\"LT\",\"periodIndex\":1,\"errorThreshold\":\"85\",\"actualValue\":\"82.5\"},"
+      + "{\"status\":\"OK\",\"metricKey\":\"new_bugs\",\"comparator\":\"GT\",\"errorThreshold\":\"0\",\"actualValue\":\"0\"}],"
+      + "\"periods\":[{\"index\":1,\"mode\":\"last_version\"}],\"ignoredConditions\":false}}"));
+
+    assertThat(status.getStatus()).isEqualTo("ERROR");
+    assertThat(status.getConditions())
+      .extracting(QualityGateCondition::getMetricKey, QualityGateCondition::getComparator, QualityGateCondition::getErrorThreshold,
+        QualityGateCondition::getActualValue, QualityGateCondition::getStatus)
+      .containsExactly(tuple("new_coverage", "LT", "85", "82.5", "ERROR"), tuple("new_bugs", "GT", "0", "0", "OK"));
+  }
+
+  @Test
+  public void testDecodeProjectStatusFailsOnMissingConditionField() {
+    assertThatThrownBy(() -> WsClient.decodeProjectStatus("url", new StringReader("{\"projectStatus\":{\"status\":\"OK\",\"conditions\":[{\"status\":\"OK\"}]}}")))
+      .isInstanceOf(IllegalStateException.class)
+      .hasMessage("Unable to parse response from url")
+      .hasStackTraceContaining("Missing field 'conditions.metricKey'");
+  }
+
   @Test
   public void testConnectionError() throws Exception {
-    when(client.getHttp(anyString(), anyString())).thenThrow(RuntimeException.class);
+    when(client.getHttp(anyString(), anyString(), any())).thenThrow(RuntimeException.class);
 
     exception.expect(Exception.class);
     wsClient.getCETask(TASK_ID);
@@ -90,11 +170,26 @@ public class WsClientTest {
   }
 
   private void verifyWs(String ws) throws Exception {
-    verify(client).getHttp(SERVER_URL + ws, TOKEN);
+    verify(client).getHttp(eq(SERVER_URL + ws), eq(TOKEN), any());
   }
 
   private void mockWs(String ws, String response) throws Exception {
-    when(client.getHttp(eq(SERVER_URL + ws), anyString())).thenReturn(response);
+    when(client.getHttp(eq(SERVER_URL + ws), anyString(), any())).then(invocation -> decode(invocation, 2, response));
+  }
+
+  private static Answer<CompletableFuture<Object>> decodingAsync(String response) {
+    return invocation -> CompletableFuture.supplyAsync(() -> {
+      try {
+        return decode(invocation, 4, response);
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+    }, Runnable::run);
+  }
+
+  private static Object decode(InvocationOnMock invocation, int decoderIndex, String response) throws IOException {
+    HttpClient.ResponseDecoder<?> decoder = invocation.getArgument(decoderIndex);
+    return decoder.decode(new StringReader(response));
   }
 
   private String getFile(String name) throws IOException, URISyntaxException {
@@ -0,0 +1,80 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package hudson.plugins.sonar.utils;
+
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.plugins.sonar.SonarTestCase;
+import org.jenkinsci.plugins.plaincredentials.StringCredentials;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CredentialsCacheTest extends SonarTestCase {
+  private FreeStyleBuild build;
+
+  @Before
+  public void setUp() throws Exception {
+    CredentialsCache.invalidateAll();
+    FreeStyleProject project = j.createFreeStyleProject();
+    build = j.buildAndAssertSuccess(project);
+  }
+
+  @Test
+  public void should_reuse_credentials_resolved_for_same_run() {
+    addCredential("token-id", "token");
+
+    StringCredentials first = CredentialsCache.find("token-id", build);
+
+    assertThat(first.getSecret().getPlainText()).isEqualTo("token");
+    assertThat(CredentialsCache.find("token-id", build)).isSameAs(first);
+  }
+
+  @Test
+  public void should_not_remember_missing_credentials() {
+    assertThat(CredentialsCache.find("token-id", build)).isNull();
+
+    addCredential("token-id", "token");
+
+    assertThat(CredentialsCache.find("token-id", build)).isNotNull();
+  }
+
+  @Test
+  public void should_find_global_credentials_without_run() {
+    assertThat(CredentialsCache.find("token-id", null)).isNull();
+
+    addCredential("token-id", "token");
+
+    assertThat(CredentialsCache.find("token-id", null).getSecret().getPlainText()).isEqualTo("token");
+  }
+
+  @Test
+  public void should_forget_credentials_when_store_changes() {
+    addCredential("token-id", "token");
+    assertThat(CredentialsCache.find("token-id", build).getSecret().getPlainText()).isEqualTo("token");
+
+    SystemCredentialsProvider.getInstance().getCredentials().clear();
+    addCredential("token-id", "rotated");
+
+    assertThat(CredentialsCache.find("token-id", build).getSecret().getPlainText()).isEqualTo("rotated");
+  }
+}
@@ -0,0 +1,383 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.jenkins.pipeline;
+
+import hudson.plugins.sonar.client.QualityGateCondition;
+import hudson.plugins.sonar.client.WsClient;
+import hudson.plugins.sonar.client.WsClient.CETask;
+import hudson.plugins.sonar.client.WsClient.ProjectStatus;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonarqube.ws.client.HttpException;
+import org.sonarsource.scanner.jenkins.pipeline.SonarQubeWebHook.Payload;
+import org.sonarsource.scanner.jenkins.pipeline.SonarQubeWebHook.WebhookEvent;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class CeTaskPollerTest {
+  private static final String SERVER = "http://sonar";
+  private static final long GRACE = TimeUnit.SECONDS.toMillis(30);
+
+  private final AtomicLong now = new AtomicLong(1_600_000_000_000L);
+  private final RecordingListener listener = new RecordingListener();
+  private final List<WebhookEvent> received = listener.received;
+  private WsClient client;
+  private CeTaskPoller poller;
+
+  @Before
+  public void setUp() {
+    client = mock(WsClient.class);
+    when(client.getCETaskAsync(anyString())).thenReturn(task("PENDING", null));
+    poller = new CeTaskPoller(() -> null, now::get, GRACE, TimeUnit.SECONDS.toMillis(5), TimeUnit.MINUTES.toMillis(5), 2, 3);
+  }
+
+  @Test
+  public void polls_after_grace_period_and_completes_listeners() {
+    when(client.getCETaskAsync("task1")).thenReturn(task(CETask.STATUS_SUCCESS, "analysis1"));
+    when(client.getProjectStatusAsync("analysis1")).thenReturn(CompletableFuture.completedFuture(new ProjectStatus("ERROR",
+      Collections.singletonList(new QualityGateCondition("ERROR", "coverage", "LT", "80", "42.1")))));
+    poller.register(SERVER, "task1", () -> client, listener);
+
+    poller.poll();
+    verify(client, never()).getCETaskAsync(anyString());
+
+    advance(GRACE);
+    poller.poll();
+
+    assertThat(received).hasSize(1);
+    WebhookEvent event = received.get(0);
+    assertThat(event.isPolled()).isTrue();
+    assertThat(event.getPayload().getTaskId()).isEqualTo("task1");
+    assertThat(event.getPayload().getTaskStatus()).isEqualTo(CETask.STATUS_SUCCESS);
+    assertThat(event.getPayload().getQualityGateStatus()).isEqualTo("ERROR");
+    assertThat(event.getPayload().getAnalysisId()).isEqualTo("analysis1");
+    assertThat(event.getPayload().getConditions()).extracting(QualityGateCondition::getMetricKey).containsExactly("coverage");
+    assertThat(poller.getTaskCount()).isZero();
+    assertThat(poller.getCompletions()).isEqualTo(1);
+  }
+
+  @Test
+  public void delivers_failed_tasks() {
+    when(client.getCETaskAsync("task1")).thenReturn(task(CETask.STATUS_FAILURE, null));
+    poller.register(SERVER, "task1", () -> client, listener);
+
+    advance(GRACE);
+    poller.poll();
+
+    assertThat(received).extracting(e -> e.getPayload().getTaskStatus()).containsExactly(CETask.STATUS_FAILURE);
+    assertThat(received.get(0).getPayload().getQualityGateStatus()).isNull();
+  }
+
+  @Test
+  public void polls_each_task_once_for_all_listeners() {
+    when(client.getCETaskAsync("task1")).thenReturn(task(CETask.STATUS_CANCELED, null));
+    RecordingListener other = new RecordingListener();
+    poller.register(SERVER, "task1", () -> client, listener);
+    poller.register(SERVER, "task1", () -> client, other);
+
+    advance(GRACE);
+    poller.poll();
+
+    verify(client, times(1)).getCETaskAsync("task1");
+    assertThat(received).hasSize(1);
+    assertThat(other.received).hasSize(1);
+  }
+
+  @Test
+  public void stops_polling_once_all_listeners_are_unregistered() {
+    RecordingListener other = new RecordingListener();
+    poller.register(SERVER, "task1", () -> client, listener);
+    poller.register(SERVER, "task1", () -> client, other);
+
+    poller.unregister(SERVER, "task1", listener);
+    assertThat(poller.getTaskCount()).isEqualTo(1);
+    poller.unregister(SERVER, "task1", other);
+    assertThat(poller.getTaskCount()).isZero();
+
+    advance(GRACE);
+    poller.poll();
+    verify(client, never()).getCETaskAsync(anyString());
+  }
+
+  @Test
+  public void does_not_complete_listeners_unregistered_during_the_poll() {
+    CompletableFuture<CETask> pending = new CompletableFuture<>();
+    when(client.getCETaskAsync("task1")).thenReturn(pending);
+    poller.register(SERVER, "task1", () -> client, listener);
+    advance(GRACE);
+    poller.poll();
+
+    poller.unregister(SERVER, "task1", listener);
+    pending.complete(new CETask(CETask.STATUS_FAILURE, "Project", "project", SERVER, null));
+
+    assertThat(received).isEmpty();
+    assertThat(poller.getCompletions()).isZero();
+  }
+
+  @Test
+  public void limits_request_rate_per_server() {
+    for (int i = 0; i < 5; i++) {
+      poller.register(SERVER, "task" + i, () -> client, listener);
+    }
+    WsClient otherClient = mock(WsClient.class);
+    when(otherClient.getCETaskAsync(anyString())).thenReturn(task("PENDING", null));
+    poller.register("http://other", "other", () -> otherClient, listener);
+
+    advance(GRACE);
+    poller.poll();
+    assertThat(poller.getPolls()).isEqualTo(3);
+    verify(otherClient).getCETaskAsync("other");
+
+    // the tasks not polled yet go first
+    advance(500);
+    poller.poll();
+    assertThat(poller.getPolls()).isEqualTo(4);
+    advance(500);
+    poller.poll();
+    assertThat(poller.getPolls()).isEqualTo(5);
+    advance(500);
+    poller.poll();
+    verify(client, times(5)).getCETaskAsync(anyString());
+  }
+
+  @Test
+  public void charges_the_request_of_the_quality_gate() {
+    when(client.getCETaskAsync("done")).thenReturn(task(CETask.STATUS_SUCCESS, "analysis1"));
+    when(client.getProjectStatusAsync("analysis1")).thenReturn(CompletableFuture.completedFuture(new ProjectStatus("OK", Collections.emptyList())));
+    poller.register(SERVER, "done", () -> client, listener);
+    advance(1);
+    poller.register(SERVER, "task1", () -> client, listener);
+    poller.register(SERVER, "task2", () -> client, listener);
+
+    advance(GRACE);
+    poller.poll();
+    // two requests for the task found done, none left for the other ones
+    assertThat(received).hasSize(1);
+    assertThat(poller.getPolls()).isEqualTo(1);
+
+    advance(500);
+    poller.poll();
+    assertThat(poller.getPolls()).isEqualTo(2);
+  }
+
+  @Test
+  public void backs_off_while_the_task_is_overdue() {
+    poller.register(SERVER, "task1", () -> client, listener);
+    long registeredAt = nowMillis();
+
+    advance(GRACE);
+    poller.poll();
+    // no expectation for the project yet: half of the elapsed time
+    assertThat(poller.getNextPollAt(SERVER, "task1")).isEqualTo(nowMillis() + TimeUnit.SECONDS.toMillis(15));
+
+    advance(TimeUnit.MINUTES.toMillis(30));
+    poller.poll();
+    assertThat(poller.getNextPollAt(SERVER, "task1")).isEqualTo(nowMillis() + TimeUnit.MINUTES.toMillis(5));
+    assertThat(nowMillis() - registeredAt).isGreaterThan(TimeUnit.MINUTES.toMillis(30));
+  }
+
+  @Test
+  public void polls_when_the_project_is_expected_to_be_done() {
+    when(client.getCETaskAsync("task1")).thenReturn(task(CETask.STATUS_FAILURE, null));
+    poller.register(SERVER, "task1", () -> client, listener);
+    advance(TimeUnit.SECONDS.toMillis(100));
+    poller.poll();
+    assertThat(poller.getExpectedDuration(SERVER, "project")).isEqualTo(TimeUnit.SECONDS.toMillis(100));
+
+    poller.register(SERVER, "task2", () -> client, listener);
+    advance(GRACE);
+    poller.poll();
+    assertThat(poller.getNextPollAt(SERVER, "task2")).isEqualTo(nowMillis() + TimeUnit.SECONDS.toMillis(70));
+
+    // the average moves towards the durations of the latest tasks
+    when(client.getCETaskAsync("task2")).thenReturn(task(CETask.STATUS_FAILURE, null));
+    advance(TimeUnit.SECONDS.toMillis(70));
+    poller.poll();
+    assertThat(poller.getExpectedDuration(SERVER, "project")).isEqualTo(TimeUnit.SECONDS.toMillis(100));
+    assertThat(poller.getExpectedDuration(SERVER, "unknown")).isNull();
+  }
+
+  @Test
+  public void backs_off_on_errors() {
+    CompletableFuture<CETask> failure = new CompletableFuture<>();
+    failure.completeExceptionally(new IllegalStateException("down"));
+    when(client.getCETaskAsync("task1")).thenReturn(failure);
+    poller.register(SERVER, "task1", () -> client, listener);
+
+    advance(TimeUnit.MINUTES.toMillis(2));
+    poller.poll();
+
+    assertThat(received).isEmpty();
+    assertThat(poller.getNextPollAt(SERVER, "task1")).isEqualTo(nowMillis() + TimeUnit.MINUTES.toMillis(1));
+  }
+
+  @Test
+  public void polls_resumed_tasks_right_away_oldest_first() {
+    poller.register(SERVER, "started", () -> client, listener);
+    poller.resume(SERVER, "recent", () -> client, listener, nowMillis() - 1000);
+    poller.resume(SERVER, "unknown", () -> client, listener, 0);
+    poller.resume(SERVER, "old", () -> client, listener, nowMillis() - 60_000);
+
+    poller.poll();
+    verify(client).getCETaskAsync("unknown");
+    verify(client).getCETaskAsync("old");
+    verify(client, never()).getCETaskAsync("recent");
+
+    advance(500);
+    poller.poll();
+    verify(client).getCETaskAsync("recent");
+    verify(client, never()).getCETaskAsync("started");
+  }
+
+  @Test
+  public void learns_durations_from_webhooks() {
+    poller.register(SERVER, "task1", () -> client, listener);
+    advance(TimeUnit.SECONDS.toMillis(12));
+
+    poller.onWebhook(new WebhookEvent(new Payload("task1", CETask.STATUS_SUCCESS, "OK", "analysis1", "project", null), null, null));
+    assertThat(poller.getExpectedDuration(SERVER, "project")).isEqualTo(TimeUnit.SECONDS.toMillis(12));
+
+    // the webhook didn't complete the step, the task is then found done by polling
+    when(client.getCETaskAsync("task1")).thenReturn(task(CETask.STATUS_FAILURE, null));
+    advance(GRACE);
+    poller.poll();
+    assertThat(received).hasSize(1);
+    assertThat(poller.getExpectedDuration(SERVER, "project")).isEqualTo(TimeUnit.SECONDS.toMillis(12));
+  }
+
+  @Test
+  public void does_not_learn_durations_from_resumed_tasks() {
+    when(client.getCETaskAsync("task1")).thenReturn(task(CETask.STATUS_SUCCESS, "analysis1"));
+    when(client.getProjectStatusAsync("analysis1")).thenReturn(CompletableFuture.completedFuture(new ProjectStatus("OK", Collections.emptyList())));
+    poller.resume(SERVER, "task1", () -> client, listener, nowMillis() - TimeUnit.HOURS.toMillis(1));
+
+    poller.poll();
+
+    assertThat(received).hasSize(1);
+    assertThat(poller.getExpectedDuration(SERVER, "project")).isNull();
+  }
+
+  @Test
+  public void creates_the_client_when_first_polled() {
+    AtomicInteger created = new AtomicInteger();
+    poller.resume(SERVER, "task1", () -> {
+      created.incrementAndGet();
+      return client;
+    }, listener, 0);
+    assertThat(created).hasValue(0);
+
+    poller.poll();
+    advance(TimeUnit.MINUTES.toMillis(1));
+    poller.poll();
+
+    assertThat(created).hasValue(1);
+    verify(client, times(2)).getCETaskAsync("task1");
+  }
+
+  @Test
+  public void fails_listeners_when_the_client_cannot_be_created() {
+    poller.resume(SERVER, "task1", () -> {
+      throw new IllegalStateException("Invalid installation name");
+    }, listener, nowMillis() - TimeUnit.MINUTES.toMillis(2));
+
+    poller.poll();
+
+    assertThat(received).isEmpty();
+    assertThat(listener.failures).extracting(Throwable::getMessage).containsExactly("Invalid installation name");
+    assertThat(poller.getTaskCount()).isZero();
+    assertThat(poller.getFailures()).isEqualTo(1);
+  }
+
+  @Test
+  public void fails_listeners_when_sonarqube_rejects_the_request() {
+    CompletableFuture<CETask> notFound = new CompletableFuture<>();
+    notFound.completeExceptionally(new HttpException(SERVER + "/api/ce/task", 404, "{}"));
+    when(client.getCETaskAsync("task1")).thenReturn(notFound);
+    poller.register(SERVER, "task1", () -> client, listener);
+
+    advance(GRACE);
+    poller.poll();
+
+    assertThat(listener.failures).hasSize(1);
+    assertThat(listener.failures.get(0)).isInstanceOf(HttpException.class);
+    assertThat(poller.getNextPollAt(SERVER, "task1")).isNull();
+  }
+
+  @Test
+  public void fails_listeners_after_too_many_failures_in_a_row() {
+    CompletableFuture<CETask> failure = new CompletableFuture<>();
+    failure.completeExceptionally(new IllegalStateException("down"));
+    when(client.getCETaskAsync("task1")).thenReturn(failure, task("PENDING", null), failure, failure, failure);
+    poller.register(SERVER, "task1", () -> client, listener);
+
+    advance(GRACE);
+    for (int i = 0; i < 4; i++) {
+      poller.poll();
+      advance(TimeUnit.MINUTES.toMillis(5));
+    }
+    // a successful poll resets the count
+    assertThat(listener.failures).isEmpty();
+
+    poller.poll();
+    assertThat(listener.failures).extracting(Throwable::getMessage).containsExactly("down");
+    assertThat(poller.getTaskCount()).isZero();
+    verify(client, times(5)).getCETaskAsync("task1");
+  }
+
+  private void advance(long millis) {
+    now.addAndGet(millis);
+  }
+
+  private long nowMillis() {
+    return now.get();
+  }
+
+  private static CompletableFuture<CETask> task(String status, String analysisId) {
+    return CompletableFuture.completedFuture(new CETask(status, "Project", "project", SERVER + "/api/ce/task", analysisId));
+  }
+
+  private static final class RecordingListener implements CeTaskPoller.Listener {
+    private final List<WebhookEvent> received = new CopyOnWriteArrayList<>();
+    private final List<Throwable> failures = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void accept(WebhookEvent event) {
+      received.add(event);
+    }
+
+    @Override
+    public void onPollingFailed(String taskId, Throwable cause) {
+      failures.add(cause);
+    }
+  }
+}
@@ -0,0 +1,140 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.jenkins.pipeline;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HashedTimerWheelTest {
+  private final AtomicLong now = new AtomicLong(1_600_000_000_000L);
+  private final List<String> expired = new CopyOnWriteArrayList<>();
+  // 8 buckets of 1 second
+  private final HashedTimerWheel wheel = new HashedTimerWheel(() -> null, now::get, 1000, 8);
+
+  @Test
+  public void expires_after_the_delay() {
+    wheel.schedule(2500, TimeUnit.MILLISECONDS, () -> expired.add("a"));
+    wheel.schedule(1, TimeUnit.SECONDS, () -> expired.add("b"));
+    assertThat(wheel.getPendingCount()).isEqualTo(2);
+
+    advance(999);
+    assertThat(expired).isEmpty();
+    advance(1);
+    assertThat(expired).containsExactly("b");
+    advance(1500);
+    assertThat(expired).containsExactly("b");
+    advance(500);
+    assertThat(expired).containsExactly("b", "a");
+    assertThat(wheel.getPendingCount()).isZero();
+  }
+
+  @Test
+  public void expires_past_deadlines_on_next_tick() {
+    advance(300);
+    wheel.schedule(0, TimeUnit.SECONDS, () -> expired.add("now"));
+    wheel.schedule(-5, TimeUnit.SECONDS, () -> expired.add("past"));
+
+    advance(700);
+    assertThat(expired).containsExactlyInAnyOrder("now", "past");
+  }
+
+  @Test
+  public void expires_deadlines_beyond_one_turn_of_the_wheel() {
+    wheel.schedule(3, TimeUnit.SECONDS, () -> expired.add("short"));
+    wheel.schedule(11, TimeUnit.SECONDS, () -> expired.add("one turn"));
+    wheel.schedule(27, TimeUnit.SECONDS, () -> expired.add("three turns"));
+
+    advance(TimeUnit.SECONDS.toMillis(10));
+    assertThat(expired).containsExactly("short");
+    advance(TimeUnit.SECONDS.toMillis(1));
+    assertThat(expired).containsExactly("short", "one turn");
+    advance(TimeUnit.SECONDS.toMillis(15));
+    assertThat(expired).containsExactly("short", "one turn");
+    advance(TimeUnit.SECONDS.toMillis(1));
+    assertThat(expired).containsExactly("short", "one turn", "three turns");
+  }
+
+  @Test
+  public void cancelled_timeouts_do_not_expire() {
+    HashedTimerWheel.Timeout a = wheel.schedule(1, TimeUnit.SECONDS, () -> expired.add("a"));
+    HashedTimerWheel.Timeout b = wheel.schedule(1, TimeUnit.SECONDS, () -> expired.add("b"));
+    HashedTimerWheel.Timeout c = wheel.schedule(1, TimeUnit.SECONDS, () -> expired.add("c"));
+
+    assertThat(b.cancel()).isTrue();
+    assertThat(b.cancel()).isFalse();
+    assertThat(wheel.getPendingCount()).isEqualTo(2);
+
+    advance(1000);
+    assertThat(expired).containsExactlyInAnyOrder("a", "c");
+    assertThat(a.cancel()).isFalse();
+    assertThat(c.cancel()).isFalse();
+  }
+
+  @Test
+  public void handles_many_timeouts() {
+    List<HashedTimerWheel.Timeout> timeouts = new ArrayList<>();
+    for (int i = 0; i < 50_000; i++) {
+      int id = i;
+      timeouts.add(wheel.schedule(i % 100, TimeUnit.SECONDS, () -> expired.add(Integer.toString(id))));
+    }
+    for (int i = 0; i < timeouts.size(); i += 2) {
+      timeouts.get(i).cancel();
+    }
+    assertThat(wheel.getPendingCount()).isEqualTo(25_000);
+
+    advance(TimeUnit.SECONDS.toMillis(50));
+    assertThat(expired).hasSize(12_500);
+    advance(TimeUnit.SECONDS.toMillis(50));
+    assertThat(expired).hasSize(25_000);
+    assertThat(wheel.getPendingCount()).isZero();
+  }
+
+  @Test
+  public void failing_timeouts_do_not_prevent_others() {
+    wheel.schedule(1, TimeUnit.SECONDS, () -> {
+      throw new IllegalStateException("failure");
+    });
+    wheel.schedule(1, TimeUnit.SECONDS, () -> expired.add("a"));
+
+    advance(1000);
+    assertThat(expired).containsExactly("a");
+  }
+
+  @Test
+  public void timeouts_can_schedule_timeouts() {
+    wheel.schedule(1, TimeUnit.SECONDS, () -> wheel.schedule(1, TimeUnit.SECONDS, () -> expired.add("again")));
+
+    advance(1000);
+    assertThat(expired).isEmpty();
+    advance(1000);
+    assertThat(expired).containsExactly("again");
+  }
+
+  private void advance(long millis) {
+    now.addAndGet(millis);
+    wheel.advance();
+  }
+}
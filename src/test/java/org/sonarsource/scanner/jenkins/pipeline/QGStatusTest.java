@@ -0,0 +1,106 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.jenkins.pipeline;
+
+import hudson.plugins.sonar.client.QualityGateCondition;
+import hudson.plugins.sonar.client.WsClient;
+import hudson.plugins.sonar.client.WsClient.CETask;
+import hudson.plugins.sonar.client.WsClient.ProjectStatus;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.junit.Test;
+import org.sonarsource.scanner.jenkins.pipeline.WaitForQualityGateStep.QGStatus;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class QGStatusTest {
+
+  private static final List<QualityGateCondition> CONDITIONS = Arrays.asList(
+    new QualityGateCondition("ERROR", "new_coverage", "LT", "80", "42.1"),
+    new QualityGateCondition("NO_VALUE", "new_bugs", "GT", "0", null));
+
+  @Test
+  public void conditionsAreFlattened() {
+    String[] flat = QGStatus.encode(CONDITIONS);
+
+    assertThat(flat).containsExactly("ERROR", "new_coverage", "LT", "80", "42.1", "NO_VALUE", "new_bugs", "GT", "0", null);
+    assertThat(QGStatus.decode(flat))
+      .extracting(QualityGateCondition::getStatus, QualityGateCondition::getMetricKey, QualityGateCondition::getComparator,
+        QualityGateCondition::getErrorThreshold, QualityGateCondition::getActualValue)
+      .containsExactly(tuple("ERROR", "new_coverage", "LT", "80", "42.1"), tuple("NO_VALUE", "new_bugs", "GT", "0", null));
+  }
+
+  @Test
+  public void conditionsSurviveSerialization() throws Exception {
+    QGStatus status = new QGStatus("ERROR", CONDITIONS);
+
+    QGStatus read = roundTrip(status);
+
+    assertThat(read.getStatus()).isEqualTo("ERROR");
+    assertThat(read.getConditions()).extracting(QualityGateCondition::getMetricKey).containsExactly("new_coverage", "new_bugs");
+  }
+
+  @Test
+  public void statusWithoutConditionsHasNone() throws Exception {
+    assertThat(new QGStatus("OK").getConditions()).isEmpty();
+    assertThat(roundTrip(new QGStatus("OK")).getConditions()).isEmpty();
+    assertThat(new QGStatus("OK", null).getConditions()).isEmpty();
+  }
+
+  @Test
+  public void fetchesConditionsOfTheAnalysisOfTheTask() throws Exception {
+    WsClient client = mock(WsClient.class);
+    when(client.getCETaskAsync("task")).thenReturn(CompletableFuture.completedFuture(new CETask("SUCCESS", "Project", "project", "url", "analysis")));
+    when(client.getProjectStatusAsync("analysis")).thenReturn(CompletableFuture.completedFuture(new ProjectStatus("ERROR", CONDITIONS)));
+
+    assertThat(QualityGateStepExecution.fetchConditions(() -> client, "task", null).get()).isEqualTo(CONDITIONS);
+    assertThat(QualityGateStepExecution.fetchConditions(() -> client, "other", "analysis").get()).isEqualTo(CONDITIONS);
+    verify(client, never()).getCETaskAsync("other");
+  }
+
+  @Test
+  public void failsToFetchConditionsWithoutClient() {
+    CompletableFuture<List<QualityGateCondition>> fetched = QualityGateStepExecution.fetchConditions(() -> {
+      throw new IllegalStateException("Invalid installation name: sonar");
+    }, "task", "analysis");
+
+    assertThat(fetched).isCompletedExceptionally();
+  }
+
+  private static QGStatus roundTrip(QGStatus status) throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(status);
+    }
+    try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+      return (QGStatus) in.readObject();
+    }
+  }
+}
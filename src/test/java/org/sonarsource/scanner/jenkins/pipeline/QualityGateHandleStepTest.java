@@ -0,0 +1,157 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.jenkins.pipeline;
+
+import com.sun.net.httpserver.HttpServer;
+import hudson.model.Result;
+import hudson.model.queue.QueueTaskFuture;
+import hudson.plugins.sonar.SonarGlobalConfiguration;
+import hudson.plugins.sonar.SonarInstallation;
+import hudson.plugins.sonar.utils.SonarUtils;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import org.apache.commons.lang.SystemUtils;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.BuildWatcher;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class QualityGateHandleStepTest {
+
+  private static final String TASK_ID = "fakeTaskId1";
+
+  @ClassRule
+  public static BuildWatcher buildWatcher = new BuildWatcher();
+  @Rule
+  public JenkinsRule j = new JenkinsRule();
+
+  private static int port;
+  private static WaitForQualityGateStepTest.MyHandler handler;
+
+  @BeforeClass
+  public static void startFakeSqServer() throws Exception {
+    port = NetworkUtils.getNextAvailablePort();
+    HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+    handler = new WaitForQualityGateStepTest.MyHandler();
+    server.createContext("/sonarqube", handler);
+    server.setExecutor(null);
+    server.start();
+  }
+
+  @Before
+  public void setUp() {
+    handler.status1 = "PENDING";
+    SonarQubeWebHook.get().listeners.clear();
+    j.jenkins.getDescriptorByType(SonarGlobalConfiguration.class)
+      .setInstallations(new SonarInstallation("default", "http://localhost:" + port + "/sonarqube", null, null, null, null, null, null, null));
+  }
+
+  @After
+  public void forgetHandles() {
+    QualityGateResults.get().clear();
+  }
+
+  @Test
+  public void failIfNoTaskIdInContext() throws Exception {
+    WorkflowJob p = j.jenkins.createProject(WorkflowJob.class, "p");
+    p.setDefinition(new CpsFlowDefinition("qualityGateHandle()", true));
+    WorkflowRun r = j.assertBuildStatus(Result.FAILURE, p.scheduleBuild2(0));
+    j.assertLogContains("No previous SonarQube analysis found on this pipeline execution.", r);
+  }
+
+  @Test
+  public void awaitsTheHandleLater() throws Exception {
+    QueueTaskFuture<WorkflowRun> pipeline = submitPipeline("waitUntil { handle.completed }\n");
+    WorkflowRun b = pipeline.waitForStart();
+    waitForHandle(b);
+
+    // SonarQube still says the task is pending, the result must come from the webhook
+    submitWebHook(TASK_ID, "SUCCESS", "OK");
+
+    WorkflowRun r = j.assertBuildStatusSuccess(pipeline);
+    j.assertLogContains("completed=true", r);
+    j.assertLogContains("Quality gate is 'OK'", r);
+    j.assertLogNotContains("Checking status of SonarQube task", r);
+    assertThat(QualityGateResults.get().getFinished(TASK_ID)).isNotNull();
+  }
+
+  @Test
+  public void waitsForAPendingHandle() throws Exception {
+    QueueTaskFuture<WorkflowRun> pipeline = submitPipeline("");
+    WorkflowRun b = pipeline.waitForStart();
+    waitForHandle(b);
+
+    submitWebHook(TASK_ID, "SUCCESS", "ERROR");
+
+    WorkflowRun r = j.assertBuildStatus(Result.FAILURE, pipeline);
+    j.assertLogContains("Pipeline aborted due to quality gate failure: ERROR", r);
+  }
+
+  @Test
+  public void stopsTrackingWhenTheBuildIsOver() throws Exception {
+    QueueTaskFuture<WorkflowRun> pipeline = submitPipeline("error 'stop'\n");
+    WorkflowRun b = pipeline.waitForStart();
+    waitForHandle(b);
+
+    j.assertBuildStatus(Result.FAILURE, pipeline);
+    // the build is finalized right after it completes
+    while (QualityGateHandle.getTracked() > 0) {
+      Thread.sleep(100);
+    }
+    assertThat(SonarQubeWebHook.get().listeners.isEmpty()).isTrue();
+    assertThat(CeTaskPoller.get().getTaskCount()).isZero();
+  }
+
+  private QueueTaskFuture<WorkflowRun> submitPipeline(String meanwhile) throws IOException {
+    String serverUrl = "http://sonarqube.example.com";
+    WorkflowJob p = j.jenkins.createProject(WorkflowJob.class, "p");
+    p.setDefinition(new CpsFlowDefinition("node {\n"
+      + "  withSonarQubeEnv('default') {\n"
+      + "    writeFile file: 'foo/" + SonarUtils.REPORT_TASK_FILE_NAME + "', text: 'dashboardUrl=" + serverUrl + "/dashboard\\nceTaskId=" + TASK_ID
+      + "\\nserverUrl=" + serverUrl + "\\nprojectKey=foo', encoding: 'utf-8'\n"
+      + "    " + (SystemUtils.IS_OS_WINDOWS ? "bat" : "sh") + " 'mvn -version'\n"
+      + "  }\n"
+      + "}\n"
+      + "def handle = qualityGateHandle()\n"
+      + meanwhile
+      + "echo \"completed=${handle.completed}\"\n"
+      + "def qg = waitForQualityGate abortPipeline: true, handle: handle\n", true));
+    return p.scheduleBuild2(0);
+  }
+
+  private void submitWebHook(String taskId, String endTaskStatus, String qgStatus) throws IOException {
+    WaitForQualityGateStepTest.postWebHook(j.getURL(), WaitForQualityGateStepTest.webHookPayload(taskId, endTaskStatus, qgStatus, null), null);
+  }
+
+  private static void waitForHandle(WorkflowRun b) throws InterruptedException {
+    while (SonarQubeWebHook.get().listeners.isEmpty() && b.isBuilding()) {
+      Thread.sleep(100);
+    }
+  }
+}
@@ -0,0 +1,168 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.jenkins.pipeline;
+
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.CredentialsScope;
+import com.cloudbees.plugins.credentials.domains.Domain;
+import hudson.plugins.sonar.SonarGlobalConfiguration;
+import hudson.plugins.sonar.SonarInstallation;
+import hudson.util.Secret;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import jenkins.model.Jenkins;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import org.jenkinsci.plugins.plaincredentials.impl.StringCredentialsImpl;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.MockAuthorizationStrategy;
+import org.jvnet.hudson.test.WithoutJenkins;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class QualityGateLongPollActionTest {
+
+  @Rule
+  public JenkinsRule jenkins = new JenkinsRule();
+
+  private final OkHttpClient client = new OkHttpClient.Builder().readTimeout(30, TimeUnit.SECONDS).build();
+
+  @After
+  public void clearResults() {
+    QualityGateResults.get().clear();
+  }
+
+  @WithoutJenkins
+  @Test
+  public void timeoutIsBounded() {
+    assertThat(QualityGateLongPollAction.timeoutSeconds(null)).isEqualTo(60);
+    assertThat(QualityGateLongPollAction.timeoutSeconds("abc")).isEqualTo(60);
+    assertThat(QualityGateLongPollAction.timeoutSeconds("-1")).isEqualTo(60);
+    assertThat(QualityGateLongPollAction.timeoutSeconds("10")).isEqualTo(10);
+    assertThat(QualityGateLongPollAction.timeoutSeconds("100000")).isEqualTo(300);
+    assertThat(QualityGateLongPollAction.timeoutSeconds("99999999999999999999")).isEqualTo(300);
+  }
+
+  @WithoutJenkins
+  @Test
+  public void answersTheFieldsOfThePayload() {
+    assertThat(QualityGateLongPollAction.toJson(new SonarQubeWebHook.Payload("id", "SUCCESS", "OK", null, "project", null)).toString())
+      .isEqualTo("{\"taskId\":\"id\",\"taskStatus\":\"SUCCESS\",\"projectKey\":\"project\",\"qualityGateStatus\":\"OK\"}");
+    assertThat(QualityGateLongPollAction.toJson(new SonarQubeWebHook.Payload("id", "FAILED", null)).toString())
+      .isEqualTo("{\"taskId\":\"id\",\"taskStatus\":\"FAILED\"}");
+  }
+
+  @Test
+  public void parksUntilTheWebhookArrives() throws Exception {
+    CompletableFuture<Response> parked = CompletableFuture.supplyAsync(() -> get("task?id=parked&timeout=20"));
+    long deadline = System.currentTimeMillis() + 10_000;
+    while (QualityGateResults.get().getWaiting() == 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+    }
+
+    post("{\"taskId\":\"parked\",\"status\":\"SUCCESS\",\"qualityGate\":{\"status\":\"ERROR\"}}");
+
+    try (Response response = parked.get(20, TimeUnit.SECONDS)) {
+      assertThat(response.code()).isEqualTo(200);
+      assertThat(response.body().string()).contains("\"qualityGateStatus\":\"ERROR\"");
+    }
+  }
+
+  @Test
+  public void answersRightAwayWhenKnown() throws Exception {
+    post("{\"taskId\":\"known\",\"status\":\"FAILED\"}");
+    long deadline = System.currentTimeMillis() + 10_000;
+    while (QualityGateResults.get().getFinished("known") == null && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+    }
+
+    try (Response response = get("task?id=known&timeout=20")) {
+      assertThat(response.code()).isEqualTo(200);
+      assertThat(response.body().string()).contains("\"taskStatus\":\"FAILED\"");
+    }
+  }
+
+  @Test
+  public void answersNoContentOnTimeout() throws Exception {
+    try (Response response = get("task?id=unknown&timeout=1")) {
+      assertThat(response.code()).isEqualTo(204);
+    }
+    assertThat(QualityGateResults.get().getWaiting()).isZero();
+  }
+
+  @Test
+  public void verifiesTheWebhooksWithTheGlobalSecret() throws Exception {
+    CredentialsProvider.lookupStores(jenkins.jenkins).iterator().next()
+      .addCredentials(Domain.global(), new StringCredentialsImpl(CredentialsScope.GLOBAL, "secretId", "sample", Secret.fromString("secret")));
+    jenkins.jenkins.getDescriptorByType(SonarGlobalConfiguration.class)
+      .setInstallations(new SonarInstallation("default", "http://localhost/sonarqube", null, null, "secretId", null, null, null, null));
+
+    WaitForQualityGateStepTest.postWebHook(jenkins.getURL(), WaitForQualityGateStepTest.webHookPayload("signed", "SUCCESS", "OK", null), "secret");
+    WaitForQualityGateStepTest.postWebHook(jenkins.getURL(), WaitForQualityGateStepTest.webHookPayload("forged", "SUCCESS", "OK", null), "other");
+
+    try (Response response = get("task?id=signed&timeout=20")) {
+      assertThat(response.code()).isEqualTo(200);
+      assertThat(response.body().string()).contains("\"qualityGateStatus\":\"OK\"");
+    }
+    try (Response response = get("task?id=forged&timeout=20")) {
+      assertThat(response.code()).isEqualTo(403);
+    }
+  }
+
+  @Test
+  public void unknownBuild() throws Exception {
+    try (Response response = get("build?job=missing&number=1")) {
+      assertThat(response.code()).isEqualTo(404);
+    }
+  }
+
+  @Test
+  public void tasksRequireToAdministerJenkins() throws Exception {
+    jenkins.jenkins.setSecurityRealm(jenkins.createDummySecurityRealm());
+    jenkins.jenkins.setAuthorizationStrategy(new MockAuthorizationStrategy().grant(Jenkins.READ).everywhere().toEveryone());
+
+    try (Response response = get("task?id=any&timeout=1")) {
+      assertThat(response.code()).isEqualTo(403);
+    }
+    assertThat(QualityGateResults.get().getWaiting()).isZero();
+  }
+
+  private Response get(String path) {
+    try {
+      return client.newCall(new Request.Builder().url(jenkins.getURL() + QualityGateLongPollAction.URLNAME + "/" + path).build()).execute();
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private void post(String payload) throws Exception {
+    Request req = new Request.Builder()
+      .url(jenkins.getURL() + SonarQubeWebHook.URLNAME + "/")
+      .post(RequestBody.create(MediaType.parse("application/json; charset=utf-8"), payload))
+      .build();
+    client.newCall(req).execute().close();
+  }
+}
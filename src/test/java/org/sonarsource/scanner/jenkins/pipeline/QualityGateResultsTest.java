@@ -0,0 +1,90 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.jenkins.pipeline;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import org.junit.Test;
+import org.sonarsource.scanner.jenkins.pipeline.SonarQubeWebHook.WebhookEvent;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.sonarsource.scanner.jenkins.pipeline.WebhookEvents.event;
+
+public class QualityGateResultsTest {
+
+  private final Map<String, WebhookEvent> journal = new HashMap<>();
+  private final QualityGateResults results = new QualityGateResults(10, 1, journal::get);
+
+  @Test
+  public void completes_waiters_when_recorded() {
+    CompletableFuture<WebhookEvent> first = results.await("task");
+    CompletableFuture<WebhookEvent> second = results.await("task");
+    assertThat(first).isNotDone();
+    assertThat(results.getWaiting()).isEqualTo(2);
+
+    WebhookEvent event = event("task", "SUCCESS", "OK");
+    results.record(event);
+
+    assertThat(first).isCompletedWithValue(event);
+    assertThat(second).isCompletedWithValue(event);
+    assertThat(results.getWaiting()).isZero();
+  }
+
+  @Test
+  public void known_outcome_is_returned_right_away() {
+    WebhookEvent event = event("task", "FAILED", "OK");
+    results.record(event);
+
+    assertThat(results.await("task")).isCompletedWithValue(event);
+    assertThat(results.getFinished("task")).isSameAs(event);
+    assertThat(results.getWaiting()).isZero();
+  }
+
+  @Test
+  public void falls_back_to_the_journal() {
+    WebhookEvent event = event("task", "SUCCESS", "OK");
+    journal.put("task", event);
+
+    assertThat(results.getFinished("task")).isSameAs(event);
+    assertThat(results.await("task")).isCompletedWithValue(event);
+  }
+
+  @Test
+  public void ignores_tasks_still_running() {
+    CompletableFuture<WebhookEvent> waiting = results.await("task");
+    results.record(event("task", "IN_PROGRESS", "OK"));
+    journal.put("other", event("other", "PENDING", "OK"));
+
+    assertThat(waiting).isNotDone();
+    assertThat(results.getFinished("task")).isNull();
+    assertThat(results.getFinished("other")).isNull();
+  }
+
+  @Test
+  public void cancelled_waiters_are_dropped() {
+    CompletableFuture<WebhookEvent> waiting = results.await("task");
+    waiting.cancel(false);
+
+    assertThat(results.getWaiting()).isZero();
+    results.record(event("task", "SUCCESS", "OK"));
+    assertThat(waiting).isCancelled();
+  }
+}
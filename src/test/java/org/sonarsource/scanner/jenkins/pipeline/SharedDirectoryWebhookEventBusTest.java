@@ -0,0 +1,194 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.jenkins.pipeline;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonarsource.scanner.jenkins.pipeline.SonarQubeWebHook.Payload;
+import org.sonarsource.scanner.jenkins.pipeline.SonarQubeWebHook.WebhookEvent;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.sonarsource.scanner.jenkins.pipeline.WebhookEvents.event;
+
+public class SharedDirectoryWebhookEventBusTest {
+  private static final long RETENTION = TimeUnit.MINUTES.toMillis(10);
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private final AtomicLong now = new AtomicLong(1_600_000_000_000L);
+  private final List<WebhookEvent> receivedByA = new CopyOnWriteArrayList<>();
+  private final List<WebhookEvent> receivedByB = new CopyOnWriteArrayList<>();
+  private final Consumer<WebhookEvent> subscriberA = receivedByA::add;
+  private final Consumer<WebhookEvent> subscriberB = receivedByB::add;
+  private Path directory;
+  private SharedDirectoryWebhookEventBus controllerA;
+  private SharedDirectoryWebhookEventBus controllerB;
+
+  @Before
+  public void setUp() {
+    directory = temp.getRoot().toPath().resolve("events");
+    controllerA = newBus("a");
+    controllerB = newBus("b");
+  }
+
+  @After
+  public void tearDown() {
+    controllerA.unsubscribe(subscriberA);
+    controllerB.unsubscribe(subscriberB);
+  }
+
+  @Test
+  public void is_only_active_when_configured() {
+    assertThat(controllerA.isActive()).isTrue();
+    assertThat(new SharedDirectoryWebhookEventBus(null, "c", 50, RETENTION, now::get).isActive()).isFalse();
+  }
+
+  @Test
+  public void shares_events_between_controllers() {
+    controllerA.subscribe(subscriberA);
+    controllerB.subscribe(subscriberB);
+
+    controllerA.publish(event("task1", "ERROR"));
+
+    assertThat(receivedByA).hasSize(1);
+    await(() -> receivedByB.size() == 1);
+    WebhookEvent received = receivedByB.get(0);
+    assertThat(received.getPayload().getTaskId()).isEqualTo("task1");
+    assertThat(received.getPayload().getTaskStatus()).isEqualTo("SUCCESS");
+    assertThat(received.getPayload().getQualityGateStatus()).isEqualTo("ERROR");
+
+    controllerB.publish(event("task2", "OK"));
+
+    await(() -> receivedByA.size() == 2);
+    assertThat(receivedByA.get(1).getPayload().getTaskId()).isEqualTo("task2");
+    // controllers don't receive their own events twice
+    controllerA.scan();
+    controllerB.scan();
+    assertThat(receivedByA).hasSize(2);
+    assertThat(receivedByB).hasSize(2);
+  }
+
+  @Test
+  public void keeps_signed_content() {
+    controllerB.subscribe(subscriberB);
+    byte[] content = "{\"taskId\":\"task1\"}".getBytes(StandardCharsets.UTF_8);
+
+    controllerA.publish(new WebhookEvent(new Payload("task1", "SUCCESS", "OK"), "abcd", content));
+
+    await(() -> receivedByB.size() == 1);
+    assertThat(receivedByB.get(0).getReceivedSignature()).isEqualTo("abcd");
+    assertThat(receivedByB.get(0).getSignedContent()).isEqualTo(content);
+  }
+
+  @Test
+  public void delivers_events_published_before_subscribing() {
+    controllerA.publish(event("task1", "OK"));
+
+    controllerB.subscribe(subscriberB);
+
+    await(() -> receivedByB.size() == 1);
+  }
+
+  @Test
+  public void deletes_expired_events() throws IOException {
+    controllerA.publish(event("task1", "OK"));
+    Files.write(directory.resolve(".unfinished.tmp"), new byte[] {1, 2});
+    Files.setLastModifiedTime(directory.resolve(".unfinished.tmp"), FileTime.fromMillis(now.get()));
+    assertThat(directory.toFile().list()).hasSize(2);
+
+    now.addAndGet(RETENTION + 1);
+    controllerB.subscribe(subscriberB);
+    controllerB.scan();
+
+    assertThat(receivedByB).isEmpty();
+    assertThat(directory.toFile().list()).isEmpty();
+  }
+
+  @Test
+  public void keeps_files_not_written_by_the_bus() throws IOException {
+    Files.createDirectories(directory);
+    Files.write(directory.resolve("notes.event"), new byte[] {1, 2});
+    Files.write(directory.resolve("backup-1.event"), new byte[] {1, 2});
+
+    now.addAndGet(RETENTION + 1);
+    controllerB.subscribe(subscriberB);
+    controllerB.scan();
+
+    assertThat(receivedByB).isEmpty();
+    assertThat(directory.toFile().list()).containsExactlyInAnyOrder("notes.event", "backup-1.event");
+  }
+
+  @Test
+  public void ignores_unreadable_events() throws IOException {
+    Files.createDirectories(directory);
+    Files.write(directory.resolve(now.get() + "-c-1.event"), new byte[] {1, 2});
+    controllerB.subscribe(subscriberB);
+
+    controllerA.publish(event("task1", "OK"));
+
+    await(() -> receivedByB.size() == 1);
+    assertThat(receivedByB.get(0).getPayload().getTaskId()).isEqualTo("task1");
+  }
+
+  @Test
+  public void isolates_failing_subscribers() {
+    LocalWebhookEventBus bus = new LocalWebhookEventBus();
+    bus.subscribe(e -> {
+      throw new IllegalStateException("failure");
+    });
+    bus.subscribe(subscriberA);
+
+    bus.publish(event("task1", "OK"));
+
+    assertThat(receivedByA).hasSize(1);
+  }
+
+  private SharedDirectoryWebhookEventBus newBus(String controllerId) {
+    return new SharedDirectoryWebhookEventBus(directory, controllerId, 50, RETENTION, now::get);
+  }
+
+  private static void await(Supplier<Boolean> condition) {
+    long deadline = System.currentTimeMillis() + 10_000;
+    while (!condition.get() && System.currentTimeMillis() < deadline) {
+      try {
+        Thread.sleep(10);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    assertThat(condition.get()).isTrue();
+  }
+}
@@ -19,15 +19,32 @@
  */
 package org.sonarsource.scanner.jenkins.pipeline;
 
-import java.util.HashMap;
+import hudson.plugins.sonar.client.QualityGateCondition;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.servlet.http.HttpServletRequest;
+import org.apache.commons.codec.digest.HmacAlgorithms;
+import org.apache.commons.codec.digest.HmacUtils;
 import org.junit.Rule;
 import org.junit.Test;
 import org.jvnet.hudson.test.JenkinsRule;
 import org.jvnet.hudson.test.WithoutJenkins;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.assertj.core.api.Assertions.entry;
+import static org.assertj.core.api.Assertions.tuple;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 public class SonarQubeWebHookTest {
 
@@ -51,13 +68,14 @@ public class SonarQubeWebHookTest {
   @Test
   public void testListener() throws Exception {
 
-    Map<String, String> eventsPerListener = new HashMap<>();
+    Map<String, String> eventsPerListener = new ConcurrentHashMap<>();
 
     jenkins.postJSON("sonarqube-webhook/", "{\n" +
       "\"taskId\":\"AVpBJY0hh5C8Sya1ZSgH\",\n" +
       "\"status\":\"SUCCESS\",\n" +
       "\"qualityGate\":{\"status\":\"OK\"}\n" +
       "}");
+    awaitProcessed(1);
 
     SonarQubeWebHook.get().addListener(
       event -> eventsPerListener.put("ListenerA", event.getPayload().getTaskId() + event.getPayload().getTaskStatus() + event.getPayload().getQualityGateStatus()));
@@ -70,6 +88,7 @@ public class SonarQubeWebHookTest {
       "\"qualityGate\":{\"status\":\"OK\"}\n" +
       "}");
 
+    awaitProcessed(2);
     assertThat(eventsPerListener).containsOnly(entry("ListenerA", "AVpBJY0hh5C8Sya1ZSgHSUCCESSOK"),
       entry("ListenerB", "AVpBJY0hh5C8Sya1ZSgHSUCCESSOK"));
 
@@ -81,8 +100,179 @@ public class SonarQubeWebHookTest {
       "\"status\":\"SUCCESS\",\n" +
       "}");
 
+    awaitProcessed(3);
     assertThat(eventsPerListener).containsOnly(entry("ListenerA", "AVpBJY0hh5C8Sya1ZSgHSUCCESSNONE"),
       entry("ListenerB", "AVpBJY0hh5C8Sya1ZSgHSUCCESSNONE"));
   }
 
+  @Test
+  public void webhookIsCachedOnceProcessed() throws Exception {
+    jenkins.postJSON("sonarqube-webhook/", "{\n" +
+      "\"taskId\":\"AVpBJY0hh5C8Sya1ZSgI\",\n" +
+      "\"status\":\"SUCCESS\",\n" +
+      "\"qualityGate\":{\"status\":\"ERROR\"}\n" +
+      "}");
+
+    awaitProcessed(1);
+    assertThat(SonarQubeWebHook.get().getWebhookEventForTaskId("AVpBJY0hh5C8Sya1ZSgI").getPayload().getQualityGateStatus()).isEqualTo("ERROR");
+    assertThat(SonarQubeWebHook.get().getQueue().getAccepted()).isEqualTo(1);
+  }
+
+  @WithoutJenkins
+  @Test
+  public void parseOnlyKeepsUsedFields() throws Exception {
+    SonarQubeWebHook.Payload payload = SonarQubeWebHook.Payload.parse(("{\"serverUrl\":\"http://localhost:9000\",\"taskId\":\"AVh21JS2JepAEhwQ-b3u\","
+      + "\"status\":\"SUCCESS\",\"project\":{\"key\":\"myproject\",\"name\":\"My Project\"},"
+      + "\"qualityGate\":{\"conditions\":[{\"metric\":\"new_coverage\",\"status\":\"ERROR\"}],\"name\":\"SonarQube way\",\"status\":\"ERROR\"},"
+      + "\"properties\":{}}").getBytes(StandardCharsets.UTF_8));
+
+    assertThat(payload.getTaskId()).isEqualTo("AVh21JS2JepAEhwQ-b3u");
+    assertThat(payload.getTaskStatus()).isEqualTo("SUCCESS");
+    assertThat(payload.getQualityGateStatus()).isEqualTo("ERROR");
+    assertThat(payload.getAnalysisId()).isNull();
+    assertThat(payload.getProjectKey()).isEqualTo("myproject");
+    assertThat(payload.getConditions()).hasSize(1);
+    assertThat(payload.getConditions().get(0).getMetricKey()).isEqualTo("new_coverage");
+    assertThat(payload.getConditions().get(0).getStatus()).isEqualTo("ERROR");
+  }
+
+  @WithoutJenkins
+  @Test
+  public void parseConditionsOfQualityGate() throws Exception {
+    SonarQubeWebHook.Payload payload = SonarQubeWebHook.Payload.parse(("{\"taskId\":\"id\",\"status\":\"SUCCESS\",\"qualityGate\":{\"status\":\"OK\","
+      + "\"conditions\":[{\"metric\":\"coverage\",\"operator\":\"LESS_THAN\",\"value\":\"85.2\",\"status\":\"OK\",\"errorThreshold\":\"80\"},"
+      + "{\"metric\":\"new_bugs\",\"operator\":\"GREATER_THAN\",\"status\":\"NO_VALUE\",\"errorThreshold\":\"0\"}]}}")
+        .getBytes(StandardCharsets.UTF_8));
+
+    assertThat(payload.getConditions())
+      .extracting(QualityGateCondition::getMetricKey, QualityGateCondition::getComparator, QualityGateCondition::getErrorThreshold,
+        QualityGateCondition::getActualValue, QualityGateCondition::getStatus)
+      .containsExactly(tuple("coverage", "LESS_THAN", "80", "85.2", "OK"), tuple("new_bugs", "GREATER_THAN", "0", null, "NO_VALUE"));
+    assertThat(SonarQubeWebHook.Payload.parse("{\"taskId\":\"id\",\"status\":\"SUCCESS\"}".getBytes(StandardCharsets.UTF_8)).getConditions()).isNull();
+  }
+
+  @WithoutJenkins
+  @Test
+  public void conditionsAreSerializedWithEvents() throws Exception {
+    SonarQubeWebHook.WebhookEvent event = SonarQubeWebHook.WebhookEvent.polled("id", "SUCCESS", "ERROR", "analysis", "project",
+      Collections.singletonList(new QualityGateCondition("ERROR", "coverage", "LT", "80", null)));
+
+    SonarQubeWebHook.Payload payload = WebhookEventBus.deserialize(WebhookEventBus.serialize(event)).getPayload();
+
+    assertThat(payload.getAnalysisId()).isEqualTo("analysis");
+    assertThat(payload.getProjectKey()).isEqualTo("project");
+    assertThat(payload.getConditions()).extracting(QualityGateCondition::getMetricKey, QualityGateCondition::getActualValue)
+      .containsExactly(tuple("coverage", null));
+  }
+
+  @WithoutJenkins
+  @Test
+  public void readRejectsUnknownFormat() throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeByte(2);
+    out.writeUTF("id");
+
+    assertThatThrownBy(() -> SonarQubeWebHook.WebhookEvent.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))))
+      .isInstanceOf(IOException.class)
+      .hasMessage("Unsupported webhook event format 2");
+  }
+
+  @WithoutJenkins
+  @Test
+  public void parseIgnoresQualityGateOfFailedTask() throws Exception {
+    SonarQubeWebHook.Payload payload = SonarQubeWebHook.Payload.parse("{\"taskId\":\"id\",\"status\":\"FAILED\"}".getBytes(StandardCharsets.UTF_8));
+
+    assertThat(payload.getTaskStatus()).isEqualTo("FAILED");
+    assertThat(payload.getQualityGateStatus()).isNull();
+  }
+
+  @WithoutJenkins
+  @Test(expected = IllegalStateException.class)
+  public void parseRequiresTaskId() throws Exception {
+    SonarQubeWebHook.Payload.parse("{\"status\":\"SUCCESS\"}".getBytes(StandardCharsets.UTF_8));
+  }
+
+  @WithoutJenkins
+  @Test
+  public void readIsBounded() throws Exception {
+    byte[] content = new byte[20_000];
+    Arrays.fill(content, (byte) 'a');
+
+    assertThat(SonarQubeWebHook.read(new ByteArrayInputStream(content), -1, 20_000)).isEqualTo(content);
+    assertThat(SonarQubeWebHook.read(new ByteArrayInputStream(content), 20_000, 20_000)).isEqualTo(content);
+    assertThat(SonarQubeWebHook.read(new ByteArrayInputStream(content), -1, 19_999)).isNull();
+    assertThat(SonarQubeWebHook.read(new ByteArrayInputStream(content), 20_000, 19_999)).isNull();
+    // content length can't be trusted
+    assertThat(SonarQubeWebHook.read(new ByteArrayInputStream(content), 10, 19_999)).isNull();
+    assertThat(SonarQubeWebHook.read(new ByteArrayInputStream(content), 30_000, 40_000)).isEqualTo(content);
+    assertThat(SonarQubeWebHook.read(new ByteArrayInputStream(new byte[0]), -1, 10)).isEmpty();
+  }
+
+  @WithoutJenkins
+  @Test
+  public void rateLimitSourceCanComeFromProxyHeader() {
+    HttpServletRequest req = mock(HttpServletRequest.class);
+    when(req.getRemoteAddr()).thenReturn("10.0.0.1");
+
+    assertThat(SonarQubeWebHook.source(req, null)).isEqualTo("10.0.0.1");
+    assertThat(SonarQubeWebHook.source(req, "X-Forwarded-For")).isEqualTo("10.0.0.1");
+
+    when(req.getHeader("X-Forwarded-For")).thenReturn("192.168.1.2");
+    assertThat(SonarQubeWebHook.source(req, null)).isEqualTo("10.0.0.1");
+    assertThat(SonarQubeWebHook.source(req, "X-Forwarded-For")).isEqualTo("192.168.1.2");
+
+    // only the address added by the trusted proxy counts, the previous ones can be forged by the client
+    when(req.getHeader("X-Forwarded-For")).thenReturn("1.2.3.4, 192.168.1.2");
+    assertThat(SonarQubeWebHook.source(req, "X-Forwarded-For")).isEqualTo("192.168.1.2");
+  }
+
+  @WithoutJenkins
+  @Test
+  public void validateSignature() {
+    byte[] payload = "{\"taskId\":\"id\",\"status\":\"SUCCESS\"}".getBytes(StandardCharsets.UTF_8);
+    String signature = new HmacUtils(HmacAlgorithms.HMAC_SHA_256, "secret").hmacHex(payload);
+
+    assertThat(SonarQubeWebHook.isValidSignature(signature, payload, "secret")).isTrue();
+    assertThat(SonarQubeWebHook.isValidSignature(signature.toUpperCase(Locale.ENGLISH), payload, "secret")).isTrue();
+    assertThat(SonarQubeWebHook.isValidSignature(signature, payload, "other")).isFalse();
+    assertThat(SonarQubeWebHook.isValidSignature(signature.substring(1), payload, "secret")).isFalse();
+    assertThat(SonarQubeWebHook.isValidSignature("zz" + signature.substring(2), payload, "secret")).isFalse();
+    assertThat(SonarQubeWebHook.isValidSignature(null, payload, "secret")).isFalse();
+  }
+
+  @WithoutJenkins
+  @Test
+  public void onlySignedEventsKeepTheirContent() {
+    byte[] payload = "{\"taskId\":\"id\",\"status\":\"SUCCESS\"}".getBytes(StandardCharsets.UTF_8);
+    SonarQubeWebHook.Payload parsed = new SonarQubeWebHook.Payload("id", "SUCCESS", "NONE");
+    String signature = new HmacUtils(HmacAlgorithms.HMAC_SHA_256, "secret").hmacHex(payload);
+
+    assertThat(new SonarQubeWebHook.WebhookEvent(parsed, signature, payload).isSignedWith("secret")).isTrue();
+    assertThat(new SonarQubeWebHook.WebhookEvent(parsed, null, payload).isSignedWith("secret")).isFalse();
+  }
+
+  @WithoutJenkins
+  @Test
+  public void eventsPublishedOnTheBusAreJournaledAndDispatched() {
+    LocalWebhookEventBus bus = new LocalWebhookEventBus();
+    SonarQubeWebHook aut = new SonarQubeWebHook(new WebhookJournal(), bus);
+    Map<String, String> received = new ConcurrentHashMap<>();
+    aut.addListener("id", event -> received.put(event.getPayload().getTaskId(), event.getPayload().getQualityGateStatus()));
+
+    // as if received by another controller
+    bus.publish(new SonarQubeWebHook.WebhookEvent(new SonarQubeWebHook.Payload("id", "SUCCESS", "OK"), null, null));
+
+    assertThat(received).containsOnly(entry("id", "OK"));
+    assertThat(aut.getWebhookEventForTaskId("id").getPayload().getQualityGateStatus()).isEqualTo("OK");
+  }
+
+  private static void awaitProcessed(long count) throws InterruptedException {
+    // webhooks are processed after the response is sent
+    long deadline = System.currentTimeMillis() + 10_000;
+    while (SonarQubeWebHook.get().getQueue().getProcessed() < count && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+  }
+
 }
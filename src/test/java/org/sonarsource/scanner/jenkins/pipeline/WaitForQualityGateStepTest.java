@@ -58,8 +58,11 @@ import org.xml.sax.SAXException;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -75,6 +78,7 @@ public class WaitForQualityGateStepTest {
   }
 
   private boolean declarative;
+  private String extraStepArguments;
 
   public WaitForQualityGateStepTest(boolean declarative) {
     this.declarative = declarative;
@@ -289,7 +293,7 @@ public class WaitForQualityGateStepTest {
         waitForStepToWait(b);
         b.doStop();
         story.j.assertBuildStatus(Result.ABORTED, pipeline);
-        assertThat(SonarQubeWebHook.get().listeners).isEmpty();
+        assertThat(SonarQubeWebHook.get().listeners.isEmpty()).isTrue();
       }
     });
   }
@@ -400,6 +404,40 @@ public class WaitForQualityGateStepTest {
     });
   }
 
+  @Test
+  public void waitForQualityGate_times_out() {
+    story.addStep(new Statement() {
+      @Override
+      public void evaluate() throws Throwable {
+        handler.status1 = "PENDING";
+        extraStepArguments = "timeout: 2, unit: 'SECONDS', checkStatusOnTimeout: false";
+        QueueTaskFuture<WorkflowRun> pipeline = submitPipeline(true, false);
+        WorkflowRun r = story.j.assertBuildStatus(Result.FAILURE, pipeline);
+        story.j.assertLogContains("Timeout waiting for SonarQube task '" + FAKE_TASK_ID_1 + "' after 2 seconds", r);
+        assertThat(SonarQubeWebHook.get().listeners.isEmpty()).isTrue();
+      }
+    });
+  }
+
+  @Test
+  public void waitForQualityGate_checks_status_on_timeout() {
+    story.addStep(new Statement() {
+      @Override
+      public void evaluate() throws Throwable {
+        handler.status1 = "PENDING";
+        extraStepArguments = "timeout: 5, unit: 'SECONDS'";
+        QueueTaskFuture<WorkflowRun> pipeline = submitPipeline(true, false);
+        WorkflowRun b = pipeline.waitForStart();
+        waitForStepToWait(b);
+        // the webhook is lost
+        handler.status1 = "SUCCESS";
+        handler.analysisId1 = FAKE_ANALYSIS_ID_1;
+        handler.qgStatus1 = "OK";
+        story.j.assertBuildStatusSuccess(pipeline);
+      }
+    });
+  }
+
   private void addWebhookSecretToCredentials(String secret) {
     story.addStep(new Statement() {
       @Override
@@ -413,18 +451,7 @@ public class WaitForQualityGateStepTest {
   private void submitWebHook(String taskId, String endTaskStatus, String qgStatus, WorkflowRun b, String secret) throws InterruptedException, IOException {
     waitForStepToWait(b);
 
-    String payload = "{\n" +
-      "\"taskId\":\"" + taskId + "\",\n" +
-      "\"status\":\"" + endTaskStatus + "\",\n" +
-      "\"qualityGate\":{\"status\":\"" + qgStatus + "\"}\n" +
-      "}";
-    OkHttpClient client = new OkHttpClient();
-    Request req = new Request.Builder()
-      .url(story.j.getURL().toExternalForm() + "sonarqube-webhook/")
-      .post(RequestBody.create(MediaType.parse("application/json; charset=utf-8"), payload))
-      .addHeader("X-Sonar-Webhook-HMAC-SHA256", new HmacUtils(HmacAlgorithms.HMAC_SHA_256, secret).hmacHex(payload))
-      .build();
-    client.newCall(req).execute();
+    postWebHook(story.j.getURL(), webHookPayload(taskId, endTaskStatus, qgStatus, null), secret);
   }
 
   private void submitWebHook(String taskId, String endTaskStatus, String qgStatus, WorkflowRun b) throws InterruptedException, IOException {
@@ -434,18 +461,29 @@ public class WaitForQualityGateStepTest {
   }
 
   private void submitWebHook(String taskId, String endTaskStatus, String qgStatus) throws IOException {
-    String payload = "{\n" +
+    postWebHook(story.j.getURL(), webHookPayload(taskId, endTaskStatus, qgStatus, null), null);
+  }
+
+  static String webHookPayload(String taskId, String endTaskStatus, @Nullable String qgStatus, @Nullable String projectKey) {
+    return "{\n" +
       "\"taskId\":\"" + taskId + "\",\n" +
       "\"status\":\"" + endTaskStatus + "\",\n" +
+      (projectKey != null ? "\"project\":{\"key\":\"" + projectKey + "\"},\n" : "") +
       "\"qualityGate\":{\"status\":\"" + qgStatus + "\"}\n" +
       "}";
+  }
 
-    Request req = new Request.Builder()
-      .url(story.j.getURL().toExternalForm() + "sonarqube-webhook/")
-      .post(RequestBody.create(MediaType.parse("application/json; charset=utf-8"), payload))
-      .build();
-    OkHttpClient client = new OkHttpClient();
-    client.newCall(req).execute();
+  /**
+   * Posts a webhook to the given Jenkins, signed with the secret if there is one.
+   */
+  static void postWebHook(URL jenkinsUrl, String payload, @Nullable String secret) throws IOException {
+    Request.Builder req = new Request.Builder()
+      .url(jenkinsUrl.toExternalForm() + "sonarqube-webhook/")
+      .post(RequestBody.create(MediaType.parse("application/json; charset=utf-8"), payload));
+    if (secret != null) {
+      req.addHeader("X-Sonar-Webhook-HMAC-SHA256", new HmacUtils(HmacAlgorithms.HMAC_SHA_256, secret).hmacHex(payload));
+    }
+    new OkHttpClient().newCall(req.build()).execute().close();
   }
 
 
@@ -521,11 +559,14 @@ public class WaitForQualityGateStepTest {
     pipeline.append("    }\n");
     pipeline.append("    stage(\"Quality Gate " + id + "\") {\n");
     pipeline.append("      steps {\n");
-    if (webhookSecretId == null) {
-      pipeline.append("        waitForQualityGate abortPipeline: true \n");
-    } else {
-      pipeline.append("        waitForQualityGate abortPipeline: true, webhookSecretId: '" + webhookSecretId + "' \n");
+    pipeline.append("        waitForQualityGate abortPipeline: true");
+    if (webhookSecretId != null) {
+      pipeline.append(", webhookSecretId: '" + webhookSecretId + "'");
+    }
+    if (extraStepArguments != null) {
+      pipeline.append(", " + extraStepArguments);
     }
+    pipeline.append(" \n");
     pipeline.append("      }\n");
     pipeline.append("    }\n");
   }
@@ -549,11 +590,14 @@ public class WaitForQualityGateStepTest {
     pipeline.append("    }\n");
     pipeline.append("  }\n");
     pipeline.append("}\n");
-    if (webhookSecretId == null) {
-      pipeline.append("def qg" + id + " = waitForQualityGate();\n");
-    } else {
-      pipeline.append("def qg" + id + " = waitForQualityGate(webhookSecretId: '"+ webhookSecretId + "');\n");
+    List<String> arguments = new ArrayList<>();
+    if (webhookSecretId != null) {
+      arguments.add("webhookSecretId: '" + webhookSecretId + "'");
+    }
+    if (extraStepArguments != null) {
+      arguments.add(extraStepArguments);
     }
+    pipeline.append("def qg" + id + " = waitForQualityGate(" + String.join(", ", arguments) + ");\n");
     pipeline.append("if (qg" + id + ".status != 'OK') {\n");
     pipeline.append("  error 'QG" + id + " failure'\n");
     pipeline.append("}\n");
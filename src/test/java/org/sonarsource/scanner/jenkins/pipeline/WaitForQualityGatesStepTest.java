@@ -0,0 +1,197 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.jenkins.pipeline;
+
+import com.sun.net.httpserver.HttpServer;
+import hudson.model.Result;
+import hudson.model.queue.QueueTaskFuture;
+import hudson.plugins.sonar.SonarGlobalConfiguration;
+import hudson.plugins.sonar.SonarInstallation;
+import hudson.plugins.sonar.utils.SonarUtils;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import org.apache.commons.lang.SystemUtils;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.BuildWatcher;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class WaitForQualityGatesStepTest {
+
+  private static final String TASK_ID_1 = "fakeTaskId1";
+  private static final String ANALYSIS_ID_1 = "123456";
+  private static final String TASK_ID_2 = "fakeTaskId2";
+  private static final String ANALYSIS_ID_2 = "7891011";
+
+  @ClassRule
+  public static BuildWatcher buildWatcher = new BuildWatcher();
+  @Rule
+  public JenkinsRule j = new JenkinsRule();
+
+  private static int port;
+  private static WaitForQualityGateStepTest.MyHandler handler;
+
+  @BeforeClass
+  public static void startFakeSqServer() throws Exception {
+    port = NetworkUtils.getNextAvailablePort();
+    HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+    handler = new WaitForQualityGateStepTest.MyHandler();
+    server.createContext("/sonarqube", handler);
+    server.setExecutor(null);
+    server.start();
+  }
+
+  @Before
+  public void reset() {
+    handler.status1 = "PENDING";
+    handler.analysisId1 = null;
+    handler.qgStatus1 = null;
+    handler.status2 = "PENDING";
+    handler.analysisId2 = null;
+    handler.qgStatus2 = null;
+    SonarQubeWebHook.get().listeners.clear();
+    j.jenkins.getDescriptorByType(SonarGlobalConfiguration.class)
+      .setInstallations(new SonarInstallation("default", "http://localhost:" + port + "/sonarqube", null, null, null, null, null, null, null));
+  }
+
+  @Test
+  public void failIfNoTaskIdInContext() throws Exception {
+    WorkflowJob p = j.jenkins.createProject(WorkflowJob.class, "p");
+    p.setDefinition(new CpsFlowDefinition("waitForQualityGates()", true));
+    WorkflowRun r = j.assertBuildStatus(Result.FAILURE, p.scheduleBuild2(0));
+    j.assertLogContains("No previous SonarQube analysis found on this pipeline execution.", r);
+  }
+
+  @Test
+  public void waitsForAllAnalyses() throws Exception {
+    QueueTaskFuture<WorkflowRun> pipeline = submitPipeline("abortPipeline: true");
+    WorkflowRun b = pipeline.waitForStart();
+    waitForStepToWait(b);
+
+    submitWebHook(TASK_ID_2, "SUCCESS", "OK");
+    submitWebHook(TASK_ID_1, "SUCCESS", "OK");
+
+    WorkflowRun r = j.assertBuildStatusSuccess(pipeline);
+    j.assertLogContains("project_1=OK", r);
+    j.assertLogContains("project_2=OK", r);
+    assertThat(SonarQubeWebHook.get().listeners.isEmpty()).isTrue();
+  }
+
+  @Test
+  public void returnsGatesAlreadyKnown() throws Exception {
+    handler.status1 = "SUCCESS";
+    handler.analysisId1 = ANALYSIS_ID_1;
+    handler.qgStatus1 = "OK";
+    handler.status2 = "SUCCESS";
+    handler.analysisId2 = ANALYSIS_ID_2;
+    handler.qgStatus2 = "ERROR";
+
+    WorkflowRun r = j.assertBuildStatusSuccess(submitPipeline(""));
+    j.assertLogContains("project_1=OK", r);
+    j.assertLogContains("project_2=ERROR", r);
+  }
+
+  @Test
+  public void abortsOnceAllAnalysesAreKnown() throws Exception {
+    handler.status1 = "SUCCESS";
+    handler.analysisId1 = ANALYSIS_ID_1;
+    handler.qgStatus1 = "ERROR";
+    QueueTaskFuture<WorkflowRun> pipeline = submitPipeline("abortPipeline: true");
+    WorkflowRun b = pipeline.waitForStart();
+    waitForStepToWait(b);
+
+    submitWebHook(TASK_ID_2, "SUCCESS", "OK");
+
+    WorkflowRun r = j.assertBuildStatus(Result.FAILURE, pipeline);
+    j.assertLogContains("quality gate of project_1 is ERROR", r);
+  }
+
+  @Test
+  public void failFast() throws Exception {
+    QueueTaskFuture<WorkflowRun> pipeline = submitPipeline("failFast: true");
+    WorkflowRun b = pipeline.waitForStart();
+    waitForStepToWait(b);
+
+    submitWebHook(TASK_ID_2, "FAILED", null);
+
+    WorkflowRun r = j.assertBuildStatus(Result.FAILURE, pipeline);
+    j.assertLogContains("SonarQube analysis '" + TASK_ID_2 + "' failed: FAILED", r);
+    assertThat(SonarQubeWebHook.get().listeners.isEmpty()).isTrue();
+  }
+
+  @Test
+  public void failsOnAnalysesOfTheSameProject() throws Exception {
+    QueueTaskFuture<WorkflowRun> pipeline = submitPipeline("");
+    WorkflowRun b = pipeline.waitForStart();
+    waitForStepToWait(b);
+
+    WaitForQualityGateStepTest.postWebHook(j.getURL(), WaitForQualityGateStepTest.webHookPayload(TASK_ID_1, "SUCCESS", "OK", "project_1"), null);
+    WaitForQualityGateStepTest.postWebHook(j.getURL(), WaitForQualityGateStepTest.webHookPayload(TASK_ID_2, "SUCCESS", "OK", "project_1"), null);
+
+    WorkflowRun r = j.assertBuildStatus(Result.FAILURE, pipeline);
+    j.assertLogContains("SonarQube tasks '" + TASK_ID_1 + "' and '" + TASK_ID_2 + "' both analyzed project 'project_1'", r);
+  }
+
+  private QueueTaskFuture<WorkflowRun> submitPipeline(String arguments) throws IOException {
+    WorkflowJob p = j.jenkins.createProject(WorkflowJob.class, "p");
+    StringBuilder pipeline = new StringBuilder();
+    analysis(1, TASK_ID_1, pipeline);
+    analysis(2, TASK_ID_2, pipeline);
+    pipeline.append("def gates = waitForQualityGates(" + arguments + ")\n");
+    pipeline.append("for (e in gates) {\n");
+    pipeline.append("  echo \"${e.key}=${e.value.status}\"\n");
+    pipeline.append("}\n");
+    p.setDefinition(new CpsFlowDefinition(pipeline.toString(), true));
+    return p.scheduleBuild2(0);
+  }
+
+  private static void analysis(int id, String taskId, StringBuilder pipeline) {
+    String serverUrl = "http://sonarqube.example.com";
+    pipeline.append("node {\n");
+    pipeline.append("  dir(path: 'project" + id + "') {\n");
+    pipeline.append("    withSonarQubeEnv('default') {\n");
+    pipeline.append("      writeFile file: 'foo/" + SonarUtils.REPORT_TASK_FILE_NAME + "', text: '");
+    pipeline.append("dashboardUrl=" + serverUrl + "/dashboard\\nceTaskId=" + taskId + "\\nserverUrl=" + serverUrl + "\\nprojectKey=foo");
+    pipeline.append("', encoding: 'utf-8'\n");
+    pipeline.append("      " + (SystemUtils.IS_OS_WINDOWS ? "bat" : "sh") + " 'mvn -version'\n");
+    pipeline.append("    }\n");
+    pipeline.append("  }\n");
+    pipeline.append("}\n");
+  }
+
+  private void submitWebHook(String taskId, String endTaskStatus, String qgStatus) throws IOException {
+    String projectKey = TASK_ID_1.equals(taskId) ? "project_1" : "project_2";
+    WaitForQualityGateStepTest.postWebHook(j.getURL(), WaitForQualityGateStepTest.webHookPayload(taskId, endTaskStatus, qgStatus, projectKey), null);
+  }
+
+  private static void waitForStepToWait(WorkflowRun b) throws InterruptedException {
+    while (SonarQubeWebHook.get().listeners.isEmpty() && b.isBuilding()) {
+      Thread.sleep(500);
+    }
+  }
+}
@@ -0,0 +1,220 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.jenkins.pipeline;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonarsource.scanner.jenkins.pipeline.SonarQubeWebHook.Payload;
+import org.sonarsource.scanner.jenkins.pipeline.SonarQubeWebHook.WebhookEvent;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.sonarsource.scanner.jenkins.pipeline.WebhookEvents.event;
+
+public class WebhookJournalTest {
+  private static final long TTL = TimeUnit.HOURS.toMillis(2);
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private final AtomicLong now = new AtomicLong(1_600_000_000_000L);
+  private File dir;
+
+  @Before
+  public void setUp() {
+    dir = new File(temp.getRoot(), "journal");
+  }
+
+  @Test
+  public void appends_and_reads_events() {
+    WebhookJournal journal = newJournal(4096, 100);
+    byte[] content = "{\"taskId\":\"task1\"}".getBytes(StandardCharsets.UTF_8);
+
+    journal.append(new WebhookEvent(new Payload("task1", "SUCCESS", "ERROR"), "abcd", content));
+    journal.append(new WebhookEvent(new Payload("task2", "FAILED", null), null, content));
+
+    WebhookEvent task1 = journal.get("task1");
+    assertThat(task1.getPayload().getTaskId()).isEqualTo("task1");
+    assertThat(task1.getPayload().getTaskStatus()).isEqualTo("SUCCESS");
+    assertThat(task1.getPayload().getQualityGateStatus()).isEqualTo("ERROR");
+    assertThat(task1.getReceivedSignature()).isEqualTo("abcd");
+    assertThat(task1.getSignedContent()).isEqualTo(content);
+
+    WebhookEvent task2 = journal.get("task2");
+    assertThat(task2.getPayload().getQualityGateStatus()).isNull();
+    assertThat(task2.getReceivedSignature()).isNull();
+    assertThat(task2.getSignedContent()).isNull();
+
+    assertThat(journal.get("unknown")).isNull();
+  }
+
+  @Test
+  public void last_event_of_a_task_wins() {
+    WebhookJournal journal = newJournal(4096, 100);
+
+    journal.append(event("task1", "ERROR"));
+    journal.append(event("task1", "OK"));
+
+    assertThat(journal.get("task1").getPayload().getQualityGateStatus()).isEqualTo("OK");
+  }
+
+  @Test
+  public void events_survive_restart() {
+    WebhookJournal journal = newJournal(4096, 100);
+    journal.append(event("task1", "ERROR"));
+    journal.append(event("task2", "OK"));
+    journal.append(event("task1", "OK"));
+
+    WebhookJournal restarted = newJournal(4096, 100);
+
+    assertThat(restarted.get("task1").getPayload().getQualityGateStatus()).isEqualTo("OK");
+    assertThat(restarted.get("task2").getPayload().getQualityGateStatus()).isEqualTo("OK");
+    restarted.append(event("task3", "OK"));
+    assertThat(restarted.getSegmentCount()).isEqualTo(1);
+    assertThat(newJournal(4096, 100).get("task3")).isNotNull();
+  }
+
+  @Test
+  public void get_does_not_load_the_segments() {
+    newJournal(4096, 100).append(event("task1", "OK"));
+
+    WebhookJournal restarted = new WebhookJournal(() -> dir, TTL, 4096, 100, now::get);
+    assertThat(restarted.get("task1")).isNull();
+    assertThat(restarted.getSegmentCount()).isZero();
+
+    restarted.load();
+    assertThat(restarted.get("task1")).isNotNull();
+  }
+
+  @Test
+  public void rolls_over_full_segments() {
+    WebhookJournal journal = newJournal(256, 100);
+
+    for (int i = 0; i < 20; i++) {
+      journal.append(event("task" + i, "OK"));
+    }
+
+    assertThat(journal.getSegmentCount()).isGreaterThan(1);
+    assertThat(dir.list()).hasSize(journal.getSegmentCount());
+    WebhookJournal restarted = newJournal(256, 100);
+    for (int i = 0; i < 20; i++) {
+      assertThat(restarted.get("task" + i)).isNotNull();
+    }
+  }
+
+  @Test
+  public void expired_events_and_segments_are_dropped() {
+    WebhookJournal journal = newJournal(4096, 100);
+    journal.append(event("old", "OK"));
+    now.addAndGet(TimeUnit.MINUTES.toMillis(40));
+    // starts a new segment, a quarter of the retention later
+    journal.append(event("recent", "OK"));
+    assertThat(journal.getSegmentCount()).isEqualTo(2);
+
+    // the first segment may receive events during 30 minutes, so it expires 150 minutes after its creation
+    now.addAndGet(TimeUnit.MINUTES.toMillis(115));
+    assertThat(journal.get("old")).isNull();
+    assertThat(journal.get("recent")).isNotNull();
+
+    journal.compact(now.get());
+    assertThat(journal.getSegmentCount()).isEqualTo(1);
+    assertThat(dir.list()).hasSize(1);
+
+    now.addAndGet(TimeUnit.HOURS.toMillis(3));
+    journal.compact(now.get());
+    assertThat(journal.get("recent")).isNull();
+    assertThat(dir.list()).isEmpty();
+    journal.append(event("new", "OK"));
+    assertThat(journal.get("new")).isNotNull();
+  }
+
+  @Test
+  public void index_is_bounded() {
+    WebhookJournal journal = newJournal(4096, 10);
+
+    for (int i = 0; i < 100; i++) {
+      journal.append(event("task" + i, "OK"));
+    }
+
+    assertThat(journal.getIndexSize()).isLessThanOrEqualTo(10);
+    assertThat(journal.get("task99")).isNotNull();
+  }
+
+  @Test
+  public void torn_record_ends_the_segment() throws IOException {
+    WebhookJournal journal = newJournal(4096, 100);
+    journal.append(event("task1", "OK"));
+    journal.append(event("task2", "OK"));
+
+    File segment = dir.listFiles()[0];
+    try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+      // corrupts the content of the second record
+      int first = readInt(file, 12);
+      file.seek(12 + 8 + first + 10);
+      file.write(0x42);
+    }
+
+    WebhookJournal restarted = newJournal(4096, 100);
+    assertThat(restarted.get("task1")).isNotNull();
+    assertThat(restarted.get("task2")).isNull();
+  }
+
+  @Test
+  public void ignores_unknown_files() throws IOException {
+    dir.mkdirs();
+    Files.write(new File(dir, "garbage.journal").toPath(), "not a journal at all".getBytes(StandardCharsets.UTF_8));
+
+    WebhookJournal journal = newJournal(4096, 100);
+    journal.append(event("task1", "OK"));
+
+    assertThat(journal.get("task1")).isNotNull();
+    assertThat(new File(dir, "garbage.journal")).doesNotExist();
+  }
+
+  @Test
+  public void keeps_events_in_memory_without_directory() {
+    WebhookJournal journal = new WebhookJournal(() -> null, TTL, 4096, 100, now::get);
+
+    journal.append(event("task1", "OK"));
+
+    assertThat(journal.get("task1").getPayload().getQualityGateStatus()).isEqualTo("OK");
+    now.addAndGet(TTL + 1);
+    assertThat(journal.get("task1")).isNull();
+  }
+
+  private WebhookJournal newJournal(int segmentBytes, int indexSize) {
+    WebhookJournal journal = new WebhookJournal(() -> dir, TTL, segmentBytes, indexSize, now::get);
+    journal.load();
+    return journal;
+  }
+
+  private static int readInt(RandomAccessFile file, long offset) throws IOException {
+    file.seek(offset);
+    return file.readInt();
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.jenkins.pipeline;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.junit.Test;
+import org.sonarsource.scanner.jenkins.pipeline.SonarQubeWebHook.WebhookEvent;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.withSettings;
+import static org.sonarsource.scanner.jenkins.pipeline.WebhookEvents.event;
+
+public class WebhookListenerRegistryTest {
+  private final AtomicLong nanos = new AtomicLong();
+  private final WebhookListenerRegistry registry = new WebhookListenerRegistry(Duration.ofHours(1), nanos::get);
+
+  @Test
+  public void dispatches_only_to_listeners_of_the_task() {
+    List<String> received = new ArrayList<>();
+    registry.register("task1", e -> received.add("A" + e.getPayload().getTaskId()));
+    registry.register("task1", e -> received.add("B" + e.getPayload().getTaskId()));
+    registry.register("task2", e -> received.add("C" + e.getPayload().getTaskId()));
+
+    assertThat(registry.dispatch(event("task1"))).isEqualTo(2);
+    assertThat(received).containsExactlyInAnyOrder("Atask1", "Btask1");
+    assertThat(registry.dispatch(event("unknown"))).isZero();
+    assertThat(registry.getTaskCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void global_listeners_receive_all_events() {
+    List<String> received = new ArrayList<>();
+    Consumer<WebhookEvent> listener = e -> received.add(e.getPayload().getTaskId());
+    registry.registerForAllTasks(listener);
+
+    registry.dispatch(event("task1"));
+    registry.dispatch(event("task2"));
+    registry.unregisterForAllTasks(listener);
+    registry.dispatch(event("task3"));
+
+    assertThat(received).containsExactly("task1", "task2");
+    assertThat(registry.isEmpty()).isTrue();
+  }
+
+  @Test
+  public void unregister_drops_task_without_listeners() {
+    Consumer<WebhookEvent> a = e -> {
+    };
+    Consumer<WebhookEvent> b = e -> {
+    };
+    registry.register("task1", a);
+    registry.register("task1", b);
+
+    registry.unregister("task1", a);
+    assertThat(registry.isRegistered("task1")).isTrue();
+    registry.unregister("task1", b);
+    assertThat(registry.isRegistered("task1")).isFalse();
+    assertThat(registry.isEmpty()).isTrue();
+
+    // unregistering twice is harmless
+    registry.unregister("task1", b);
+  }
+
+  @Test
+  public void listener_can_unregister_while_dispatched() {
+    List<String> received = new ArrayList<>();
+    Consumer<WebhookEvent> listener = new Consumer<WebhookEvent>() {
+      @Override
+      public void accept(WebhookEvent e) {
+        registry.unregister("task1", this);
+        received.add(e.getPayload().getTaskId());
+      }
+    };
+    registry.register("task1", listener);
+
+    registry.dispatch(event("task1"));
+    registry.dispatch(event("task1"));
+
+    assertThat(received).containsExactly("task1");
+    assertThat(registry.isRegistered("task1")).isFalse();
+  }
+
+  @Test
+  public void orphaned_listeners_expire() {
+    List<String> received = new ArrayList<>();
+    Consumer<WebhookEvent> listener = e -> received.add(e.getPayload().getTaskId());
+    registry.register("task1", listener);
+    registry.register("task2", listener);
+
+    nanos.addAndGet(TimeUnit.MINUTES.toNanos(40));
+    // renews the lease of task2
+    registry.register("task2", listener);
+    nanos.addAndGet(TimeUnit.MINUTES.toNanos(40));
+
+    assertThat(registry.isRegistered("task1")).isFalse();
+    assertThat(registry.isRegistered("task2")).isTrue();
+    registry.dispatch(event("task1"));
+    registry.dispatch(event("task2"));
+    assertThat(received).containsExactly("task2");
+    assertThat(registry.getTaskCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void listeners_of_step_executions_do_not_expire() {
+    Consumer<WebhookEvent> other = e -> {
+    };
+    Consumer<WebhookEvent> execution = (Consumer<WebhookEvent>) mock(StepExecution.class, withSettings().extraInterfaces(Consumer.class));
+    registry.register("task1", other);
+    registry.register("task1", execution);
+
+    nanos.addAndGet(TimeUnit.HOURS.toNanos(48));
+    assertThat(registry.isRegistered("task1")).isTrue();
+
+    // leased again once the execution is gone
+    registry.unregister("task1", execution);
+    nanos.addAndGet(TimeUnit.MINUTES.toNanos(70));
+    assertThat(registry.isRegistered("task1")).isFalse();
+  }
+}
@@ -0,0 +1,194 @@
+/*
+ * SonarQube Scanner for Jenkins
+ * Copyright (C) 2007-2022 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.jenkins.pipeline;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Test;
+import org.sonarsource.scanner.jenkins.pipeline.SonarQubeWebHook.WebhookEvent;
+import org.sonarsource.scanner.jenkins.pipeline.WebhookQueue.Outcome;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.sonarsource.scanner.jenkins.pipeline.WebhookEvents.event;
+
+public class WebhookQueueTest {
+  private final AtomicLong nanos = new AtomicLong();
+  private final List<String> processed = new CopyOnWriteArrayList<>();
+  private final CountDownLatch release = new CountDownLatch(1);
+  private final ThreadPoolExecutor executor = WebhookQueue.newExecutor(1, 2);
+
+  @After
+  public void tearDown() {
+    release.countDown();
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void processes_events_asynchronously() throws InterruptedException {
+    WebhookQueue queue = new WebhookQueue(executor, e -> processed.add(e.getPayload().getTaskId()), 10, 10, nanos::get);
+
+    assertThat(queue.offer(event("task1", "OK"))).isEqualTo(Outcome.ACCEPTED);
+    assertThat(queue.offer(event("task2", "OK"))).isEqualTo(Outcome.ACCEPTED);
+
+    awaitProcessed(queue, 2);
+    assertThat(processed).containsExactly("task1", "task2");
+    assertThat(queue.getAccepted()).isEqualTo(2);
+    assertThat(queue.getDepth()).isZero();
+  }
+
+  @Test
+  public void collapses_deliveries_of_a_queued_task() throws InterruptedException {
+    WebhookQueue queue = new WebhookQueue(executor, this::blockOnFirst, 10, 10, nanos::get);
+    queue.offer(event("blocker", "OK"));
+
+    assertThat(queue.offer(event("task1", "ERROR"))).isEqualTo(Outcome.ACCEPTED);
+    assertThat(queue.offer(event("task1", "OK"))).isEqualTo(Outcome.COLLAPSED);
+    assertThat(queue.getDepth()).isEqualTo(1);
+    release.countDown();
+
+    awaitProcessed(queue, 2);
+    // the latest delivery wins
+    assertThat(processed).containsExactly("blocker:OK", "task1:OK");
+    assertThat(queue.getCollapsed()).isEqualTo(1);
+  }
+
+  @Test
+  public void delivery_of_an_already_processed_task_is_processed_again() throws InterruptedException {
+    WebhookQueue queue = new WebhookQueue(executor, e -> processed.add(e.getPayload().getTaskId()), 10, 10, nanos::get);
+
+    queue.offer(event("task1", "OK"));
+    awaitProcessed(queue, 1);
+    assertThat(queue.offer(event("task1", "OK"))).isEqualTo(Outcome.ACCEPTED);
+    awaitProcessed(queue, 2);
+
+    assertThat(processed).containsExactly("task1", "task1");
+  }
+
+  @Test
+  public void rejects_when_full() throws InterruptedException {
+    WebhookQueue queue = new WebhookQueue(executor, this::blockOnFirst, 10, 10, nanos::get);
+    queue.offer(event("blocker", "OK"));
+    waitUntilRunning();
+
+    assertThat(queue.offer(event("task1", "OK"))).isEqualTo(Outcome.ACCEPTED);
+    assertThat(queue.offer(event("task2", "OK"))).isEqualTo(Outcome.ACCEPTED);
+    assertThat(queue.offer(event("task3", "OK"))).isEqualTo(Outcome.FULL);
+    assertThat(queue.getRejected()).isEqualTo(1);
+    assertThat(queue.getCapacity()).isEqualTo(2);
+    release.countDown();
+
+    awaitProcessed(queue, 3);
+    assertThat(processed).containsExactly("blocker:OK", "task1:OK", "task2:OK");
+
+    // a rejected task can be delivered again
+    assertThat(queue.offer(event("task3", "OK"))).isEqualTo(Outcome.ACCEPTED);
+  }
+
+  @Test
+  public void delivery_collapsed_while_rejected_does_not_block_the_task() throws InterruptedException {
+    AtomicReference<WebhookQueue> queue = new AtomicReference<>();
+    AtomicReference<Outcome> concurrent = new AtomicReference<>();
+    ThreadPoolExecutor rejecting = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, new ArrayBlockingQueue<>(1)) {
+      @Override
+      public void execute(Runnable command) {
+        if (concurrent.get() == null) {
+          concurrent.set(queue.get().offer(event("task1", "ERROR")));
+          throw new RejectedExecutionException("full");
+        }
+        super.execute(command);
+      }
+    };
+    try {
+      queue.set(new WebhookQueue(rejecting, e -> processed.add(e.getPayload().getTaskId()), 10, 10, nanos::get));
+
+      assertThat(queue.get().offer(event("task1", "OK"))).isEqualTo(Outcome.FULL);
+      assertThat(concurrent.get()).isEqualTo(Outcome.COLLAPSED);
+
+      assertThat(queue.get().offer(event("task1", "OK"))).isEqualTo(Outcome.ACCEPTED);
+      awaitProcessed(queue.get(), 1);
+      assertThat(processed).containsExactly("task1");
+    } finally {
+      rejecting.shutdownNow();
+    }
+  }
+
+  @Test
+  public void throttles_each_source() {
+    WebhookQueue queue = new WebhookQueue(executor, e -> {
+    }, 2, 3, nanos::get);
+
+    for (int i = 0; i < 3; i++) {
+      assertThat(queue.tryAcquire("10.0.0.1")).isTrue();
+    }
+    assertThat(queue.tryAcquire("10.0.0.1")).isFalse();
+    assertThat(queue.tryAcquire("10.0.0.2")).isTrue();
+    assertThat(queue.getThrottled()).isEqualTo(1);
+
+    nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(500));
+    assertThat(queue.tryAcquire("10.0.0.1")).isTrue();
+    assertThat(queue.tryAcquire("10.0.0.1")).isFalse();
+  }
+
+  @Test
+  public void failing_processor_does_not_stop_the_workers() throws InterruptedException {
+    WebhookQueue queue = new WebhookQueue(executor, e -> {
+      processed.add(e.getPayload().getTaskId());
+      throw new IllegalStateException("boom");
+    }, 10, 10, nanos::get);
+
+    queue.offer(event("task1", "OK"));
+    queue.offer(event("task2", "OK"));
+
+    awaitProcessed(queue, 2);
+    assertThat(processed).containsExactly("task1", "task2");
+  }
+
+  private void blockOnFirst(WebhookEvent event) {
+    if ("blocker".equals(event.getPayload().getTaskId())) {
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    processed.add(event.getPayload().getTaskId() + ":" + event.getPayload().getQualityGateStatus());
+  }
+
+  private void waitUntilRunning() throws InterruptedException {
+    while (executor.getActiveCount() == 0 || !executor.getQueue().isEmpty()) {
+      Thread.sleep(1);
+    }
+  }
+
+  private static void awaitProcessed(WebhookQueue queue, long count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5_000;
+    while (queue.getProcessed() < count && System.currentTimeMillis() < deadline) {
+      Thread.sleep(1);
+    }
+  }
+}